@@ -0,0 +1,32 @@
+package jlarv.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+    Entry point of benchmarks.jar. Takes the usual JMH command line options, but
+    unless told otherwise writes the results as JSON to jmh-result.json, so runs
+    can be archived and compared over time.
+
+    USAGE:
+      mvn -B package
+      java -jar jlarv-benchmarks/target/benchmarks.jar                      # everything
+      java -jar jlarv-benchmarks/target/benchmarks.jar EngineBenchmark -rff engine.json
+ */
+public class BenchmarkMain {
+
+	public static void main( String[] args ) throws Exception {
+		CommandLineOptions commandLine = new CommandLineOptions( args );
+		ChainedOptionsBuilder options = new OptionsBuilder().parent( commandLine );
+		if ( ! commandLine.getResultFormat().hasValue() ) {
+			options.resultFormat( ResultFormatType.JSON );
+		}
+		if ( ! commandLine.getResult().hasValue() ) {
+			options.result( "jmh-result.json" );
+		}
+		new Runner( options.build() ).run();
+	}
+}
@@ -0,0 +1,158 @@
+package jlarv.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import jlarv.BudgetedSystem;
+import jlarv.Engine;
+import jlarv.EntityManager;
+import jlarv.Phase;
+import jlarv.System;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+    Full Engine.update ticks with a mix of systems similar to a small game:
+      - movement:  moves every entity with a Velocity (UPDATE).
+      - health:    regenerates every entity with Health (UPDATE, doesn't
+                   conflict with movement so they share a stage in parallel mode).
+      - ai:        budgeted system over Position + Velocity, 100us per tick (UPDATE).
+      - extract:   copies positions of entities with a Sprite (RENDER_EXTRACT).
+    Frozen entities (a tenth of them) are skipped by movement.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class EngineBenchmark {
+
+	@Param( { "1000", "10000" } )
+	int entities;
+
+	@Param( { "false", "true" } )
+	boolean parallel;
+
+	Engine engine;
+
+	@Setup
+	public void setup() {
+		engine = new Engine();
+		EntityManager entityManager = engine.getEntityManager();
+		for ( int i = 0; i < entities; i++ ) {
+			long entity = entityManager.createEntity();
+			entityManager.addComponent( entity, new Position() );
+			if ( i % 4 != 0 ) {
+				entityManager.addComponent( entity, new Velocity() );
+			}
+			if ( i % 3 == 0 ) {
+				entityManager.addComponent( entity, new Health() );
+			}
+			if ( i % 2 == 0 ) {
+				entityManager.addComponent( entity, new Sprite() );
+			}
+			if ( i % 10 == 0 ) {
+				entityManager.addTag( entity, Frozen.class );
+			}
+		}
+		engine.addSystems( new MovementSystem(), new HealthSystem(), new AiSystem(), new ExtractSystem() );
+		engine.setParallel( parallel );
+	}
+
+	@TearDown
+	public void tearDown() {
+		engine.setParallel( false );
+	}
+
+	@Benchmark
+	public Engine tick() {
+		engine.update( 1f / 60f );
+		return engine;
+	}
+
+	static class MovementSystem extends System {
+		MovementSystem() {
+			super( 0 );
+			reads( Velocity.class, Frozen.class );
+			writes( Position.class );
+		}
+
+		@Override
+		public void update( float delta ) {
+			for ( long entity : entityManager.getEntitiesHavingComponent( Velocity.class ) ) {
+				if ( entityManager.hasTag( entity, Frozen.class ) ) {
+					continue;
+				}
+				Velocity velocity = entityManager.getComponent( entity, Velocity.class );
+				Position position = entityManager.getComponent( entity, Position.class );
+				position.x += velocity.dx * delta;
+				position.y += velocity.dy * delta;
+			}
+		}
+	}
+
+	static class HealthSystem extends System {
+		HealthSystem() {
+			super( 1 );
+			writes( Health.class );
+		}
+
+		@Override
+		public void update( float delta ) {
+			for ( long entity : entityManager.getEntitiesHavingComponent( Health.class ) ) {
+				Health health = entityManager.getComponent( entity, Health.class );
+				health.points = Math.min( 100f, health.points + delta );
+			}
+		}
+	}
+
+	static class AiSystem extends BudgetedSystem {
+		@SuppressWarnings("unchecked")
+		AiSystem() {
+			super( 2, 100000L, Position.class, Velocity.class );
+			writes( Velocity.class );
+			reads( Position.class );
+		}
+
+		@Override
+		protected void process( long entity, float elapsed ) {
+			Position position = entityManager.getComponent( entity, Position.class );
+			Velocity velocity = entityManager.getComponent( entity, Velocity.class );
+			velocity.dx = position.x > 100f ? -1f : 1f;
+		}
+	}
+
+	static class ExtractSystem extends System {
+		float[] extracted = new float[0];
+
+		ExtractSystem() {
+			super( 0, Phase.RENDER_EXTRACT );
+			reads( Position.class, Sprite.class );
+		}
+
+		@Override
+		public void update( float delta ) {
+			int count = 0;
+			for ( long entity : entityManager.getEntitiesHavingComponent( Sprite.class ) ) {
+				if ( extracted.length < ( count + 1 ) * 2 ) {
+					extracted = java.util.Arrays.copyOf( extracted, Math.max( 64, extracted.length * 2 ) );
+				}
+				Position position = entityManager.getComponent( entity, Position.class );
+				extracted[count * 2] = position.x;
+				extracted[count * 2 + 1] = position.y;
+				count++;
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package jlarv.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import jlarv.EntityManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+    Single entity operations of the EntityManager: creating and removing
+    entities, and adding and getting components, on a manager already holding
+    a given number of entities (in sequential and concurrent mode).
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class EntityManagerBenchmark {
+
+	@Param( { "1000", "100000" } )
+	int entities;
+
+	@Param( { "false", "true" } )
+	boolean concurrent;
+
+	EntityManager entityManager;
+	long[] ids;
+	Position[] positions;
+	int next;
+
+	@Setup
+	public void setup() {
+		entityManager = new EntityManager( concurrent );
+		ids = new long[entities];
+		positions = new Position[entities];
+		for ( int i = 0; i < entities; i++ ) {
+			ids[i] = entityManager.createEntity();
+			positions[i] = new Position();
+			entityManager.addComponent( ids[i], positions[i] );
+			if ( i % 2 == 0 ) {
+				entityManager.addComponent( ids[i], new Velocity() );
+			}
+		}
+	}
+
+	private int nextIndex() {
+		int index = next;
+		next = index + 1 == entities ? 0 : index + 1;
+		return index;
+	}
+
+	/**
+	 * Creates an entity with two components and removes it right away.
+	 */
+	@Benchmark
+	public long createRemoveChurn() {
+		long entity = entityManager.createEntity();
+		entityManager.addComponent( entity, positions[nextIndex()] );
+		entityManager.addComponent( entity, new Health() );
+		entityManager.removeEntity( entity );
+		return entity;
+	}
+
+	@Benchmark
+	public Position addGetComponent() {
+		int index = nextIndex();
+		entityManager.addComponent( ids[index], positions[index] );
+		return entityManager.getComponent( ids[index], Position.class );
+	}
+
+	@Benchmark
+	public Velocity getComponent() {
+		int index = nextIndex() & ~1;
+		return entityManager.getComponent( ids[index], Velocity.class );
+	}
+
+	@Benchmark
+	public boolean hasComponent() {
+		return entityManager.hasComponent( ids[nextIndex()], Velocity.class );
+	}
+
+	@Benchmark
+	public void addRemoveTag() {
+		long entity = ids[nextIndex()];
+		entityManager.addTag( entity, Frozen.class );
+		entityManager.removeTag( entity, Frozen.class );
+	}
+}
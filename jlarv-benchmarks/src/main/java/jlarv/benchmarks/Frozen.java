@@ -0,0 +1,9 @@
+package jlarv.benchmarks;
+
+import jlarv.TagComponent;
+
+/*
+ * Tag used by the benchmarks.
+ */
+public class Frozen extends TagComponent {
+}
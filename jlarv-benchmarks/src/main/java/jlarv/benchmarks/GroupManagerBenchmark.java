@@ -0,0 +1,70 @@
+package jlarv.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import jlarv.GroupManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+    GroupManager.get on a single group and on intersections of two and three
+    groups. "all" holds every entity, "half" every other one, "tenth" one in ten.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class GroupManagerBenchmark {
+
+	@Param( { "1000", "10000" } )
+	int entities;
+
+	GroupManager groupManager;
+
+	@Setup
+	public void setup() {
+		groupManager = new GroupManager();
+		for ( long entity = 0; entity < entities; entity++ ) {
+			groupManager.add( entity, "all" );
+			if ( entity % 2 == 0 ) {
+				groupManager.add( entity, "half" );
+			}
+			if ( entity % 10 == 0 ) {
+				groupManager.add( entity, "tenth" );
+			}
+		}
+	}
+
+	@Benchmark
+	public ArrayList<Long> single() {
+		return groupManager.get( "half" );
+	}
+
+	@Benchmark
+	public ArrayList<Long> intersectTwo() {
+		return groupManager.get( "tenth", "half" );
+	}
+
+	@Benchmark
+	public ArrayList<Long> intersectThree() {
+		return groupManager.get( "tenth", "half", "all" );
+	}
+
+	@Benchmark
+	public boolean isInGroup() {
+		return groupManager.isInGroup( entities / 2, "tenth" );
+	}
+}
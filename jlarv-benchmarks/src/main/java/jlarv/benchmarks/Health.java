@@ -0,0 +1,10 @@
+package jlarv.benchmarks;
+
+import jlarv.Component;
+
+/*
+ * Component used by the benchmarks.
+ */
+public class Health extends Component {
+	public float points = 100f;
+}
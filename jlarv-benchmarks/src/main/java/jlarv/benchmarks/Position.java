@@ -0,0 +1,11 @@
+package jlarv.benchmarks;
+
+import jlarv.Component;
+
+/*
+ * Component used by the benchmarks.
+ */
+public class Position extends Component {
+	public float x;
+	public float y;
+}
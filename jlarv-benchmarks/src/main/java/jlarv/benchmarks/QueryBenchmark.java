@@ -0,0 +1,91 @@
+package jlarv.benchmarks;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import jlarv.EntityManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+    Multi component queries over the EntityManager at various selectivities.
+    Every entity has a Position; selectivity is the percentage that also has a
+    Velocity, and half of those also have a Health.
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class QueryBenchmark {
+
+	@Param( { "1000", "10000" } )
+	int entities;
+
+	@Param( { "1", "10", "50", "100" } )
+	int selectivity;
+
+	EntityManager entityManager;
+
+	@Setup
+	public void setup() {
+		entityManager = new EntityManager();
+		for ( int i = 0; i < entities; i++ ) {
+			long entity = entityManager.createEntity();
+			entityManager.addComponent( entity, new Position() );
+			if ( i % 100 < selectivity ) {
+				entityManager.addComponent( entity, new Velocity() );
+				if ( i % 2 == 0 ) {
+					entityManager.addComponent( entity, new Health() );
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public ArrayList<Long> twoComponents() {
+		return entityManager.getEntitiesHavingComponents( Position.class, Velocity.class );
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public ArrayList<Long> threeComponents() {
+		return entityManager.getEntitiesHavingComponents( Position.class, Velocity.class, Health.class );
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public boolean anyMatch() {
+		return entityManager.hasEntitiesHavingComponents( Position.class, Velocity.class, Health.class );
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public long streamCount() {
+		return entityManager.streamEntitiesHavingComponents( Position.class, Velocity.class, Health.class ).count();
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public long parallelStreamCount() {
+		return entityManager.streamEntitiesHavingComponents( Position.class, Velocity.class, Health.class ).parallel().count();
+	}
+
+	@Benchmark
+	@SuppressWarnings("unchecked")
+	public long anyNoneCount() {
+		return entityManager.query().any( Velocity.class, Health.class ).none( Health.class ).count();
+	}
+}
@@ -0,0 +1,10 @@
+package jlarv.benchmarks;
+
+import jlarv.Component;
+
+/*
+ * Component used by the benchmarks.
+ */
+public class Sprite extends Component {
+	public int id;
+}
@@ -0,0 +1,11 @@
+package jlarv.benchmarks;
+
+import jlarv.Component;
+
+/*
+ * Component used by the benchmarks.
+ */
+public class Velocity extends Component {
+	public float dx = 1f;
+	public float dy = 0.5f;
+}
@@ -0,0 +1,242 @@
+package jlarv;
+
+/*
+    Base class for expensive but latency tolerant systems (pathfinding refreshes,
+    visibility rebuilds, LOD evaluation...) that would cause frame spikes if they
+    processed all their entities in a single update.
+
+    Every tick it walks the entities matching its query, processing them until
+    its time budget is used up, and resumes from there on the next tick. Going
+    once over the entities that matched when it started is a sweep: when a sweep
+    finishes, the next tick starts over, so entities are visited round-robin.
+    Only matches are walked, so sparse queries don't spend the budget on
+    entities that don't concern them. The clock is read after the first entity
+    of a tick (at least one is processed per tick, even with no budget left, so
+    the sweep always progresses) and then every CLOCK_INTERVAL entities, so a
+    tick may overrun the budget by that many entities at most.
+
+    On a plain EntityManager the matches are kept in a CachedQuery (see
+    createCachedQuery for what that costs), so nothing is collected up front
+    and resuming costs nothing. A concurrent EntityManager has no cached
+    queries, so the matches are copied when a sweep starts instead.
+
+    Entities and components can be added and removed between ticks: entities
+    that stop matching before the sweep gets to them are skipped. Those that
+    start matching are processed in this sweep or in the next one, and so may
+    be some of the entities waiting in the sweep when others are removed
+    (removing fills the gap with the last match, see CachedQuery).
+
+    USAGE:
+      public class PathSystem extends BudgetedSystem {
+          public PathSystem() {
+              super( 10, 2000000L, PathComponent.class, PositionComponent.class );
+          }
+          protected void process( long entity, float elapsed ) { ... }
+      }
+ */
+public abstract class BudgetedSystem extends System {
+
+	/* Entities processed between two reads of the clock */
+	private static final int CLOCK_INTERVAL = 32;
+
+	private final Class<? extends Component>[] components;
+	private long   budgetNanos;
+
+	// Matches being walked, of the manager in queried: kept up to date, or a copy in concurrent mode
+	private EntityManager queried;
+	private CachedQuery   query;
+	private long[]        snapshot;
+
+	// Current sweep: matches below end, the next one to look at being cursor
+	private int    sweepEnd;
+	private int    cursor;
+
+	// Time accumulated since the current sweep started, and length of the last full one
+	private float  sweepTime;
+	private float  lastSweepTime;
+	private int    sweepTicks;
+	private int    lastSweepTicks;
+	private long   sweepsCompleted;
+
+	private int    lastProcessed;
+	private int    lastVisited;
+
+	/**
+	 * @param budgetNanos Time the system may spend per tick, in nanoseconds.
+	 * @param components  The components an entity needs to be processed.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public BudgetedSystem( int priority, long budgetNanos, Class<? extends Component> ... components ) {
+		super( priority );
+		this.budgetNanos = budgetNanos;
+		this.components = components;
+		registerQuery( components );
+	}
+
+	/**
+	 * Processes a single entity.
+	 * @param elapsed Time between the start of the previous sweep and the start
+	 *                of the current one, that is, roughly the time since this
+	 *                entity was last processed.
+	 */
+	protected abstract void process( long entity, float elapsed );
+
+	@Override
+	public void update( float delta ) {
+		long start = java.lang.System.nanoTime();
+		sweepTime += delta;
+		sweepTicks++;
+		if ( queried != entityManager ) {
+			bind( entityManager );
+		}
+		if ( cursor >= getSweepEnd() ) {
+			startSweep( delta );
+			if ( sweepEnd == 0 ) {
+				lastProcessed = 0;
+				lastVisited = 0;
+				return;
+			}
+		}
+
+		int first = cursor;
+		int processed = 0;
+		int untilClock = 1;
+		do {
+			if ( query != null ) {
+				process( query.get( cursor++ ), lastSweepTime );
+				processed++;
+			} else {
+				// The copy may be stale
+				long entity = snapshot[cursor++];
+				if ( entityManager.doesEntityExist( entity ) && entityManager.matches( entity, components ) ) {
+					process( entity, lastSweepTime );
+					processed++;
+				}
+			}
+			if ( --untilClock == 0 ) {
+				if ( java.lang.System.nanoTime() - start >= budgetNanos ) {
+					break;
+				}
+				untilClock = CLOCK_INTERVAL;
+			}
+		} while ( cursor < getSweepEnd() );
+
+		if ( cursor >= getSweepEnd() ) {
+			sweepsCompleted++;
+			lastSweepTicks = sweepTicks;
+		}
+		lastProcessed = processed;
+		lastVisited = cursor - first;
+		countProcessed( processed );
+	}
+
+	/**
+	 * Starts over from the first match, up to the last one there is now.
+	 */
+	private void startSweep( float delta ) {
+		lastSweepTime = sweepsCompleted == 0 ? delta : sweepTime - delta;
+		sweepTime = delta;
+		sweepTicks = 1;
+		cursor = 0;
+		if ( query != null ) {
+			sweepEnd = query.size();
+		} else {
+			snapshot = entityManager.streamEntitiesHavingComponents( components ).toArray();
+			sweepEnd = snapshot.length;
+		}
+	}
+
+	/**
+	 * @return End of the current sweep, which shrinks if matches are removed.
+	 */
+	private int getSweepEnd() {
+		return query != null ? Math.min( sweepEnd, query.size() ) : sweepEnd;
+	}
+
+	/**
+	 * Walks the matches of the given manager from now on, starting a new sweep.
+	 */
+	private void bind( EntityManager manager ) {
+		unbind();
+		queried = manager;
+		if ( manager != null && ! manager.isConcurrent() ) {
+			query = manager.createCachedQuery( components );
+		}
+		cursor = 0;
+		sweepEnd = 0;
+	}
+
+	private void unbind() {
+		if ( query != null ) {
+			queried.removeCachedQuery( query );
+		}
+		queried = null;
+		query = null;
+		snapshot = null;
+	}
+
+	@Override
+	public void dispose() {
+		unbind();
+		super.dispose();
+	}
+
+	/*
+	 * Getters and setters.
+	 */
+	public long getBudgetNanos() {
+		return budgetNanos;
+	}
+
+	public void setBudgetNanos( long budgetNanos ) {
+		this.budgetNanos = budgetNanos;
+	}
+
+	/**
+	 * @return Entities processed during the last update.
+	 */
+	public int getLastProcessed() {
+		return lastProcessed;
+	}
+
+	/**
+	 * @return Fraction (0 to 1) of the current sweep's entities looked at during the last update.
+	 */
+	public float getLastCoverage() {
+		return sweepEnd == 0 ? 1f : (float) lastVisited / sweepEnd;
+	}
+
+	/**
+	 * @return Entities of the current sweep still waiting to be looked at.
+	 */
+	public int getBacklog() {
+		return Math.max( 0, getSweepEnd() - cursor );
+	}
+
+	/**
+	 * @return Fraction (0 to 1) of the current sweep already done.
+	 */
+	public float getSweepProgress() {
+		return sweepEnd == 0 ? 1f : 1f - (float) getBacklog() / sweepEnd;
+	}
+
+	/**
+	 * @return Ticks the last complete sweep took, that is, how many ticks behind
+	 *         the oldest processed entity can be. 0 until a sweep completes.
+	 */
+	public int getLastSweepTicks() {
+		return lastSweepTicks;
+	}
+
+	/**
+	 * @return Time the last complete sweep took, in seconds.
+	 */
+	public float getLastSweepTime() {
+		return lastSweepTime;
+	}
+
+	public long getSweepsCompleted() {
+		return sweepsCompleted;
+	}
+}
@@ -0,0 +1,160 @@
+package jlarv;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+
+import jlarv.util.LongLongHashMap;
+
+/*
+    Result of a query (the enabled entities having every one of a set of
+    component types) that the EntityManager keeps up to date on every change,
+    instead of being recomputed each time it's needed.
+
+    Entities are kept in a dense array, plus a map from entity to position so
+    that adding and removing are O(1): removing moves the last entity into the
+    gap, so the order isn't stable. Iterating is walking the array, and its
+    stream splits in even halves when parallel.
+
+    Changes made while iterating (by the consumer itself, for example) may
+    make the iteration skip or repeat entities; collect them and apply them
+    afterwards, or iterate over toArray().
+
+    USAGE:
+      CachedQuery moving = entityManager.createCachedQuery( PositionComponent.class, VelocityComponent.class );
+      ...every tick
+      for ( int i = 0; i < moving.size(); i++ ) {
+          long entity = moving.get( i );
+          ...
+      }
+      ...when no longer needed
+      entityManager.removeCachedQuery( moving );
+ */
+public class CachedQuery {
+
+	private final EntityManager                entityManager;
+	private final Class<? extends Component>[] components;
+
+	private long[]                entities = new long[16];
+	private int                   size;
+	private final LongLongHashMap positions = new LongLongHashMap();
+
+	CachedQuery( EntityManager entityManager, Class<? extends Component>[] components ) {
+		this.entityManager = entityManager;
+		this.components = components;
+	}
+
+	/**
+	 * @return True if the result depends on the given type.
+	 */
+	boolean involves( Class<? extends Component> componentType ) {
+		for ( Class<? extends Component> component : components ) {
+			if ( component == componentType ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Adds or removes the given entity depending on whether it matches now.
+	 */
+	void update( long entity ) {
+		boolean contained = positions.containsKey( entity );
+		if ( entityManager.matches( entity, components ) ) {
+			if ( ! contained ) {
+				add( entity );
+			}
+		} else if ( contained ) {
+			remove( entity );
+		}
+	}
+
+	/**
+	 * Computes the result from scratch.
+	 */
+	void rebuild() {
+		size = 0;
+		positions.clear();
+		entityManager.querySpliterator( components ).forEachRemaining( new LongConsumer() {
+			@Override
+			public void accept( long entity ) {
+				add( entity );
+			}
+		} );
+	}
+
+	private void add( long entity ) {
+		if ( size == entities.length ) {
+			entities = Arrays.copyOf( entities, size * 2 );
+		}
+		positions.put( entity, size );
+		entities[size++] = entity;
+	}
+
+	void remove( long entity ) {
+		long position = positions.get( entity, -1 );
+		if ( position < 0 ) {
+			return;
+		}
+		positions.remove( entity );
+		long last = entities[--size];
+		if ( last != entity ) {
+			entities[(int) position] = last;
+			positions.put( last, position );
+		}
+	}
+
+	/*
+	 * Reading.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param index From 0 to size() - 1.
+	 */
+	public long get( int index ) {
+		if ( index >= size ) {
+			throw new IndexOutOfBoundsException( "Index " + index + ", size " + size );
+		}
+		return entities[index];
+	}
+
+	public boolean contains( long entity ) {
+		return positions.containsKey( entity );
+	}
+
+	public void forEach( LongConsumer consumer ) {
+		for ( int i = 0; i < size; i++ ) {
+			consumer.accept( entities[i] );
+		}
+	}
+
+	/**
+	 * @return A stream over the result, sized and evenly splittable. Don't change
+	 *         the entity manager while it runs.
+	 */
+	public LongStream stream() {
+		return Arrays.stream( entities, 0, size );
+	}
+
+	/**
+	 * @return A copy of the result.
+	 */
+	public long[] toArray() {
+		return Arrays.copyOf( entities, size );
+	}
+
+	/**
+	 * @return A copy of the component types of the query.
+	 */
+	public Class<? extends Component>[] getComponents() {
+		return components.clone();
+	}
+}
@@ -0,0 +1,129 @@
+package jlarv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/*
+    Maps component types to their ComponentCodec and to a numeric ID, so
+    encoded components can be told apart.
+
+    The IDs are given explicitly instead of by registration order because they
+    end up in files (journals, saves...): they must stay the same across runs
+    and versions of the game. Tag types carry no data, so they only need an ID.
+
+    USAGE:
+      CodecRegistry codecs = new CodecRegistry();
+      codecs.register( 1, PositionComponent.class, new PositionCodec() );
+      codecs.registerTag( 2, FrozenTag.class );
+ */
+public class CodecRegistry {
+
+	private final HashMap<Class<? extends Component>, Integer> idsByType;
+	private Class<? extends Component>[]                       typesById;
+	private ComponentCodec<?>[]                                codecsById;
+
+	public CodecRegistry() {
+		idsByType = new HashMap<Class<? extends Component>, Integer>();
+		@SuppressWarnings("unchecked")
+		Class<? extends Component>[] types = (Class<? extends Component>[]) new Class<?>[16];
+		typesById = types;
+		codecsById = new ComponentCodec<?>[16];
+	}
+
+	/**
+	 * Registers the codec of the given component type under the given ID.
+	 * @param id From 0 to Short.MAX_VALUE, unique in the registry.
+	 */
+	public <T extends Component> void register( int id, Class<T> type, ComponentCodec<T> codec ) {
+		if ( codec == null ) {
+			throw new IllegalArgumentException( "A codec is needed for " + type.getName() );
+		}
+		put( id, type, codec );
+	}
+
+	/**
+	 * Registers a tag type under the given ID.
+	 * @param id From 0 to Short.MAX_VALUE, unique in the registry.
+	 */
+	public void registerTag( int id, Class<? extends TagComponent> type ) {
+		put( id, type, null );
+	}
+
+	private void put( int id, Class<? extends Component> type, ComponentCodec<?> codec ) {
+		if ( id < 0 || id > Short.MAX_VALUE ) {
+			throw new IllegalArgumentException( "Codec ID out of range: " + id );
+		}
+		if ( idsByType.containsKey( type ) ) {
+			throw new IllegalArgumentException( type.getName() + " is already registered" );
+		}
+		if ( id < typesById.length && typesById[id] != null ) {
+			throw new IllegalArgumentException( "Codec ID " + id + " is already used by " + typesById[id].getName() );
+		}
+		if ( id >= typesById.length ) {
+			int length = Math.max( id + 1, typesById.length * 2 );
+			typesById = Arrays.copyOf( typesById, length );
+			codecsById = Arrays.copyOf( codecsById, length );
+		}
+		typesById[id] = type;
+		codecsById[id] = codec;
+		idsByType.put( type, id );
+	}
+
+	public boolean isRegistered( Class<? extends Component> type ) {
+		return idsByType.containsKey( type );
+	}
+
+	/**
+	 * Returns the ID of the given type.
+	 * It fails (on purpose) if the type was never registered.
+	 */
+	public int idOf( Class<? extends Component> type ) {
+		Integer id = idsByType.get( type );
+		if ( id == null ) {
+			throw new IllegalArgumentException( "No codec registered for " + type.getName() );
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the type registered under the given ID.
+	 * It fails (on purpose) if there's none.
+	 */
+	public Class<? extends Component> typeOf( int id ) {
+		Class<? extends Component> type = id >= 0 && id < typesById.length ? typesById[id] : null;
+		if ( type == null ) {
+			throw new IllegalArgumentException( "No codec registered with ID " + id );
+		}
+		return type;
+	}
+
+	/**
+	 * @return The codec of the given type, null for tags.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Component> ComponentCodec<T> codecOf( Class<T> type ) {
+		return (ComponentCodec<T>) codecsById[idOf( type )];
+	}
+
+	/**
+	 * Writes the given component with its codec. Tags write nothing.
+	 */
+	@SuppressWarnings("unchecked")
+	public void write( Component component, ByteBuffer out ) {
+		ComponentCodec<Component> codec = (ComponentCodec<Component>) codecsById[idOf( component.getClass() )];
+		if ( codec != null ) {
+			codec.write( component, out );
+		}
+	}
+
+	/**
+	 * Reads a component of the type registered under the given ID.
+	 * @return The component, or null for tags.
+	 */
+	public Component read( int id, ByteBuffer in ) {
+		typeOf( id );
+		ComponentCodec<?> codec = codecsById[id];
+		return codec == null ? null : codec.read( in );
+	}
+}
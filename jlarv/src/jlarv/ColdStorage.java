@@ -0,0 +1,326 @@
+package jlarv;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.function.LongConsumer;
+
+import jlarv.util.LongLongHashMap;
+
+/*
+    Hibernates entities: their components, tags and groups are encoded with
+    the codecs of a CodecRegistry into a single compact region (on heap or off
+    heap) and the entity is taken out of the EntityManager, so it costs a few
+    bytes instead of component objects and store entries, and queries don't
+    walk it anymore. Waking it brings everything back under the same ID.
+
+    Meant for the bulk of a persistent world nobody is near: hibernate what
+    players leave behind, wake it when they come back.
+
+    Region layout: records appended one after the other, each one being
+      byte flags (DISABLED)
+      short components, then per component: short codec ID, codec data
+      short groups, then per group: short length, UTF-8 name
+    indexed by entity in a primitive map (offset and length). Woken records
+    leave a gap; when gaps take more than half the region it's compacted.
+
+    Hibernating looks like a removal to the EntityManager listeners (journals,
+    interest managers...) and waking like a creation, so they stay consistent.
+    The ID isn't recycled while the entity hibernates. Every component type
+    and tag of a hibernated entity must be registered in the codecs.
+
+    Not thread safe, use it from the simulation thread.
+
+    USAGE:
+      ColdStorage cold = new ColdStorage( engine.getEntityManager(), engine.getGroupManager(), codecs, true );
+      cold.hibernate( farAwayNpc );
+      ...
+      if ( cold.isHibernating( npc ) ) cold.wake( npc );
+ */
+public class ColdStorage {
+
+	private static final long MISSING = -1;
+
+	// Record flags
+	private static final byte DISABLED = 1;
+
+	private final EntityManager entityManager;
+	private final GroupManager  groupManager;
+	private final CodecRegistry codecs;
+	private final boolean       offHeap;
+
+	private ByteBuffer            region;
+	private int                   top;
+	private int                   garbage;
+	private final LongLongHashMap records;
+	private ByteBuffer            scratch = ByteBuffer.allocate( 256 );
+	private long                  compactions;
+
+	/**
+	 * @param groupManager Groups are hibernated too, null to leave them alone.
+	 * @param offHeap True to keep the region in a direct buffer, out of the Java heap.
+	 */
+	public ColdStorage( EntityManager entityManager, GroupManager groupManager, CodecRegistry codecs, boolean offHeap ) {
+		this.entityManager = entityManager;
+		this.groupManager = groupManager;
+		this.codecs = codecs;
+		this.offHeap = offHeap;
+		region = allocate( 64 * 1024 );
+		records = new LongLongHashMap();
+	}
+
+	private ByteBuffer allocate( int capacity ) {
+		return offHeap ? ByteBuffer.allocateDirect( capacity ) : ByteBuffer.allocate( capacity );
+	}
+
+	/**
+	 * Moves the given entity out of the entity manager into the region.
+	 * @throws IllegalStateException If it doesn't exist, or has a component or
+	 *         tag not registered in the codecs, or more components, groups or
+	 *         group name bytes than a record holds (Short.MAX_VALUE each);
+	 *         nothing is changed then.
+	 */
+	public void hibernate( long entity ) {
+		if ( records.containsKey( entity ) ) {
+			throw new IllegalStateException( "Entity already hibernating: " + entity );
+		}
+		if ( ! entityManager.doesEntityExist( entity ) ) {
+			throw new IllegalStateException( "Can't hibernate an entity that doesn't exist: " + entity );
+		}
+		ArrayList<Component> components = entityManager.getComponentsOfEntity( entity );
+		ArrayList<Class<? extends Component>> tags = new ArrayList<Class<? extends Component>>();
+		for ( Class<? extends Component> tagType : entityManager.getTagsByClass().keySet() ) {
+			if ( entityManager.hasTag( entity, tagType ) ) {
+				tags.add( tagType );
+			}
+		}
+		for ( Component component : components ) {
+			checkRegistered( component.getClass() );
+		}
+		for ( Class<? extends Component> tagType : tags ) {
+			checkRegistered( tagType );
+		}
+		ArrayList<String> groups = groupManager == null
+				? new ArrayList<String>() : groupManager.getGroups( entity );
+		checkFits( components.size() + tags.size(), "components and tags" );
+		checkFits( groups.size(), "groups" );
+		byte flags = entityManager.isEnabled( entity ) ? 0 : DISABLED;
+
+		while ( true ) {
+			scratch.clear();
+			try {
+				encode( flags, components, tags, groups, scratch );
+				break;
+			} catch ( BufferOverflowException e ) {
+				scratch = ByteBuffer.allocate( scratch.capacity() * 2 );
+			}
+		}
+		scratch.flip();
+		int length = scratch.remaining();
+		ensureRoom( length );
+		int offset = top;
+		region.position( offset );
+		region.put( scratch );
+		top += length;
+		records.put( entity, ( (long) offset << 32 ) | length );
+
+		if ( groupManager != null ) {
+			groupManager.removeCompletely( entity );
+		}
+		for ( Component component : entityManager.detachEntity( entity ) ) {
+			component.dispose();
+		}
+	}
+
+	private void checkRegistered( Class<? extends Component> type ) {
+		if ( ! codecs.isRegistered( type ) ) {
+			throw new IllegalStateException( "Can't hibernate a component without codec: " + type.getName() );
+		}
+	}
+
+	private static void checkFits( int count, String what ) {
+		if ( count > Short.MAX_VALUE ) {
+			throw new IllegalStateException( "Too many " + what + " to hibernate: " + count );
+		}
+	}
+
+	private void encode( byte flags, ArrayList<Component> components, ArrayList<Class<? extends Component>> tags,
+	                     ArrayList<String> groups, ByteBuffer out ) {
+		out.put( flags );
+		out.putShort( (short) ( components.size() + tags.size() ) );
+		for ( Component component : components ) {
+			out.putShort( (short) codecs.idOf( component.getClass() ) );
+			codecs.write( component, out );
+		}
+		for ( Class<? extends Component> tagType : tags ) {
+			out.putShort( (short) codecs.idOf( tagType ) );
+		}
+		out.putShort( (short) groups.size() );
+		for ( String group : groups ) {
+			byte[] name = group.getBytes( StandardCharsets.UTF_8 );
+			// Checked while encoding, still before anything changes
+			checkFits( name.length, "bytes in a group name" );
+			out.putShort( (short) name.length );
+			out.put( name );
+		}
+	}
+
+	/**
+	 * Brings the given entity back into the entity manager, with the same ID,
+	 * components, tags and groups it had, disabled if it was.
+	 * @return False if it wasn't hibernating.
+	 */
+	public boolean wake( long entity ) {
+		long record = records.get( entity, MISSING );
+		if ( record == MISSING ) {
+			return false;
+		}
+		int offset = (int) ( record >>> 32 );
+		int length = (int) record;
+		ByteBuffer in = region.duplicate();
+		in.limit( offset + length ).position( offset );
+
+		byte flags = in.get();
+		entityManager.restoreEntity( entity );
+		for ( int count = in.getShort(); count > 0; count-- ) {
+			int id = in.getShort();
+			Component component = codecs.read( id, in );
+			if ( component == null ) {
+				entityManager.addTag( entity, codecs.typeOf( id ) );
+			} else {
+				entityManager.addComponent( entity, component );
+			}
+		}
+		for ( int count = in.getShort(); count > 0; count-- ) {
+			byte[] name = new byte[in.getShort()];
+			in.get( name );
+			groupManager.add( entity, new String( name, StandardCharsets.UTF_8 ) );
+		}
+		if ( ( flags & DISABLED ) != 0 ) {
+			entityManager.setEnabled( entity, false );
+		}
+
+		records.remove( entity );
+		garbage += length;
+		if ( garbage > top / 2 && garbage > 4096 ) {
+			compact();
+		}
+		return true;
+	}
+
+	/**
+	 * Wakes every hibernating entity.
+	 */
+	public void wakeAll() {
+		final long[] entities = new long[records.size()];
+		records.forEachKey( new LongConsumer() {
+			int next;
+
+			@Override
+			public void accept( long entity ) {
+				entities[next++] = entity;
+			}
+		} );
+		for ( long entity : entities ) {
+			wake( entity );
+		}
+	}
+
+	private void ensureRoom( int length ) {
+		if ( region.capacity() - top >= length ) {
+			return;
+		}
+		if ( garbage >= length && garbage > top / 4 ) {
+			compact();
+			if ( region.capacity() - top >= length ) {
+				return;
+			}
+		}
+		long capacity = region.capacity();
+		while ( capacity - top < length ) {
+			capacity *= 2;
+		}
+		if ( capacity > Integer.MAX_VALUE ) {
+			throw new IllegalStateException( "Cold storage region full" );
+		}
+		ByteBuffer grown = allocate( (int) capacity );
+		ByteBuffer used = region.duplicate();
+		used.limit( top ).position( 0 );
+		grown.put( used );
+		region = grown;
+	}
+
+	/**
+	 * Moves the records together, dropping the gaps left by woken entities,
+	 * and shrinks the region if it's mostly empty. Done automatically.
+	 */
+	public void compact() {
+		int live = top - garbage;
+		int capacity = region.capacity();
+		while ( capacity > 64 * 1024 && capacity / 4 > live ) {
+			capacity /= 2;
+		}
+		final ByteBuffer compacted = allocate( capacity );
+		final ByteBuffer source = region.duplicate();
+		records.forEachKey( new LongConsumer() {
+			@Override
+			public void accept( long entity ) {
+				long record = records.get( entity, MISSING );
+				int offset = (int) ( record >>> 32 );
+				int length = (int) record;
+				source.limit( offset + length ).position( offset );
+				// Only the value changes, which forEachKey allows
+				records.put( entity, ( (long) compacted.position() << 32 ) | length );
+				compacted.put( source );
+			}
+		} );
+		region = compacted;
+		top = compacted.position();
+		garbage = 0;
+		compactions++;
+	}
+
+	/**
+	 * Forgets every hibernating entity and releases the region.
+	 */
+	public void clear() {
+		records.clear();
+		region = allocate( 64 * 1024 );
+		top = 0;
+		garbage = 0;
+	}
+
+	/*
+	 * Getters.
+	 */
+	public boolean isHibernating( long entity ) {
+		return records.containsKey( entity );
+	}
+
+	public int getHibernatingCount() {
+		return records.size();
+	}
+
+	/**
+	 * @return Bytes taken by the records of hibernating entities.
+	 */
+	public int getUsedBytes() {
+		return top - garbage;
+	}
+
+	/**
+	 * @return Bytes reserved for the region.
+	 */
+	public int getCapacity() {
+		return region.capacity();
+	}
+
+	public long getCompactionCount() {
+		return compactions;
+	}
+
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+}
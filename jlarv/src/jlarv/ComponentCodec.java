@@ -0,0 +1,35 @@
+package jlarv;
+
+import java.nio.ByteBuffer;
+
+/*
+    Binary encoding of a component type, used wherever components have to leave
+    the EntityManager: the Journal, copies across engines, cold storage...
+    Register one per component type in a CodecRegistry.
+
+    read must consume exactly the bytes write produced. Writing into a buffer
+    without enough room should just let the BufferOverflowException through,
+    the caller grows the buffer and tries again.
+
+    USAGE:
+      public class PositionCodec implements ComponentCodec<PositionComponent> {
+          public void write( PositionComponent position, ByteBuffer out ) {
+              out.putFloat( position.x ).putFloat( position.y );
+          }
+          public PositionComponent read( ByteBuffer in ) {
+              return new PositionComponent( in.getFloat(), in.getFloat() );
+          }
+      }
+ */
+public interface ComponentCodec<T extends Component> {
+
+	/**
+	 * Appends the state of the given component to the buffer.
+	 */
+	public void write( T component, ByteBuffer out );
+
+	/**
+	 * Creates a component from the state written by write.
+	 */
+	public T read( ByteBuffer in );
+}
@@ -0,0 +1,25 @@
+package jlarv;
+
+/*
+    Receives notifications about components being added to and removed from
+    the entities of an EntityManager. Register it with
+    EntityManager.addComponentListener.
+
+    Removing a whole entity only calls EntityListener.entityRemoved, which
+    implies all its components are gone.
+    Listeners are called synchronously from the thread that made the change,
+    right after it happened, so they must be cheap.
+ */
+public interface ComponentListener {
+
+	/**
+	 * Called after a component (or tag) has been added to an entity, or replaced.
+	 * @param component The component added, null for tags.
+	 */
+	public void componentAdded( long entity, Class<? extends Component> type, Component component );
+
+	/**
+	 * Called after a component (or tag) has been removed from an entity.
+	 */
+	public void componentRemoved( long entity, Class<? extends Component> type );
+}
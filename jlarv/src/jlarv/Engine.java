@@ -1,36 +1,96 @@
 package jlarv;
 
 import java.util.ArrayList;
-import java.util.PriorityQueue;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 /*
  The engine is the glue that puts everything together.
  It holds:
- - an instance of a systems list (PriorityQueue): this.systems
+ - an instance of a systems list (in insertion order): this.systems
  - an instance of an entity manager:  this.entity_manager
  - an instance of a group manager:    this.group_manager
  - an instance of an entity_factory:  this.entity_factory
+ - an instance of a job scheduler:    this.jobScheduler
+ - an instance of an event bus:       this.eventBus
 
  When updating the game, one should only do a Engine.update()
  call, as the Engine will be responsible for updating every
  single system in the right order (given that we insert
  the systems in the right priority).
+ The update order (phase first, then priority, then insertion order) is
+ computed once whenever the systems change, so every update is just a loop
+ over a flat array.
+
+ By default systems are updated one after the other on the calling thread.
+ Calling setParallel( true ) lets the engine update systems that don't
+ conflict (see System.reads/writes) at the same time on a ForkJoinPool.
+ Unless the entity manager is concurrent ( new EntityManager( true ) ),
+ systems running alongside others can't add or remove entities or
+ components: those changes fail with an IllegalStateException.
+ Serial mode stays the default as it's fully deterministic.
+
+ Results of the Jobs submitted by systems are applied at the start of every
+ update, before any system runs.
+
+ Systems exchange events through the EventBus: events published during a
+ phase are readable in the next one (see EventChannel.Lifetime).
+
+ With a Journal set, the structural changes of every update are committed to
+ it as a single batch once all the systems are done.
+
+ Component stores that are growing are moved along a bit at the end of every
+ update (see EntityManager.stepResizes), so they don't stay mid resize.
+ With a compaction budget set, stores left fragmented by removals are
+ compacted a bit at the end of every update as well (see StoreCompactor).
  */
-public class Engine {
+public class Engine implements Updatable {
     
-	private PriorityQueue<System>  systems;
+	private ArrayList<System>        systems;
+	// Systems sorted in update order, rebuilt whenever the systems change.
+	private System[]                 ordered;
+	private List<System>             orderedView;
 	protected EntityManager          entityManager;
 	protected GroupManager           groupManager;
 	protected EntityFactory          entityFactory;
+	protected JobScheduler           jobScheduler;
+	protected EventBus               eventBus;
+	
+	// Parallel update, the scheduler is rebuilt lazily whenever the systems change.
+	private boolean                  parallel;
+	private ForkJoinPool             pool;
+	private boolean                  ownsPool;
+	private SystemScheduler          scheduler;
+	
+	// Null while profiling is disabled.
+	private SystemProfiler           profiler;
+	// Null while metrics are disabled.
+	private EngineMetrics            metrics;
+	// Null unless the changes are journaled.
+	private Journal                  journal;
+	
+	// Buckets every resizing store moves at the end of an update, see EntityManager.stepResizes.
+	private static final int         RESIZE_STEP = 256;
+	// Null unless the stores are compacted during updates.
+	private StoreCompactor           compactor;
+	private int                      compactionBudget;
 	
 	/**
 	 * Recommended constructor.
 	 * Only use the other one in case the entity factory isn't known beforehand.
 	 */
 	public Engine( EntityFactory entityFactory ) {
-		systems = new PriorityQueue<System>();
+		systems = new ArrayList<System>();
+		rebuildOrder();
 		entityManager = new EntityManager();
 		groupManager = new GroupManager( this );
+		entityManager.addListener( groupManager );
+		jobScheduler = new JobScheduler( 64 );
+		jobScheduler.setEntityManager( entityManager );
+		eventBus = new EventBus();
 		
 		setEntityFactory( entityFactory );
 	}
@@ -39,13 +99,42 @@ public class Engine {
 	 * Secondary constructor, needs to assign and bind the entity factory later.
 	 */
 	public Engine() {
-		systems = new PriorityQueue<System>();
+		systems = new ArrayList<System>();
+		rebuildOrder();
 		entityManager = new EntityManager();
 		groupManager = new GroupManager( this );
+		entityManager.addListener( groupManager );
+		jobScheduler = new JobScheduler( 64 );
+		jobScheduler.setEntityManager( entityManager );
+		eventBus = new EventBus();
 	}	
 	
 	/**
-	 * Adds the given systems to the priority queue using the given priority and also
+	 * Sorts phase first and priority second.
+	 * Arrays.sort is stable, so systems that tie keep their insertion order.
+	 */
+	private static final Comparator<System> UPDATE_ORDER = new Comparator<System>() {
+		@Override
+		public int compare( System a, System b ) {
+			int byPhase = a.getPhase().compareTo( b.getPhase() );
+			return byPhase != 0 ? byPhase : a.compareTo( b );
+		}
+	};
+	
+	/**
+	 * Recomputes the update order, called whenever systems are added, removed or
+	 * change their priority or phase.
+	 */
+	private void rebuildOrder() {
+		System[] sorted = systems.toArray( new System[systems.size()] );
+		Arrays.sort( sorted, UPDATE_ORDER );
+		ordered = sorted;
+		orderedView = Collections.unmodifiableList( Arrays.asList( sorted ) );
+		scheduler = null;
+	}
+	
+	/**
+	 * Adds the given systems to the engine using their phase and priority and also
 	 * binds the managers and the factory to it.
 	 * Priority works as the lowest value will be the first to update.
 	 */
@@ -55,9 +144,12 @@ public class Engine {
         	system.setEntityManager( entityManager );
         	system.setGroupManager( groupManager );
         	system.setEntityFactory( entityFactory );
+        	system.setJobScheduler( jobScheduler );
+        	system.setEventBus( eventBus );
         	
         	this.systems.add( system );
 	    }
+	    rebuildOrder();
 	}
 	
 	/**
@@ -66,25 +158,34 @@ public class Engine {
 	 * @param cleanUp If true, disposes the system.
 	 */	
 	public void changeSystemPriority( System system, int newPriority, boolean cleanUp ) {
-	    systems.remove( system );
 	    if ( cleanUp ) {
 	        system.dispose();
         }
 	    system.setPriority( newPriority );
-		systems.add( system );
+	    rebuildOrder();
 	}	
+	
+	/**
+	 * Moves the given system to another phase.
+	 */
+	public void changeSystemPhase( System system, Phase newPhase ) {
+		system.setPhase( newPhase );
+		rebuildOrder();
+	}
 
     /**
-	 * Removes the given system from the priority queue.
+	 * Removes the given system from the engine.
 	 * @param cleanUp If true, disposes the system.
 	 * @return True if success or false if failed to find it inside the system's
-	 *          PriorityQueue.
+	 *          list.
 	 */
 	public boolean removeSystem( System system, boolean cleanUp ) {
 	    if ( cleanUp ) {
 	        system.dispose();
 	    }	    
-		return systems.remove( system );
+	    boolean removed = systems.remove( system );
+	    rebuildOrder();
+	    return removed;
 	}
 	
 	/**
@@ -102,17 +203,190 @@ public class Engine {
 			systems.remove( system );
 			system.dispose();
 		}
+		rebuildOrder();
 	}
 	
 	
 	/**
-	 * Updates every system in priority order.
+	 * Updates every system, phase by phase, in priority order.
+	 * In parallel mode, non conflicting systems update at the same time but
+	 * conflicting ones still respect the priority order.
+	 * Systems that aren't due (update interval) or idle (empty query) are skipped.
 	 * @param delta The time elapsed since last update step.
 	 */
 	public void update( float delta ) {
-		for ( System system : systems ) {
-			system.update( delta );
+		SystemProfiler profiler = this.profiler;
+		EngineMetrics metrics = this.metrics;
+		long start = profiler != null || metrics != null ? java.lang.System.nanoTime() : 0;
+		jobScheduler.applyCompleted();
+		eventBus.beginTick();
+		if ( parallel ) {
+			getScheduler().update( delta, pool, profiler, eventBus, entityManager );
+		} else {
+			System[] ordered = this.ordered;
+			for ( int i = 0; i < ordered.length; i++ ) {
+				eventBus.enterPhase( ordered[i].getPhase() );
+				ordered[i].dispatch( delta, profiler );
+			}
+		}
+		eventBus.endTick();
+		entityManager.stepResizes( RESIZE_STEP );
+		if ( compactor != null ) {
+			compactor.step( compactionBudget );
+		}
+		if ( journal != null ) {
+			journal.commit();
 		}
+		if ( profiler != null || metrics != null ) {
+			long elapsed = java.lang.System.nanoTime() - start;
+			if ( profiler != null ) {
+				profiler.recordTick( elapsed );
+			}
+			if ( metrics != null ) {
+				metrics.tickFinished( elapsed );
+			}
+		}
+	}
+	
+	/**
+	 * Enables or disables the per system timing.
+	 * Enabling it when it already was keeps the recorded samples.
+	 * @see SystemProfiler
+	 */
+	public void setProfiling( boolean profiling ) {
+		if ( ! profiling ) {
+			profiler = null;
+		} else if ( profiler == null ) {
+			for ( System system : systems ) {
+				system.takeProcessedCount();
+			}
+			profiler = new SystemProfiler();
+		}
+	}
+	
+	/**
+	 * @return The profiler with the recorded timings, null if profiling is disabled.
+	 */
+	public SystemProfiler getProfiler() {
+		return profiler;
+	}
+	
+	/**
+	 * Publishes the runtime metrics of the engine and its managers as JMX MXBeans
+	 * named jlarv:type=...,name=<name>. Does nothing if they already are.
+	 * @param name Tells engines apart, must be unique in the JVM.
+	 * @see EngineMetrics
+	 */
+	public EngineMetrics enableMetrics( String name ) {
+		if ( metrics == null ) {
+			EngineMetrics created = new EngineMetrics( this, name );
+			created.register();
+			metrics = created;
+		}
+		return metrics;
+	}
+	
+	/**
+	 * Unregisters the metrics MXBeans, if enabled.
+	 */
+	public void disableMetrics() {
+		if ( metrics != null ) {
+			metrics.unregister();
+			metrics = null;
+		}
+	}
+	
+	/**
+	 * Records the structural changes of the engine into the given journal,
+	 * committing them at the end of every update.
+	 * @param journal Null to stop journaling. The previous journal is detached, not closed.
+	 */
+	public void setJournal( Journal journal ) {
+		if ( this.journal != null ) {
+			this.journal.detach();
+		}
+		this.journal = journal;
+		if ( journal != null ) {
+			journal.attach( entityManager, groupManager );
+		}
+	}
+	
+	public Journal getJournal() {
+		return journal;
+	}
+	
+	/**
+	 * Compacts fragmented component stores at the end of every update, doing
+	 * at most the given amount of work each time.
+	 * @param budget Work units per update (see StoreCompactor.step), 0 to stop compacting.
+	 */
+	public void setCompactionBudget( int budget ) {
+		compactionBudget = budget;
+		if ( budget <= 0 ) {
+			compactor = null;
+		} else if ( compactor == null ) {
+			compactor = new StoreCompactor( entityManager );
+		}
+	}
+	
+	/**
+	 * @return The compactor used during updates, null if there's no compaction budget.
+	 */
+	public StoreCompactor getCompactor() {
+		return compactor;
+	}
+	
+	/**
+	 * @return The metrics published through JMX, null if disabled.
+	 */
+	public EngineMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Enables or disables the parallel update of systems.
+	 * When enabling it without giving a pool, the engine creates (and owns) one
+	 * with as many threads as available processors.
+	 */
+	public void setParallel( boolean parallel ) {
+		if ( parallel && pool == null ) {
+			pool = new ForkJoinPool();
+			ownsPool = true;
+		}
+		this.parallel = parallel;
+	}
+	
+	/**
+	 * Enables the parallel update of systems using the given pool.
+	 * The pool isn't shut down when disposing the engine.
+	 */
+	public void setParallel( ForkJoinPool pool ) {
+		releasePool();
+		this.pool = pool;
+		this.parallel = true;
+	}
+	
+	public boolean isParallel() {
+		return parallel;
+	}
+	
+	/**
+	 * Returns the stages used by the parallel update, building them if the
+	 * systems changed since the last call.
+	 */
+	SystemScheduler getScheduler() {
+		if ( scheduler == null ) {
+			scheduler = new SystemScheduler( ordered );
+		}
+		return scheduler;
+	}
+	
+	private void releasePool() {
+		if ( ownsPool ) {
+			pool.shutdown();
+		}
+		pool = null;
+		ownsPool = false;
 	}
 	
 	/**
@@ -123,16 +397,27 @@ public class Engine {
 		for ( System system : systems) {
 		    system.dispose();
 		}
+		disableMetrics();
+		setJournal( null );
+		jobScheduler.dispose();
+		eventBus.clear();
 		entityManager.dispose();
-		entityFactory.dispose();
+		if ( entityFactory != null ) {
+			entityFactory.dispose();
+		}
 		groupManager.dispose();
+		releasePool();
+		parallel = false;
 	}	
 	
 	/*
 	 * Getter methods.
 	 */
-	public PriorityQueue<System> getSystems() {
-		return systems;
+	/**
+	 * @return Read only view of the systems, in update order.
+	 */
+	public List<System> getSystems() {
+		return orderedView;
 	}
 
 	public EntityManager getEntityManager() {
@@ -147,6 +432,14 @@ public class Engine {
 		return entityFactory;
 	}
 	
+	public JobScheduler getJobScheduler() {
+		return jobScheduler;
+	}
+	
+	public EventBus getEventBus() {
+		return eventBus;
+	}
+	
 	/**
 	 * Setter for the entity factory, also binds it to the entity manager and the
 	 * group manager.
@@ -159,10 +452,18 @@ public class Engine {
 	
 	public void setGroupManager( GroupManager manager ) {
 		manager.setEngine( this );
+		entityManager.removeListener( groupManager );
+		entityManager.addListener( manager );
 		this.groupManager = manager;
 	}
 	
 	public void setEntityManager( EntityManager manager ) {
+		entityManager.removeListener( groupManager );
+		manager.addListener( groupManager );
 		this.entityManager = manager;
+		jobScheduler.setEntityManager( manager );
+		if ( compactor != null ) {
+			compactor = new StoreCompactor( manager );
+		}
 	}
 }
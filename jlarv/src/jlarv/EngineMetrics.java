@@ -0,0 +1,367 @@
+package jlarv;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import jlarv.util.AtomicBitSet;
+import jlarv.util.Histogram;
+
+/*
+    Runtime metrics of an engine, published as JMX MXBeans so they can be seen
+    with jconsole, VisualVM, jcmd... without attaching a profiler:
+
+      jlarv:type=Engine,name=<name>         ticks, tick rate and tick duration histogram.
+      jlarv:type=EntityManager,name=<name>  entities, components and tags per type,
+                                            creation/removal totals and rates, ID
+                                            allocator state, query result sizes.
+      jlarv:type=GroupManager,name=<name>   entities per group.
+
+    Counters (ticks, tick durations, entities created and removed...) are lock-free
+    and updated as things happen. Gauges that need to walk the managers (entities
+    per component type and per group) are sampled on the simulation thread at the
+    end of a tick, at most once per sample interval, and published as immutable
+    snapshots, so JMX threads never touch the engine's data structures.
+
+    USAGE:
+      engine.enableMetrics( "level1" );
+      ...
+      engine.disableMetrics();
+ */
+public class EngineMetrics {
+
+	/* Attributes of jlarv:type=Engine */
+	public interface EngineMXBean {
+		public long getTickCount();
+		public double getTicksPerSecond();
+		public double getLastTickMicros();
+		public double getTickMeanMicros();
+		public double getTickP50Micros();
+		public double getTickP99Micros();
+		public double getTickMaxMicros();
+		public Map<String, Long> getTickHistogramNanos();
+		public int getSystemCount();
+		public boolean isParallel();
+		public void resetTickHistogram();
+	}
+
+	/* Attributes of jlarv:type=EntityManager */
+	public interface EntityManagerMXBean {
+		public int getEntityCount();
+		public Map<String, Integer> getComponentCounts();
+		public Map<String, Integer> getTagCounts();
+		public long getCreatedTotal();
+		public long getRemovedTotal();
+		public double getCreationRate();
+		public double getRemovalRate();
+		public long getNextId();
+		public int getRecycledIds();
+		public long getQueryCount();
+		public double getQuerySizeMean();
+		public long getQuerySizeP99();
+		public long getQuerySizeMax();
+	}
+
+	/* Attributes of jlarv:type=GroupManager */
+	public interface GroupManagerMXBean {
+		public int getGroupCount();
+		public Map<String, Integer> getGroupSizes();
+	}
+
+	private final Engine    engine;
+	private final String    name;
+	private ObjectName[]    registered;
+
+	private final Histogram tickNanos = new Histogram();
+	private final LongAdder ticks = new LongAdder();
+	private volatile long   lastTickNanos;
+
+	// Sampled on the simulation thread, read by JMX threads
+	private long                          sampleIntervalNanos = 250000000L;
+	private long                          lastSample;
+	private long                          ticksAtLastSample;
+	private long                          createdAtLastSample;
+	private long                          removedAtLastSample;
+	private volatile double               ticksPerSecond;
+	private volatile double               creationRate;
+	private volatile double               removalRate;
+	private volatile Map<String, Integer> componentCounts = Collections.emptyMap();
+	private volatile Map<String, Integer> tagCounts = Collections.emptyMap();
+	private volatile Map<String, Integer> groupSizes = Collections.emptyMap();
+
+	EngineMetrics( Engine engine, String name ) {
+		this.engine = engine;
+		this.name = name;
+		this.lastSample = java.lang.System.nanoTime();
+	}
+
+	/**
+	 * Registers the MXBeans in the platform MBean server. If any of them can't
+	 * be (the name is taken...), the ones already registered are removed again,
+	 * leaving the beans of whoever holds the name untouched.
+	 */
+	void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ArrayList<ObjectName> names = new ArrayList<ObjectName>();
+		try {
+			register( server, new EngineBean(), objectName( "Engine" ), names );
+			register( server, new EntityManagerBean(), objectName( "EntityManager" ), names );
+			register( server, new GroupManagerBean(), objectName( "GroupManager" ), names );
+			registered = names.toArray( new ObjectName[names.size()] );
+		} catch ( JMException e ) {
+			unregister( server, names );
+			throw new IllegalStateException( "Couldn't register the metrics of engine " + name, e );
+		}
+	}
+
+	private static void register( MBeanServer server, Object bean, ObjectName objectName,
+	                              ArrayList<ObjectName> names ) throws JMException {
+		server.registerMBean( bean, objectName );
+		names.add( objectName );
+	}
+
+	/**
+	 * Removes the MXBeans this instance registered from the platform MBean server.
+	 */
+	void unregister() {
+		if ( registered != null ) {
+			unregister( ManagementFactory.getPlatformMBeanServer(), Arrays.asList( registered ) );
+		}
+		registered = null;
+	}
+
+	private static void unregister( MBeanServer server, List<ObjectName> names ) {
+		for ( ObjectName objectName : names ) {
+			try {
+				server.unregisterMBean( objectName );
+			} catch ( JMException e ) {
+				// Nothing left to do about it
+			}
+		}
+	}
+
+	private ObjectName objectName( String type ) throws JMException {
+		return new ObjectName( "jlarv:type=" + type + ",name=" + ObjectName.quote( name ) );
+	}
+
+	/**
+	 * Called by the engine at the end of every update, on the simulation thread.
+	 */
+	void tickFinished( long nanos ) {
+		ticks.increment();
+		tickNanos.record( nanos );
+		lastTickNanos = nanos;
+		long now = java.lang.System.nanoTime();
+		if ( now - lastSample >= sampleIntervalNanos ) {
+			sample( now );
+		}
+	}
+
+	/**
+	 * Computes the rates and walks the managers to refresh the gauges.
+	 */
+	private void sample( long now ) {
+		double seconds = ( now - lastSample ) / 1e9;
+		EntityManager entityManager = engine.getEntityManager();
+		long tickCount = ticks.sum();
+		long created = entityManager.getCreatedCount();
+		long removed = entityManager.getRemovedCount();
+		if ( seconds > 0 ) {
+			ticksPerSecond = ( tickCount - ticksAtLastSample ) / seconds;
+			creationRate = ( created - createdAtLastSample ) / seconds;
+			removalRate = ( removed - removedAtLastSample ) / seconds;
+		}
+		ticksAtLastSample = tickCount;
+		createdAtLastSample = created;
+		removedAtLastSample = removed;
+		lastSample = now;
+
+		HashMap<String, Integer> components = new HashMap<String, Integer>();
+		for ( Map.Entry<Class<? extends Component>, Map<Long, Component>> entry : entityManager.getComponentsByClass().entrySet() ) {
+			components.put( entry.getKey().getName(), entry.getValue().size() );
+		}
+		HashMap<String, Integer> tags = new HashMap<String, Integer>();
+		for ( Map.Entry<Class<? extends Component>, AtomicBitSet> entry : entityManager.getTagsByClass().entrySet() ) {
+			tags.put( entry.getKey().getName(), entry.getValue().cardinality() );
+		}
+		HashMap<String, Integer> groups = new HashMap<String, Integer>();
+		for ( Map.Entry<String, ArrayList<Long>> entry : engine.getGroupManager().getEntitiesByGroup().entrySet() ) {
+			groups.put( entry.getKey(), entry.getValue().size() );
+		}
+		componentCounts = Collections.unmodifiableMap( components );
+		tagCounts = Collections.unmodifiableMap( tags );
+		groupSizes = Collections.unmodifiableMap( groups );
+	}
+
+	/*
+	 * Getters and setters.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	public boolean isRegistered() {
+		return registered != null;
+	}
+
+	public Histogram getTickNanos() {
+		return tickNanos;
+	}
+
+	public long getTickCount() {
+		return ticks.sum();
+	}
+
+	/**
+	 * How often the per type gauges and the rates are refreshed. Defaults to 250ms.
+	 * @param sampleIntervalNanos 0 to refresh them every tick.
+	 */
+	public void setSampleIntervalNanos( long sampleIntervalNanos ) {
+		this.sampleIntervalNanos = sampleIntervalNanos;
+	}
+
+	private class EngineBean implements EngineMXBean {
+		@Override
+		public long getTickCount() {
+			return ticks.sum();
+		}
+
+		@Override
+		public double getTicksPerSecond() {
+			return ticksPerSecond;
+		}
+
+		@Override
+		public double getLastTickMicros() {
+			return lastTickNanos / 1e3;
+		}
+
+		@Override
+		public double getTickMeanMicros() {
+			return tickNanos.getMean() / 1e3;
+		}
+
+		@Override
+		public double getTickP50Micros() {
+			return tickNanos.getPercentile( 50 ) / 1e3;
+		}
+
+		@Override
+		public double getTickP99Micros() {
+			return tickNanos.getPercentile( 99 ) / 1e3;
+		}
+
+		@Override
+		public double getTickMaxMicros() {
+			return tickNanos.getMax() / 1e3;
+		}
+
+		@Override
+		public Map<String, Long> getTickHistogramNanos() {
+			return tickNanos.getBuckets();
+		}
+
+		@Override
+		public int getSystemCount() {
+			return engine.getSystems().size();
+		}
+
+		@Override
+		public boolean isParallel() {
+			return engine.isParallel();
+		}
+
+		@Override
+		public void resetTickHistogram() {
+			tickNanos.reset();
+		}
+	}
+
+	private class EntityManagerBean implements EntityManagerMXBean {
+		@Override
+		public int getEntityCount() {
+			return engine.getEntityManager().getEntityCount();
+		}
+
+		@Override
+		public Map<String, Integer> getComponentCounts() {
+			return componentCounts;
+		}
+
+		@Override
+		public Map<String, Integer> getTagCounts() {
+			return tagCounts;
+		}
+
+		@Override
+		public long getCreatedTotal() {
+			return engine.getEntityManager().getCreatedCount();
+		}
+
+		@Override
+		public long getRemovedTotal() {
+			return engine.getEntityManager().getRemovedCount();
+		}
+
+		@Override
+		public double getCreationRate() {
+			return creationRate;
+		}
+
+		@Override
+		public double getRemovalRate() {
+			return removalRate;
+		}
+
+		@Override
+		public long getNextId() {
+			return engine.getEntityManager().getNextId();
+		}
+
+		@Override
+		public int getRecycledIds() {
+			return engine.getEntityManager().getRecycledIdCount();
+		}
+
+		@Override
+		public long getQueryCount() {
+			return engine.getEntityManager().getQuerySizes().getCount();
+		}
+
+		@Override
+		public double getQuerySizeMean() {
+			return engine.getEntityManager().getQuerySizes().getMean();
+		}
+
+		@Override
+		public long getQuerySizeP99() {
+			return engine.getEntityManager().getQuerySizes().getPercentile( 99 );
+		}
+
+		@Override
+		public long getQuerySizeMax() {
+			return engine.getEntityManager().getQuerySizes().getMax();
+		}
+	}
+
+	private class GroupManagerBean implements GroupManagerMXBean {
+		@Override
+		public int getGroupCount() {
+			return groupSizes.size();
+		}
+
+		@Override
+		public Map<String, Integer> getGroupSizes() {
+			return groupSizes;
+		}
+	}
+}
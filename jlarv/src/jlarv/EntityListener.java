@@ -0,0 +1,21 @@
+package jlarv;
+
+/*
+    Receives notifications about the life cycle of the entities of an
+    EntityManager. Register it with EntityManager.addListener.
+
+    Listeners are called synchronously from the thread that made the change,
+    right after it happened, so they must be cheap.
+ */
+public interface EntityListener {
+
+	/**
+	 * Called after a new entity has been created.
+	 */
+	public void entityCreated( long entity );
+
+	/**
+	 * Called after an entity and all its components have been removed.
+	 */
+	public void entityRemoved( long entity );
+}
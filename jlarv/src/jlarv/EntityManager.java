@@ -1,10 +1,28 @@
 package jlarv;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import jlarv.util.AtomicBitSet;
+import jlarv.util.Histogram;
+import jlarv.util.IncrementalHashMap;
 
 /*
  	EntityManager is a object that acts as the 'database' of the system.
@@ -19,47 +37,189 @@ import java.util.Map.Entry;
     NOTE: restricted to one component type per entity, so the same entity cannot
           have, as an example, two instances of HealthComponent. In order to change
           that, 2nd dictionary value should be a list instead of a single component.
+
+    CONCURRENT MODE: new EntityManager( true ) can be used from many threads at
+    once. Every component store is a ConcurrentHashMap, which locks per bin, so
+    writers only wait for each other when they hit the same stripe of the same
+    store; tags are AtomicBitSets (CAS per word) and IDs come from an atomic
+    counter. Reads (hasComponent, getComponent, queries...) never lock.
+    Operations on different entities need no coordination, but the caller still
+    has to make sure a single entity isn't removed while another thread adds
+    components to it. In this mode empty stores are kept around instead of
+    being dropped, getEntities() returns a snapshot, and listeners are called
+    from whatever thread made the change.
+
+    GROWTH: component stores are IncrementalHashMaps, which grow a couple of
+    buckets at a time instead of rehashing everything at once, so adding the
+    100001st component doesn't cost a frame. Engine.update finishes resizes in
+    progress a bit more every tick (stepResizes). When the expected sizes are
+    known, setCapacityHint sizes the stores (and the entity list) up front so
+    they don't need to grow at all.
  */
 
 public class EntityManager {
     
+	/* True if the manager may be used from several threads at once, see the class comment */
+	private final boolean concurrent;
+	
     /* Holds all the active entities */
 	private ArrayList<Long> entities;
 	
+	/* Holds all the active entities in concurrent mode, instead of the list above */
+	private Set<Long> concurrentEntities;
+	
 	/* Map components using a double map of structure:
 	     - Class<? extends Component> = Type of the component, so we can add them via SomeComponent.class.
 	  	 - Integer = Entity unique ID.
 	  	 - Component = the Component associated to that entity.*/
-	private HashMap<Class<? extends Component>, HashMap<Long, Component>> componentsByClass;
+	private Map<Class<? extends Component>, Map<Long, Component>> componentsByClass;
+	
+	/* Tag components (TagComponent subclasses) don't carry data, so instead of a map
+	   they get a single bitset per tag type, indexed by bitIndex( entity ). */
+	private Map<Class<? extends Component>, AtomicBitSet> tagsByClass;
 	
 	/* Serves the purpose of never having two entities with the same ID (much like a database primary key) */
-	private long lowestAssignedId;
+	private final AtomicLong lowestAssignedId;
 	
 	/* Allows to recycle the IDs after entities have been deleted from the entity manager */
-	private ArrayDeque<Long> unassignedIDs;	
+	private final ConcurrentLinkedDeque<Long> unassignedIDs;	
+	
+	/* Size of unassignedIDs, as counting the deque walks all of it */
+	private final AtomicInteger unassignedCount = new AtomicInteger();
+	
+	/* Notified of entity creation and removal. Copied on write, as it's iterated far more than changed */
+	private volatile EntityListener[] listeners = new EntityListener[0];
+	
+	/* Notified of components being added and removed, copied on write as well */
+	private volatile ComponentListener[] componentListeners = new ComponentListener[0];
+	
+	/* Expected store sizes given with setCapacityHint, used when a store is created */
+	private final Map<Class<? extends Component>, Integer> capacityHints =
+			new ConcurrentHashMap<Class<? extends Component>, Integer>();
+	
+	/* Disabled entities (see setEnabled), indexed by bitIndex( entity ). Usually empty */
+	private final AtomicBitSet disabled = new AtomicBitSet();
+	
+	/* Live entities, indexed by bitIndex( entity ), so telling whether one exists doesn't walk the list */
+	private final AtomicBitSet live = new AtomicBitSet();
+	
+	/* Queries kept up to date on every change (see createCachedQuery), copied on write */
+	private volatile CachedQuery[] cachedQueries = new CachedQuery[0];
+	
+	/* Number of parallel iterations running right now, structural changes are refused while > 0 */
+	private final AtomicInteger parallelRegions = new AtomicInteger();
+	
+	/* Runtime metrics (see EngineMetrics), cheap and lock-free so they're always on */
+	private final LongAdder createdCount = new LongAdder();
+	private final LongAdder removedCount = new LongAdder();
+	private final Histogram querySizes = new Histogram();
 	
 	public EntityManager() {
-		componentsByClass = new HashMap<Class<? extends Component>, HashMap<Long, Component>>();
-		entities = new ArrayList<Long>();
-		lowestAssignedId = Long.MIN_VALUE;
-		unassignedIDs = new ArrayDeque<Long>();
+		this( false );
+	}
+	
+	/**
+	 * @param concurrent True to allow using the manager from several threads at once.
+	 */
+	public EntityManager( boolean concurrent ) {
+		this( concurrent, new AtomicLong( Long.MIN_VALUE ) );
+	}
+	
+	/**
+	 * Creates a manager drawing its IDs from the given counter, so several managers
+	 * sharing it never hand out the same ID (see ShardedWorld).
+	 * @param idSource Next ID to hand out, starting at Long.MIN_VALUE.
+	 */
+	public EntityManager( boolean concurrent, AtomicLong idSource ) {
+		this.concurrent = concurrent;
+		if ( concurrent ) {
+			componentsByClass = new ConcurrentHashMap<Class<? extends Component>, Map<Long, Component>>();
+			tagsByClass = new ConcurrentHashMap<Class<? extends Component>, AtomicBitSet>();
+			concurrentEntities = ConcurrentHashMap.newKeySet();
+		} else {
+			componentsByClass = new HashMap<Class<? extends Component>, Map<Long, Component>>();
+			tagsByClass = new HashMap<Class<? extends Component>, AtomicBitSet>();
+			entities = new ArrayList<Long>();
+		}
+		lowestAssignedId = idSource;
+		unassignedIDs = new ConcurrentLinkedDeque<Long>();
 	}
 	
 	/**
 	 * Generates a new unique id used for assigning it to a entity.
+	 * IDs of removed entities are reused first (oldest first), so IDs stay
+	 * below Long.MIN_VALUE plus the most entities ever held at once, however
+	 * many were created, which keeps the bitsets indexed by them small.
 	 * @return New unique ID (int).
 	 */
-	/* Synchronized means that only one thread can execute this block of code at the same time,
-	 * meaning that we will not be able to generate two new id's at the same time and thus we will not
-	 * have two entities with the same ID */
-	private synchronized long generateNewId() {
-	    if ( lowestAssignedId < Long.MAX_VALUE ) {
-	        return lowestAssignedId++;
-	    } else if ( unassignedIDs.size() > 0 ) {
-            return unassignedIDs.pop();
-        } else {
-	        throw new Error("ERROR - maximum entities ID reached.");
-	    }	    
+	/* Lock-free: the compare and set makes sure two threads never get the same ID,
+	 * a thread that loses the race simply retries with the next one. */
+	private long generateNewId() {
+		Long recycled = unassignedIDs.poll();
+		if ( recycled != null ) {
+			unassignedCount.decrementAndGet();
+			return recycled;
+		}
+		while ( true ) {
+			long id = lowestAssignedId.get();
+			if ( id == Long.MAX_VALUE ) {
+				throw new Error("ERROR - maximum entities ID reached.");
+			}
+			if ( lowestAssignedId.compareAndSet( id, id + 1 ) ) {
+				return id;
+			}
+		}
+	}
+	
+	/**
+	 * Maps an entity ID to its position inside the per-type bitsets.
+	 * IDs are handed out sequentially starting at Long.MIN_VALUE and reused
+	 * once removed, so the offset from there stays small and dense.
+	 */
+	static int bitIndex( long entity ) {
+		long index = entity - Long.MIN_VALUE;
+		if ( index < 0 || index > Integer.MAX_VALUE ) {
+			throw new IllegalArgumentException( "Entity ID out of bitset range: " + entity );
+		}
+		return (int) index;
+	}
+	
+	/**
+	 * Inverse of bitIndex.
+	 */
+	static long entityOfBit( int index ) {
+		return Long.MIN_VALUE + index;
+	}
+	
+	/**
+	 * @return True if the given component type is a tag (stored as a bitset).
+	 */
+	static boolean isTag( Class<? extends Component> componentType ) {
+		return TagComponent.class.isAssignableFrom( componentType );
+	}
+	
+	/**
+	 * Marks the start of code running on several threads at once (a parallel
+	 * iteration, a stage of parallel systems...): until endParallel, structural
+	 * changes fail unless the manager is concurrent.
+	 */
+	void beginParallel() {
+		parallelRegions.incrementAndGet();
+	}
+	
+	void endParallel() {
+		parallelRegions.decrementAndGet();
+	}
+	
+	/**
+	 * Fails if a parallel iteration is running, as the stores can't change
+	 * structure while other threads walk them.
+	 */
+	void checkStructuralChange() {
+		// Concurrent stores tolerate changes while being iterated
+		if ( ! concurrent && parallelRegions.get() > 0 ) {
+			throw new IllegalStateException( "Structural change during a parallel iteration" );
+		}
 	}
 	
 	/**
@@ -67,55 +227,293 @@ public class EntityManager {
 	 * @return Entity ID (int).
 	 */
 	public long createEntity() {
+		checkStructuralChange();
 		long new_id = generateNewId();
-		entities.add( new_id );
+		live.set( bitIndex( new_id ) );
+		if ( concurrent ) {
+			concurrentEntities.add( new_id );
+		} else {
+			entities.add( new_id );
+		}
+		createdCount.increment();
+		for ( EntityListener listener : listeners ) {
+			listener.entityCreated( new_id );
+		}
 		return new_id;
 	}
 	
+	/**
+	 * Creates an entity with the given ID, to restore saved state (snapshots,
+	 * journals...). It's no longer handed out to new entities, if it was
+	 * waiting to be reused.
+	 * @return The given ID.
+	 * @throws IllegalStateException If the ID belongs to a live entity.
+	 */
+	public long restoreEntity( long id ) {
+		checkStructuralChange();
+		if ( ! live.set( bitIndex( id ) ) ) {
+			throw new IllegalStateException( "Entity already exists: " + id );
+		}
+		long next;
+		do {
+			next = lowestAssignedId.get();
+		} while ( next <= id && ! lowestAssignedId.compareAndSet( next, id + 1 ) );
+		if ( unassignedIDs.remove( id ) ) {
+			unassignedCount.decrementAndGet();
+		}
+		if ( concurrent ) {
+			concurrentEntities.add( id );
+		} else {
+			entities.add( id );
+		}
+		createdCount.increment();
+		for ( EntityListener listener : listeners ) {
+			listener.entityCreated( id );
+		}
+		return id;
+	}
+	
 	/**
 	 * Removes the given entity from the entity manager (completely).
+	 * Removing an entity that doesn't exist (already removed...) does nothing.
 	 * @param entity The entity which will be erased.
 	 */
-	public synchronized void removeEntity( long entity ) {
+	public void removeEntity( long entity ) {
+	    remove( entity, null );
+	}
+	
+	/**
+	 * Removes the given entity like removeEntity, but hands its components back
+	 * instead of disposing them, and doesn't recycle its ID. Used to move
+	 * entities to another manager sharing the same IDs (see ShardedWorld).
+	 * Tags aren't returned, check them (hasTag) before detaching.
+	 * @return The components the entity had.
+	 */
+	public ArrayList<Component> detachEntity( long entity ) {
+	    ArrayList<Component> detached = new ArrayList<Component>();
+	    remove( entity, detached );
+	    return detached;
+	}
+	
+	/**
+	 * @param detached Receives the components instead of disposing them, null to dispose.
+	 */
+	private void remove( long entity, ArrayList<Component> detached ) {
+	    checkStructuralChange();
+	    // Only the caller that flips the live bit removes (and recycles) it,
+	    // so overlapping removes can't queue the same ID twice.
+	    if ( ! doesEntityExist( entity ) || ! live.clear( bitIndex( entity ) ) ) {
+	        return;
+	    }
 	    // Delete it from all the maps.
 	    // Using an iterator we can delete the maps while iterating through them.
 	    //   more info: http://stackoverflow.com/questions/602636/concurrentmodificationexception-and-a-hashmap
-	    Iterator<Entry<Class<? extends Component>, HashMap<Long, Component>>> iterator =
+	    Iterator<Entry<Class<? extends Component>, Map<Long, Component>>> iterator =
 	            componentsByClass.entrySet().iterator();
 	    
 	    while ( iterator.hasNext() ) {
-	        Entry<Class<? extends Component>, HashMap<Long, Component>> entry =
-	                (Entry<Class<? extends Component>, HashMap<Long, Component>>) iterator.next();	        
+	        Entry<Class<? extends Component>, Map<Long, Component>> entry = iterator.next();	        
 	        
 	        // See if we can find a component held by the entity
-	        Component component = entry.getValue().get( entity );
+	        Component component = entry.getValue().remove( entity );
 	        if ( component != null ) {
-	            component.dispose();
-	            entry.getValue().remove( entity );
-	            if ( entry.getValue().size() == 0) {
+	            if ( detached != null ) {
+	                detached.add( component );
+	            } else {
+	                component.dispose();
+	            }
+	            if ( ! concurrent && entry.getValue().size() == 0) {
 	                iterator.remove();
 	            }
             }            
 	    }
-	    entities.remove( entities.indexOf( entity ) );
-        // Add the ID to be recycled later on
-        unassignedIDs.push(entity);	    
+	    Iterator<AtomicBitSet> tagIterator = tagsByClass.values().iterator();
+	    int bit = bitIndex( entity );
+	    while ( tagIterator.hasNext() ) {
+	        AtomicBitSet bits = tagIterator.next();
+	        bits.clear( bit );
+	        if ( ! concurrent && bits.isEmpty() ) {
+	            tagIterator.remove();
+	        }
+	    }
+	    if ( concurrent ) {
+	        concurrentEntities.remove( entity );
+	    } else {
+	        entities.remove( entities.indexOf( entity ) );
+	    }
+	    disabled.clear( bit );
+	    for ( CachedQuery query : cachedQueries ) {
+	        query.remove( entity );
+	    }
+	    removedCount.increment();
+        for ( EntityListener listener : listeners ) {
+            listener.entityRemoved( entity );
+        }
+        // Add the ID to be recycled later on, unless it lives on elsewhere.
+        // Done last so listeners (groups, jobs...) forget it before it's reused.
+        if ( detached == null ) {
+            unassignedIDs.add(entity);
+            unassignedCount.incrementAndGet();
+        }
+	}
+	
+	/**
+	 * Enables or disables the given entity. Disabled entities keep their
+	 * components, but queries (getEntitiesHavingComponents, streams, parallelForEach,
+	 * cached queries...) skip them until enabled again. Direct access
+	 * (hasComponent, getComponent...) and getEntities still see them.
+	 * Costs a bit flip, plus a check per cached query.
+	 * Entities start enabled, and removing an entity forgets its state.
+	 */
+	public void setEnabled( long entity, boolean enabled ) {
+		if ( cachedQueries.length > 0 ) {
+			checkStructuralChange();
+		}
+		int bit = bitIndex( entity );
+		boolean changed = enabled ? disabled.clear( bit ) : disabled.set( bit );
+		if ( changed ) {
+			for ( CachedQuery query : cachedQueries ) {
+				query.update( entity );
+			}
+		}
+	}
+	
+	public boolean isEnabled( long entity ) {
+		return ! disabled.get( bitIndex( entity ) );
+	}
+	
+	/**
+	 * @return True if the given entity is enabled and has every given component type.
+	 */
+	boolean matches( long entity, Class<? extends Component>[] components ) {
+		if ( ! isEnabled( entity ) ) {
+			return false;
+		}
+		for ( Class<? extends Component> componentType : components ) {
+			if ( ! hasComponent( entity, componentType ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Creates a query whose result is kept up to date as components are added
+	 * and removed and entities enabled, disabled and removed, so reading it
+	 * costs nothing but the iteration. Every change to an entity then costs a
+	 * check per cached query involving the type changed.
+	 * Not available in concurrent mode.
+	 * @param components The types every entity of the result has.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public final CachedQuery createCachedQuery( Class<? extends Component> ... components ) {
+		if ( concurrent ) {
+			throw new IllegalStateException( "Cached queries aren't available in concurrent mode" );
+		}
+		CachedQuery query = new CachedQuery( this, components.clone() );
+		query.rebuild();
+		synchronized ( this ) {
+			CachedQuery[] updated = Arrays.copyOf( cachedQueries, cachedQueries.length + 1 );
+			updated[cachedQueries.length] = query;
+			cachedQueries = updated;
+		}
+		return query;
+	}
+	
+	/**
+	 * Stops keeping the given query up to date.
+	 * @return False if it wasn't cached by this manager.
+	 */
+	public synchronized boolean removeCachedQuery( CachedQuery query ) {
+		ArrayList<CachedQuery> updated = new ArrayList<CachedQuery>( Arrays.asList( cachedQueries ) );
+		boolean removed = updated.remove( query );
+		cachedQueries = updated.toArray( new CachedQuery[updated.size()] );
+		return removed;
+	}
+	
+	private void updateCachedQueries( long entity, Class<? extends Component> componentType ) {
+		for ( CachedQuery query : cachedQueries ) {
+			if ( query.involves( componentType ) ) {
+				query.update( entity );
+			}
+		}
+	}
+	
+	/**
+	 * Registers a listener to be notified whenever entities are created or removed.
+	 */
+	public synchronized void addListener( EntityListener listener ) {
+		EntityListener[] updated = Arrays.copyOf( listeners, listeners.length + 1 );
+		updated[listeners.length] = listener;
+		listeners = updated;
+	}
+	
+	/**
+	 * Unregisters the given listener.
+	 * @return False if it wasn't registered.
+	 */
+	public synchronized boolean removeListener( EntityListener listener ) {
+		ArrayList<EntityListener> updated = new ArrayList<EntityListener>( Arrays.asList( listeners ) );
+		boolean removed = updated.remove( listener );
+		listeners = updated.toArray( new EntityListener[updated.size()] );
+		return removed;
+	}
+	
+	/**
+	 * Registers a listener to be notified whenever components are added or removed.
+	 */
+	public synchronized void addComponentListener( ComponentListener listener ) {
+		ComponentListener[] updated = Arrays.copyOf( componentListeners, componentListeners.length + 1 );
+		updated[componentListeners.length] = listener;
+		componentListeners = updated;
+	}
+	
+	/**
+	 * Unregisters the given component listener.
+	 * @return False if it wasn't registered.
+	 */
+	public synchronized boolean removeComponentListener( ComponentListener listener ) {
+		ArrayList<ComponentListener> updated = new ArrayList<ComponentListener>( Arrays.asList( componentListeners ) );
+		boolean removed = updated.remove( listener );
+		componentListeners = updated.toArray( new ComponentListener[updated.size()] );
+		return removed;
 	}
 	
 	/**
 	 * Adds the given component to the given entity.
 	 * Overrides the actual component if a new one is given.
+	 * Tag components are redirected to addTag, the instance itself isn't kept.
 	 */
 	public void addComponent( long entity, Component component ) {
+	    checkStructuralChange();
 	    Class<? extends Component> componentType = component.getClass();	
-		if ( componentsByClass.containsKey( componentType ) ) {
-			HashMap<Long, Component> entity_map = componentsByClass.get( componentType );
-			entity_map.put( entity, component );
-		} else {
-			HashMap<Long, Component> entity_map = new HashMap<Long, Component>();
-			entity_map.put( entity, component );
-			componentsByClass.put( componentType, entity_map );
+	    if ( isTag( componentType ) ) {
+	        addTag( entity, componentType );
+	        return;
+	    }
+		Map<Long, Component> entity_map = componentsByClass.get( componentType );
+		if ( entity_map == null ) {
+			Integer hint = capacityHints.get( componentType );
+			int expected = hint != null ? hint : 16;
+			entity_map = newStore( componentsByClass, componentType, concurrent
+					? new ConcurrentHashMap<Long, Component>( expected )
+					: new IncrementalHashMap<Long, Component>( expected ) );
 		}
+		entity_map.put( entity, component );
+		updateCachedQueries( entity, componentType );
+		for ( ComponentListener listener : componentListeners ) {
+			listener.componentAdded( entity, componentType, component );
+		}
+	}
+	
+	/**
+	 * Puts a new store for the given type. In concurrent mode another thread may
+	 * have been faster, in which case its store is returned and ours dropped.
+	 */
+	private static <S> S newStore( Map<Class<? extends Component>, S> stores, Class<? extends Component> type, S store ) {
+		S existing = stores.putIfAbsent( type, store );
+		return existing != null ? existing : store;
 	}
 	
 	/**
@@ -128,6 +526,51 @@ public class EntityManager {
 		}
 	}
 	
+	/**
+	 * Marks the given entity with the given tag type.
+	 * Only flips a bit, no component instance is created or stored.
+	 * @param tagType The class type of the tag (SomeTag.class).
+	 */
+	public void addTag( long entity, Class<? extends Component> tagType ) {
+		checkStructuralChange();
+		AtomicBitSet bits = tagsByClass.get( tagType );
+		if ( bits == null ) {
+			bits = newStore( tagsByClass, tagType, new AtomicBitSet() );
+		}
+		bits.set( bitIndex( entity ) );
+		updateCachedQueries( entity, tagType );
+		for ( ComponentListener listener : componentListeners ) {
+			listener.componentAdded( entity, tagType, null );
+		}
+	}
+	
+	/**
+	 * Removes the given tag from the given entity.
+	 * It fails (on purpose) if the tag was never added to the entity manager,
+	 * same as removeComponent.
+	 * @param tagType The class type of the tag (SomeTag.class).
+	 */
+	public void removeTag( long entity, Class<? extends Component> tagType ) {
+		checkStructuralChange();
+		AtomicBitSet bits = tagsByClass.get( tagType );
+		bits.clear( bitIndex( entity ) );
+		if ( ! concurrent && bits.isEmpty() ) {
+			tagsByClass.remove( tagType );
+		}
+		updateCachedQueries( entity, tagType );
+		for ( ComponentListener listener : componentListeners ) {
+			listener.componentRemoved( entity, tagType );
+		}
+	}
+	
+	/**
+	 * @return True if the given entity is marked with the given tag.
+	 */
+	public boolean hasTag( long entity, Class<? extends Component> tagType ) {
+		AtomicBitSet bits = tagsByClass.get( tagType );
+		return bits != null && bits.get( bitIndex( entity ) );
+	}
+	
 	/**
 	 * Removes the given component from the given entity.
 	 * It fails (on purpose) if the component was never added to the entity manager,
@@ -136,12 +579,20 @@ public class EntityManager {
 	 * @param componentType The class type of the component we want to remove (SomeComponent.class).
 	 */
 	public void removeComponent( long entity, Class<? extends Component> componentType ) {
-	    HashMap<Long, Component> map = componentsByClass.get( componentType );
-	    map.get( entity ).dispose();
-		map.remove( entity ); 
-		if ( map.size() == 0) {
+	    checkStructuralChange();
+	    if ( isTag( componentType ) ) {
+	        removeTag( entity, componentType );
+	        return;
+	    }
+	    Map<Long, Component> map = componentsByClass.get( componentType );
+	    map.remove( entity ).dispose();
+		if ( ! concurrent && map.size() == 0) {
 		    componentsByClass.remove( componentType );
 		}
+		updateCachedQueries( entity, componentType );
+		for ( ComponentListener listener : componentListeners ) {
+			listener.componentRemoved( entity, componentType );
+		}
 	}
 	
 	/**
@@ -151,7 +602,7 @@ public class EntityManager {
 	 * @param componentType The class type of the component we want to remove (SomeComponent.class).
 	 */
 	public void removeComponentSafe( long entity, Class<? extends Component> componentType ) {
-		if ( componentsByClass.containsKey( componentType ) ) {
+		if ( doesComponentExist( componentType ) ) {
 		    removeComponent( entity, componentType ); 
 		}
 	}
@@ -161,9 +612,10 @@ public class EntityManager {
 	 * @param componentType The class type of the component we want to check (SomeComponent.class).
 	 */
 	public boolean hasComponent( long entity, Class<? extends Component> componentType ) {
-		if ( ! componentsByClass.containsKey( componentType ) )
-			return false;
-		return componentsByClass.get( componentType ).containsKey( entity );
+		if ( isTag( componentType ) )
+			return hasTag( entity, componentType );
+		Map<Long, Component> map = componentsByClass.get( componentType );
+		return map != null && map.containsKey( entity );
 	}
 	
 	/**
@@ -172,17 +624,21 @@ public class EntityManager {
 	 * @param componentType The class type of the component we want to remove (SomeComponent.class).
 	 */
 	public boolean doesComponentExist( Class<? extends Component> componentType ) {
-		return componentsByClass.containsKey( componentType );
+		return componentsByClass.containsKey( componentType ) || tagsByClass.containsKey( componentType );
 	}
 	
 	/**
 	 * Given an entity and a component, returns the component if the entity has it.
 	 * It fails (on purpose) if the entity doesn't have the component, it helps when debugging.
 	 * If you're really unsure about that possibility, perhaps using hasComponent might be a good idea.
+	 * Tags carry no data, so asking for a tag type returns null (use hasComponent instead).
 	 * @param componentType The class type of the component we want to get (SomeComponent.class).
 	 */
 	// Info on generics: http://stackoverflow.com/questions/450807/java-generics-how-do-i-make-the-method-return-type-generic
 	public <T extends Component> T getComponent( long entity, Class<T> componentType ) {
+		if ( isTag( componentType ) ) {
+			return null;
+		}
 		return componentType.cast( componentsByClass.get( componentType ).get( entity ) ) ;
 	}
 	
@@ -193,9 +649,27 @@ public class EntityManager {
 	 * @param componentType The class type of the component we want to process (SomeComponent.class).
 	 */
 	public ArrayList<Long> getEntitiesHavingComponent( Class<? extends Component> componentType ) {
+		ArrayList<Long> entitiesList = collectEntitiesHaving( componentType );
+		querySizes.record( entitiesList.size() );
+		return entitiesList;
+	}
+	
+	private ArrayList<Long> collectEntitiesHaving( Class<? extends Component> componentType ) {
 		ArrayList<Long> entitiesList = new ArrayList<Long>();
+		boolean all = disabled.isEmpty();
+		if ( isTag( componentType ) ) {
+			AtomicBitSet bits = tagsByClass.get( componentType );
+			for ( int i = bits.nextSetBit( 0 ); i >= 0; i = bits.nextSetBit( i + 1 ) ) {
+				if ( all || ! disabled.get( i ) ) {
+					entitiesList.add( entityOfBit( i ) );
+				}
+			}
+			return entitiesList;
+		}
 		for ( Long entity : componentsByClass.get( componentType ).keySet() ) {
-			entitiesList.add( entity );
+			if ( all || isEnabled( entity ) ) {
+				entitiesList.add( entity );
+			}
 		}
 		return entitiesList;
 	}
@@ -204,26 +678,207 @@ public class EntityManager {
 	 * Returns a set of all the entities that have all the given components.
 	 * It's a exclusive method, meaning that it does an intersection, returning
 	 * only the entities that have every single component.
+	 * Walks the smallest of the stores and looks the entities up in the rest
+	 * (see query), so it's empty if any of the types was never added.
 	 * @param componentType The class types of the components we want to process (SomeComponent.class).
 	 */
+	@SafeVarargs
 	public final ArrayList<Long> getEntitiesHavingComponents( Class<? extends Component> ... components ) {
-		ArrayList<Long> entitiesList = getEntitiesHavingComponent( components[0] ); //avoid 1 iteration
-		ArrayList<Long> auxiliarList = new ArrayList<Long>();
-		Class<? extends Component> componentType;
-		Long entity;
-		// Iterate over the arguments
-		for ( int i = 1, len = components.length; i < len; i++ ) {
-			componentType = components[i];
-			auxiliarList = getEntitiesHavingComponent( componentType );
-			// Intersection - We must traverse list in inverse order to evade ConcurrentModificationException		
-			for ( int j = entitiesList.size()-1; j >= 0; j-- ) {
-				entity = entitiesList.get( j );
-				if ( ! auxiliarList.contains( entity ) ) {
-					entitiesList.remove( j );
+		ArrayList<Long> entitiesList = new EntityQuery( this ).all( components ).collect();
+		querySizes.record( entitiesList.size() );
+		return entitiesList;		
+	}
+	
+	/**
+	 * Starts a query with all, any, none and optional clauses, planned by store
+	 * sizes every time it runs.
+	 * @see EntityQuery
+	 */
+	public EntityQuery query() {
+		return new EntityQuery( this );
+	}
+	
+	/**
+	 * Calls the consumer with every entity that has all the given components, splitting
+	 * the work in chunks of roughly chunkSize entities across the common ForkJoinPool.
+	 * @see #parallelForEach(ForkJoinPool, int, LongConsumer, Class...)
+	 */
+	@SafeVarargs
+	public final void parallelForEach( int chunkSize, LongConsumer consumer, Class<? extends Component> ... components ) {
+		parallelForEach( ForkJoinPool.commonPool(), chunkSize, consumer, components );
+	}
+	
+	/**
+	 * Calls the consumer with every entity that has all the given components, splitting
+	 * the work in chunks of roughly chunkSize entities across the given pool.
+	 * The consumer runs concurrently, so it can read and modify the components
+	 * of the entity it's given but nothing shared. Structural changes (creating or
+	 * removing entities, adding or removing components) fail with an
+	 * IllegalStateException until the iteration is over.
+	 * Returns once every entity has been processed.
+	 */
+	@SafeVarargs
+	public final void parallelForEach( ForkJoinPool pool, int chunkSize, LongConsumer consumer,
+	                             Class<? extends Component> ... components ) {
+		if ( chunkSize < 1 ) {
+			throw new IllegalArgumentException( "Chunk size must be positive: " + chunkSize );
+		}
+		beginParallel();
+		try {
+			pool.invoke( new ForEachTask( querySpliterator( components ), chunkSize, consumer ) );
+		} finally {
+			endParallel();
+		}
+	}
+	
+	/**
+	 * Returns true if at least one entity has all the given components.
+	 * Stops at the first match instead of building the whole list. It doesn't
+	 * plan a query either, since the engine asks it for every system with a
+	 * registered query every tick: it reads the store sizes, and with several
+	 * types (or disabled entities) walks the smallest store probing the rest.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public final boolean hasEntitiesHavingComponents( Class<? extends Component> ... components ) {
+		if ( components.length == 0 ) {
+			return querySpliterator( components ).tryAdvance( IGNORE );
+		}
+		Class<? extends Component> smallest = null;
+		int smallestSize = Integer.MAX_VALUE;
+		for ( Class<? extends Component> componentType : components ) {
+			int size = getStoreSize( componentType );
+			if ( size == 0 ) {
+				return false;
+			}
+			if ( size < smallestSize ) {
+				smallest = componentType;
+				smallestSize = size;
+			}
+		}
+		if ( components.length == 1 && disabled.isEmpty() ) {
+			return true;
+		}
+		if ( isTag( smallest ) ) {
+			AtomicBitSet bits = tagsByClass.get( smallest );
+			for ( int i = bits.nextSetBit( 0 ); i >= 0; i = bits.nextSetBit( i + 1 ) ) {
+				if ( matches( entityOfBit( i ), components ) ) {
+					return true;
 				}
 			}
+			return false;
+		}
+		for ( Long entity : componentsByClass.get( smallest ).keySet() ) {
+			if ( matches( entity, components ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * @return Entities having the given type, disabled ones included.
+	 */
+	private int getStoreSize( Class<? extends Component> componentType ) {
+		if ( isTag( componentType ) ) {
+			AtomicBitSet bits = tagsByClass.get( componentType );
+			return bits == null ? 0 : bits.cardinality();
+		}
+		Map<Long, Component> store = componentsByClass.get( componentType );
+		return store == null ? 0 : store.size();
+	}
+	
+	private static final LongConsumer IGNORE = new LongConsumer() {
+		@Override
+		public void accept( long entity ) {
+		}
+	};
+	
+	/**
+	 * Returns a spliterator over the entities having all the given components.
+	 * It is driven by the smallest of the stores and probes the rest, and it's
+	 * empty if any of the component types was never added.
+	 */
+	@SafeVarargs
+	final Spliterator.OfLong querySpliterator( Class<? extends Component> ... components ) {
+		return new EntityQuery( this ).all( components ).plan().spliterator();
+	}
+	
+	/**
+	 * @return The live entities, unfiltered. In concurrent mode it walks the
+	 *         live set instead of a snapshot.
+	 */
+	Spliterator.OfLong entitySpliterator() {
+		Spliterator<Long> source = concurrent ? concurrentEntities.spliterator() : entities.spliterator();
+		return EntityQuerySpliterator.ofKeys( source );
+	}
+	
+	/**
+	 * Lazy version of getEntitiesHavingComponents: nothing is collected, the
+	 * entities are found as the stream pulls them, so filter, limit, anyMatch,
+	 * findFirst... stop walking the stores as soon as they can.
+	 * The stream is driven by the smallest of the stores, splits along its
+	 * buckets (or bit ranges for tags) when parallel, and is empty if any of the
+	 * component types was never added.
+	 * Don't add or remove entities or components while the stream runs.
+	 */
+	@SafeVarargs
+	public final LongStream streamEntitiesHavingComponents( Class<? extends Component> ... components ) {
+		return StreamSupport.longStream( querySpliterator( components ), false );
+	}
+	
+	/**
+	 * Lazy version of getEntities. In concurrent mode it walks the live entities
+	 * instead of a snapshot.
+	 */
+	public LongStream streamEntities() {
+		return StreamSupport.longStream( entitySpliterator(), false );
+	}
+	
+	/**
+	 * Lazy version of getComponentsOfType, empty if the type was never added or
+	 * is a tag. Sized, so count() doesn't walk the store.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends Component> Stream<T> streamComponentsOfType( Class<T> componentType ) {
+		Map<Long, Component> map = isTag( componentType ) ? null : componentsByClass.get( componentType );
+		if ( map == null ) {
+			return Stream.empty();
+		}
+		// Every component of a store is of its type
+		return StreamSupport.stream( (Spliterator<T>) (Spliterator<?>) map.values().spliterator(), false );
+	}
+	
+	/*
+	 * Fork-join task that keeps splitting its spliterator while it holds more than
+	 * chunkSize entities, forking the split halves and processing the remaining chunk.
+	 */
+	private static class ForEachTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Spliterator.OfLong spliterator;
+		private final int                chunkSize;
+		private final LongConsumer       consumer;
+		
+		ForEachTask( Spliterator.OfLong spliterator, int chunkSize, LongConsumer consumer ) {
+			this.spliterator = spliterator;
+			this.chunkSize = chunkSize;
+			this.consumer = consumer;
+		}
+		
+		@Override
+		protected void compute() {
+			ArrayList<ForEachTask> forked = new ArrayList<ForEachTask>();
+			Spliterator.OfLong split;
+			while ( spliterator.estimateSize() > chunkSize && ( split = spliterator.trySplit() ) != null ) {
+				ForEachTask task = new ForEachTask( split, chunkSize, consumer );
+				task.fork();
+				forked.add( task );
+			}
+			spliterator.forEachRemaining( consumer );
+			for ( ForEachTask task : forked ) {
+				task.join();
+			}
 		}
-		return entitiesList;		
 	}
 	
 	/**
@@ -245,9 +900,10 @@ public class EntityManager {
 	 */
  	public ArrayList<Component> getComponentsOfEntity( long entity ) {
 		ArrayList<Component> componentsList = new ArrayList<Component>();
-		for ( HashMap<Long, Component> entities_map : componentsByClass.values() ) {
-			if ( entities_map.containsKey( entity ) ) {
-				componentsList.add( entities_map.get( entity ) );
+		for ( Map<Long, Component> entities_map : componentsByClass.values() ) {
+			Component component = entities_map.get( entity );
+			if ( component != null ) {
+				componentsList.add( component );
 			}
 		}
 		return componentsList;
@@ -270,50 +926,220 @@ public class EntityManager {
 	 * Disposes all the components of the given type.
 	 */
 	public void disposeComponentsOfType( Class<? extends Component> type ) {
-		if ( ! componentsByClass.containsKey(type)) return;
-		for ( Component component : componentsByClass.get( type ).values() ){
-			component.dispose();
+		checkStructuralChange();
+		try {
+			disposeStore( type );
+		} finally {
+			for ( CachedQuery query : cachedQueries ) {
+				if ( query.involves( type ) ) {
+					query.rebuild();
+				}
+			}
+		}
+	}
+	
+	private void disposeStore( Class<? extends Component> type ) {
+		ComponentListener[] componentListeners = this.componentListeners;
+		if ( isTag( type ) ) {
+			AtomicBitSet bits = tagsByClass.remove( type );
+			if ( bits != null && componentListeners.length > 0 ) {
+				for ( int i = bits.nextSetBit( 0 ); i >= 0; i = bits.nextSetBit( i + 1 ) ) {
+					for ( ComponentListener listener : componentListeners ) {
+						listener.componentRemoved( entityOfBit( i ), type );
+					}
+				}
+			}
+			return;
+		}
+		Map<Long, Component> map = componentsByClass.remove( type );
+		if ( map == null ) return;
+		for ( Entry<Long, Component> entry : map.entrySet() ){
+			entry.getValue().dispose();
+			for ( ComponentListener listener : componentListeners ) {
+				listener.componentRemoved( entry.getKey(), type );
+			}
 		}
-		componentsByClass.remove( type );
 	}
 	
 	/**
 	 * Cleans up after we don't need the entity manager anymore.
 	 */
 	public void dispose() {
-	    for ( HashMap<Long, Component> map : componentsByClass.values() ) {
+	    checkStructuralChange();
+	    for ( Map<Long, Component> map : componentsByClass.values() ) {
 	        for ( Component component : map.values() ) {
 	            component.dispose();
 	        }
 	    }
-	    entities.clear();
+	    if ( concurrent ) {
+	        concurrentEntities.clear();
+	    } else {
+	        entities.clear();
+	    }
 	    componentsByClass.clear();
-	    unassignedIDs.clear();	    
+	    tagsByClass.clear();
+	    disabled.clear();
+	    live.clear();
+	    unassignedIDs.clear();
+	    unassignedCount.set( 0 );
+	    for ( CachedQuery query : cachedQueries ) {
+	        query.rebuild();
+	    }
 	}
 	
 	/*
 	 * Getters and setters.
 	 */
+	/** In concurrent mode, returns a snapshot of the live entities. */
 	public ArrayList<Long> getEntities() {
+		if ( concurrent ) {
+			return new ArrayList<Long>( concurrentEntities );
+		}
 		return entities;
 	}
 	
 	public void setEntities( ArrayList<Long> entities ) {
-		this.entities = entities;
+		if ( concurrent ) {
+			concurrentEntities.clear();
+			concurrentEntities.addAll( entities );
+		} else {
+			this.entities = entities;
+		}
+		live.clear();
+		for ( long entity : entities ) {
+			live.set( bitIndex( entity ) );
+		}
+	}
+	
+	/**
+	 * @return True if the given entity was created (or restored) and not removed since.
+	 */
+	public boolean doesEntityExist( long entity ) {
+		long index = entity - Long.MIN_VALUE;
+		return index >= 0 && index <= Integer.MAX_VALUE && live.get( (int) index );
+	}
+	
+	public boolean isConcurrent() {
+		return concurrent;
+	}
+	
+	/**
+	 * Sizes the store of the given type to hold the given number of components
+	 * without growing. Applies to any store created later for the type and, out
+	 * of concurrent mode, to the existing one (which grows incrementally to it).
+	 * Tags are ignored, their bitsets grow by pages and never rehash.
+	 */
+	public void setCapacityHint( Class<? extends Component> componentType, int expected ) {
+		if ( isTag( componentType ) ) {
+			return;
+		}
+		capacityHints.put( componentType, expected );
+		Map<Long, Component> store = componentsByClass.get( componentType );
+		if ( store instanceof IncrementalHashMap ) {
+			checkStructuralChange();
+			( (IncrementalHashMap<Long, Component>) store ).ensureCapacity( expected );
+		}
+	}
+	
+	/**
+	 * Sizes the entity list to hold the given number of entities without growing.
+	 * Does nothing in concurrent mode.
+	 */
+	public void setCapacityHint( int expectedEntities ) {
+		if ( ! concurrent ) {
+			entities.ensureCapacity( expectedEntities );
+		}
+	}
+	
+	/**
+	 * Moves forward the stores that are resizing, as stores only move a couple
+	 * of buckets per write otherwise. Called by Engine.update every tick.
+	 * @param buckets Buckets to move at most per store.
+	 * @return The number of stores still resizing.
+	 */
+	public int stepResizes( int buckets ) {
+		if ( concurrent || parallelRegions.get() > 0 ) {
+			return 0;
+		}
+		int resizing = 0;
+		for ( Map<Long, Component> store : componentsByClass.values() ) {
+			if ( store instanceof IncrementalHashMap
+					&& ( (IncrementalHashMap<Long, Component>) store ).stepResize( buckets ) ) {
+				resizing++;
+			}
+		}
+		return resizing;
+	}
+	
+	/**
+	 * @return The number of live entities. Safe to call from any thread.
+	 */
+	public int getEntityCount() {
+		return concurrent ? concurrentEntities.size() : entities.size();
+	}
+	
+	/**
+	 * @return The number of entities disabled with setEnabled.
+	 */
+	public int getDisabledCount() {
+		return disabled.cardinality();
+	}
+	
+	/**
+	 * @return Entities created since the manager was created. Safe to call from any thread.
+	 */
+	public long getCreatedCount() {
+		return createdCount.sum();
+	}
+	
+	/**
+	 * @return Entities removed since the manager was created. Safe to call from any thread.
+	 */
+	public long getRemovedCount() {
+		return removedCount.sum();
+	}
+	
+	/**
+	 * @return Sizes of the results of getEntitiesHavingComponent(s).
+	 */
+	public Histogram getQuerySizes() {
+		return querySizes;
+	}
+	
+	/**
+	 * @return The ID the next entity gets, unless IDs are being recycled.
+	 */
+	public long getNextId() {
+		return lowestAssignedId.get();
+	}
+	
+	/**
+	 * @return IDs of removed entities waiting to be reused. Kept in a counter,
+	 *         so it's cheap to poll from any thread.
+	 */
+	public int getRecycledIdCount() {
+		return unassignedCount.get();
 	}
 
-	public HashMap<Class<? extends Component>, HashMap<Long, Component>> getComponentsByClass() {
+	public Map<Class<? extends Component>, Map<Long, Component>> getComponentsByClass() {
 		return componentsByClass;
 	}
 	
+	public Map<Class<? extends Component>, AtomicBitSet> getTagsByClass() {
+		return tagsByClass;
+	}
+	
 	/** Also deletes the previous data. */
-	public void setComponentsByClass( HashMap<Class<? extends Component>, HashMap<Long, Component>> newData ) {
-	    for ( HashMap<Long, Component> map : componentsByClass.values() ) {
+	public void setComponentsByClass( Map<Class<? extends Component>, Map<Long, Component>> newData ) {
+	    for ( Map<Long, Component> map : componentsByClass.values() ) {
             for ( Component component : map.values() ) {
                 component.dispose();
             }
         }
 	    componentsByClass = newData;
+	    for ( CachedQuery query : cachedQueries ) {
+	        query.rebuild();
+	    }
 	}
 	
 }
@@ -0,0 +1,179 @@
+package jlarv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.LongConsumer;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/*
+    Query over the entities of an EntityManager, made of clauses:
+    - all( types ): the entity has every one of the types;
+    - any( types ): it has at least one of them (every call is a separate clause);
+    - none( types ): it has none of them;
+    - optional( types ): doesn't restrict anything, declares types the caller
+      reads if present (getComponent returning null otherwise), so explain()
+      lists everything the query touches.
+    Disabled entities never match. A query without clauses matches every entity.
+
+    Every time it runs, it's planned against the current store sizes (see
+    QueryPlan): the driver is the clause yielding the fewest entities, and the
+    rest are probed by lookup, most selective first. explain() tells the plan
+    it would run now.
+
+    Queries are cheap to keep and reuse, they only hold the clauses.
+    Like the other queries, they must not run while entities or components are
+    added or removed.
+
+    USAGE:
+      EntityQuery visible = entityManager.query()
+          .all( PositionComponent.class )
+          .any( SpriteComponent.class, ModelComponent.class )
+          .none( HiddenTag.class )
+          .optional( TintComponent.class );
+      visible.forEach( new LongConsumer() {
+          public void accept( long entity ) {
+              ...
+          }
+      } );
+      log( visible.explain() );
+ */
+public class EntityQuery {
+
+	private final EntityManager                        entityManager;
+	private final List<Class<? extends Component>>     all = new ArrayList<Class<? extends Component>>();
+	private final List<Class<? extends Component>[]>   any = new ArrayList<Class<? extends Component>[]>();
+	private final List<Class<? extends Component>>     none = new ArrayList<Class<? extends Component>>();
+	private final List<Class<? extends Component>>     optional = new ArrayList<Class<? extends Component>>();
+
+	EntityQuery( EntityManager entityManager ) {
+		this.entityManager = entityManager;
+	}
+
+	/**
+	 * Matches entities having every one of the given types.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public final EntityQuery all( Class<? extends Component> ... types ) {
+		all.addAll( Arrays.asList( types ) );
+		return this;
+	}
+
+	/**
+	 * Matches entities having at least one of the given types.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public final EntityQuery any( Class<? extends Component> ... types ) {
+		if ( types.length == 0 ) {
+			throw new IllegalArgumentException( "An any clause needs at least one type" );
+		}
+		any.add( types.clone() );
+		return this;
+	}
+
+	/**
+	 * Matches entities having none of the given types.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public final EntityQuery none( Class<? extends Component> ... types ) {
+		none.addAll( Arrays.asList( types ) );
+		return this;
+	}
+
+	/**
+	 * Declares types read if present, without restricting the matches.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	public final EntityQuery optional( Class<? extends Component> ... types ) {
+		optional.addAll( Arrays.asList( types ) );
+		return this;
+	}
+
+	/**
+	 * Plans the query against the stores as they are now.
+	 */
+	QueryPlan plan() {
+		return new QueryPlan( entityManager, all, any, none, optional );
+	}
+
+	/**
+	 * Calls the consumer with every matching entity.
+	 */
+	public void forEach( LongConsumer consumer ) {
+		plan().spliterator().forEachRemaining( consumer );
+	}
+
+	/**
+	 * Lazy version of collect, see EntityManager.streamEntitiesHavingComponents.
+	 */
+	public LongStream stream() {
+		return StreamSupport.longStream( plan().spliterator(), false );
+	}
+
+	/**
+	 * @return The matching entities.
+	 */
+	public ArrayList<Long> collect() {
+		final ArrayList<Long> entities = new ArrayList<Long>();
+		forEach( new LongConsumer() {
+			@Override
+			public void accept( long entity ) {
+				entities.add( entity );
+			}
+		} );
+		return entities;
+	}
+
+	/**
+	 * @return The number of matching entities.
+	 */
+	public long count() {
+		return stream().count();
+	}
+
+	/**
+	 * @return True if no entity matches. Stops at the first one that does.
+	 */
+	public boolean isEmpty() {
+		return ! plan().spliterator().tryAdvance( IGNORE );
+	}
+
+	private static final LongConsumer IGNORE = new LongConsumer() {
+		@Override
+		public void accept( long entity ) {
+		}
+	};
+
+	/**
+	 * Describes the plan the query would run now, one step per line in the
+	 * order they run, with the entities each store holds and an estimate of
+	 * those left after every step. For instance:
+	 *   scan MovementComponent (120)
+	 *   probe none FrozenTag (40, ~80 left)
+	 *   probe all PhysicsComponent (900, ~72 left)
+	 */
+	public String explain() {
+		return plan().toString();
+	}
+
+	/**
+	 * @return The estimated number of matching entities, from the store sizes.
+	 */
+	public long estimate() {
+		return plan().estimate();
+	}
+
+	public List<Class<? extends Component>> getOptional() {
+		return Collections.unmodifiableList( optional );
+	}
+
+	public EntityManager getEntityManager() {
+		return entityManager;
+	}
+}
@@ -0,0 +1,235 @@
+package jlarv;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/*
+    Spliterator over the entities matching a query.
+
+    It walks the store of one of the types (the one chosen by the QueryPlan)
+    and filters out the entities the plan rejects when probing the rest.
+    Splitting is delegated to the underlying store, so a HashMap store splits by
+    bucket ranges and a tag store by bit ranges, without copying anything.
+    Stores are walked as primitive spliterators (see ofKeys and ofBits), and
+    advancing one entity at a time reuses the same consumer, so short-circuiting
+    streams (anyMatch, findFirst, limit...) don't allocate per entity.
+
+    Like the stores it reads from, it's not safe against structural changes:
+    the EntityManager blocks those while a parallel iteration is running.
+ */
+class EntityQuerySpliterator implements Spliterator.OfLong {
+
+	private final Spliterator.OfLong source;
+	private final LongPredicate      filter;
+
+	// State of tryAdvance, reused between calls
+	private LongConsumer       action;
+	private boolean            found;
+	private final LongConsumer probe = new LongConsumer() {
+		@Override
+		public void accept( long entity ) {
+			if ( matches( entity ) ) {
+				found = true;
+				action.accept( entity );
+			}
+		}
+	};
+
+	/**
+	 * @param source Spliterator over the entities of the driving store.
+	 * @param filter Tells the entities to return, null to return them all.
+	 */
+	EntityQuerySpliterator( Spliterator.OfLong source, LongPredicate filter ) {
+		this.source = source;
+		this.filter = filter;
+	}
+
+	private boolean unfiltered() {
+		return filter == null;
+	}
+
+	private boolean matches( long entity ) {
+		return filter.test( entity );
+	}
+
+	@Override
+	public boolean tryAdvance( LongConsumer action ) {
+		if ( unfiltered() ) {
+			return source.tryAdvance( action );
+		}
+		this.action = action;
+		found = false;
+		try {
+			while ( ! found ) {
+				if ( ! source.tryAdvance( probe ) ) {
+					return false;
+				}
+			}
+			return true;
+		} finally {
+			this.action = null;
+		}
+	}
+
+	@Override
+	public boolean tryAdvance( Consumer<? super Long> action ) {
+		if ( action instanceof LongConsumer ) {
+			return tryAdvance( (LongConsumer) action );
+		}
+		final Consumer<? super Long> boxed = action;
+		return tryAdvance( new LongConsumer() {
+			@Override
+			public void accept( long entity ) {
+				boxed.accept( entity );
+			}
+		} );
+	}
+
+	@Override
+	public void forEachRemaining( final LongConsumer action ) {
+		if ( unfiltered() ) {
+			source.forEachRemaining( action );
+			return;
+		}
+		source.forEachRemaining( new LongConsumer() {
+			@Override
+			public void accept( long entity ) {
+				if ( matches( entity ) ) {
+					action.accept( entity );
+				}
+			}
+		} );
+	}
+
+	@Override
+	public Spliterator.OfLong trySplit() {
+		Spliterator.OfLong prefix = source.trySplit();
+		if ( prefix == null ) {
+			return null;
+		}
+		return new EntityQuerySpliterator( prefix, filter );
+	}
+
+	/**
+	 * Upper bound: the size of the driving store, the filter isn't accounted for.
+	 */
+	@Override
+	public long estimateSize() {
+		return source.estimateSize();
+	}
+
+	@Override
+	public int characteristics() {
+		int characteristics = ( source.characteristics() | DISTINCT | NONNULL ) & ~( ORDERED | SORTED );
+		if ( ! unfiltered() ) {
+			characteristics &= ~( SIZED | SUBSIZED );
+		}
+		return characteristics;
+	}
+
+	/**
+	 * @return The given entity IDs (the keys of a store, an entity list...) as a
+	 *         primitive spliterator.
+	 */
+	static Spliterator.OfLong ofKeys( Spliterator<Long> keys ) {
+		return new KeySpliterator( keys );
+	}
+
+	/**
+	 * @return The entities of the set bits of a tag store.
+	 */
+	static Spliterator.OfLong ofBits( Spliterator.OfInt bits ) {
+		return new BitSpliterator( bits );
+	}
+
+	/* Unboxes the keys of a store, they're already boxed in it so nothing is allocated. */
+	private static class KeySpliterator implements Spliterator.OfLong {
+		private final Spliterator<Long> keys;
+		private LongConsumer            action;
+		private final Consumer<Long>    unboxer = new Consumer<Long>() {
+			@Override
+			public void accept( Long entity ) {
+				action.accept( entity );
+			}
+		};
+
+		KeySpliterator( Spliterator<Long> keys ) {
+			this.keys = keys;
+		}
+
+		@Override
+		public boolean tryAdvance( LongConsumer action ) {
+			this.action = action;
+			return keys.tryAdvance( unboxer );
+		}
+
+		@Override
+		public void forEachRemaining( LongConsumer action ) {
+			this.action = action;
+			keys.forEachRemaining( unboxer );
+		}
+
+		@Override
+		public Spliterator.OfLong trySplit() {
+			Spliterator<Long> prefix = keys.trySplit();
+			return prefix == null ? null : new KeySpliterator( prefix );
+		}
+
+		@Override
+		public long estimateSize() {
+			return keys.estimateSize();
+		}
+
+		@Override
+		public int characteristics() {
+			return keys.characteristics();
+		}
+	}
+
+	/* Maps bit indices to entity IDs. */
+	private static class BitSpliterator implements Spliterator.OfLong {
+		private final Spliterator.OfInt bits;
+		private LongConsumer            action;
+		private final IntConsumer       mapper = new IntConsumer() {
+			@Override
+			public void accept( int index ) {
+				action.accept( EntityManager.entityOfBit( index ) );
+			}
+		};
+
+		BitSpliterator( Spliterator.OfInt bits ) {
+			this.bits = bits;
+		}
+
+		@Override
+		public boolean tryAdvance( LongConsumer action ) {
+			this.action = action;
+			return bits.tryAdvance( mapper );
+		}
+
+		@Override
+		public void forEachRemaining( LongConsumer action ) {
+			this.action = action;
+			bits.forEachRemaining( mapper );
+		}
+
+		@Override
+		public Spliterator.OfLong trySplit() {
+			Spliterator.OfInt prefix = bits.trySplit();
+			return prefix == null ? null : new BitSpliterator( prefix );
+		}
+
+		@Override
+		public long estimateSize() {
+			return bits.estimateSize();
+		}
+
+		@Override
+		public int characteristics() {
+			return bits.characteristics();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package jlarv;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.Supplier;
+
+/*
+    Lets the systems of an engine talk to each other through typed events,
+    instead of creating throwaway entities with "event" components or sharing
+    mutable fields.
+
+    Every engine has one (Engine.getEventBus(), also bound to its systems as
+    System.eventBus) holding one EventChannel per event type. Events published
+    during a phase are read in the next one (or during the next tick, see
+    EventChannel.Lifetime): the engine tells the bus whenever it enters a phase
+    and the bus swaps the channels whose lifetime is over. Phases without
+    systems still count, so the lifetime of an event doesn't depend on which
+    systems happen to be there.
+
+    Systems can subscribe to channels (System.subscribe): they're then skipped
+    while none of them has events to read.
+ */
+public class EventBus {
+
+	private static final Phase[] PHASES = Phase.values();
+
+	private final HashMap<Class<?>, EventChannel<?>> channelsByType;
+	private EventChannel<?>[]                        channels;
+
+	// Ordinal of the phase the engine is in, -1 between ticks
+	private int current = -1;
+
+	public EventBus() {
+		channelsByType = new HashMap<Class<?>, EventChannel<?>>();
+		channels = new EventChannel<?>[0];
+	}
+
+	/**
+	 * Creates the channel for the given event type.
+	 * @param capacity Events preallocated per buffer, should fit what's published in a phase (or tick).
+	 * @param factory  Creates the event objects, only called while preallocating.
+	 */
+	public <E> EventChannel<E> createChannel( Class<E> type, EventChannel.Lifetime lifetime, int capacity,
+	                                          Supplier<? extends E> factory ) {
+		if ( channelsByType.containsKey( type ) ) {
+			throw new IllegalArgumentException( "There's already a channel for " + type.getName() );
+		}
+		EventChannel<E> channel = new EventChannel<E>( type, lifetime, capacity, factory );
+		channelsByType.put( type, channel );
+		channels = Arrays.copyOf( channels, channels.length + 1 );
+		channels[channels.length - 1] = channel;
+		return channel;
+	}
+
+	/**
+	 * Returns the channel of the given event type.
+	 * It fails (on purpose) if the channel was never created.
+	 */
+	@SuppressWarnings("unchecked")
+	public <E> EventChannel<E> getChannel( Class<E> type ) {
+		EventChannel<E> channel = (EventChannel<E>) channelsByType.get( type );
+		if ( channel == null ) {
+			throw new IllegalArgumentException( "No channel for " + type.getName() );
+		}
+		return channel;
+	}
+
+	public boolean hasChannel( Class<?> type ) {
+		return channelsByType.containsKey( type );
+	}
+
+	/**
+	 * Removes the channel of the given event type, dropping its events.
+	 * @return False if there was none.
+	 */
+	public boolean removeChannel( Class<?> type ) {
+		EventChannel<?> channel = channelsByType.remove( type );
+		if ( channel == null ) {
+			return false;
+		}
+		EventChannel<?>[] updated = new EventChannel<?>[channels.length - 1];
+		for ( int i = 0, j = 0; i < channels.length; i++ ) {
+			if ( channels[i] != channel ) {
+				updated[j++] = channels[i];
+			}
+		}
+		channels = updated;
+		return true;
+	}
+
+	/**
+	 * Called by the engine at the start of a tick, before any phase.
+	 */
+	void beginTick() {
+		current = -1;
+	}
+
+	/**
+	 * Called by the engine before updating the systems of the given phase.
+	 * Swaps the channels for every phase entered since the last call, including
+	 * phases without systems. Does nothing if already in that phase.
+	 */
+	void enterPhase( Phase phase ) {
+		for ( int next = current + 1; next <= phase.ordinal(); next++ ) {
+			for ( EventChannel<?> channel : channels ) {
+				if ( channel.getLifetime() == EventChannel.Lifetime.PHASE || next == 0 ) {
+					channel.swap();
+				}
+			}
+			current = next;
+		}
+	}
+
+	/**
+	 * Called by the engine at the end of a tick, enters the phases left.
+	 */
+	void endTick() {
+		enterPhase( PHASES[PHASES.length - 1] );
+		current = -1;
+	}
+
+	/**
+	 * Drops the events of every channel.
+	 */
+	public void clear() {
+		for ( EventChannel<?> channel : channels ) {
+			channel.clear();
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package jlarv;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/*
+    Typed channel of the EventBus, carrying events of a single type from the
+    systems that publish them to the systems that read them.
+
+    A channel owns two buffers of preallocated event objects: one being written
+    (events published in the current phase or tick) and one being read (events
+    published in the previous one). The engine swaps them when its lifetime is
+    over, so events are never seen by the phase that published them, and every
+    reader sees all of them, in publishing order.
+
+    Publishing doesn't allocate: publish() hands out the next preallocated event,
+    to be filled by the caller. Only when a buffer is full it doubles (creating
+    the new events through the factory), and it keeps that size from then on.
+    publish() can be called from parallel systems at the same time.
+
+    Event objects are reused, so don't keep references to them past the phase
+    you read them in, and set all their fields when publishing.
+
+    USAGE:
+      EventChannel<HitEvent> hits = engine.getEventBus().createChannel(
+              HitEvent.class, EventChannel.Lifetime.PHASE, 256, hitFactory );
+      // UPDATE phase
+      HitEvent hit = hits.publish();
+      hit.target = entity;
+      hit.damage = 10;
+      // POST_UPDATE phase
+      for ( int i = 0; i < hits.size(); i++ ) { ... hits.get( i ) ... }
+ */
+public class EventChannel<E> {
+
+	/*
+	 * How long published events stay around:
+	 *  - PHASE: readable during the phase after the one they were published in.
+	 *  - TICK:  readable during the whole tick after the one they were published in.
+	 */
+	public enum Lifetime { PHASE, TICK }
+
+	private final Class<E>              type;
+	private final Lifetime              lifetime;
+	private final Supplier<? extends E> factory;
+
+	// Buffer events are published into, and number of events handed out from it
+	private volatile Object[]           writing;
+	private final AtomicInteger         claimed = new AtomicInteger();
+
+	// Buffer readers see, and number of events in it
+	private Object[]                    reading;
+	private int                         readable;
+
+	private long                        published;
+	private int                         growths;
+
+	EventChannel( Class<E> type, Lifetime lifetime, int capacity, Supplier<? extends E> factory ) {
+		if ( capacity < 1 ) {
+			throw new IllegalArgumentException( "Capacity must be positive: " + capacity );
+		}
+		this.type = type;
+		this.lifetime = lifetime;
+		this.factory = factory;
+		this.writing = fill( new Object[capacity], 0 );
+		this.reading = fill( new Object[capacity], 0 );
+	}
+
+	private Object[] fill( Object[] buffer, int from ) {
+		for ( int i = from; i < buffer.length; i++ ) {
+			buffer[i] = factory.get();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Claims the next event of the channel. Fill it in before the phase ends;
+	 * it becomes readable once the channel swaps.
+	 */
+	@SuppressWarnings("unchecked")
+	public E publish() {
+		int index = claimed.getAndIncrement();
+		Object[] buffer = writing;
+		if ( index >= buffer.length ) {
+			buffer = grow( index );
+		}
+		return (E) buffer[index];
+	}
+
+	/**
+	 * Doubles the write buffer until it holds the given index. The events already
+	 * handed out are kept, so concurrent publishers holding them aren't affected.
+	 */
+	private synchronized Object[] grow( int index ) {
+		Object[] buffer = writing;
+		if ( index < buffer.length ) {
+			return buffer;
+		}
+		int length = buffer.length * 2;
+		while ( length <= index ) {
+			length *= 2;
+		}
+		Object[] grown = fill( Arrays.copyOf( buffer, length ), buffer.length );
+		writing = grown;
+		growths++;
+		return grown;
+	}
+
+	/**
+	 * Makes the events published so far readable and drops the ones that were.
+	 * Called by the EventBus between phases, while nothing publishes nor reads.
+	 */
+	void swap() {
+		Object[] released = reading;
+		reading = writing;
+		readable = claimed.get();
+		published += readable;
+		if ( released.length < reading.length ) {
+			released = fill( Arrays.copyOf( released, reading.length ), released.length );
+		}
+		writing = released;
+		claimed.set( 0 );
+	}
+
+	/**
+	 * Drops every event, readable or not.
+	 */
+	public void clear() {
+		readable = 0;
+		claimed.set( 0 );
+	}
+
+	/**
+	 * @return The number of events that can be read right now.
+	 */
+	public int size() {
+		return readable;
+	}
+
+	public boolean hasEvents() {
+		return readable > 0;
+	}
+
+	/**
+	 * @return The index-th readable event, in publishing order.
+	 */
+	@SuppressWarnings("unchecked")
+	public E get( int index ) {
+		if ( index >= readable ) {
+			throw new IndexOutOfBoundsException( "Event " + index + " of " + readable );
+		}
+		return (E) reading[index];
+	}
+
+	/**
+	 * Calls the consumer with every readable event, in publishing order.
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach( Consumer<? super E> consumer ) {
+		Object[] events = reading;
+		for ( int i = 0, count = readable; i < count; i++ ) {
+			consumer.accept( (E) events[i] );
+		}
+	}
+
+	/*
+	 * Getters.
+	 */
+	public Class<E> getType() {
+		return type;
+	}
+
+	public Lifetime getLifetime() {
+		return lifetime;
+	}
+
+	/**
+	 * @return Events published since the last swap, not readable yet.
+	 */
+	public int getPending() {
+		return Math.min( claimed.get(), writing.length );
+	}
+
+	/**
+	 * @return How many events fit before the channel has to grow.
+	 */
+	public int getCapacity() {
+		return writing.length;
+	}
+
+	/**
+	 * @return Times the channel had to grow because it ran out of events.
+	 *         Anything but 0 means the capacity given on creation is too small.
+	 */
+	public int getGrowths() {
+		return growths;
+	}
+
+	/**
+	 * @return Total events that became readable since the channel was created.
+	 */
+	public long getPublished() {
+		return published;
+	}
+
+	@Override
+	public String toString() {
+		return "EventChannel[" + type.getSimpleName() + ", " + lifetime + "]";
+	}
+}
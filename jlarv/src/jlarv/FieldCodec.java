@@ -0,0 +1,47 @@
+package jlarv;
+
+/*
+    Turns the data of a replicated component type into a fixed number of
+    integer fields, each one sent with a fixed number of bits. Floats are
+    usually quantized (see jlarv.util.Quantizer), and only the fields that
+    changed since what the client already has are sent.
+
+    USAGE:
+      public class PositionCodec implements FieldCodec<PositionComponent> {
+          static final Quantizer COORDINATE = Quantizer.withPrecision( -1024, 1024, 0.01f );
+
+          public int[] getFieldBits() {
+              return new int[] { COORDINATE.getBits(), COORDINATE.getBits() };
+          }
+          public void quantize( PositionComponent position, long[] fields ) {
+              fields[0] = COORDINATE.quantize( position.x );
+              fields[1] = COORDINATE.quantize( position.y );
+          }
+          public PositionComponent dequantize( long[] fields, PositionComponent position ) {
+              if ( position == null ) position = new PositionComponent();
+              position.x = COORDINATE.dequantize( fields[0] );
+              position.y = COORDINATE.dequantize( fields[1] );
+              return position;
+          }
+      }
+ */
+public interface FieldCodec<T extends Component> {
+
+	/**
+	 * @return The bits of every field (up to 64 each), the length being the
+	 *         number of fields. Must always return the same.
+	 */
+	public int[] getFieldBits();
+
+	/**
+	 * Writes the fields of the given component, a value per field.
+	 */
+	public void quantize( T component, long[] fields );
+
+	/**
+	 * Sets the given component from the given fields.
+	 * @param component The component to update in place, null to create one.
+	 * @return The component updated or created.
+	 */
+	public T dequantize( long[] fields, T component );
+}
@@ -0,0 +1,218 @@
+package jlarv;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+    Runs the game loop around a World or an Engine, so games don't need to
+    write their own.
+
+    The simulation always advances in fixed steps (stepSeconds): the real time
+    elapsed between frames is accumulated and consumed one step at a time.
+    If the simulation falls behind (slow machine, debugger, GC...), at most
+    maxStepsPerFrame steps are run in a single frame and the rest of the
+    accumulated time is dropped, so the loop never enters a spiral of death.
+
+    After the steps of a frame, getAlpha() tells how far we are between the last
+    step and the next one (0 to 1), which readers such as renderers can use to
+    interpolate between the previous and the current state.
+
+    Between frames the loop waits for the next frame deadline using one of the
+    Pacing strategies:
+      - PARK:   LockSupport.parkNanos, cheap on the CPU but the OS may wake us late.
+      - SPIN:   busy waits, lowest jitter but burns a core.
+      - HYBRID: parks until spinThreshold before the deadline, then spins.
+
+    USAGE:
+      GameLoop loop = new GameLoop( world, 1f / 60f );
+      loop.setListener( renderer );
+      new Thread( loop ).start();
+      ...
+      loop.stop();
+ */
+public class GameLoop implements Runnable {
+
+	public enum Pacing { PARK, SPIN, HYBRID }
+
+	/*
+	 * Called once per frame, after the simulation steps, from the loop thread.
+	 */
+	public interface Listener {
+		public void frame( float alpha );
+	}
+
+	private final Updatable   target;
+	private final long        stepNanos;
+	private final float       stepSeconds;
+	private int               maxStepsPerFrame;
+	private long              frameNanos;
+	private Pacing            pacing;
+	private long              spinThresholdNanos;
+	private Listener          listener;
+
+	private long              accumulator;
+	private volatile float    alpha;
+	private volatile boolean  running;
+	private volatile boolean  stopRequested;
+	private volatile long     steps;
+	private long              droppedNanos;
+
+	/**
+	 * @param target      The World or Engine to update.
+	 * @param stepSeconds The fixed simulation step, in seconds. Also used as the frame
+	 *                    duration until setFrameRate is called.
+	 */
+	public GameLoop( Updatable target, float stepSeconds ) {
+		if ( stepSeconds <= 0 ) {
+			throw new IllegalArgumentException( "Step must be positive: " + stepSeconds );
+		}
+		this.target = target;
+		this.stepSeconds = stepSeconds;
+		this.stepNanos = (long) ( stepSeconds * 1e9 );
+		this.frameNanos = stepNanos;
+		this.maxStepsPerFrame = 5;
+		this.pacing = Pacing.HYBRID;
+		this.spinThresholdNanos = 1000000L;
+	}
+
+	/**
+	 * Adds the elapsed time to the accumulator and runs as many fixed steps as
+	 * it allows, up to maxStepsPerFrame. Time beyond the cap is dropped.
+	 * Called by run() every frame, but can also be used to drive the loop by hand
+	 * (tests, external timers...).
+	 * @param elapsedNanos Real time elapsed since the last call.
+	 * @return The number of steps run.
+	 */
+	public int advance( long elapsedNanos ) {
+		accumulator += elapsedNanos;
+		int stepped = 0;
+		while ( accumulator >= stepNanos && stepped < maxStepsPerFrame ) {
+			target.update( stepSeconds );
+			accumulator -= stepNanos;
+			stepped++;
+		}
+		if ( accumulator >= stepNanos ) {
+			long dropped = accumulator - accumulator % stepNanos;
+			droppedNanos += dropped;
+			accumulator -= dropped;
+		}
+		steps += stepped;
+		alpha = (float) accumulator / stepNanos;
+		return stepped;
+	}
+
+	/**
+	 * Runs the loop on the calling thread until stop() is called.
+	 */
+	@Override
+	public void run() {
+		running = true;
+		try {
+			long last = java.lang.System.nanoTime();
+			while ( ! stopRequested ) {
+				long frameStart = java.lang.System.nanoTime();
+				advance( frameStart - last );
+				last = frameStart;
+				if ( listener != null ) {
+					listener.frame( alpha );
+				}
+				waitUntil( frameStart + frameNanos );
+			}
+		} finally {
+			stopRequested = false;
+			running = false;
+		}
+	}
+
+	/**
+	 * Makes run() return after the current frame. Can be called from any thread;
+	 * if the loop didn't start yet, it returns as soon as it does.
+	 */
+	public void stop() {
+		stopRequested = true;
+	}
+
+	private void waitUntil( long deadline ) {
+		// Park until this close to the deadline, then spin the rest
+		long spinNanos = pacing == Pacing.PARK ? 0 : pacing == Pacing.HYBRID ? spinThresholdNanos : Long.MAX_VALUE;
+		long remaining = deadline - java.lang.System.nanoTime();
+		while ( remaining > spinNanos && ! stopRequested ) {
+			LockSupport.parkNanos( remaining - spinNanos );
+			remaining = deadline - java.lang.System.nanoTime();
+		}
+		while ( remaining > 0 && ! stopRequested ) {
+			Thread.onSpinWait();
+			remaining = deadline - java.lang.System.nanoTime();
+		}
+	}
+
+	/*
+	 * Getters and setters.
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return How far the accumulator is between the last step and the next one (0 to 1).
+	 */
+	public float getAlpha() {
+		return alpha;
+	}
+
+	/**
+	 * @return Total number of simulation steps run.
+	 */
+	public long getSteps() {
+		return steps;
+	}
+
+	/**
+	 * @return Total time dropped because the simulation couldn't catch up, in nanoseconds.
+	 */
+	public long getDroppedNanos() {
+		return droppedNanos;
+	}
+
+	public float getStepSeconds() {
+		return stepSeconds;
+	}
+
+	public int getMaxStepsPerFrame() {
+		return maxStepsPerFrame;
+	}
+
+	public void setMaxStepsPerFrame( int maxStepsPerFrame ) {
+		if ( maxStepsPerFrame < 1 ) {
+			throw new IllegalArgumentException( "At least one step per frame is needed" );
+		}
+		this.maxStepsPerFrame = maxStepsPerFrame;
+	}
+
+	/**
+	 * Sets how many frames per second the loop aims for. Rendering faster than the
+	 * simulation step is what makes the interpolation alpha useful.
+	 * @param framesPerSecond 0 or less to not wait at all between frames.
+	 */
+	public void setFrameRate( float framesPerSecond ) {
+		this.frameNanos = framesPerSecond > 0 ? (long) ( 1e9 / framesPerSecond ) : 0;
+	}
+
+	public Pacing getPacing() {
+		return pacing;
+	}
+
+	public void setPacing( Pacing pacing ) {
+		this.pacing = pacing;
+	}
+
+	/**
+	 * Only used by Pacing.HYBRID: how long before the deadline we stop parking and start spinning.
+	 */
+	public void setSpinThresholdNanos( long spinThresholdNanos ) {
+		this.spinThresholdNanos = spinThresholdNanos;
+	}
+
+	public void setListener( Listener listener ) {
+		this.listener = listener;
+	}
+}
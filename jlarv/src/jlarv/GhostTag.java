@@ -0,0 +1,16 @@
+package jlarv;
+
+/*
+    Marks the read-only mirrors a ShardedWorld keeps of the entities living
+    near a shard's borders, so the systems of that shard can see (collide with,
+    target...) entities owned by its neighbours.
+
+    A ghost has the same ID as the entity it mirrors, and its components are
+    overwritten on every sync, so anything written to them is lost. Systems that
+    change entities should leave ghosts alone:
+
+      if ( entityManager.hasTag( entity, GhostTag.class ) ) continue;
+ */
+public final class GhostTag extends TagComponent {
+
+}
@@ -0,0 +1,105 @@
+package jlarv;
+
+/*
+    Partitions a 2D world into a grid of columns x rows regions, region
+    column + row * columns being shard column + row * columns. Positions outside
+    the grid belong to the closest region.
+
+    Entities within margin of a region's border get ghosts in the neighbouring
+    regions, so the margin should cover how far systems look around an entity
+    (collision radius, sight range...).
+
+    USAGE:
+      new GridPartitioner( 0, 0, 512, 512, 2, 2, 16, new GridPartitioner.Locator() {
+          public boolean locate( EntityManager entityManager, long entity, float[] position ) {
+              PositionComponent p = entityManager.getComponent( entity, PositionComponent.class );
+              if ( p == null ) return false;
+              position[0] = p.x;
+              position[1] = p.y;
+              return true;
+          }
+      } );
+ */
+public class GridPartitioner implements Partitioner {
+
+	/* Reads the position of entities */
+	public interface Locator {
+		/**
+		 * Writes the x and y of the given entity into position.
+		 * @return False if it has no position, it's then left where it is and never ghosted.
+		 */
+		public boolean locate( EntityManager entityManager, long entity, float[] position );
+	}
+
+	private final float   minX, minY;
+	private final float   cellWidth, cellHeight;
+	private final int     columns, rows;
+	private final float   margin;
+	private final Locator locator;
+	private final float[] position = new float[2];
+
+	/**
+	 * @param minX Left of the grid.
+	 * @param minY Bottom of the grid.
+	 * @param margin Distance to a border below which entities are ghosted, 0 for no ghosts.
+	 */
+	public GridPartitioner( float minX, float minY, float cellWidth, float cellHeight,
+	                        int columns, int rows, float margin, Locator locator ) {
+		if ( cellWidth <= 0 || cellHeight <= 0 || columns < 1 || rows < 1 || margin < 0 ) {
+			throw new IllegalArgumentException( "Invalid grid" );
+		}
+		this.minX = minX;
+		this.minY = minY;
+		this.cellWidth = cellWidth;
+		this.cellHeight = cellHeight;
+		this.columns = columns;
+		this.rows = rows;
+		this.margin = margin;
+		this.locator = locator;
+	}
+
+	@Override
+	public int ownerOf( EntityManager entityManager, long entity ) {
+		if ( ! locator.locate( entityManager, entity, position ) ) {
+			return -1;
+		}
+		return column( position[0] ) + row( position[1] ) * columns;
+	}
+
+	@Override
+	public int ghostsOf( EntityManager entityManager, long entity, int owner, int[] shards ) {
+		if ( margin == 0 || ! locator.locate( entityManager, entity, position ) ) {
+			return 0;
+		}
+		float x = position[0], y = position[1];
+		int count = 0;
+		for ( int row = row( y - margin ), lastRow = row( y + margin ); row <= lastRow; row++ ) {
+			for ( int column = column( x - margin ), lastColumn = column( x + margin ); column <= lastColumn; column++ ) {
+				int shard = column + row * columns;
+				if ( shard != owner ) {
+					shards[count++] = shard;
+				}
+			}
+		}
+		return count;
+	}
+
+	private int column( float x ) {
+		return clamp( (int) Math.floor( ( x - minX ) / cellWidth ), columns );
+	}
+
+	private int row( float y ) {
+		return clamp( (int) Math.floor( ( y - minY ) / cellHeight ), rows );
+	}
+
+	private static int clamp( int cell, int cells ) {
+		return cell < 0 ? 0 : cell >= cells ? cells - 1 : cell;
+	}
+
+	/**
+	 * @return The number of shards the world needs.
+	 */
+	public int getShardCount() {
+		return columns * rows;
+	}
+}
@@ -0,0 +1,21 @@
+package jlarv;
+
+/*
+    Receives notifications about entities joining and leaving the groups of a
+    GroupManager. Register it with GroupManager.addListener.
+
+    Listeners are called synchronously, right after the change happened, so
+    they must be cheap.
+ */
+public interface GroupListener {
+
+	/**
+	 * Called after an entity has been added to a group.
+	 */
+	public void addedToGroup( long entity, String group );
+
+	/**
+	 * Called after an entity has been removed from a group.
+	 */
+	public void removedFromGroup( long entity, String group );
+}
@@ -19,10 +19,15 @@ import java.util.Map.Entry;
         - In some systems, it may be convenient to ask for a certain group
           of entities. For example, a system that only acts on the Hero, may
           call for it using self.group_manager.get('hero')
+      The engine also registers it as a listener of its EntityManager, so
+      removed entities leave their groups before their IDs are recycled.
+      Register it yourself (EntityManager.addListener) if used on its own.
  */
-public class GroupManager {	
+public class GroupManager implements EntityListener {	
 	protected Engine                          engine;
 	private HashMap<String, ArrayList<Long>>  entitiesByGroup;
+	/* Notified of entities joining and leaving groups, copied on write */
+	private GroupListener[]                   listeners = new GroupListener[0];
 
 	public GroupManager( Engine engine ) {
 		entitiesByGroup = new HashMap<String, ArrayList<Long>>();
@@ -49,6 +54,9 @@ public class GroupManager {
 			entitiesList.add( entity );
 			entitiesByGroup.put( group, entitiesList );
 		}
+		for ( GroupListener listener : listeners ) {
+			listener.addedToGroup( entity, group );
+		}
 	}
 	
 	/**
@@ -67,6 +75,9 @@ public class GroupManager {
 		ArrayList<Long> entitiesList = entitiesByGroup.get( group );
 		if ( entitiesList != null ) {
 			entitiesList.remove( entitiesList.indexOf( entity ) );
+			for ( GroupListener listener : listeners ) {
+				listener.removedFromGroup( entity, group );
+			}
 		}
 	}
 	
@@ -75,19 +86,59 @@ public class GroupManager {
 	 * every single value.
 	 */
 	public void removeCompletely( long entity ) {
-		for ( ArrayList<Long> entityList : entitiesByGroup.values() ) {
+		for ( Entry<String, ArrayList<Long>> entry : entitiesByGroup.entrySet() ) {
+		    ArrayList<Long> entityList = entry.getValue();
 		    if ( entityList.contains( entity ) ) {
 		        entityList.remove( entityList.indexOf( entity ) );
+		        for ( GroupListener listener : listeners ) {
+		            listener.removedFromGroup( entity, entry.getKey() );
+		        }
 		    }
 		}
 	}
 	
+	@Override
+	public void entityCreated( long entity ) {
+	}
+
+	/**
+	 * Removes the entity from its groups, a recycled ID must start without them.
+	 */
+	@Override
+	public void entityRemoved( long entity ) {
+		removeCompletely( entity );
+	}
+	
+	/**
+	 * Registers a listener to be notified whenever entities join or leave groups.
+	 */
+	public void addListener( GroupListener listener ) {
+		GroupListener[] updated = Arrays.copyOf( listeners, listeners.length + 1 );
+		updated[listeners.length] = listener;
+		listeners = updated;
+	}
+	
+	/**
+	 * Unregisters the given listener.
+	 * @return False if it wasn't registered.
+	 */
+	public boolean removeListener( GroupListener listener ) {
+		ArrayList<GroupListener> updated = new ArrayList<GroupListener>( Arrays.asList( listeners ) );
+		boolean removed = updated.remove( listener );
+		listeners = updated.toArray( new GroupListener[updated.size()] );
+		return removed;
+	}
+	
 	/**
 	 * Returns a ArrayList<Long> containing all the entities that are in every argument.
 	 * If used with only one argument, will return only the entities in that component.
 	 */
 	public ArrayList<Long> get ( String ... args ) {
 		ArrayList<Long> entitiesList = entitiesByGroup.get( args[0] );
+		if ( args.length > 1 ) {
+			// Intersect on a copy, the group itself must not lose entities
+			entitiesList = new ArrayList<Long>( entitiesList );
+		}
 		ArrayList<Long> auxiliarList = new ArrayList<Long>();
 		long entity;
 		for ( int i = 1, size = args.length; i < size; i++ ) {	
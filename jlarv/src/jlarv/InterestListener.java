@@ -0,0 +1,22 @@
+package jlarv;
+
+/*
+    Receives notifications about entities becoming relevant or irrelevant to
+    the observers of an InterestManager. Register it with
+    InterestManager.addListener.
+
+    Listeners are called synchronously, right after the change happened, so
+    they must be cheap.
+ */
+public interface InterestListener {
+
+	/**
+	 * Called after an entity became relevant to an observer.
+	 */
+	public void entered( InterestManager.Observer observer, long entity );
+
+	/**
+	 * Called after an entity stopped being relevant to an observer.
+	 */
+	public void left( InterestManager.Observer observer, long entity );
+}
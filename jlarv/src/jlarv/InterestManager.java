@@ -0,0 +1,443 @@
+package jlarv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+    Keeps, for every observer (a connected client, an AI director...), the set
+    of entities relevant to it: the ones near it and the ones in the groups it
+    watches. Sets are maintained incrementally and InterestListeners are told
+    whenever an entity enters or leaves one of them.
+
+    Space is split in square cells. Every cell knows its entities and the
+    observers watching it (the cells within an observer's radius), so:
+      - an entity moving inside its cell costs a hash lookup,
+      - an entity crossing cells only touches the observers of both cells,
+      - an observer crossing cells only touches the entities of the cells it
+        starts or stops watching,
+    that is, the cost follows movement instead of observers x entities.
+
+    An entity is relevant while it's in a watched cell or in a watched group.
+    Positions are reported with setPosition (from the movement systems, for
+    example). Once attached, removed entities are forgotten and group changes
+    are followed automatically.
+
+    USAGE:
+      InterestManager interest = new InterestManager( 32 );
+      interest.attach( engine.getEntityManager(), engine.getGroupManager() );
+      InterestManager.Observer player = interest.addObserver( x, y, 100 );
+      interest.watchGroup( player, "party" );
+      ...
+      interest.setPosition( entity, position.x, position.y );
+      interest.moveObserver( player, camera.x, camera.y );
+      // Replicating only what's relevant
+      replicationObserver.setRelevant( player.getRelevant() );
+ */
+public class InterestManager implements EntityListener, GroupListener {
+
+	private final float cellSize;
+
+	private final HashMap<Long, Cell>                    cells;
+	private final HashMap<Long, Long>                    cellOfEntity;
+	private final HashMap<String, ArrayList<Observer>>   watchersByGroup;
+	private final ArrayList<Observer>                    observers;
+	private InterestListener[]                           listeners = new InterestListener[0];
+
+	private EntityManager entityManager;
+	private GroupManager  groupManager;
+
+	/**
+	 * @param cellSize Side of the cells, around the usual observer radius works well.
+	 */
+	public InterestManager( float cellSize ) {
+		if ( ! ( cellSize > 0 ) ) {
+			throw new IllegalArgumentException( "Cells need a positive size" );
+		}
+		this.cellSize = cellSize;
+		cells = new HashMap<Long, Cell>();
+		cellOfEntity = new HashMap<Long, Long>();
+		watchersByGroup = new HashMap<String, ArrayList<Observer>>();
+		observers = new ArrayList<Observer>();
+	}
+
+	/**
+	 * Follows the removal of entities and the changes of groups.
+	 */
+	public void attach( EntityManager entityManager, GroupManager groupManager ) {
+		detach();
+		this.entityManager = entityManager;
+		this.groupManager = groupManager;
+		entityManager.addListener( this );
+		groupManager.addListener( this );
+	}
+
+	public void detach() {
+		if ( entityManager != null ) {
+			entityManager.removeListener( this );
+			groupManager.removeListener( this );
+			entityManager = null;
+			groupManager = null;
+		}
+	}
+
+	/**
+	 * Registers a listener to be notified whenever entities enter or leave the
+	 * relevant set of an observer.
+	 */
+	public void addListener( InterestListener listener ) {
+		InterestListener[] updated = Arrays.copyOf( listeners, listeners.length + 1 );
+		updated[listeners.length] = listener;
+		listeners = updated;
+	}
+
+	/**
+	 * Unregisters the given listener.
+	 * @return False if it wasn't registered.
+	 */
+	public boolean removeListener( InterestListener listener ) {
+		ArrayList<InterestListener> updated = new ArrayList<InterestListener>( Arrays.asList( listeners ) );
+		boolean removed = updated.remove( listener );
+		listeners = updated.toArray( new InterestListener[updated.size()] );
+		return removed;
+	}
+
+	/*
+	 * Entities.
+	 */
+	/**
+	 * Sets the position of the given entity, making it relevant to the
+	 * observers around it.
+	 */
+	public void setPosition( long entity, float x, float y ) {
+		long key = cellKey( cell( x ), cell( y ) );
+		Long previous = cellOfEntity.put( entity, key );
+		if ( previous != null && previous == key ) {
+			return;
+		}
+		Cell from = previous == null ? null : cells.get( previous );
+		Cell to = cells.get( key );
+		if ( to == null ) {
+			to = new Cell( cell( x ), cell( y ) );
+			cells.put( key, to );
+		}
+		if ( from != null ) {
+			from.entities.remove( entity );
+			for ( Observer observer : from.watchers ) {
+				if ( ! observer.watches( to ) ) {
+					lose( observer, entity );
+				}
+			}
+			dropIfEmpty( from );
+		}
+		to.entities.add( entity );
+		for ( Observer observer : to.watchers ) {
+			if ( from == null || ! observer.watches( from ) ) {
+				gain( observer, entity );
+			}
+		}
+	}
+
+	/**
+	 * Forgets the position of the given entity. Called on its removal when attached.
+	 * Observers watching a group it's in keep it until it leaves the group.
+	 */
+	public void removePosition( long entity ) {
+		Long key = cellOfEntity.remove( entity );
+		if ( key == null ) {
+			return;
+		}
+		Cell cell = cells.get( key );
+		cell.entities.remove( entity );
+		for ( Observer observer : cell.watchers ) {
+			lose( observer, entity );
+		}
+		dropIfEmpty( cell );
+	}
+
+	/*
+	 * Observers.
+	 */
+	/**
+	 * Adds an observer at the given position, entities in the cells within
+	 * radius become relevant to it.
+	 */
+	public Observer addObserver( float x, float y, float radius ) {
+		Observer observer = new Observer( radius );
+		observers.add( observer );
+		moveObserver( observer, x, y );
+		return observer;
+	}
+
+	/**
+	 * Moves the given observer, only doing work when it changes cell.
+	 */
+	public void moveObserver( Observer observer, float x, float y ) {
+		observer.x = x;
+		observer.y = y;
+		int minX = cell( x - observer.radius ), maxX = cell( x + observer.radius );
+		int minY = cell( y - observer.radius ), maxY = cell( y + observer.radius );
+		if ( observer.watching && minX == observer.minX && maxX == observer.maxX
+				&& minY == observer.minY && maxY == observer.maxY ) {
+			return;
+		}
+		// Cells no longer watched
+		if ( observer.watching ) {
+			for ( int cx = observer.minX; cx <= observer.maxX; cx++ ) {
+				for ( int cy = observer.minY; cy <= observer.maxY; cy++ ) {
+					if ( cx < minX || cx > maxX || cy < minY || cy > maxY ) {
+						unwatch( observer, cx, cy );
+					}
+				}
+			}
+		}
+		// Newly watched cells
+		for ( int cx = minX; cx <= maxX; cx++ ) {
+			for ( int cy = minY; cy <= maxY; cy++ ) {
+				if ( ! observer.watching || cx < observer.minX || cx > observer.maxX
+						|| cy < observer.minY || cy > observer.maxY ) {
+					watch( observer, cx, cy );
+				}
+			}
+		}
+		observer.minX = minX;
+		observer.maxX = maxX;
+		observer.minY = minY;
+		observer.maxY = maxY;
+		observer.watching = true;
+	}
+
+	/**
+	 * Removes the given observer, entities leave its relevant set.
+	 */
+	public void removeObserver( Observer observer ) {
+		if ( ! observers.remove( observer ) ) {
+			return;
+		}
+		for ( String group : new ArrayList<String>( observer.groups ) ) {
+			unwatchGroup( observer, group );
+		}
+		for ( int cx = observer.minX; cx <= observer.maxX; cx++ ) {
+			for ( int cy = observer.minY; cy <= observer.maxY; cy++ ) {
+				unwatch( observer, cx, cy );
+			}
+		}
+		observer.watching = false;
+	}
+
+	private void watch( Observer observer, int cx, int cy ) {
+		long key = cellKey( cx, cy );
+		Cell cell = cells.get( key );
+		if ( cell == null ) {
+			cell = new Cell( cx, cy );
+			cells.put( key, cell );
+		}
+		cell.watchers.add( observer );
+		for ( long entity : cell.entities ) {
+			gain( observer, entity );
+		}
+	}
+
+	private void unwatch( Observer observer, int cx, int cy ) {
+		Cell cell = cells.get( cellKey( cx, cy ) );
+		cell.watchers.remove( observer );
+		for ( long entity : cell.entities ) {
+			lose( observer, entity );
+		}
+		dropIfEmpty( cell );
+	}
+
+	/**
+	 * Makes every entity of the given group relevant to the given observer,
+	 * whatever its position. Needs a GroupManager attached.
+	 */
+	public void watchGroup( Observer observer, String group ) {
+		if ( groupManager == null ) {
+			throw new IllegalStateException( "Watching groups needs an attached GroupManager" );
+		}
+		if ( ! observer.groups.add( group ) ) {
+			return;
+		}
+		ArrayList<Observer> watchers = watchersByGroup.get( group );
+		if ( watchers == null ) {
+			watchers = new ArrayList<Observer>();
+			watchersByGroup.put( group, watchers );
+		}
+		watchers.add( observer );
+		ArrayList<Long> members = groupManager.getEntitiesByGroup().get( group );
+		if ( members != null ) {
+			for ( long entity : members ) {
+				gain( observer, entity );
+			}
+		}
+	}
+
+	public void unwatchGroup( Observer observer, String group ) {
+		if ( ! observer.groups.remove( group ) ) {
+			return;
+		}
+		ArrayList<Observer> watchers = watchersByGroup.get( group );
+		watchers.remove( observer );
+		if ( watchers.isEmpty() ) {
+			watchersByGroup.remove( group );
+		}
+		ArrayList<Long> members = groupManager == null ? null : groupManager.getEntitiesByGroup().get( group );
+		if ( members != null ) {
+			for ( long entity : members ) {
+				lose( observer, entity );
+			}
+		}
+	}
+
+	/*
+	 * Relevance counting: an entity is relevant while it has a reason to be
+	 * (its cell or any of its groups being watched).
+	 */
+	private void gain( Observer observer, long entity ) {
+		Integer reasons = observer.relevant.get( entity );
+		if ( reasons == null ) {
+			observer.relevant.put( entity, 1 );
+			for ( InterestListener listener : listeners ) {
+				listener.entered( observer, entity );
+			}
+		} else {
+			observer.relevant.put( entity, reasons + 1 );
+		}
+	}
+
+	private void lose( Observer observer, long entity ) {
+		Integer reasons = observer.relevant.get( entity );
+		if ( reasons == null ) {
+			return;
+		}
+		if ( reasons == 1 ) {
+			observer.relevant.remove( entity );
+			for ( InterestListener listener : listeners ) {
+				listener.left( observer, entity );
+			}
+		} else {
+			observer.relevant.put( entity, reasons - 1 );
+		}
+	}
+
+	private void dropIfEmpty( Cell cell ) {
+		if ( cell.entities.isEmpty() && cell.watchers.isEmpty() ) {
+			cells.remove( cellKey( cell.x, cell.y ) );
+		}
+	}
+
+	private int cell( float coordinate ) {
+		return (int) Math.floor( coordinate / cellSize );
+	}
+
+	private static long cellKey( int cx, int cy ) {
+		return ( (long) cx << 32 ) | ( cy & 0xFFFFFFFFL );
+	}
+
+	/*
+	 * Listeners.
+	 */
+	@Override
+	public void entityCreated( long entity ) {
+	}
+
+	@Override
+	public void entityRemoved( long entity ) {
+		removePosition( entity );
+	}
+
+	@Override
+	public void addedToGroup( long entity, String group ) {
+		ArrayList<Observer> watchers = watchersByGroup.get( group );
+		if ( watchers != null ) {
+			for ( Observer observer : watchers ) {
+				gain( observer, entity );
+			}
+		}
+	}
+
+	@Override
+	public void removedFromGroup( long entity, String group ) {
+		ArrayList<Observer> watchers = watchersByGroup.get( group );
+		if ( watchers != null ) {
+			for ( Observer observer : watchers ) {
+				lose( observer, entity );
+			}
+		}
+	}
+
+	/*
+	 * Getters.
+	 */
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	public int getCellCount() {
+		return cells.size();
+	}
+
+	public int getObserverCount() {
+		return observers.size();
+	}
+
+	/* A cell of space, its entities and the observers watching it. */
+	private static class Cell {
+		final int                 x, y;
+		final HashSet<Long>       entities = new HashSet<Long>();
+		final ArrayList<Observer> watchers = new ArrayList<Observer>();
+
+		Cell( int x, int y ) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	/*
+	 * Something entities are relevant to. Only the InterestManager that
+	 * created it may change it.
+	 */
+	public static class Observer {
+		private final float                  radius;
+		private float                        x, y;
+		private int                          minX, maxX, minY, maxY;
+		private boolean                      watching;
+		private final HashSet<String>        groups = new HashSet<String>();
+		// Relevant entities, with how many reasons they have to be
+		private final HashMap<Long, Integer> relevant = new HashMap<Long, Integer>();
+
+		Observer( float radius ) {
+			this.radius = radius;
+		}
+
+		boolean watches( Cell cell ) {
+			return watching && cell.x >= minX && cell.x <= maxX && cell.y >= minY && cell.y <= maxY;
+		}
+
+		public boolean isRelevant( long entity ) {
+			return relevant.containsKey( entity );
+		}
+
+		/**
+		 * @return Live read only view of the relevant entities.
+		 */
+		public Set<Long> getRelevant() {
+			return Collections.unmodifiableSet( relevant.keySet() );
+		}
+
+		public float getX() {
+			return x;
+		}
+
+		public float getY() {
+			return y;
+		}
+
+		public float getRadius() {
+			return radius;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package jlarv;
+
+import java.util.concurrent.Future;
+
+/*
+    Piece of work a System hands off to run outside of Engine.update, such as
+    loading a level chunk or computing a navmesh.
+
+    compute() runs on a worker thread and must not touch the EntityManager or
+    any other engine state. Its result is handed to apply(), which runs on the
+    simulation thread at the start of a later Engine.update, so it's free to
+    create entities, add components, etc.
+
+    A job can be owned by an entity: removing that entity cancels the job, and
+    apply() is never called for it.
+
+    USAGE (inside a System):
+      submitJob( entity, new Job<NavMesh>() {
+          protected NavMesh compute() { return NavMesh.build( geometry ); }
+          protected void apply( EntityManager em, NavMesh mesh ) {
+              em.addComponent( entity, new NavMeshComponent( mesh ) );
+          }
+      } );
+ */
+public abstract class Job<T> {
+
+	public enum State { PENDING, RUNNING, DONE, FAILED, CANCELLED }
+
+	/* Owner used by jobs that don't belong to any entity */
+	public static final long NO_OWNER = Long.MAX_VALUE;
+
+	long               owner = NO_OWNER;
+	volatile State     state = State.PENDING;
+	Future<?>          future;
+	/* Whether a worker picked it up, guarded by the job itself */
+	boolean            started;
+	T                  result;
+	Throwable          error;
+
+	/**
+	 * Does the work. Runs on a worker thread.
+	 */
+	protected abstract T compute() throws Exception;
+
+	/**
+	 * Applies the result of compute(). Runs on the simulation thread.
+	 */
+	protected abstract void apply( EntityManager entityManager, T result );
+
+	/**
+	 * Called on the simulation thread instead of apply() if compute() threw.
+	 * By default rethrows the error from Engine.update, override it to recover.
+	 */
+	protected void failed( EntityManager entityManager, Throwable error ) {
+		throw new RuntimeException( "Job " + getClass().getName() + " failed", error );
+	}
+
+	/**
+	 * Called on the simulation thread (at the start of the next Engine.update)
+	 * when the job is cancelled, either directly or because its owner entity
+	 * was removed.
+	 */
+	protected void cancelled() {
+	}
+
+	/**
+	 * Runs compute() and keeps its outcome. Called from the worker thread.
+	 */
+	final void run() {
+		try {
+			result = compute();
+		} catch ( Throwable e ) {
+			error = e;
+		}
+	}
+
+	/*
+	 * Getters.
+	 */
+	public State getState() {
+		return state;
+	}
+
+	public long getOwner() {
+		return owner;
+	}
+
+	public boolean isFinished() {
+		State current = state;
+		return current == State.DONE || current == State.FAILED || current == State.CANCELLED;
+	}
+}
@@ -0,0 +1,321 @@
+package jlarv;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Runs the Jobs submitted by the systems of an Engine off the simulation thread
+    and applies their results back at a fixed sync point: the start of every
+    Engine.update, before any system updates.
+
+    Jobs run on virtual threads when the JVM has them (Java 21+), and on a pool
+    of daemon threads (one per processor) otherwise. A custom ExecutorService can
+    be given as well.
+
+    At most maxInFlight jobs are running (or waiting to be applied) at a time;
+    the rest wait in submission order until a slot frees up.
+
+    Every engine has one, bound to its systems (System.submitJob). It listens to
+    the EntityManager so removing an entity cancels all the jobs it owns.
+    Jobs can be submitted and cancelled from any thread (parallel systems,
+    listeners of a concurrent manager...); results and cancellation callbacks
+    are still only delivered on the simulation thread, in applyCompleted.
+    A cancelled job that was already running keeps its slot until its worker
+    actually returns, compute() may well ignore the interrupt.
+ */
+public class JobScheduler implements EntityListener {
+
+	private ExecutorService                        executor;
+	private boolean                                ownsExecutor;
+	private int                                    maxInFlight;
+	private int                                    inFlight;
+	private final ArrayDeque<Job<?>>               pending;
+	private final ConcurrentLinkedQueue<Job<?>>    completed;
+	/* Cancelled jobs whose cancelled() callback is still to be called */
+	private final ConcurrentLinkedQueue<Job<?>>    cancelled;
+	private final HashMap<Long, ArrayList<Job<?>>> jobsByOwner;
+	private EntityManager                          entityManager;
+
+	/**
+	 * Uses virtual threads (or a daemon pool), created on the first submission.
+	 */
+	public JobScheduler( int maxInFlight ) {
+		this( null, maxInFlight );
+		this.ownsExecutor = true;
+	}
+
+	/**
+	 * Uses the given executor, which isn't shut down on dispose.
+	 */
+	public JobScheduler( ExecutorService executor, int maxInFlight ) {
+		setMaxInFlight( maxInFlight );
+		this.executor = executor;
+		this.pending = new ArrayDeque<Job<?>>();
+		this.completed = new ConcurrentLinkedQueue<Job<?>>();
+		this.cancelled = new ConcurrentLinkedQueue<Job<?>>();
+		this.jobsByOwner = new HashMap<Long, ArrayList<Job<?>>>();
+	}
+
+	/**
+	 * Submits a job owned by the given entity. It starts right away if there's a
+	 * free slot, else it waits for one.
+	 * @param owner Entity whose removal cancels the job, or Job.NO_OWNER.
+	 * @return The same job, to keep track of its state.
+	 */
+	public synchronized <J extends Job<?>> J submit( long owner, J job ) {
+		if ( job.state != Job.State.PENDING || job.future != null ) {
+			throw new IllegalStateException( "Job already submitted" );
+		}
+		job.owner = owner;
+		if ( owner != Job.NO_OWNER ) {
+			ArrayList<Job<?>> owned = jobsByOwner.get( owner );
+			if ( owned == null ) {
+				owned = new ArrayList<Job<?>>( 2 );
+				jobsByOwner.put( owner, owned );
+			}
+			owned.add( job );
+		}
+		if ( inFlight < maxInFlight ) {
+			start( job );
+		} else {
+			pending.add( job );
+		}
+		return job;
+	}
+
+	private void start( final Job<?> job ) {
+		if ( executor == null ) {
+			executor = createDefaultExecutor();
+		}
+		inFlight++;
+		job.state = Job.State.RUNNING;
+		job.future = executor.submit( new Runnable() {
+			@Override
+			public void run() {
+				synchronized ( job ) {
+					if ( job.state == Job.State.CANCELLED ) {
+						// Cancelled before starting, cancel already freed the slot
+						return;
+					}
+					job.started = true;
+				}
+				try {
+					job.run();
+				} finally {
+					completed.add( job );
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Calls back the jobs cancelled since the last call, applies the results of
+	 * every job finished since then and starts pending jobs in the freed slots.
+	 * Called by the engine at the start of update.
+	 */
+	public void applyCompleted() {
+		notifyCancelled();
+		Job<?> job;
+		while ( ( job = completed.poll() ) != null ) {
+			// Results are applied outside the lock, apply may submit more jobs
+			if ( release( job ) ) {
+				applyOutcome( job );
+			}
+		}
+		startPending();
+	}
+
+	/**
+	 * Frees the slot of a job whose worker returned.
+	 * @return False if it was cancelled meanwhile, its result must be discarded.
+	 */
+	private synchronized boolean release( Job<?> job ) {
+		inFlight--;
+		if ( job.state == Job.State.CANCELLED ) {
+			return false;
+		}
+		forget( job );
+		return true;
+	}
+
+	private void notifyCancelled() {
+		Job<?> job;
+		while ( ( job = cancelled.poll() ) != null ) {
+			job.cancelled();
+		}
+	}
+
+	private synchronized void startPending() {
+		while ( inFlight < maxInFlight && ! pending.isEmpty() ) {
+			start( pending.poll() );
+		}
+	}
+
+	private <T> void applyOutcome( Job<T> job ) {
+		if ( job.error != null ) {
+			job.state = Job.State.FAILED;
+			job.failed( entityManager, job.error );
+		} else {
+			job.state = Job.State.DONE;
+			job.apply( entityManager, job.result );
+		}
+	}
+
+	/**
+	 * Cancels the given job. Its result, if any, is discarded, and its cancelled()
+	 * callback is called on the next applyCompleted. A running job is interrupted,
+	 * but keeps its slot until compute() returns.
+	 * @return False if the job had already finished.
+	 */
+	public synchronized boolean cancel( Job<?> job ) {
+		if ( job.state == Job.State.PENDING ) {
+			pending.remove( job );
+			job.state = Job.State.CANCELLED;
+		} else if ( job.state == Job.State.RUNNING ) {
+			boolean started;
+			synchronized ( job ) {
+				job.state = Job.State.CANCELLED;
+				started = job.started;
+			}
+			if ( started ) {
+				// release frees the slot once the worker returns
+				job.future.cancel( true );
+			} else {
+				job.future.cancel( false );
+				inFlight--;
+			}
+		} else {
+			return false;
+		}
+		forget( job );
+		cancelled.add( job );
+		return true;
+	}
+
+	/**
+	 * Cancels every job owned by the given entity.
+	 */
+	public synchronized void cancelOwnedBy( long owner ) {
+		ArrayList<Job<?>> owned = jobsByOwner.remove( owner );
+		if ( owned != null ) {
+			for ( Job<?> job : owned ) {
+				cancel( job );
+			}
+		}
+	}
+
+	private void forget( Job<?> job ) {
+		if ( job.owner == Job.NO_OWNER ) {
+			return;
+		}
+		ArrayList<Job<?>> owned = jobsByOwner.get( job.owner );
+		if ( owned != null ) {
+			owned.remove( job );
+			if ( owned.isEmpty() ) {
+				jobsByOwner.remove( job.owner );
+			}
+		}
+	}
+
+	@Override
+	public void entityCreated( long entity ) {
+	}
+
+	@Override
+	public synchronized void entityRemoved( long entity ) {
+		if ( ! jobsByOwner.isEmpty() ) {
+			cancelOwnedBy( entity );
+		}
+	}
+
+	/**
+	 * Cancels everything and stops the executor if it was created here.
+	 */
+	public void dispose() {
+		cancelAll();
+		notifyCancelled();
+	}
+
+	private synchronized void cancelAll() {
+		for ( Job<?> job : pending.toArray( new Job<?>[0] ) ) {
+			cancel( job );
+		}
+		for ( ArrayList<Job<?>> owned : new ArrayList<ArrayList<Job<?>>>( jobsByOwner.values() ) ) {
+			for ( Job<?> job : owned.toArray( new Job<?>[0] ) ) {
+				cancel( job );
+			}
+		}
+		if ( ownsExecutor && executor != null ) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		completed.clear();
+		if ( entityManager != null ) {
+			entityManager.removeListener( this );
+		}
+	}
+
+	/**
+	 * Virtual thread per task executor if the JVM has them (looked up by reflection
+	 * so we still run on older JVMs), else a fixed pool of daemon threads.
+	 */
+	private static ExecutorService createDefaultExecutor() {
+		try {
+			Method factory = Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+			return (ExecutorService) factory.invoke( null );
+		} catch ( ReflectiveOperationException e ) {
+			final AtomicInteger count = new AtomicInteger();
+			return Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				@Override
+				public Thread newThread( Runnable runnable ) {
+					Thread thread = new Thread( runnable, "jlarv-job-" + count.incrementAndGet() );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+		}
+	}
+
+	/*
+	 * Getters and setters.
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized int getPending() {
+		return pending.size();
+	}
+
+	public int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	public synchronized void setMaxInFlight( int maxInFlight ) {
+		if ( maxInFlight < 1 ) {
+			throw new IllegalArgumentException( "At least one job must be allowed in flight: " + maxInFlight );
+		}
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * Binds the scheduler to the entity manager the results are applied to,
+	 * and listens to it to cancel the jobs of removed entities.
+	 */
+	public void setEntityManager( EntityManager entityManager ) {
+		if ( this.entityManager != null ) {
+			this.entityManager.removeListener( this );
+		}
+		this.entityManager = entityManager;
+		if ( entityManager != null ) {
+			entityManager.addListener( this );
+		}
+	}
+}
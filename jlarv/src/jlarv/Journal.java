@@ -0,0 +1,469 @@
+package jlarv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/*
+    Append-only write-ahead journal of the structural changes of an engine:
+    entities created and removed, components and tags added and removed (encoded
+    with their ComponentCodec) and entities joining and leaving groups.
+    Together with a snapshot it allows recovering the state of the world after
+    a crash, losing at most the tick in progress.
+
+    Changes are buffered in memory while a tick runs and written as a single
+    batch when the engine commits at the end of the tick (group commit). Every
+    batch carries a CRC32, and recovery stops at the first incomplete or
+    corrupt one, so a batch is either fully replayed or not at all.
+    The file is memory-mapped: once commit returns, the batch survives the
+    process dying. Call setForceOnCommit( true ) to also flush it to the disk
+    every tick, which survives the machine dying but costs an fsync per tick.
+
+    Component values are recorded when they're added. Changes made to the
+    fields of a component afterwards are not journaled: the journal restores the
+    structure of the world, values come from the snapshot and from the components
+    being (re)added.
+
+    Batches are numbered in sequence, and the numbering carries on across
+    truncations and restarts. Saving the last sequence a snapshot holds along
+    with it lets replay skip the batches already in the snapshot, in case the
+    process died after taking it but before truncating.
+
+    USAGE:
+      // Startup
+      Journal journal = Journal.open( path, codecs );
+      long saved = loadSnapshot( engine );       // your own snapshot, if any, -1 otherwise
+      journal.replay( engine.getEntityManager(), engine.getGroupManager(), saved );
+      engine.setJournal( journal );              // records from now on, commits every tick
+      // Taking a snapshot, between ticks
+      saveSnapshot( engine, journal.getSequence() - 1 );
+      journal.truncate();
+
+    File layout: int magic, int version, long sequence of the first batch,
+    then batches of
+      int length | long sequence | records... | int crc32
+    and a 0 length after the last one.
+ */
+public class Journal implements EntityListener, ComponentListener, GroupListener, Closeable {
+
+	private static final int  MAGIC = 0x4A4C4A31; // "JLJ1"
+	private static final int  VERSION = 2;
+	private static final int  HEADER = 16;
+	private static final long MAX_SIZE = Integer.MAX_VALUE;
+
+	// Record types
+	private static final byte CREATE_ENTITY    = 1;
+	private static final byte REMOVE_ENTITY    = 2;
+	private static final byte ADD_COMPONENT    = 3;
+	private static final byte REMOVE_COMPONENT = 4;
+	private static final byte ADD_TO_GROUP     = 5;
+	private static final byte REMOVE_FROM_GROUP = 6;
+
+	private final FileChannel     channel;
+	private final CodecRegistry   codecs;
+	private MappedByteBuffer      mapped;
+	// Offset where the next batch goes, right after the last committed one
+	private int                   end;
+	private long                  sequence;
+
+	// Records of the tick in progress
+	private ByteBuffer            batch;
+	private int                   pendingRecords;
+
+	private EntityManager         entityManager;
+	private GroupManager          groupManager;
+	private boolean               forceOnCommit;
+	private final CRC32           crc = new CRC32();
+
+	private Journal( FileChannel channel, CodecRegistry codecs, int initialSize ) throws IOException {
+		this.channel = channel;
+		this.codecs = codecs;
+		this.mapped = channel.map( FileChannel.MapMode.READ_WRITE, 0, Math.max( channel.size(), initialSize ) );
+		this.batch = ByteBuffer.allocate( 4096 );
+	}
+
+	/**
+	 * Opens the journal at the given path, creating it if needed. An existing
+	 * journal is scanned to find its last complete batch; call replay to apply them.
+	 * @param codecs Must hold every component and tag type the journaled engine uses.
+	 */
+	public static Journal open( Path path, CodecRegistry codecs ) {
+		return open( path, codecs, 1 << 20 );
+	}
+
+	/**
+	 * @param initialSize Bytes mapped at first, the file doubles whenever it runs out.
+	 */
+	public static Journal open( Path path, CodecRegistry codecs, int initialSize ) {
+		try {
+			FileChannel channel = FileChannel.open( path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+			                                        StandardOpenOption.WRITE );
+			Journal journal = new Journal( channel, codecs, Math.max( initialSize, HEADER + 4 ) );
+			journal.initialize();
+			return journal;
+		} catch ( IOException e ) {
+			throw new UncheckedIOException( "Couldn't open the journal " + path, e );
+		}
+	}
+
+	private void initialize() {
+		int magic = mapped.getInt( 0 );
+		if ( magic == 0 ) {
+			mapped.putInt( 0, MAGIC );
+			mapped.putInt( 4, VERSION );
+			mapped.putLong( 8, 0 );
+			mapped.putInt( HEADER, 0 );
+			end = HEADER;
+			return;
+		}
+		if ( magic != MAGIC || mapped.getInt( 4 ) != VERSION ) {
+			throw new IllegalStateException( "Not a journal, or written by an incompatible version" );
+		}
+		end = HEADER;
+		sequence = mapped.getLong( 8 );
+		int length;
+		while ( ( length = validBatchLength( end ) ) > 0 ) {
+			sequence = mapped.getLong( end + 4 ) + 1;
+			end += 8 + length;
+		}
+	}
+
+	/**
+	 * @return The length of the batch at the given offset, or 0 if there's no
+	 *         complete and valid batch there.
+	 */
+	private int validBatchLength( int offset ) {
+		if ( offset + 4 > mapped.capacity() ) {
+			return 0;
+		}
+		int length = mapped.getInt( offset );
+		if ( length < 8 || (long) offset + 8 + length > mapped.capacity() ) {
+			return 0;
+		}
+		ByteBuffer content = mapped.duplicate();
+		content.limit( offset + 4 + length ).position( offset + 4 );
+		crc.reset();
+		crc.update( content );
+		return (int) crc.getValue() == mapped.getInt( offset + 4 + length ) ? length : 0;
+	}
+
+	/**
+	 * Applies every committed batch to the given managers, in order. Meant to be
+	 * called once on startup, on an empty world or one loaded from a snapshot
+	 * taken right after a truncation, and before the journal starts recording again.
+	 * @return The number of batches (ticks) replayed.
+	 */
+	public int replay( EntityManager entityManager, GroupManager groupManager ) {
+		return replay( entityManager, groupManager, -1 );
+	}
+
+	/**
+	 * Applies the committed batches newer than the given sequence, in order,
+	 * on top of a snapshot that already holds the older ones.
+	 * @param afterSequence Last sequence the snapshot holds (getSequence() - 1
+	 *                      when it was taken), -1 to replay everything.
+	 * @return The number of batches (ticks) replayed.
+	 */
+	public int replay( EntityManager entityManager, GroupManager groupManager, long afterSequence ) {
+		if ( this.entityManager != null ) {
+			throw new IllegalStateException( "Can't replay while recording" );
+		}
+		int batches = 0;
+		int offset = HEADER;
+		while ( offset < end ) {
+			int length = mapped.getInt( offset );
+			if ( mapped.getLong( offset + 4 ) > afterSequence ) {
+				ByteBuffer records = mapped.duplicate();
+				records.limit( offset + 4 + length ).position( offset + 12 );
+				while ( records.hasRemaining() ) {
+					apply( records, entityManager, groupManager );
+				}
+				batches++;
+			}
+			offset += 8 + length;
+		}
+		return batches;
+	}
+
+	private void apply( ByteBuffer records, EntityManager entityManager, GroupManager groupManager ) {
+		byte type = records.get();
+		long entity = records.getLong();
+		switch ( type ) {
+		case CREATE_ENTITY:
+			entityManager.restoreEntity( entity );
+			break;
+		case REMOVE_ENTITY:
+			entityManager.removeEntity( entity );
+			break;
+		case ADD_COMPONENT: {
+			int id = records.getShort();
+			int length = records.getInt();
+			ByteBuffer encoded = records.slice();
+			encoded.limit( length );
+			records.position( records.position() + length );
+			Component component = codecs.read( id, encoded );
+			if ( component == null ) {
+				entityManager.addTag( entity, codecs.typeOf( id ) );
+			} else {
+				entityManager.addComponent( entity, component );
+			}
+			break;
+		}
+		case REMOVE_COMPONENT: {
+			Class<? extends Component> componentType = codecs.typeOf( records.getShort() );
+			if ( entityManager.hasComponent( entity, componentType ) ) {
+				entityManager.removeComponent( entity, componentType );
+			}
+			break;
+		}
+		case ADD_TO_GROUP:
+			groupManager.add( entity, readString( records ) );
+			break;
+		case REMOVE_FROM_GROUP: {
+			String group = readString( records );
+			if ( groupManager.doesGroupExist( group ) && groupManager.isInGroup( entity, group ) ) {
+				groupManager.remove( entity, group );
+			}
+			break;
+		}
+		default:
+			throw new IllegalStateException( "Corrupt journal, unknown record type " + type );
+		}
+	}
+
+	private static String readString( ByteBuffer records ) {
+		byte[] bytes = new byte[records.getShort() & 0xFFFF];
+		records.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * Starts recording the changes of the given managers.
+	 */
+	public synchronized void attach( EntityManager entityManager, GroupManager groupManager ) {
+		detach();
+		this.entityManager = entityManager;
+		this.groupManager = groupManager;
+		entityManager.addListener( this );
+		entityManager.addComponentListener( this );
+		groupManager.addListener( this );
+	}
+
+	/**
+	 * Stops recording. Changes recorded but not committed yet are kept.
+	 */
+	public synchronized void detach() {
+		if ( entityManager != null ) {
+			entityManager.removeListener( this );
+			entityManager.removeComponentListener( this );
+			groupManager.removeListener( this );
+			entityManager = null;
+			groupManager = null;
+		}
+	}
+
+	/*
+	 * Recording. Synchronized as a concurrent EntityManager calls listeners from many threads.
+	 */
+	@Override
+	public synchronized void entityCreated( long entity ) {
+		ensureRoom( 9 );
+		batch.put( CREATE_ENTITY ).putLong( entity );
+		pendingRecords++;
+	}
+
+	@Override
+	public synchronized void entityRemoved( long entity ) {
+		ensureRoom( 9 );
+		batch.put( REMOVE_ENTITY ).putLong( entity );
+		pendingRecords++;
+	}
+
+	@Override
+	public synchronized void componentAdded( long entity, Class<? extends Component> type, Component component ) {
+		int id = codecs.idOf( type );
+		int start = batch.position();
+		while ( true ) {
+			try {
+				batch.put( ADD_COMPONENT ).putLong( entity ).putShort( (short) id );
+				int lengthAt = batch.position();
+				batch.putInt( 0 );
+				if ( component != null ) {
+					codecs.write( component, batch );
+				}
+				batch.putInt( lengthAt, batch.position() - lengthAt - 4 );
+				break;
+			} catch ( BufferOverflowException e ) {
+				batch.position( start );
+				grow( batch.capacity() );
+			}
+		}
+		pendingRecords++;
+	}
+
+	@Override
+	public synchronized void componentRemoved( long entity, Class<? extends Component> type ) {
+		int id = codecs.idOf( type );
+		ensureRoom( 11 );
+		batch.put( REMOVE_COMPONENT ).putLong( entity ).putShort( (short) id );
+		pendingRecords++;
+	}
+
+	@Override
+	public synchronized void addedToGroup( long entity, String group ) {
+		putGroupRecord( ADD_TO_GROUP, entity, group );
+	}
+
+	@Override
+	public synchronized void removedFromGroup( long entity, String group ) {
+		putGroupRecord( REMOVE_FROM_GROUP, entity, group );
+	}
+
+	private void putGroupRecord( byte type, long entity, String group ) {
+		byte[] name = group.getBytes( StandardCharsets.UTF_8 );
+		if ( name.length > 0xFFFF ) {
+			throw new IllegalArgumentException( "Group name too long to be journaled: " + group );
+		}
+		ensureRoom( 11 + name.length );
+		batch.put( type ).putLong( entity ).putShort( (short) name.length ).put( name );
+		pendingRecords++;
+	}
+
+	private void ensureRoom( int bytes ) {
+		if ( batch.remaining() < bytes ) {
+			grow( bytes );
+		}
+	}
+
+	private void grow( int atLeast ) {
+		ByteBuffer grown = ByteBuffer.allocate( Math.max( batch.capacity() * 2, batch.position() + atLeast ) );
+		batch.flip();
+		grown.put( batch );
+		batch = grown;
+	}
+
+	/**
+	 * Writes the changes recorded since the last commit as a single batch.
+	 * Called by the engine at the end of every update. Does nothing if nothing changed.
+	 * @return The number of records committed.
+	 */
+	public synchronized int commit() {
+		if ( pendingRecords == 0 ) {
+			return 0;
+		}
+		int length = 8 + batch.position();
+		ensureMapped( (long) end + 8 + length + 4 );
+
+		ByteBuffer target = mapped.duplicate();
+		target.position( end + 4 );
+		target.putLong( sequence );
+		batch.flip();
+		target.put( batch );
+		target.putInt( 0 );                       // placeholder for the CRC
+		target.putInt( 0 );                       // end marker after this batch
+		ByteBuffer content = mapped.duplicate();
+		content.limit( end + 4 + length ).position( end + 4 );
+		crc.reset();
+		crc.update( content );
+		mapped.putInt( end + 4 + length, (int) crc.getValue() );
+		// The length goes last: until it's there the batch doesn't exist
+		mapped.putInt( end, length );
+		if ( forceOnCommit ) {
+			mapped.force();
+		}
+
+		end += 8 + length;
+		sequence++;
+		int committed = pendingRecords;
+		batch.clear();
+		pendingRecords = 0;
+		return committed;
+	}
+
+	private void ensureMapped( long size ) {
+		if ( size <= mapped.capacity() ) {
+			return;
+		}
+		if ( size > MAX_SIZE ) {
+			throw new IllegalStateException( "Journal full, take a snapshot and truncate it" );
+		}
+		long grown = Math.min( MAX_SIZE, Math.max( size, 2L * mapped.capacity() ) );
+		try {
+			mapped = channel.map( FileChannel.MapMode.READ_WRITE, 0, grown );
+		} catch ( IOException e ) {
+			throw new UncheckedIOException( "Couldn't grow the journal", e );
+		}
+	}
+
+	/**
+	 * Drops every batch. Call it right after taking a snapshot, between ticks,
+	 * as the snapshot now holds everything the journal did.
+	 * Changes recorded but not committed yet are dropped as well.
+	 */
+	public synchronized void truncate() {
+		// Numbering carries on from here, even after reopening
+		mapped.putLong( 8, sequence );
+		mapped.putInt( HEADER, 0 );
+		if ( forceOnCommit ) {
+			mapped.force();
+		}
+		end = HEADER;
+		batch.clear();
+		pendingRecords = 0;
+	}
+
+	/**
+	 * Commits what's pending, stops recording and closes the file.
+	 */
+	@Override
+	public synchronized void close() {
+		commit();
+		detach();
+		mapped.force();
+		try {
+			channel.close();
+		} catch ( IOException e ) {
+			throw new UncheckedIOException( "Couldn't close the journal", e );
+		}
+	}
+
+	/*
+	 * Getters and setters.
+	 */
+	/**
+	 * @return Bytes used by committed batches.
+	 */
+	public int getSize() {
+		return end;
+	}
+
+	/**
+	 * @return Sequence number the next batch gets.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return Changes recorded since the last commit.
+	 */
+	public int getPendingRecords() {
+		return pendingRecords;
+	}
+
+	public boolean isForceOnCommit() {
+		return forceOnCommit;
+	}
+
+	public void setForceOnCommit( boolean forceOnCommit ) {
+		this.forceOnCommit = forceOnCommit;
+	}
+}
@@ -0,0 +1,92 @@
+package jlarv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/*
+    In-process stand-in for the network between a ReplicationEncoder and a
+    ReplicationDecoder, to test replication (and measure bandwidth) without
+    sockets. Packets go one way and acknowledgements the other, both in
+    order. Packet loss can be simulated, acknowledgements are never lost.
+
+    USAGE:
+      transport.send( buffer );                  // server, buffer ready to be read
+      ByteBuffer packet = transport.receive();   // client, null if none
+      transport.acknowledge( tick );             // client
+      int tick = transport.pollAcknowledgement(); // server, -1 if none
+ */
+public class LoopbackTransport {
+
+	private final ArrayDeque<ByteBuffer> packets;
+	private final ArrayDeque<Integer>    acknowledgements;
+	private Random                       random;
+	private float                        lossRate;
+
+	private long packetsSent;
+	private long packetsLost;
+	private long bytesSent;
+
+	public LoopbackTransport() {
+		packets = new ArrayDeque<ByteBuffer>();
+		acknowledgements = new ArrayDeque<Integer>();
+	}
+
+	/**
+	 * Sends a copy of the remaining bytes of the given buffer, leaving it untouched.
+	 */
+	public void send( ByteBuffer packet ) {
+		packetsSent++;
+		bytesSent += packet.remaining();
+		if ( random != null && random.nextFloat() < lossRate ) {
+			packetsLost++;
+			return;
+		}
+		ByteBuffer copy = ByteBuffer.allocate( packet.remaining() );
+		copy.put( packet.duplicate() ).flip();
+		packets.add( copy );
+	}
+
+	/**
+	 * @return The next packet, null if there's none.
+	 */
+	public ByteBuffer receive() {
+		return packets.poll();
+	}
+
+	public void acknowledge( int tick ) {
+		acknowledgements.add( tick );
+	}
+
+	/**
+	 * @return The next acknowledged tick, -1 if there's none.
+	 */
+	public int pollAcknowledgement() {
+		Integer tick = acknowledgements.poll();
+		return tick == null ? -1 : tick;
+	}
+
+	/**
+	 * Drops the given fraction of the packets sent from now on.
+	 * @param seed Seed of the random drops, so tests are repeatable.
+	 */
+	public void setLossRate( float lossRate, long seed ) {
+		this.lossRate = lossRate;
+		this.random = lossRate > 0 ? new Random( seed ) : null;
+	}
+
+	/*
+	 * Getters.
+	 */
+	public long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public long getPacketsLost() {
+		return packetsLost;
+	}
+
+	public long getBytesSent() {
+		return bytesSent;
+	}
+}
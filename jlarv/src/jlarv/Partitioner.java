@@ -0,0 +1,25 @@
+package jlarv;
+
+/*
+    Decides which shard of a ShardedWorld owns every entity, and which other
+    shards need a ghost of it. See GridPartitioner for a region based one.
+
+    Only called by ShardedWorld.sync, on the thread updating the world, so
+    implementations don't need to be thread safe.
+ */
+public interface Partitioner {
+
+	/**
+	 * @return The shard that should own the given entity, or -1 to leave it in
+	 *         the shard it's in (for entities with no position, for example).
+	 */
+	public int ownerOf( EntityManager entityManager, long entity );
+
+	/**
+	 * Writes into shards the shards that need a ghost of the given entity.
+	 * @param owner The shard owning the entity, never to be written.
+	 * @param shards Room for one less than the number of shards.
+	 * @return How many shards were written.
+	 */
+	public int ghostsOf( EntityManager entityManager, long entity, int owner, int[] shards );
+}
@@ -0,0 +1,18 @@
+package jlarv;
+
+/*
+    Execution phases of a tick, in the order the Engine runs them.
+    Every System belongs to one phase (UPDATE unless told otherwise) and,
+    inside a phase, systems update by priority.
+
+    - PRE_UPDATE:     input gathering, applying external results, spawning.
+    - UPDATE:         the simulation itself.
+    - POST_UPDATE:    reacting to the simulation results, cleanup.
+    - RENDER_EXTRACT: copying what the renderer needs out of the components.
+ */
+public enum Phase {
+	PRE_UPDATE,
+	UPDATE,
+	POST_UPDATE,
+	RENDER_EXTRACT
+}
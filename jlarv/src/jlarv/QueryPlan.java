@@ -0,0 +1,373 @@
+package jlarv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+import jlarv.util.AtomicBitSet;
+
+/*
+    How an EntityQuery runs against the current contents of the stores.
+
+    One source is walked (the driver) and every entity it yields goes through
+    the remaining clauses, each one a lookup in the store(s) it names (probes).
+    Nothing is materialized, so the cost is about the size of the driver times
+    the probes it takes to reject an entity. The planner picks:
+    - as driver, whichever gives the fewest entities: the smallest "all" store,
+      or the union of an "any" clause (each store skipping the entities of the
+      ones before it), or, with neither, the entity list;
+    - the order of the probes, most rejecting per lookup first. A probe of size
+      s lets through about s / N of the N entities for "all", 1 - s / N for
+      "none" and the sum of its stores / N for "any", which looks up one store
+      after another.
+    Stores that were never added make "all" and "any" clauses match nothing and
+    "none" clauses match everything, so they're decided while planning.
+
+    Plans hold on to the stores, so they're made right before running (which
+    EntityQuery does) and don't survive structural changes.
+ */
+class QueryPlan implements LongPredicate {
+
+	private static final int ALL = 0;
+	private static final int ANY = 1;
+	private static final int NONE = 2;
+	private static final String[] KIND_NAMES = { "all", "any", "none" };
+
+	/* A clause probed by lookup, or walked when driving */
+	private static final class Probe {
+		final int                          kind;
+		final Class<? extends Component>[] types;
+		final Object[]                     stores;  // Map<Long, Component> or AtomicBitSet, null if never added
+		final long                         size;    // Sum of the store sizes
+		double                             pass;    // Estimated fraction of entities passing it
+		double                             rank;
+
+		Probe( int kind, Class<? extends Component>[] types, Object[] stores, long size ) {
+			this.kind = kind;
+			this.types = types;
+			this.stores = stores;
+			this.size = size;
+		}
+
+		boolean test( long entity ) {
+			switch ( kind ) {
+			case ALL:
+				return contains( stores[0], entity );
+			case NONE:
+				return ! contains( stores[0], entity );
+			default:
+				for ( Object store : stores ) {
+					if ( store != null && contains( store, entity ) ) {
+						return true;
+					}
+				}
+				return false;
+			}
+		}
+	}
+
+	private static final Comparator<Probe> BY_RANK = new Comparator<Probe>() {
+		@Override
+		public int compare( Probe a, Probe b ) {
+			return Double.compare( b.rank, a.rank );
+		}
+	};
+
+	private final EntityManager                    entityManager;
+	private final boolean                          excludeDisabled;
+	private final long                             entityCount;
+	private final List<Class<? extends Component>> optional;
+	private final Probe                            driver;  // Null when driven by the entity list
+	private final Probe[]                          probes;
+	private final boolean                          empty;
+	private final String                           emptyReason;
+	private final ArrayList<String>                skipped = new ArrayList<String>();
+
+	QueryPlan( EntityManager entityManager, List<Class<? extends Component>> all,
+	           List<Class<? extends Component>[]> any, List<Class<? extends Component>> none,
+	           List<Class<? extends Component>> optional ) {
+		this.entityManager = entityManager;
+		this.excludeDisabled = entityManager.getDisabledCount() > 0;
+		this.entityCount = Math.max( 1, entityManager.getEntityCount() );
+		this.optional = optional;
+
+		ArrayList<Probe> candidates = new ArrayList<Probe>();
+		String emptyReason = null;
+		for ( Class<? extends Component> type : all ) {
+			Probe probe = probe( ALL, asArray( type ) );
+			if ( probe.size == 0 && emptyReason == null ) {
+				emptyReason = "all " + type.getSimpleName() + ": empty store";
+			}
+			candidates.add( probe );
+		}
+		for ( Class<? extends Component>[] types : any ) {
+			Probe probe = probe( ANY, types );
+			if ( probe.size == 0 && emptyReason == null ) {
+				emptyReason = "any " + names( types ) + ": empty stores";
+			}
+			candidates.add( probe );
+		}
+		for ( Class<? extends Component> type : none ) {
+			Probe probe = probe( NONE, asArray( type ) );
+			if ( probe.size == 0 ) {
+				skipped.add( "none " + type.getSimpleName() + ": empty store, skipped" );
+			} else {
+				candidates.add( probe );
+			}
+		}
+		this.empty = emptyReason != null;
+		this.emptyReason = emptyReason;
+
+		// Driver: the "all" or "any" clause yielding the fewest entities
+		Probe driver = null;
+		for ( Probe candidate : candidates ) {
+			if ( candidate.kind != NONE && ( driver == null || candidate.size < driver.size ) ) {
+				driver = candidate;
+			}
+		}
+		candidates.remove( driver );
+		this.driver = driver;
+
+		for ( Probe probe : candidates ) {
+			double fraction = Math.min( 1, (double) probe.size / entityCount );
+			probe.pass = probe.kind == NONE ? 1 - fraction : fraction;
+			int cost = probe.kind == ANY ? probe.stores.length : 1;
+			probe.rank = ( 1 - probe.pass ) / cost;
+		}
+		Probe[] probes = candidates.toArray( new Probe[candidates.size()] );
+		Arrays.sort( probes, BY_RANK );
+		this.probes = probes;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Class<? extends Component>[] asArray( Class<? extends Component> type ) {
+		return (Class<? extends Component>[]) new Class<?>[] { type };
+	}
+
+	private Probe probe( int kind, Class<? extends Component>[] types ) {
+		Object[] stores = new Object[types.length];
+		long size = 0;
+		for ( int i = 0; i < types.length; i++ ) {
+			if ( EntityManager.isTag( types[i] ) ) {
+				AtomicBitSet bits = entityManager.getTagsByClass().get( types[i] );
+				stores[i] = bits;
+				size += bits == null ? 0 : bits.cardinality();
+			} else {
+				Map<Long, Component> map = entityManager.getComponentsByClass().get( types[i] );
+				stores[i] = map;
+				size += map == null ? 0 : map.size();
+			}
+		}
+		return new Probe( kind, types, stores, size );
+	}
+
+	private static boolean contains( Object store, long entity ) {
+		if ( store instanceof AtomicBitSet ) {
+			return ( (AtomicBitSet) store ).get( EntityManager.bitIndex( entity ) );
+		}
+		return ( (Map<?, ?>) store ).containsKey( entity );
+	}
+
+	/**
+	 * @return True if the entity passes every probe (the driver isn't checked)
+	 *         and isn't disabled.
+	 */
+	@Override
+	public boolean test( long entity ) {
+		if ( excludeDisabled && ! entityManager.isEnabled( entity ) ) {
+			return false;
+		}
+		for ( Probe probe : probes ) {
+			if ( ! probe.test( entity ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean unfiltered() {
+		return ! excludeDisabled && probes.length == 0;
+	}
+
+	/**
+	 * @return The matching entities, walking the driver and probing the rest.
+	 */
+	Spliterator.OfLong spliterator() {
+		if ( empty ) {
+			return Spliterators.emptyLongSpliterator();
+		}
+		if ( driver == null ) {
+			return new EntityQuerySpliterator( entityManager.entitySpliterator(), unfiltered() ? null : this );
+		}
+		if ( driver.kind == ALL ) {
+			return new EntityQuerySpliterator( storeSpliterator( driver.stores[0] ), unfiltered() ? null : this );
+		}
+		// Union of the stores of an "any" clause, every one skipping the entities of the previous ones
+		ArrayList<Spliterator.OfLong> parts = new ArrayList<Spliterator.OfLong>();
+		for ( int i = 0; i < driver.stores.length; i++ ) {
+			if ( driver.stores[i] == null ) {
+				continue;
+			}
+			final Object[] previous = Arrays.copyOf( driver.stores, i );
+			LongPredicate filter = unfiltered() && previous.length == 0 ? null : new LongPredicate() {
+				@Override
+				public boolean test( long entity ) {
+					for ( Object store : previous ) {
+						if ( store != null && contains( store, entity ) ) {
+							return false;
+						}
+					}
+					return QueryPlan.this.test( entity );
+				}
+			};
+			parts.add( new EntityQuerySpliterator( storeSpliterator( driver.stores[i] ), filter ) );
+		}
+		return new ConcatSpliterator( parts.toArray( new Spliterator.OfLong[parts.size()] ), 0, parts.size() );
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Spliterator.OfLong storeSpliterator( Object store ) {
+		if ( store instanceof AtomicBitSet ) {
+			return EntityQuerySpliterator.ofBits( ( (AtomicBitSet) store ).spliterator() );
+		}
+		return EntityQuerySpliterator.ofKeys( ( (Map<Long, ?>) store ).keySet().spliterator() );
+	}
+
+	boolean isEmpty() {
+		return empty;
+	}
+
+	/**
+	 * @return Estimated number of matching entities.
+	 */
+	long estimate() {
+		if ( empty ) {
+			return 0;
+		}
+		double rows = driver == null ? entityManager.getEntityCount() : driver.size;
+		for ( Probe probe : probes ) {
+			rows *= probe.pass;
+		}
+		if ( excludeDisabled ) {
+			rows *= 1 - (double) entityManager.getDisabledCount() / entityCount;
+		}
+		return Math.round( rows );
+	}
+
+	private static String names( Class<? extends Component>[] types ) {
+		StringBuilder builder = new StringBuilder( "[" );
+		for ( int i = 0; i < types.length; i++ ) {
+			builder.append( i == 0 ? "" : ", " ).append( types[i].getSimpleName() );
+		}
+		return builder.append( "]" ).toString();
+	}
+
+	private static String describe( Probe probe ) {
+		return KIND_NAMES[probe.kind] + " " + ( probe.types.length == 1 && probe.kind != ANY
+				? probe.types[0].getSimpleName() : names( probe.types ) );
+	}
+
+	/**
+	 * One line per step, in the order they run, with the estimated entities left after each.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		if ( empty ) {
+			builder.append( "empty (" ).append( emptyReason ).append( ")\n" );
+		} else {
+			double rows;
+			if ( driver == null ) {
+				rows = entityManager.getEntityCount();
+				builder.append( "scan entities (" ).append( (long) rows ).append( ")\n" );
+			} else {
+				rows = driver.size;
+				builder.append( "scan " ).append( driver.kind == ANY ? "union " + names( driver.types ) : driver.types[0].getSimpleName() )
+				       .append( " (" ).append( driver.size ).append( ")\n" );
+			}
+			if ( excludeDisabled ) {
+				rows *= 1 - (double) entityManager.getDisabledCount() / entityCount;
+				builder.append( "skip disabled (~" ).append( Math.round( rows ) ).append( " left)\n" );
+			}
+			for ( Probe probe : probes ) {
+				rows *= probe.pass;
+				builder.append( "probe " ).append( describe( probe ) ).append( " (" ).append( probe.size )
+				       .append( ", ~" ).append( Math.round( rows ) ).append( " left)\n" );
+			}
+		}
+		for ( String line : skipped ) {
+			builder.append( line ).append( "\n" );
+		}
+		for ( Class<? extends Component> type : optional ) {
+			builder.append( "optional " ).append( type.getSimpleName() ).append( "\n" );
+		}
+		return builder.toString();
+	}
+
+	/*
+	 * Walks several spliterators one after the other, splitting by halves of
+	 * them and then by the remaining one.
+	 */
+	private static class ConcatSpliterator implements Spliterator.OfLong {
+		private final Spliterator.OfLong[] parts;
+		private int                        from;
+		private final int                  to;
+
+		ConcatSpliterator( Spliterator.OfLong[] parts, int from, int to ) {
+			this.parts = parts;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public boolean tryAdvance( LongConsumer action ) {
+			for ( ; from < to; from++ ) {
+				if ( parts[from].tryAdvance( action ) ) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public void forEachRemaining( LongConsumer action ) {
+			for ( ; from < to; from++ ) {
+				parts[from].forEachRemaining( action );
+			}
+		}
+
+		@Override
+		public Spliterator.OfLong trySplit() {
+			if ( to - from > 1 ) {
+				int middle = ( from + to ) >>> 1;
+				ConcatSpliterator prefix = new ConcatSpliterator( parts, from, middle );
+				from = middle;
+				return prefix;
+			}
+			return from < to ? parts[from].trySplit() : null;
+		}
+
+		@Override
+		public long estimateSize() {
+			long size = 0;
+			for ( int i = from; i < to; i++ ) {
+				size += parts[i].estimateSize();
+				if ( size < 0 ) {
+					return Long.MAX_VALUE;
+				}
+			}
+			return size;
+		}
+
+		@Override
+		public int characteristics() {
+			return NONNULL | DISTINCT;
+		}
+	}
+}
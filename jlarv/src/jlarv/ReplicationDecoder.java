@@ -0,0 +1,184 @@
+package jlarv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import jlarv.util.BitReader;
+
+/*
+    Client side of the replication: decodes the packets of a
+    ReplicationEncoder and applies them to a local EntityManager, creating,
+    updating and removing entities and components so they mirror the server's
+    (entities keep the server's IDs).
+
+    Every decoded tick is kept for a while, as later packets are relative to
+    ticks acknowledged before. Packets older than the last decoded one are
+    ignored. After decoding, acknowledge getLastTick() to the server.
+    Components are dequantized in place when the entity already has them.
+
+    USAGE:
+      ByteBuffer packet = transport.receive();
+      if ( packet != null && decoder.decode( packet ) ) {
+          transport.acknowledge( decoder.getLastTick() );
+      }
+ */
+public class ReplicationDecoder {
+
+	private final EntityManager     entityManager;
+	private final ReplicationSchema schema;
+
+	// Decoded states of the last ticks, tick % length
+	private final ArrayList<HashMap<Long, long[][]>> history;
+	private final int[]                              historyTicks;
+	private HashMap<Long, long[][]>                  applied;
+	private int                                      lastTick;
+
+	private final BitReader reader = new BitReader( null );
+
+	public ReplicationDecoder( EntityManager entityManager, ReplicationSchema schema ) {
+		this( entityManager, schema, 32 );
+	}
+
+	/**
+	 * @param historyLength Should match the one of the encoder.
+	 */
+	public ReplicationDecoder( EntityManager entityManager, ReplicationSchema schema, int historyLength ) {
+		this.entityManager = entityManager;
+		this.schema = schema;
+		history = new ArrayList<HashMap<Long, long[][]>>();
+		for ( int i = 0; i < historyLength; i++ ) {
+			history.add( null );
+		}
+		historyTicks = new int[historyLength];
+		applied = new HashMap<Long, long[][]>();
+	}
+
+	/**
+	 * Decodes the given packet and applies it to the entity manager.
+	 * @return False if it was ignored: older than the last decoded tick, or
+	 *         relative to a tick no longer kept.
+	 */
+	public boolean decode( ByteBuffer packet ) {
+		BitReader bits = reader;
+		bits.reset( packet );
+		int tick = (int) bits.readVarLong();
+		HashMap<Long, long[][]> baseline = null;
+		if ( bits.readBoolean() ) {
+			int baselineTick = tick - (int) bits.readVarLong();
+			int slot = baselineTick % historyTicks.length;
+			if ( historyTicks[slot] != baselineTick ) {
+				return false;
+			}
+			baseline = history.get( slot );
+		}
+		if ( tick <= lastTick ) {
+			return false;
+		}
+
+		HashMap<Long, long[][]> states = baseline == null
+				? new HashMap<Long, long[][]>() : new HashMap<Long, long[][]>( baseline );
+		long entity = Long.MIN_VALUE;
+		int kind;
+		while ( ( kind = (int) bits.read( ReplicationEncoder.KIND_BITS ) ) != ReplicationEncoder.END ) {
+			entity += bits.readSignedVarLong();
+			if ( kind == ReplicationEncoder.REMOVE ) {
+				states.remove( entity );
+			} else {
+				states.put( entity, readState( bits, baseline == null ? null : baseline.get( entity ) ) );
+			}
+		}
+
+		history.set( tick % historyTicks.length, states );
+		historyTicks[tick % historyTicks.length] = tick;
+		apply( states );
+		lastTick = tick;
+		return true;
+	}
+
+	private long[][] readState( BitReader bits, long[][] before ) {
+		long[][] state = new long[schema.getTypeCount()][];
+		for ( int i = 0; i < state.length; i++ ) {
+			long[] from = before == null ? null : before[i];
+			if ( ! bits.readBoolean() ) {
+				state[i] = from;
+				continue;
+			}
+			if ( ! bits.readBoolean() ) {
+				continue;
+			}
+			int[] fieldBits = schema.fieldBitsOf( i );
+			if ( fieldBits.length == 0 ) {
+				state[i] = ReplicationSchema.TAG;
+				continue;
+			}
+			long[] fields = new long[fieldBits.length];
+			for ( int field = 0; field < fields.length; field++ ) {
+				if ( from == null || bits.readBoolean() ) {
+					fields[field] = bits.read( fieldBits[field] );
+				} else {
+					fields[field] = from[field];
+				}
+			}
+			state[i] = fields;
+		}
+		return state;
+	}
+
+	/**
+	 * Changes the entity manager from the applied state to the given one.
+	 */
+	private void apply( HashMap<Long, long[][]> states ) {
+		for ( Map.Entry<Long, long[][]> entry : states.entrySet() ) {
+			long entity = entry.getKey();
+			long[][] state = entry.getValue();
+			long[][] current = applied.remove( entity );
+			if ( state == current ) {
+				continue;
+			}
+			if ( current == null ) {
+				entityManager.restoreEntity( entity );
+			}
+			for ( int i = 0; i < state.length; i++ ) {
+				long[] from = current == null ? null : current[i];
+				long[] to = state[i];
+				if ( from == to || ( from != null && to != null && Arrays.equals( from, to ) ) ) {
+					continue;
+				}
+				Class<? extends Component> type = schema.typeOf( i );
+				if ( to == null ) {
+					entityManager.removeComponent( entity, type );
+				} else if ( schema.isTag( i ) ) {
+					entityManager.addTag( entity, type );
+				} else {
+					Component component = from == null ? null : entityManager.getComponent( entity, type );
+					Component updated = schema.dequantize( i, to, component );
+					if ( updated != component ) {
+						entityManager.addComponent( entity, updated );
+					}
+				}
+			}
+		}
+		// Whatever is left isn't replicated anymore
+		for ( long gone : applied.keySet() ) {
+			entityManager.removeEntity( gone );
+		}
+		applied = states;
+	}
+
+	/*
+	 * Getters.
+	 */
+	/**
+	 * @return The last tick decoded, the one to acknowledge, 0 if none.
+	 */
+	public int getLastTick() {
+		return lastTick;
+	}
+
+	public EntityManager getEntityManager() {
+		return entityManager;
+	}
+}
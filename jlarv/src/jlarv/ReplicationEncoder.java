@@ -0,0 +1,350 @@
+package jlarv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.LongPredicate;
+
+import jlarv.util.AtomicBitSet;
+import jlarv.util.BitWriter;
+
+/*
+    Server side of the replication: captures the state of the replicated
+    components once per tick and encodes, for every observer (client), only
+    what changed since the last tick that observer acknowledged.
+
+    State is kept quantized (see FieldCodec): an entity is an array with the
+    fields of every replicated type, null for the types it doesn't have.
+    capture() reuses the arrays of the previous tick when nothing changed, so
+    unchanged entities cost a reference comparison when encoding, and the
+    states remembered per observer for its last ticks share the arrays.
+
+    Packets are bit-packed (see jlarv.util.BitWriter):
+      tick, whether there's a baseline and which one
+      per entity created, changed or no longer relevant since the baseline:
+        kind (2 bits), ID (delta from the previous one)
+        per type: changed bit, then present bit, then per field a changed bit
+        and its value (all the fields if the type is new to the entity)
+      end mark
+    Being relative to a tick the client acknowledged, packets can be lost or
+    reordered: the next ones are still decodable. An observer whose baseline
+    is too old (or that never acknowledged anything) gets the full state.
+
+    USAGE (every tick, after engine.update):
+      encoder.capture();
+      for ( ReplicationEncoder.Observer observer : observers ) {
+          buffer.clear();
+          encoder.encode( observer, buffer );
+          buffer.flip();
+          send( observer, buffer );
+      }
+      // and whenever a client acknowledges a tick
+      observer.acknowledge( tick );
+ */
+public class ReplicationEncoder {
+
+	static final int END = 0;
+	static final int UPSERT = 1;
+	static final int REMOVE = 2;
+	static final int KIND_BITS = 2;
+
+	private final EntityManager     entityManager;
+	private final ReplicationSchema schema;
+	private final int               historyLength;
+	private final ArrayList<Observer> observers;
+
+	// State captured in the last tick
+	private HashMap<Long, long[][]> latest;
+	private int                     tick;
+
+	private final long[][] fieldsScratch;
+	private final long[][] stateScratch;
+	private final BitWriter writer = new BitWriter( null );
+
+	public ReplicationEncoder( EntityManager entityManager, ReplicationSchema schema ) {
+		this( entityManager, schema, 32 );
+	}
+
+	/**
+	 * @param historyLength Ticks an observer can go without acknowledging
+	 *                      before getting the full state again.
+	 */
+	public ReplicationEncoder( EntityManager entityManager, ReplicationSchema schema, int historyLength ) {
+		this.entityManager = entityManager;
+		this.schema = schema;
+		this.historyLength = historyLength;
+		observers = new ArrayList<Observer>();
+		latest = new HashMap<Long, long[][]>();
+		int types = schema.getTypeCount();
+		fieldsScratch = new long[types][];
+		for ( int i = 0; i < types; i++ ) {
+			fieldsScratch[i] = new long[schema.fieldBitsOf( i ).length];
+		}
+		stateScratch = new long[types][];
+	}
+
+	/**
+	 * Captures the state of every entity having a replicated type, as the
+	 * state of a new tick.
+	 * @return The tick captured, starting at 1.
+	 */
+	public int capture() {
+		int types = schema.getTypeCount();
+		@SuppressWarnings("unchecked")
+		Map<Long, Component>[] stores = (Map<Long, Component>[]) new Map<?, ?>[types];
+		AtomicBitSet[] tags = new AtomicBitSet[types];
+		for ( int i = 0; i < types; i++ ) {
+			if ( schema.isTag( i ) ) {
+				tags[i] = entityManager.getTagsByClass().get( schema.typeOf( i ) );
+			} else {
+				stores[i] = entityManager.getComponentsByClass().get( schema.typeOf( i ) );
+			}
+		}
+
+		HashMap<Long, long[][]> previous = latest;
+		HashMap<Long, long[][]> states = new HashMap<Long, long[][]>( Math.max( 16, previous.size() * 4 / 3 + 1 ) );
+		for ( long entity : entityManager.getEntities() ) {
+			long[][] before = previous.get( entity );
+			boolean replicated = false;
+			boolean changed = before == null;
+			for ( int i = 0; i < types; i++ ) {
+				long[] fields = null;
+				if ( tags[i] != null ) {
+					fields = tags[i].get( EntityManager.bitIndex( entity ) ) ? ReplicationSchema.TAG : null;
+				} else if ( stores[i] != null ) {
+					Component component = stores[i].get( entity );
+					if ( component != null ) {
+						fields = quantize( i, component, before == null ? null : before[i] );
+					}
+				}
+				stateScratch[i] = fields;
+				replicated |= fields != null;
+				changed |= before != null && fields != before[i];
+			}
+			if ( replicated ) {
+				states.put( entity, changed ? stateScratch.clone() : before );
+			}
+		}
+
+		tick++;
+		latest = states;
+		return tick;
+	}
+
+	/**
+	 * @return The fields of the given component, the previous array if they didn't change.
+	 */
+	private long[] quantize( int type, Component component, long[] before ) {
+		long[] fields = fieldsScratch[type];
+		schema.quantize( type, component, fields );
+		if ( before != null && Arrays.equals( before, fields ) ) {
+			return before;
+		}
+		return fields.clone();
+	}
+
+	/**
+	 * Starts replicating to a new observer, which gets the full state first.
+	 */
+	public Observer addObserver() {
+		Observer observer = new Observer( historyLength );
+		observers.add( observer );
+		return observer;
+	}
+
+	public boolean removeObserver( Observer observer ) {
+		return observers.remove( observer );
+	}
+
+	/**
+	 * Writes into out the changes of the last captured tick relative to what
+	 * the given observer acknowledged.
+	 * @throws java.nio.BufferOverflowException If out is too small, the
+	 *         observer is left as it was so it can be retried with a bigger one.
+	 */
+	public void encode( Observer observer, ByteBuffer out ) {
+		if ( tick == 0 ) {
+			throw new IllegalStateException( "Nothing captured yet" );
+		}
+		HashMap<Long, long[][]> baseline = observer.sentAt( observer.acknowledged );
+		HashMap<Long, long[][]> relevant = latest;
+		if ( observer.relevant != null ) {
+			// Cheaper than filtering when it's a small part of the world
+			relevant = new HashMap<Long, long[][]>();
+			for ( Long entity : observer.relevant ) {
+				long[][] state = latest.get( entity );
+				if ( state != null && ( observer.filter == null || observer.filter.test( entity ) ) ) {
+					relevant.put( entity, state );
+				}
+			}
+		} else if ( observer.filter != null ) {
+			relevant = new HashMap<Long, long[][]>();
+			for ( Map.Entry<Long, long[][]> entry : latest.entrySet() ) {
+				if ( observer.filter.test( entry.getKey() ) ) {
+					relevant.put( entry.getKey(), entry.getValue() );
+				}
+			}
+		}
+
+		BitWriter bits = writer;
+		bits.reset( out );
+		bits.writeVarLong( tick );
+		bits.writeBoolean( baseline != null );
+		if ( baseline != null ) {
+			bits.writeVarLong( tick - observer.acknowledged );
+		}
+		long previousId = Long.MIN_VALUE;
+		for ( Map.Entry<Long, long[][]> entry : relevant.entrySet() ) {
+			long entity = entry.getKey();
+			long[][] state = entry.getValue();
+			long[][] before = baseline == null ? null : baseline.get( entity );
+			if ( state == before ) {
+				continue;
+			}
+			bits.write( UPSERT, KIND_BITS );
+			bits.writeSignedVarLong( entity - previousId );
+			previousId = entity;
+			writeState( bits, before, state );
+		}
+		if ( baseline != null ) {
+			for ( Long entity : baseline.keySet() ) {
+				if ( ! relevant.containsKey( entity ) ) {
+					bits.write( REMOVE, KIND_BITS );
+					bits.writeSignedVarLong( entity - previousId );
+					previousId = entity;
+				}
+			}
+		}
+		bits.write( END, KIND_BITS );
+		bits.flush();
+		observer.remember( tick, relevant );
+	}
+
+	/**
+	 * Writes the types of an entity that changed from before (null if the
+	 * observer doesn't have the entity) to after.
+	 */
+	private void writeState( BitWriter bits, long[][] before, long[][] after ) {
+		for ( int i = 0; i < after.length; i++ ) {
+			long[] from = before == null ? null : before[i];
+			long[] to = after[i];
+			if ( from == to || ( from != null && to != null && Arrays.equals( from, to ) ) ) {
+				bits.writeBoolean( false );
+				continue;
+			}
+			bits.writeBoolean( true );
+			bits.writeBoolean( to != null );
+			if ( to == null ) {
+				continue;
+			}
+			int[] fieldBits = schema.fieldBitsOf( i );
+			for ( int field = 0; field < to.length; field++ ) {
+				if ( from == null ) {
+					bits.write( to[field], fieldBits[field] );
+				} else if ( from[field] != to[field] ) {
+					bits.writeBoolean( true );
+					bits.write( to[field], fieldBits[field] );
+				} else {
+					bits.writeBoolean( false );
+				}
+			}
+		}
+	}
+
+	/*
+	 * Getters.
+	 */
+	/**
+	 * @return The last tick captured, 0 if none.
+	 */
+	public int getTick() {
+		return tick;
+	}
+
+	/**
+	 * @return The number of entities captured in the last tick.
+	 */
+	public int getReplicatedCount() {
+		return latest.size();
+	}
+
+	public ReplicationSchema getSchema() {
+		return schema;
+	}
+
+	/*
+	 * A client the state is replicated to: what it was sent lately, and the
+	 * last tick it acknowledged having.
+	 */
+	public static class Observer {
+		private final ArrayList<HashMap<Long, long[][]>> sent;
+		private final int[]                              sentTicks;
+		private int                                      acknowledged;
+		private LongPredicate                            filter;
+		private Set<Long>                                relevant;
+
+		Observer( int historyLength ) {
+			sent = new ArrayList<HashMap<Long, long[][]>>();
+			for ( int i = 0; i < historyLength; i++ ) {
+				sent.add( null );
+			}
+			sentTicks = new int[historyLength];
+		}
+
+		/**
+		 * @return What the observer was sent for the given tick, null if it's forgotten.
+		 */
+		HashMap<Long, long[][]> sentAt( int tick ) {
+			int slot = tick % sentTicks.length;
+			return tick > 0 && sentTicks[slot] == tick ? sent.get( slot ) : null;
+		}
+
+		void remember( int tick, HashMap<Long, long[][]> states ) {
+			int slot = tick % sentTicks.length;
+			sent.set( slot, states );
+			sentTicks[slot] = tick;
+		}
+
+		/**
+		 * Tells the observer has the given tick, next packets are relative to it.
+		 * Acknowledgements older than the last one are ignored.
+		 */
+		public void acknowledge( int tick ) {
+			if ( tick > acknowledged ) {
+				acknowledged = tick;
+			}
+		}
+
+		public int getAcknowledged() {
+			return acknowledged;
+		}
+
+		/**
+		 * Limits the entities replicated to the observer, null to replicate all of them.
+		 * Entities no longer passing the filter are removed on the client.
+		 */
+		public void setFilter( LongPredicate filter ) {
+			this.filter = filter;
+		}
+
+		public LongPredicate getFilter() {
+			return filter;
+		}
+
+		/**
+		 * Only replicates the given entities to the observer, null to replicate
+		 * all of them. The set is read on every encode, so it can be a live view
+		 * (see InterestManager.Observer.getRelevant). Combines with the filter.
+		 */
+		public void setRelevant( Set<Long> relevant ) {
+			this.relevant = relevant;
+		}
+
+		public Set<Long> getRelevant() {
+			return relevant;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package jlarv;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/*
+    The component types replicated to clients and their FieldCodecs. Types
+    are identified on the wire by their registration order, so the server and
+    the clients must register the same types in the same order, and before
+    creating any encoder or decoder.
+    Tag types carry no fields, only whether the entity has them is sent.
+
+    USAGE:
+      ReplicationSchema schema = new ReplicationSchema();
+      schema.register( PositionComponent.class, new PositionCodec() );
+      schema.registerTag( FrozenTag.class );
+ */
+public class ReplicationSchema {
+
+	/* Fields of a tag the entity has */
+	static final long[] TAG = new long[0];
+
+	private final ArrayList<Class<? extends Component>>         types;
+	private final ArrayList<FieldCodec<? extends Component>>    codecs;
+	private final ArrayList<int[]>                              fieldBits;
+	private final HashMap<Class<? extends Component>, Integer>  indexes;
+
+	public ReplicationSchema() {
+		types = new ArrayList<Class<? extends Component>>();
+		codecs = new ArrayList<FieldCodec<? extends Component>>();
+		fieldBits = new ArrayList<int[]>();
+		indexes = new HashMap<Class<? extends Component>, Integer>();
+	}
+
+	/**
+	 * Replicates the given component type with the given codec.
+	 */
+	public <T extends Component> void register( Class<T> type, FieldCodec<T> codec ) {
+		if ( TagComponent.class.isAssignableFrom( type ) ) {
+			throw new IllegalArgumentException( "Tags have no fields, use registerTag: " + type.getName() );
+		}
+		add( type, codec, codec.getFieldBits().clone() );
+	}
+
+	/**
+	 * Replicates the given tag type.
+	 */
+	public void registerTag( Class<? extends TagComponent> type ) {
+		add( type, null, new int[0] );
+	}
+
+	private void add( Class<? extends Component> type, FieldCodec<? extends Component> codec, int[] bits ) {
+		if ( indexes.containsKey( type ) ) {
+			throw new IllegalArgumentException( "Type already replicated: " + type.getName() );
+		}
+		for ( int fieldBits : bits ) {
+			if ( fieldBits < 0 || fieldBits > 64 ) {
+				throw new IllegalArgumentException( "Fields take from 0 to 64 bits: " + type.getName() );
+			}
+		}
+		indexes.put( type, types.size() );
+		types.add( type );
+		codecs.add( codec );
+		fieldBits.add( bits );
+	}
+
+	/**
+	 * Quantizes a component of the type at the given index.
+	 */
+	@SuppressWarnings("unchecked")
+	void quantize( int index, Component component, long[] fields ) {
+		( (FieldCodec<Component>) codecs.get( index ) ).quantize( component, fields );
+	}
+
+	/**
+	 * Dequantizes a component of the type at the given index.
+	 */
+	@SuppressWarnings("unchecked")
+	Component dequantize( int index, long[] fields, Component component ) {
+		return ( (FieldCodec<Component>) codecs.get( index ) ).dequantize( fields, component );
+	}
+
+	/*
+	 * Getters.
+	 */
+	public int getTypeCount() {
+		return types.size();
+	}
+
+	public Class<? extends Component> typeOf( int index ) {
+		return types.get( index );
+	}
+
+	/**
+	 * @return The index of the given type, -1 if it isn't replicated.
+	 */
+	public int indexOf( Class<? extends Component> type ) {
+		Integer index = indexes.get( type );
+		return index == null ? -1 : index;
+	}
+
+	public boolean isTag( int index ) {
+		return codecs.get( index ) == null;
+	}
+
+	int[] fieldBitsOf( int index ) {
+		return fieldBits.get( index );
+	}
+}
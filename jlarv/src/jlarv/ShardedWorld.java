@@ -0,0 +1,373 @@
+package jlarv;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    A world too big for a single engine, split into regions (shards), each one
+    simulated by its own Engine. Shards update in parallel, so the simulation
+    scales with the cores instead of being bound by a single EntityManager.
+
+    Every update has two steps:
+      1. Every shard updates on the pool, at the same time. Systems only see
+         the entities of their own shard, ghosts included.
+      2. sync(), on the calling thread, while no shard runs:
+         - Migration: entities the Partitioner places in another shard are
+           moved there, with the same ID, components (the instances
+           themselves), tags and groups.
+         - Ghosts: entities near a border get a read-only copy in the
+           neighbouring shards (same ID, marked with GhostTag), refreshed
+           every sync, so systems can see across borders. Ghosts no longer
+           needed are removed. Systems can't remove them (removeEntity
+           throws), their IDs still belong to the entities they copy.
+
+    Every shard draws its IDs from the same counter, so an entity keeps its ID
+    wherever it goes. Ghost components are copied with the codecs of the
+    CodecRegistry, components of types not registered there aren't ghosted.
+    Tags are ghosted, groups aren't.
+
+    Each shard is a regular Engine: it can be parallel itself, profiled,
+    journaled... Entities can be created in any shard, they're moved to the
+    right one on the next sync.
+
+    USAGE:
+      ShardedWorld world = new ShardedWorld( 4, partitioner, codecs, new ShardedWorld.ShardSetup() {
+          public void setup( Engine shard, int index ) {
+              shard.addSystems( new MovementSystem( 0 ), new CollisionSystem( 1 ) );
+          }
+      } );
+      new GameLoop( world, 1 / 60f ).run();
+ */
+public class ShardedWorld implements Updatable {
+
+	/* Builds a shard, called once per shard by the constructor */
+	public interface ShardSetup {
+		/**
+		 * Adds the systems of the given shard, its entity manager is already set.
+		 */
+		public void setup( Engine shard, int index );
+	}
+
+	private final Engine[]      shards;
+	private final ShardTask[]   tasks;
+	private final Partitioner   partitioner;
+	private final CodecRegistry codecs;
+	private final AtomicLong    ids = new AtomicLong( Long.MIN_VALUE );
+
+	// Per shard, the ghosts living in it and the ones refreshed by the running sync
+	private final ArrayList<HashSet<Long>> ghosts;
+	private final ArrayList<HashSet<Long>> mirrored;
+	private final int[]                    targets;
+
+	private ForkJoinPool pool;
+	private boolean      ownsPool;
+	private ByteBuffer   scratch = ByteBuffer.allocate( 256 );
+	private long         migrations;
+
+	/**
+	 * Creates a world updating its shards on a pool of its own, with as many
+	 * threads as available processors.
+	 */
+	public ShardedWorld( int shardCount, Partitioner partitioner, CodecRegistry codecs, ShardSetup setup ) {
+		this( shardCount, partitioner, codecs, setup, null );
+	}
+
+	/**
+	 * @param pool Pool to update the shards on, it isn't shut down when disposing the world.
+	 */
+	public ShardedWorld( int shardCount, Partitioner partitioner, CodecRegistry codecs, ShardSetup setup, ForkJoinPool pool ) {
+		if ( shardCount < 1 ) {
+			throw new IllegalArgumentException( "A world needs at least one shard" );
+		}
+		this.partitioner = partitioner;
+		this.codecs = codecs;
+		if ( pool == null ) {
+			this.pool = new ForkJoinPool();
+			this.ownsPool = true;
+		} else {
+			this.pool = pool;
+		}
+		shards = new Engine[shardCount];
+		tasks = new ShardTask[shardCount];
+		ghosts = new ArrayList<HashSet<Long>>();
+		mirrored = new ArrayList<HashSet<Long>>();
+		targets = new int[shardCount];
+		for ( int i = 0; i < shardCount; i++ ) {
+			Engine shard = new Engine();
+			// Before the systems are added, as they keep the manager they're given
+			shard.setEntityManager( new ShardEntityManager( ids ) );
+			setup.setup( shard, i );
+			shards[i] = shard;
+			tasks[i] = new ShardTask( shard );
+			ghosts.add( new HashSet<Long>() );
+			mirrored.add( new HashSet<Long>() );
+		}
+	}
+
+	/**
+	 * Updates every shard in parallel, then syncs them.
+	 * Any exception thrown by a shard is rethrown here, the sync is then skipped.
+	 */
+	@Override
+	public void update( float delta ) {
+		if ( shards.length == 1 ) {
+			shards[0].update( delta );
+		} else {
+			for ( ShardTask task : tasks ) {
+				task.reinitialize();
+				task.delta = delta;
+			}
+			pool.invoke( new UpdateTask( tasks ) );
+		}
+		sync();
+	}
+
+	/**
+	 * Migrates the entities that left their shard and refreshes the ghosts.
+	 * Called by update, must not run while any shard is updating.
+	 */
+	public void sync() {
+		for ( int shard = 0; shard < shards.length; shard++ ) {
+			EntityManager entityManager = shards[shard].getEntityManager();
+			ArrayList<Long> entities = entityManager.getEntities();
+			// Backwards, as migrating removes the entity from the list
+			for ( int i = entities.size() - 1; i >= 0; i-- ) {
+				long entity = entities.get( i );
+				if ( entityManager.hasTag( entity, GhostTag.class ) ) {
+					continue;
+				}
+				int owner = partitioner.ownerOf( entityManager, entity );
+				if ( owner >= 0 && owner != shard ) {
+					migrate( entity, shard, owner );
+				}
+			}
+		}
+
+		for ( HashSet<Long> refreshed : mirrored ) {
+			refreshed.clear();
+		}
+		for ( int shard = 0; shard < shards.length; shard++ ) {
+			EntityManager entityManager = shards[shard].getEntityManager();
+			for ( long entity : entityManager.getEntities() ) {
+				if ( entityManager.hasTag( entity, GhostTag.class ) ) {
+					continue;
+				}
+				int count = partitioner.ghostsOf( entityManager, entity, shard, targets );
+				for ( int i = 0; i < count; i++ ) {
+					mirror( entity, shard, targets[i] );
+					mirrored.get( targets[i] ).add( entity );
+				}
+			}
+		}
+		for ( int shard = 0; shard < shards.length; shard++ ) {
+			HashSet<Long> refreshed = mirrored.get( shard );
+			Iterator<Long> iterator = ghosts.get( shard ).iterator();
+			while ( iterator.hasNext() ) {
+				long ghost = iterator.next();
+				if ( ! refreshed.contains( ghost ) ) {
+					removeGhost( shards[shard].getEntityManager(), ghost );
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves the given entity, with its very components, tags and groups,
+	 * disabled if it was.
+	 */
+	private void migrate( long entity, int from, int to ) {
+		EntityManager source = shards[from].getEntityManager();
+		EntityManager target = shards[to].getEntityManager();
+		GroupManager sourceGroups = shards[from].getGroupManager();
+		GroupManager targetGroups = shards[to].getGroupManager();
+		if ( ghosts.get( to ).remove( entity ) ) {
+			removeGhost( target, entity );
+		}
+
+		ArrayList<Class<? extends Component>> tags = new ArrayList<Class<? extends Component>>();
+		for ( Class<? extends Component> tagType : source.getTagsByClass().keySet() ) {
+			if ( source.hasTag( entity, tagType ) ) {
+				tags.add( tagType );
+			}
+		}
+		ArrayList<String> groups = sourceGroups.getGroups( entity );
+		boolean enabled = source.isEnabled( entity );
+		sourceGroups.removeCompletely( entity );
+		ArrayList<Component> components = source.detachEntity( entity );
+
+		target.restoreEntity( entity );
+		for ( Component component : components ) {
+			target.addComponent( entity, component );
+		}
+		for ( Class<? extends Component> tagType : tags ) {
+			target.addTag( entity, tagType );
+		}
+		for ( String group : groups ) {
+			targetGroups.add( entity, group );
+		}
+		if ( ! enabled ) {
+			target.setEnabled( entity, false );
+		}
+		migrations++;
+	}
+
+	/**
+	 * Creates or refreshes the ghost of the given entity in the given shard.
+	 */
+	private void mirror( long entity, int from, int to ) {
+		EntityManager source = shards[from].getEntityManager();
+		EntityManager target = shards[to].getEntityManager();
+		if ( ghosts.get( to ).add( entity ) ) {
+			target.restoreEntity( entity );
+			target.addTag( entity, GhostTag.class );
+		} else {
+			// Drop whatever the entity lost since the last sync
+			for ( Component component : target.getComponentsOfEntity( entity ) ) {
+				if ( ! source.hasComponent( entity, component.getClass() ) ) {
+					target.removeComponent( entity, component.getClass() );
+				}
+			}
+			for ( Class<? extends Component> tagType : new ArrayList<Class<? extends Component>>( target.getTagsByClass().keySet() ) ) {
+				if ( tagType != GhostTag.class && target.hasTag( entity, tagType ) && ! source.hasTag( entity, tagType ) ) {
+					target.removeTag( entity, tagType );
+				}
+			}
+		}
+		for ( Component component : source.getComponentsOfEntity( entity ) ) {
+			if ( codecs.isRegistered( component.getClass() ) ) {
+				target.addComponent( entity, copy( component ) );
+			}
+		}
+		for ( Class<? extends Component> tagType : source.getTagsByClass().keySet() ) {
+			if ( source.hasTag( entity, tagType ) && ! target.hasTag( entity, tagType ) ) {
+				target.addTag( entity, tagType );
+			}
+		}
+	}
+
+	/**
+	 * Removes a ghost without recycling its ID, which still lives in its owner.
+	 */
+	private static void removeGhost( EntityManager entityManager, long ghost ) {
+		for ( Component component : entityManager.detachEntity( ghost ) ) {
+			component.dispose();
+		}
+	}
+
+	/**
+	 * Copies the given component through its codec.
+	 */
+	private Component copy( Component component ) {
+		while ( true ) {
+			scratch.clear();
+			try {
+				codecs.write( component, scratch );
+				break;
+			} catch ( BufferOverflowException e ) {
+				scratch = ByteBuffer.allocate( scratch.capacity() * 2 );
+			}
+		}
+		scratch.flip();
+		return codecs.read( codecs.idOf( component.getClass() ), scratch );
+	}
+
+	/**
+	 * Disposes every shard, and the pool if the world created it.
+	 */
+	public void dispose() {
+		for ( Engine shard : shards ) {
+			shard.dispose();
+		}
+		for ( HashSet<Long> shardGhosts : ghosts ) {
+			shardGhosts.clear();
+		}
+		if ( ownsPool ) {
+			pool.shutdown();
+		}
+	}
+
+	/*
+	 * Getters.
+	 */
+	public Engine getShard( int index ) {
+		return shards[index];
+	}
+
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	public Partitioner getPartitioner() {
+		return partitioner;
+	}
+
+	/**
+	 * @return The number of ghosts living in the given shard.
+	 */
+	public int getGhostCount( int shard ) {
+		return ghosts.get( shard ).size();
+	}
+
+	/**
+	 * @return The number of entities moved between shards since the world was created.
+	 */
+	public long getMigrationCount() {
+		return migrations;
+	}
+
+	/* Waits for every shard to update. */
+	private static class UpdateTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final ShardTask[] tasks;
+
+		UpdateTask( ShardTask[] tasks ) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll( tasks );
+		}
+	}
+
+	/* Reusable task that updates a single shard. */
+	private static class ShardTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final Engine shard;
+		float delta;
+
+		ShardTask( Engine shard ) {
+			this.shard = shard;
+		}
+
+		@Override
+		protected void compute() {
+			shard.update( delta );
+		}
+	}
+
+	/* Manager of a shard. Refuses to remove ghosts: each shard recycles the IDs
+	   of its removed entities, and a ghost's ID is still alive in another shard. */
+	private static final class ShardEntityManager extends EntityManager {
+
+		ShardEntityManager( AtomicLong ids ) {
+			super( false, ids );
+		}
+
+		@Override
+		public void removeEntity( long entity ) {
+			if ( hasTag( entity, GhostTag.class ) ) {
+				throw new IllegalStateException( "Entity " + entity + " is a ghost, remove it from the shard owning it" );
+			}
+			super.removeEntity( entity );
+		}
+	}
+}
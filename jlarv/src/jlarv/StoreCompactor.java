@@ -0,0 +1,352 @@
+package jlarv;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import jlarv.util.AtomicBitSet;
+import jlarv.util.IncrementalHashMap;
+
+/*
+    Defragments the component stores of an EntityManager after lots of
+    removals (mass despawns, unloading a level...), so iterating them goes back
+    to being as fast as right after they were filled:
+    - stores left over-allocated shrink to fit (incrementally, see
+      IncrementalHashMap.shrink), so iterating doesn't scan empty buckets;
+    - entries are copied into fresh nodes allocated in iteration order, sorted
+      by entity ID within each bucket, so walking a store walks memory forwards
+      instead of jumping between nodes allocated hours apart;
+    - tag bitsets release their empty pages.
+
+    It either runs a little every tick under a budget (step, see also
+    Engine.setCompactionBudget) or all at once (compact). Budgeted passes only
+    pick the stores that lost at least a quarter of their components since
+    they were last compacted, or that are over-allocated; compact takes them all.
+    measure() tells how fragmented the stores are, and every pass records the
+    measures of the stores it went through before and after (getLastPass).
+
+    Not usable with concurrent managers, and like any structural change it
+    can't run during a parallel iteration.
+
+    USAGE:
+      StoreCompactor compactor = new StoreCompactor( entityManager );
+      ...after unloading a level
+      StoreCompactor.Pass pass = compactor.compact();
+      log( pass.getBefore() + " -> " + pass.getAfter() );
+      ...or every tick, doing at most ~4096 entries worth of work
+      compactor.step( 4096 );
+ */
+public class StoreCompactor {
+
+	// Buckets moved per resize step, so a step overshoots its budget by little
+	private static final int RESIZE_CHUNK = 256;
+
+	private static final Comparator<Long> ID_ORDER = new Comparator<Long>() {
+		@Override
+		public int compare( Long a, Long b ) {
+			return a.compareTo( b );
+		}
+	};
+
+	private final EntityManager                            entityManager;
+	// Largest size seen for every store since it was last compacted
+	private final Map<Class<? extends Component>, Integer> peaks =
+			new HashMap<Class<? extends Component>, Integer>();
+
+	// Pass in progress
+	private final ArrayDeque<Class<? extends Component>> pending = new ArrayDeque<Class<? extends Component>>();
+	private boolean                                      passing;
+	private Class<? extends Component>                   current;
+	private IncrementalHashMap<Long, Component>          currentStore;
+	private int                                          cursor;
+	private int                                          cursorCapacity;
+	private Fragmentation                                before;
+	private Fragmentation                                after;
+	private int                                          storesDone;
+
+	private Pass lastPass;
+	private long passCount;
+
+	public StoreCompactor( EntityManager entityManager ) {
+		if ( entityManager.isConcurrent() ) {
+			throw new IllegalStateException( "Compaction isn't available in concurrent mode" );
+		}
+		this.entityManager = entityManager;
+	}
+
+	/**
+	 * Does up to the given amount of compaction work, starting a new pass if
+	 * none is in progress and some store needs it.
+	 * @param budget Work units, roughly one entry or bucket each.
+	 * @return True if there's no pass in progress after the step.
+	 */
+	public boolean step( int budget ) {
+		entityManager.checkStructuralChange();
+		if ( ! passing && ! startPass( false ) ) {
+			return true;
+		}
+		long remaining = budget;
+		while ( remaining > 0 ) {
+			if ( current == null && ! nextStore() ) {
+				finishPass();
+				return true;
+			}
+			if ( entityManager.getComponentsByClass().get( current ) != currentStore ) {
+				// Dropped (emptied) or replaced since the last step
+				current = null;
+				currentStore = null;
+				continue;
+			}
+			if ( currentStore.isResizing() ) {
+				currentStore.stepResize( RESIZE_CHUNK );
+				remaining -= RESIZE_CHUNK;
+				continue;
+			}
+			if ( cursorCapacity != currentStore.getCapacity() ) {
+				cursor = 0;
+				cursorCapacity = currentStore.getCapacity();
+			}
+			int buckets = (int) Math.min( remaining, cursorCapacity - cursor );
+			cursor = currentStore.relocate( cursor, buckets, ID_ORDER );
+			remaining -= buckets;
+			if ( cursor == cursorCapacity ) {
+				after.add( currentStore );
+				peaks.put( current, currentStore.size() );
+				storesDone++;
+				current = null;
+				currentStore = null;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compacts every store right away, finishing (and replacing) the pass in
+	 * progress if any.
+	 * @return The pass done.
+	 */
+	public Pass compact() {
+		entityManager.checkStructuralChange();
+		startPass( true );
+		step( Integer.MAX_VALUE );
+		return lastPass;
+	}
+
+	/**
+	 * Picks the stores to go through.
+	 * @param all True to take every store, false for the fragmented ones.
+	 * @return True if there's something to do.
+	 */
+	private boolean startPass( boolean all ) {
+		pending.clear();
+		current = null;
+		currentStore = null;
+		for ( Map.Entry<Class<? extends Component>, Map<Long, Component>> entry
+				: entityManager.getComponentsByClass().entrySet() ) {
+			if ( ! ( entry.getValue() instanceof IncrementalHashMap ) ) {
+				continue;
+			}
+			IncrementalHashMap<Long, Component> store = (IncrementalHashMap<Long, Component>) entry.getValue();
+			int size = store.size();
+			Integer peak = peaks.get( entry.getKey() );
+			if ( peak == null || peak < size ) {
+				peaks.put( entry.getKey(), size );
+				peak = size;
+			}
+			boolean shrunk = size * 4L <= peak * 3L;
+			boolean overAllocated = store.getCapacity() > 16 && size * 8L <= store.getCapacity() * 3L;
+			if ( all || shrunk || overAllocated ) {
+				pending.add( entry.getKey() );
+			}
+		}
+		peaks.keySet().retainAll( entityManager.getComponentsByClass().keySet() );
+		before = new Fragmentation();
+		after = new Fragmentation();
+		for ( AtomicBitSet bits : entityManager.getTagsByClass().values() ) {
+			before.add( bits );
+		}
+		storesDone = 0;
+		passing = all || ! pending.isEmpty();
+		return passing;
+	}
+
+	/**
+	 * Moves on to the next store of the pass, measuring it and starting to shrink it.
+	 * @return False if there's none left.
+	 */
+	private boolean nextStore() {
+		while ( ! pending.isEmpty() ) {
+			Class<? extends Component> type = pending.poll();
+			Map<Long, Component> store = entityManager.getComponentsByClass().get( type );
+			if ( store instanceof IncrementalHashMap ) {
+				current = type;
+				currentStore = (IncrementalHashMap<Long, Component>) store;
+				before.add( currentStore );
+				currentStore.shrink();
+				cursor = 0;
+				cursorCapacity = currentStore.getCapacity();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void finishPass() {
+		int releasedPages = 0;
+		for ( AtomicBitSet bits : entityManager.getTagsByClass().values() ) {
+			releasedPages += bits.trim();
+			after.add( bits );
+		}
+		lastPass = new Pass( before, after, storesDone, releasedPages );
+		passCount++;
+		passing = false;
+		before = null;
+		after = null;
+	}
+
+	/**
+	 * Measures the stores and tags of the manager as they are.
+	 */
+	public Fragmentation measure() {
+		Fragmentation fragmentation = new Fragmentation();
+		for ( Map<Long, Component> store : entityManager.getComponentsByClass().values() ) {
+			if ( store instanceof IncrementalHashMap ) {
+				fragmentation.add( (IncrementalHashMap<Long, Component>) store );
+			}
+		}
+		for ( AtomicBitSet bits : entityManager.getTagsByClass().values() ) {
+			fragmentation.add( bits );
+		}
+		return fragmentation;
+	}
+
+	public boolean isPassInProgress() {
+		return passing;
+	}
+
+	/**
+	 * @return The last pass finished, null if none has.
+	 */
+	public Pass getLastPass() {
+		return lastPass;
+	}
+
+	public long getPassCount() {
+		return passCount;
+	}
+
+	public EntityManager getEntityManager() {
+		return entityManager;
+	}
+
+	/*
+	 * How fragmented some stores are:
+	 * - load, components per bucket: iterating costs a step per bucket, empty
+	 *   or not, so a low load means time spent scanning empty buckets;
+	 * - tag density, set bits per allocated bit of the tag bitsets.
+	 * Where the nodes of a store lie in the heap can't be measured from Java,
+	 * so relocating them doesn't show here.
+	 */
+	public static final class Fragmentation {
+		private int  stores;
+		private long components;
+		private long buckets;
+		private long tagBits;
+		private long tagPages;
+
+		void add( IncrementalHashMap<Long, Component> store ) {
+			stores++;
+			components += store.size();
+			buckets += store.getCapacity();
+		}
+
+		void add( AtomicBitSet bits ) {
+			tagBits += bits.cardinality();
+			tagPages += bits.getPageCount();
+		}
+
+		public int getStoreCount() {
+			return stores;
+		}
+
+		public long getComponentCount() {
+			return components;
+		}
+
+		public long getBucketCount() {
+			return buckets;
+		}
+
+		/**
+		 * @return Components per bucket, around 0.4 to 0.75 for stores that don't
+		 *         need compacting.
+		 */
+		public double getLoad() {
+			return buckets == 0 ? 1 : (double) components / buckets;
+		}
+
+		public long getTagPageCount() {
+			return tagPages;
+		}
+
+		/**
+		 * @return Set bits per bit allocated by the tag bitsets.
+		 */
+		public double getTagDensity() {
+			return tagPages == 0 ? 1 : tagBits / ( tagPages * 4096.0 );
+		}
+
+		@Override
+		public String toString() {
+			return String.format( "%d stores, %d components in %d buckets (load %.2f), %d tag pages (density %.3f)",
+					stores, components, buckets, getLoad(), tagPages, getTagDensity() );
+		}
+	}
+
+	/*
+	 * Outcome of a compaction pass: the stores it went through, measured when
+	 * it got to them and once it was done with them, and the tags, measured
+	 * when the pass started and once their bitsets were trimmed.
+	 */
+	public static final class Pass {
+		private final Fragmentation before;
+		private final Fragmentation after;
+		private final int           stores;
+		private final int           releasedPages;
+
+		Pass( Fragmentation before, Fragmentation after, int stores, int releasedPages ) {
+			this.before = before;
+			this.after = after;
+			this.stores = stores;
+			this.releasedPages = releasedPages;
+		}
+
+		public Fragmentation getBefore() {
+			return before;
+		}
+
+		public Fragmentation getAfter() {
+			return after;
+		}
+
+		/**
+		 * @return The stores compacted, not counting the ones removed before the pass got to them.
+		 */
+		public int getStoreCount() {
+			return stores;
+		}
+
+		/**
+		 * @return Tag bitset pages released.
+		 */
+		public int getReleasedPageCount() {
+			return releasedPages;
+		}
+
+		@Override
+		public String toString() {
+			return stores + " stores: " + before + " -> " + after + ", " + releasedPages + " tag pages released";
+		}
+	}
+}
@@ -1,4 +1,9 @@
 package jlarv;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
  /*
     Abstract base class from which every system will inherit from.
     Systems implement  the logic around the game.
@@ -9,6 +14,23 @@ package jlarv;
 
     When wanting to get components from entity manager, remember to call for those
     using SomeComponent.class, else they will not be recognized.
+
+    Every system belongs to a Phase (UPDATE by default). The engine runs the
+    phases in order and, inside a phase, the systems from lower to higher priority.
+
+    Systems that don't need to run every tick can set an update interval, in
+    ticks (setTickInterval) and/or in seconds (setTimeInterval); they then receive
+    the whole time elapsed since their last update as delta. Systems can also
+    register the query they work on (registerQuery): while no entity matches it,
+    the engine skips them altogether. Likewise, systems that subscribe to event
+    channels (subscribe) are skipped while none of them has events to read.
+
+    Systems can declare which component types they read and which they write
+    (calling reads() and writes() from their constructor). When the engine runs
+    in parallel mode, systems whose declarations don't conflict are updated at
+    the same time; they can only add and remove components meanwhile if the
+    EntityManager is concurrent. A system that declares nothing is assumed to touch
+    everything and always runs alone.
   */
                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                                          
 public abstract class System implements Comparable<System> {
@@ -16,10 +38,35 @@ public abstract class System implements Comparable<System> {
 	protected EntityManager  entityManager;
 	protected EntityFactory  entityFactory;
 	protected GroupManager   groupManager;
+	protected JobScheduler   jobScheduler;
+	protected EventBus       eventBus;
 	private   int 		      priority;
+	private   Phase           phase;
+	
+	/* Component types this system declared to read / write, null if it never declared them */
+	private Set<Class<? extends Component>> readTypes;
+	private Set<Class<? extends Component>> writeTypes;
+	
+	/* Update interval and the time/ticks accumulated since the last update */
+	private int                          tickInterval = 1;
+	private float                        timeInterval;
+	private int                          ticksSinceUpdate;
+	private float                        timeSinceUpdate;
+	/* Components an entity needs for this system to have work, null if not registered */
+	private Class<? extends Component>[] query;
+	/* Channels this system reads, it has no work while all of them are empty. Null if none */
+	private EventChannel<?>[]            subscriptions;
+	
+	/* Entities processed since the profiler last asked, see countProcessed */
+	private int processedCount;
 	
 	public System ( int priority ) {
+		this( priority, Phase.UPDATE );
+	}
+	
+	public System ( int priority, Phase phase ) {
 		this.priority = priority;
+		this.phase = phase;
 	}
 		
 	/**
@@ -35,12 +82,167 @@ public abstract class System implements Comparable<System> {
 	    entityManager = null;
 	    entityFactory = null;
 	    groupManager = null;
+	    jobScheduler = null;
+	    eventBus = null;
     }
 	
+	/**
+	 * Runs the given job off the simulation thread; its result is applied at the
+	 * start of a later engine update. Removing the owner entity cancels it.
+	 * @see Job
+	 */
+	protected <J extends Job<?>> J submitJob( long owner, J job ) {
+		return jobScheduler.submit( owner, job );
+	}
+	
+	/**
+	 * Same as submitJob( owner, job ) for jobs that don't belong to any entity.
+	 */
+	protected <J extends Job<?>> J submitJob( J job ) {
+		return jobScheduler.submit( Job.NO_OWNER, job );
+	}
+	
+	/**
+	 * Called by the engine every tick instead of update: accumulates the elapsed
+	 * time and only updates the system if it's due and not idle.
+	 * @param profiler Measures the update, null if profiling is disabled.
+	 */
+	final void dispatch( float delta, SystemProfiler profiler ) {
+		ticksSinceUpdate++;
+		timeSinceUpdate += delta;
+		if ( ticksSinceUpdate < tickInterval || timeSinceUpdate < timeInterval ) {
+			return;
+		}
+		float elapsed = timeSinceUpdate;
+		ticksSinceUpdate = 0;
+		timeSinceUpdate = 0;
+		// An idle system doesn't keep the time it skipped, nothing was waiting for it
+		if ( query != null && ! entityManager.hasEntitiesHavingComponents( query ) ) {
+			return;
+		}
+		if ( subscriptions != null && ! hasEvents() ) {
+			return;
+		}
+		if ( profiler != null ) {
+			profiler.update( this, elapsed );
+		} else {
+			update( elapsed );
+		}
+	}
+	
+	/**
+	 * Registers the components an entity must have for this system to process it.
+	 * While no entity has all of them, the engine skips the system.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	protected final void registerQuery( Class<? extends Component> ... components ) {
+		this.query = components;
+	}
+	
+	/**
+	 * Subscribes the system to the given event channels: while none of them has
+	 * events to read, the engine skips the system.
+	 */
+	protected void subscribe( EventChannel<?> ... channels ) {
+		this.subscriptions = channels;
+	}
+	
+	private boolean hasEvents() {
+		for ( EventChannel<?> channel : subscriptions ) {
+			if ( channel.hasEvents() ) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Reports that the system processed the given number of entities during the
+	 * current update. Only used by the SystemProfiler, it's fine to never call it.
+	 */
+	protected void countProcessed( int entities ) {
+		processedCount += entities;
+	}
+	
+	/**
+	 * Returns the entities processed since the last call and resets the count.
+	 */
+	int takeProcessedCount() {
+		int count = processedCount;
+		processedCount = 0;
+		return count;
+	}
+	
+	/**
+	 * Declares that this system reads the given component types.
+	 * Should be called from the constructor, before the system is added to an engine.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	protected final void reads( Class<? extends Component> ... types ) {
+		if ( readTypes == null ) {
+			readTypes = new HashSet<Class<? extends Component>>();
+		}
+		Collections.addAll( readTypes, types );
+	}
+	
+	/**
+	 * Declares that this system writes the given component types.
+	 * Writing covers changing the data of components of that type. Adding or
+	 * removing them is covered too, but only with a concurrent EntityManager:
+	 * a regular one is a plain map of stores that refuses structural changes
+	 * (IllegalStateException) while systems update in parallel.
+	 * Creating or removing entities isn't covered by any declaration: systems that do
+	 * so shouldn't declare their access, so they never run concurrently with others.
+	 * Should be called from the constructor, before the system is added to an engine.
+	 */
+	@SafeVarargs
+	@SuppressWarnings("varargs")
+	protected final void writes( Class<? extends Component> ... types ) {
+		if ( writeTypes == null ) {
+			writeTypes = new HashSet<Class<? extends Component>>();
+		}
+		Collections.addAll( writeTypes, types );
+	}
+	
+	/**
+	 * @return True if the system declared its reads or writes.
+	 */
+	public boolean declaresAccess() {
+		return readTypes != null || writeTypes != null;
+	}
+	
+	/**
+	 * Returns true if both systems can't safely update at the same time, either
+	 * because one writes something the other reads or writes, or because one of them
+	 * never declared its access.
+	 */
+	public boolean conflictsWith( System other ) {
+		if ( ! declaresAccess() || ! other.declaresAccess() ) {
+			return true;
+		}
+		return writesAnyOf( other.readTypes ) || writesAnyOf( other.writeTypes )
+				|| other.writesAnyOf( readTypes );
+	}
+	
+	private boolean writesAnyOf( Set<Class<? extends Component>> types ) {
+		if ( writeTypes == null || types == null ) {
+			return false;
+		}
+		for ( Class<? extends Component> type : types ) {
+			if ( writeTypes.contains( type ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * Implement Comparator interface.
 	 * Allows us to iterate over the systems in priority order.
 	 * The system with the lower priority will be the first to update.
+	 * Only compares priorities, phases are ordered by the engine.
 	 */
 	@Override 
 	public final int compareTo( System other ) {
@@ -66,9 +268,33 @@ public abstract class System implements Comparable<System> {
     public GroupManager getGroupManager() {
         return groupManager;
     }
+    public JobScheduler getJobScheduler() {
+        return jobScheduler;
+    }
+    public EventBus getEventBus() {
+        return eventBus;
+    }
     public int getPriority() {
         return priority;
     }
+    public Phase getPhase() {
+        return phase;
+    }
+    public Class<? extends Component>[] getQuery() {
+        return query;
+    }
+    public int getTickInterval() {
+        return tickInterval;
+    }
+    public float getTimeInterval() {
+        return timeInterval;
+    }
+    public Set<Class<? extends Component>> getReadTypes() {
+        return readTypes == null ? Collections.<Class<? extends Component>>emptySet() : readTypes;
+    }
+    public Set<Class<? extends Component>> getWriteTypes() {
+        return writeTypes == null ? Collections.<Class<? extends Component>>emptySet() : writeTypes;
+    }
     
     public void setEntityManager( EntityManager entityManager ) {
         this.entityManager = entityManager;
@@ -79,8 +305,33 @@ public abstract class System implements Comparable<System> {
     public void setGroupManager( GroupManager groupManager ) {
         this.groupManager = groupManager;
     }
+    public void setJobScheduler( JobScheduler jobScheduler ) {
+        this.jobScheduler = jobScheduler;
+    }
+    public void setEventBus( EventBus eventBus ) {
+        this.eventBus = eventBus;
+    }
     public void setPriority ( int priority ) {
         this.priority = priority;
     }
+    /**
+     * Makes the system update only once every given number of ticks (1 = every tick).
+     */
+    public void setTickInterval ( int ticks ) {
+        if ( ticks < 1 ) {
+            throw new IllegalArgumentException( "Tick interval must be at least 1: " + ticks );
+        }
+        this.tickInterval = ticks;
+    }
+    /**
+     * Makes the system update at most once every given number of seconds (0 = every tick).
+     */
+    public void setTimeInterval ( float seconds ) {
+        this.timeInterval = seconds;
+    }
+    /** Use Engine.changeSystemPhase for systems already added to an engine. */
+    public void setPhase ( Phase phase ) {
+        this.phase = phase;
+    }
     
 }
@@ -0,0 +1,302 @@
+package jlarv;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+    Records how long every System takes to update, so we can tell which one
+    made a tick blow its budget.
+
+    For every system it keeps a rolling window of the last samples of:
+      - wall time of the update (System.nanoTime).
+      - entities processed, as reported by the system through countProcessed().
+      - bytes allocated by the updating thread (only if allocation tracking is
+        enabled and the JVM supports it, see setTrackAllocations).
+    The same is kept for the whole Engine.update tick.
+    Percentiles (p50, p99, max...) are computed over the window when asked.
+
+    Optionally, every system update can also be emitted as a Flight Recorder
+    event (jlarv.SystemUpdate), see setEmitEvents.
+
+    The profiler is created by Engine.setProfiling( true ); while profiling is
+    disabled the engine doesn't have one and pays nothing but a null check.
+ */
+public class SystemProfiler {
+
+	private final int window;
+	private final ConcurrentHashMap<System, Stats> statsBySystem;
+	private final Stats tickStats;
+	private volatile boolean trackAllocations;
+	private volatile boolean emitEvents;
+	private final com.sun.management.ThreadMXBean threadBean;
+
+	/**
+	 * @param window Number of samples kept per system to compute the percentiles.
+	 */
+	public SystemProfiler( int window ) {
+		if ( window < 1 ) {
+			throw new IllegalArgumentException( "Window must be positive: " + window );
+		}
+		this.window = window;
+		this.statsBySystem = new ConcurrentHashMap<System, Stats>();
+		this.tickStats = new Stats( window );
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if ( bean instanceof com.sun.management.ThreadMXBean
+		        && ( (com.sun.management.ThreadMXBean) bean ).isThreadAllocatedMemorySupported() ) {
+			threadBean = (com.sun.management.ThreadMXBean) bean;
+		} else {
+			threadBean = null;
+		}
+	}
+
+	public SystemProfiler() {
+		this( 256 );
+	}
+
+	/**
+	 * Updates the given system measuring it. Called by the engine instead of
+	 * system.update when profiling is enabled, possibly from several threads at
+	 * once (but never for the same system).
+	 */
+	void update( System system, float delta ) {
+		Stats stats = statsBySystem.get( system );
+		if ( stats == null ) {
+			stats = new Stats( window );
+			Stats previous = statsBySystem.putIfAbsent( system, stats );
+			if ( previous != null ) {
+				stats = previous;
+			}
+		}
+		SystemUpdateEvent event = null;
+		if ( emitEvents ) {
+			event = new SystemUpdateEvent();
+			event.begin();
+		}
+		boolean allocations = trackAllocations;
+		long allocatedBefore = allocations ? allocatedBytes() : 0;
+		long start = java.lang.System.nanoTime();
+
+		system.update( delta );
+
+		long elapsed = java.lang.System.nanoTime() - start;
+		long allocated = allocations ? allocatedBytes() - allocatedBefore : 0;
+		int processed = system.takeProcessedCount();
+		stats.record( elapsed, processed, allocated );
+
+		if ( event != null ) {
+			event.end();
+			if ( event.shouldCommit() ) {
+				event.system = system.getClass().getName();
+				event.priority = system.getPriority();
+				event.entities = processed;
+				event.allocatedBytes = allocated;
+				event.commit();
+			}
+		}
+	}
+
+	/**
+	 * Records the duration of a whole Engine.update call.
+	 */
+	void recordTick( long elapsedNanos ) {
+		tickStats.record( elapsedNanos, 0, 0 );
+	}
+
+	private long allocatedBytes() {
+		return threadBean.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+
+	/**
+	 * @return The stats of the given system, or null if it never updated while profiling.
+	 */
+	public Stats getStats( System system ) {
+		return statsBySystem.get( system );
+	}
+
+	/**
+	 * @return The stats of every profiled system, slowest (by p99) first.
+	 */
+	public Map<System, Stats> getAllStats() {
+		ArrayList<Map.Entry<System, Stats>> entries = new ArrayList<Map.Entry<System, Stats>>( statsBySystem.entrySet() );
+		final long[] p99 = new long[entries.size()];
+		Integer[] order = new Integer[entries.size()];
+		for ( int i = 0; i < entries.size(); i++ ) {
+			p99[i] = entries.get( i ).getValue().getP99Nanos();
+			order[i] = i;
+		}
+		Arrays.sort( order, new java.util.Comparator<Integer>() {
+			@Override
+			public int compare( Integer a, Integer b ) {
+				return Long.compare( p99[b], p99[a] );
+			}
+		} );
+		LinkedHashMap<System, Stats> sorted = new LinkedHashMap<System, Stats>();
+		for ( Integer i : order ) {
+			sorted.put( entries.get( i ).getKey(), entries.get( i ).getValue() );
+		}
+		return Collections.unmodifiableMap( sorted );
+	}
+
+	/**
+	 * @return The stats of whole ticks (Engine.update calls).
+	 */
+	public Stats getTickStats() {
+		return tickStats;
+	}
+
+	/**
+	 * Forgets every sample recorded so far.
+	 */
+	public void reset() {
+		statsBySystem.clear();
+		tickStats.clear();
+	}
+
+	/**
+	 * Enables measuring the bytes allocated by every system update.
+	 * Costs a ThreadMXBean call before and after every update.
+	 * @return False if the JVM can't measure allocations (and nothing changes).
+	 */
+	public boolean setTrackAllocations( boolean trackAllocations ) {
+		if ( threadBean == null || ( trackAllocations && ! threadBean.isThreadAllocatedMemoryEnabled() ) ) {
+			return false;
+		}
+		this.trackAllocations = trackAllocations;
+		return true;
+	}
+
+	public boolean isTrackAllocations() {
+		return trackAllocations;
+	}
+
+	/**
+	 * Enables emitting a jlarv.SystemUpdate Flight Recorder event per system update.
+	 * The events are only committed while a recording has them enabled.
+	 */
+	public void setEmitEvents( boolean emitEvents ) {
+		this.emitEvents = emitEvents;
+	}
+
+	public boolean isEmitEvents() {
+		return emitEvents;
+	}
+
+	/*
+	 * Rolling window of samples of a single system (or of the whole tick).
+	 * Recording and reading are synchronized on the instance, the lock is
+	 * only ever contended when someone reads the stats while the system updates.
+	 */
+	public static class Stats {
+		private final long[] nanos;
+		private final long[] processed;
+		private final long[] allocated;
+		private int          next;
+		private int          count;
+		private long         total;
+
+		Stats( int window ) {
+			nanos = new long[window];
+			processed = new long[window];
+			allocated = new long[window];
+		}
+
+		synchronized void record( long elapsedNanos, long entities, long allocatedBytes ) {
+			nanos[next] = elapsedNanos;
+			processed[next] = entities;
+			allocated[next] = allocatedBytes;
+			next = ( next + 1 ) % nanos.length;
+			count = Math.min( count + 1, nanos.length );
+			total++;
+		}
+
+		synchronized void clear() {
+			next = 0;
+			count = 0;
+			total = 0;
+		}
+
+		/**
+		 * @param percentile From 0 to 100.
+		 * @return The given percentile of the update times in the window, 0 if empty.
+		 */
+		public synchronized long getPercentileNanos( double percentile ) {
+			if ( count == 0 ) {
+				return 0;
+			}
+			long[] sorted = Arrays.copyOf( nanos, count );
+			Arrays.sort( sorted );
+			int index = (int) Math.ceil( percentile / 100 * count ) - 1;
+			return sorted[Math.max( 0, Math.min( count - 1, index ) )];
+		}
+
+		public long getP50Nanos() {
+			return getPercentileNanos( 50 );
+		}
+
+		public long getP99Nanos() {
+			return getPercentileNanos( 99 );
+		}
+
+		public long getMaxNanos() {
+			return getPercentileNanos( 100 );
+		}
+
+		public synchronized long getLastNanos() {
+			return count == 0 ? 0 : nanos[( next - 1 + nanos.length ) % nanos.length];
+		}
+
+		public synchronized double getMeanNanos() {
+			return mean( nanos );
+		}
+
+		public synchronized long getLastProcessed() {
+			return count == 0 ? 0 : processed[( next - 1 + nanos.length ) % nanos.length];
+		}
+
+		public synchronized double getMeanProcessed() {
+			return mean( processed );
+		}
+
+		public synchronized double getMeanAllocatedBytes() {
+			return mean( allocated );
+		}
+
+		public synchronized long getMaxAllocatedBytes() {
+			long max = 0;
+			for ( int i = 0; i < count; i++ ) {
+				max = Math.max( max, allocated[i] );
+			}
+			return max;
+		}
+
+		/**
+		 * @return Number of samples recorded since the stats were created, not only the window.
+		 */
+		public synchronized long getTotalSamples() {
+			return total;
+		}
+
+		private double mean( long[] samples ) {
+			if ( count == 0 ) {
+				return 0;
+			}
+			double sum = 0;
+			for ( int i = 0; i < count; i++ ) {
+				sum += samples[i];
+			}
+			return sum / count;
+		}
+
+		@Override
+		public String toString() {
+			return String.format( "p50=%.3fms p99=%.3fms max=%.3fms entities=%.0f alloc=%.0fB",
+			                      getP50Nanos() / 1e6, getP99Nanos() / 1e6, getMaxNanos() / 1e6,
+			                      getMeanProcessed(), getMeanAllocatedBytes() );
+		}
+	}
+}
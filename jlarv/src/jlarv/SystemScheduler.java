@@ -0,0 +1,149 @@
+package jlarv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/*
+    Splits the systems of an engine into stages that can be updated in parallel.
+
+    The systems are walked in priority order and every one of them is placed in
+    the first stage that comes after all the previous systems it conflicts with
+    (see System.conflictsWith). That way two systems that touch the same data
+    always keep their priority order, while systems that don't share anything
+    end up in the same stage and update concurrently.
+    Phases are barriers too: systems of different phases never share a stage.
+    Every stage acts as a barrier: the next one doesn't start until all the
+    systems of the current one are done.
+
+    The stages are only computed on construction, the engine builds a new
+    scheduler whenever its systems change.
+ */
+class SystemScheduler {
+
+	private final SystemTask[][] stages;
+
+	/**
+	 * @param systems The systems to schedule, already sorted in update order (phase, priority).
+	 */
+	SystemScheduler( System[] systems ) {
+		int[] stageOf = new int[systems.length];
+		int stageCount = 0;
+		for ( int i = 0; i < systems.length; i++ ) {
+			int stage = 0;
+			for ( int j = 0; j < i; j++ ) {
+				if ( stageOf[j] >= stage && ( systems[i].getPhase() != systems[j].getPhase()
+				                              || systems[i].conflictsWith( systems[j] ) ) ) {
+					stage = stageOf[j] + 1;
+				}
+			}
+			stageOf[i] = stage;
+			stageCount = Math.max( stageCount, stage + 1 );
+		}
+
+		ArrayList<ArrayList<SystemTask>> grouped = new ArrayList<ArrayList<SystemTask>>();
+		for ( int i = 0; i < stageCount; i++ ) {
+			grouped.add( new ArrayList<SystemTask>() );
+		}
+		for ( int i = 0; i < systems.length; i++ ) {
+			grouped.get( stageOf[i] ).add( new SystemTask( systems[i] ) );
+		}
+		stages = new SystemTask[stageCount][];
+		for ( int i = 0; i < stageCount; i++ ) {
+			stages[i] = grouped.get( i ).toArray( new SystemTask[0] );
+		}
+	}
+
+	/**
+	 * Updates every stage in order, running the systems inside a stage on the given pool.
+	 * Stages with a single system are updated on the calling thread.
+	 * Any exception thrown by a system is rethrown here once its stage finishes.
+	 * While a stage runs in parallel, the entity manager refuses structural
+	 * changes unless it's concurrent, see System.writes.
+	 * @param profiler Measures every system update, null if profiling is disabled.
+	 * @param eventBus Told whenever a stage starts a new phase.
+	 */
+	void update( float delta, ForkJoinPool pool, SystemProfiler profiler, EventBus eventBus,
+	             EntityManager entityManager ) {
+		for ( SystemTask[] stage : stages ) {
+			eventBus.enterPhase( stage[0].system.getPhase() );
+			if ( stage.length == 1 ) {
+				stage[0].system.dispatch( delta, profiler );
+				continue;
+			}
+			for ( SystemTask task : stage ) {
+				task.reinitialize();
+				task.delta = delta;
+				task.profiler = profiler;
+			}
+			entityManager.beginParallel();
+			try {
+				pool.invoke( new StageTask( stage ) );
+			} finally {
+				entityManager.endParallel();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of stages (barriers) per update.
+	 */
+	int getStageCount() {
+		return stages.length;
+	}
+
+	/**
+	 * @return The systems that update together in the given stage.
+	 */
+	System[] getStage( int index ) {
+		System[] systems = new System[stages[index].length];
+		for ( int i = 0; i < systems.length; i++ ) {
+			systems[i] = stages[index][i].system;
+		}
+		return systems;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for ( int i = 0; i < stages.length; i++ ) {
+			builder.append( "stage " ).append( i ).append( ": " )
+			       .append( Arrays.toString( getStage( i ) ) ).append( '\n' );
+		}
+		return builder.toString();
+	}
+
+	/* Forks every system of a stage and waits for all of them. */
+	private static class StageTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final SystemTask[] tasks;
+
+		StageTask( SystemTask[] tasks ) {
+			this.tasks = tasks;
+		}
+
+		@Override
+		protected void compute() {
+			ForkJoinTask.invokeAll( tasks );
+		}
+	}
+
+	/* Reusable task that updates a single system. */
+	private static class SystemTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final System system;
+		float delta;
+		SystemProfiler profiler;
+
+		SystemTask( System system ) {
+			this.system = system;
+		}
+
+		@Override
+		protected void compute() {
+			system.dispatch( delta, profiler );
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package jlarv;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+ * Flight Recorder event emitted by the SystemProfiler for every system update
+ * when JFR events are enabled on it. The event duration is the update wall time.
+ */
+@Name( "jlarv.SystemUpdate" )
+@Label( "System Update" )
+@Category( "jlarv" )
+@Description( "Update of a single System inside Engine.update" )
+class SystemUpdateEvent extends Event {
+
+	@Label( "System" )
+	String system;
+
+	@Label( "Priority" )
+	int priority;
+
+	@Label( "Entities Processed" )
+	long entities;
+
+	@Label( "Allocated" )
+	@DataAmount
+	long allocatedBytes;
+}
@@ -0,0 +1,20 @@
+package jlarv;
+
+/*
+  Abstract class for marker components, the ones that carry no data at all
+  (Frozen, Selected, Visible...).
+
+  Tags are not stored as objects: the EntityManager keeps a single bitset per
+  tag type, so adding or removing a tag is just flipping a bit.
+  Queries treat them like any other component, so a tag class can be mixed
+  with data component classes in hasComponent, getEntitiesHavingComponents, etc.
+
+  USAGE:
+    public class FrozenTag extends TagComponent {}
+
+    entityManager.addTag( entity, FrozenTag.class );
+    entityManager.hasComponent( entity, FrozenTag.class ); // true
+ */
+public abstract class TagComponent extends Component {
+
+}
@@ -0,0 +1,13 @@
+package jlarv;
+
+/*
+ * Anything that can be stepped by a GameLoop, that is, Engines and Worlds.
+ */
+public interface Updatable {
+	
+	/**
+	 * Advances the simulation.
+	 * @param delta The time elapsed since the last update, in seconds.
+	 */
+	public void update( float delta );
+}
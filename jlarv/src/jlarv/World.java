@@ -1,8 +1,9 @@
 package jlarv;
 
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 import jlarv.util.*;
-import jlarv.util.tuple.*;
 
 //TODO: add a way to recognize when there aren't anymore engines left, to end the program
 
@@ -15,36 +16,53 @@ import jlarv.util.tuple.*;
 
     It's not a bad idea to define a global World instance on your games, as
     using many different worlds will rarely be needed.
+
+    Engines can also be ticked in the background (runInBackground), each one on
+    its own thread and at its own rate, whether they're on the stack or not:
+    background simulations, loading screens, server shards... An engine ticking
+    in the background is skipped by update() even if it's on top of the stack,
+    and it must only be touched from its own thread while it runs.
+    Pushing, popping, exchanging and starting/stopping background engines are
+    synchronized, so they can be done from any thread.
+
+    Post update functions are the way for any thread (background engines, job
+    workers, network...) to schedule work on the thread calling update(): they
+    go into a lock-free queue and update() runs them, in order, right after the
+    engine on top of the stack.
  */
-public class World {
+public class World implements Updatable {
 	private ArrayDeque<Engine> engine_stack; // holds all the engines
+	private HashMap<Engine, BackgroundEngine> background; // engines ticking on their own threads
+	private int backgroundThreads;
 	
-	// Variables to manage post update functions.
-	private ArrayList<Tuple> postupdate_functions;
-	private final TupleType functionArgsTupleType = 
-			TupleType.DefaultFactory.create(
-					Callable.class, //the function, will need to implement a call method
-					ArrayList.class //arguments of the function
-					);
+	// Post update functions, enqueued from any thread and run by update().
+	private final MpscQueue<Runnable> postupdate_functions;
+	private final Consumer<Runnable> runner = new Consumer<Runnable>() {
+		@Override
+		public void accept( Runnable function ) {
+			function.run();
+		}
+	};
 	
 	
 	public World() {
 		engine_stack = new ArrayDeque<Engine>();
-		postupdate_functions = new ArrayList<Tuple>();
+		background = new HashMap<Engine, BackgroundEngine>();
+		postupdate_functions = new MpscQueue<Runnable>();
 	}
 	
 	/**
 	 * Adds the given Engine to the engine stack, giving it instant priority
 	 * when updating.
 	 */
-	public void push( Engine engine ) {
+	public synchronized void push( Engine engine ) {
 		engine_stack.push( engine );
 	}
 	
 	/**
 	 * Removes and returns the Engine on top of the stack.
 	 */
-	public Engine pop() {
+	public synchronized Engine pop() {
 		return engine_stack.pop();
 	}
 	
@@ -52,46 +70,158 @@ public class World {
 	 * Exchanges the actual engine for the given engine.
 	 * @return the last active engine.
 	 */
-	public Engine exchange( Engine engine ) {
+	public synchronized Engine exchange( Engine engine ) {
 		Engine popped = this.pop();
 		push( engine );
 		return popped;		
 	}
 	
 	/**
-	 * Updates only the system on top of the stack.
+	 * Starts ticking the given engine on a thread of its own, at a fixed step.
+	 * @param stepSeconds Fixed simulation step of the engine, in seconds.
+	 * @return The loop running the engine, already started.
+	 */
+	public synchronized GameLoop runInBackground( Engine engine, float stepSeconds ) {
+		if ( background.containsKey( engine ) ) {
+			throw new IllegalStateException( "Engine already running in the background" );
+		}
+		GameLoop loop = new GameLoop( engine, stepSeconds );
+		loop.setPacing( GameLoop.Pacing.PARK );
+		Thread thread = new Thread( loop, "jlarv-engine-" + ( ++backgroundThreads ) );
+		thread.setDaemon( true );
+		background.put( engine, new BackgroundEngine( loop, thread ) );
+		thread.start();
+		return loop;
+	}
+	
+	/**
+	 * Stops ticking the given engine in the background, waiting for its current
+	 * frame to finish. Afterwards it can be updated from the stack again.
+	 * @return False if it wasn't running in the background.
+	 */
+	public boolean stopBackground( Engine engine ) {
+		BackgroundEngine runner;
+		synchronized ( this ) {
+			runner = background.remove( engine );
+		}
+		if ( runner == null ) {
+			return false;
+		}
+		runner.stop();
+		return true;
+	}
+	
+	public synchronized boolean isRunningInBackground( Engine engine ) {
+		return background.containsKey( engine );
+	}
+	
+	/**
+	 * Updates only the engine on top of the stack, unless it's running in the background.
 	 * Also calls any post update function and resets the post update functions list.
 	 * @param delta The time elapsed since the last update.
 	 */
 	public void update( float delta ) {
-		engine_stack.peek().update( delta );
-		
-		for ( Tuple tuple : postupdate_functions ) {
-			Callable function = tuple.getNthValue( 0 );
-			ArrayList<Object> args = tuple.getNthValue( 1 );
-			
-			function.call( args );
+		Engine top;
+		synchronized ( this ) {
+			top = engine_stack.peek();
+			if ( background.containsKey( top ) ) {
+				top = null;
+			}
 		}
-		postupdate_functions.clear();
+		if ( top != null ) {
+			top.update( delta );
+		}
+		
+		// Functions added while running these ones wait for the next update
+		postupdate_functions.drain( runner );
 	}
 	
 	/**
 	 * Adds a new function to be called at the end of the next update loop.
+	 * Can be called from any thread.
+	 */
+	public void addPostUpdateTask( Runnable task ) {
+		postupdate_functions.offer( task );
+	}
+	
+	/**
+	 * Adds a new function to be called with the given argument at the end of the
+	 * next update loop. Can be called from any thread.
+	 * @param func - the function we want to call
+	 * @param argument - the argument it will receive
+	 */
+	public <T> void addPostUpdateFunction( final Consumer<? super T> func, final T argument ) {
+		postupdate_functions.offer( new Runnable() {
+			@Override
+			public void run() {
+				func.accept( argument );
+			}
+		} );
+	}
+	
+	/**
+	 * Adds a new function to be called at the end of the next update loop.
+	 * Can be called from any thread.
 	 * @param func - the function we want to call
 	 * @param args - array list with the arguments we want to use in the function
+	 * @deprecated Boxes every argument, use addPostUpdateFunction( Consumer, T ) or addPostUpdateTask.
 	 */
-	public void addPostUpdateFunction( Callable func, ArrayList<Object> args ) {
-		final Tuple tuple = functionArgsTupleType.createTuple( func, args );
-		postupdate_functions.add( tuple );
+	@Deprecated
+	public void addPostUpdateFunction( final Callable func, final ArrayList<Object> args ) {
+		postupdate_functions.offer( new Runnable() {
+			@Override
+			public void run() {
+				func.call( args );
+			}
+		} );
 	}
 	
 	/**
 	 * Cleans up.
 	 */
 	public void dispose () {
-	    for ( Engine engine : engine_stack ) {
-	        engine.dispose();
+	    ArrayList<BackgroundEngine> runners;
+	    synchronized ( this ) {
+	        runners = new ArrayList<BackgroundEngine>( background.values() );
+	        background.clear();
 	    }
-	    engine_stack.clear();
+	    for ( BackgroundEngine runner : runners ) {
+	        runner.stop();
+	    }
+	    synchronized ( this ) {
+	        for ( Engine engine : engine_stack ) {
+	            engine.dispose();
+	        }
+	        engine_stack.clear();
+	    }
+	}
+	
+	/*
+	 * An engine ticking on its own thread.
+	 */
+	private static class BackgroundEngine {
+		final GameLoop loop;
+		final Thread   thread;
+		
+		BackgroundEngine( GameLoop loop, Thread thread ) {
+			this.loop = loop;
+			this.thread = thread;
+		}
+		
+		void stop() {
+			loop.stop();
+			LockSupport.unpark( thread );
+			boolean interrupted = false;
+			while ( thread.isAlive() ) {
+				try {
+					thread.join();
+				} catch ( InterruptedException e ) {
+					interrupted = true;
+				}
+			}
+			if ( interrupted ) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 }
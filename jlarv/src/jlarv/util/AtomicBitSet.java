@@ -0,0 +1,308 @@
+package jlarv.util;
+
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/*
+ * Growable bitset that can be read and written from many threads at once.
+ *
+ * Bits live in fixed size pages (AtomicLongArray) reached through a directory
+ * that only grows. Reads are wait-free (a couple of volatile reads), and setting
+ * or clearing a bit is a CAS on its word, so writers only contend when they touch
+ * the same 64 bits. Only allocating a new page takes a lock.
+ * The number of set bits is tracked on every change, so cardinality() and
+ * isEmpty() are O(1).
+ *
+ * Used by the EntityManager to store tags.
+ */
+public class AtomicBitSet {
+
+	private static final int PAGE_SHIFT = 12;                  // 4096 bits per page
+	private static final int PAGE_WORDS = 1 << ( PAGE_SHIFT - 6 );
+
+	private volatile AtomicReferenceArray<AtomicLongArray> pages;
+	private final AtomicInteger cardinality = new AtomicInteger();
+
+	public AtomicBitSet() {
+		pages = new AtomicReferenceArray<AtomicLongArray>( 1 );
+	}
+
+	/**
+	 * @return The value of the given bit.
+	 */
+	public boolean get( int index ) {
+		AtomicLongArray page = page( index );
+		return page != null && ( page.get( word( index ) ) & ( 1L << index ) ) != 0;
+	}
+
+	/**
+	 * Sets the given bit.
+	 * @return True if it wasn't set before.
+	 */
+	public boolean set( int index ) {
+		AtomicLongArray page = page( index );
+		if ( page == null ) {
+			page = createPage( index );
+		}
+		int word = word( index );
+		long mask = 1L << index;
+		long current;
+		do {
+			current = page.get( word );
+			if ( ( current & mask ) != 0 ) {
+				return false;
+			}
+		} while ( ! page.compareAndSet( word, current, current | mask ) );
+		cardinality.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Clears the given bit.
+	 * @return True if it was set before.
+	 */
+	public boolean clear( int index ) {
+		AtomicLongArray page = page( index );
+		if ( page == null ) {
+			return false;
+		}
+		int word = word( index );
+		long mask = 1L << index;
+		long current;
+		do {
+			current = page.get( word );
+			if ( ( current & mask ) == 0 ) {
+				return false;
+			}
+		} while ( ! page.compareAndSet( word, current, current & ~mask ) );
+		cardinality.decrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Sets or clears the given bit.
+	 * @return True if its value changed.
+	 */
+	public boolean set( int index, boolean value ) {
+		return value ? set( index ) : clear( index );
+	}
+
+	/**
+	 * @return The number of set bits.
+	 */
+	public int cardinality() {
+		return cardinality.get();
+	}
+
+	public boolean isEmpty() {
+		return cardinality.get() == 0;
+	}
+
+	/**
+	 * @return One more than the highest bit this set has room for without growing.
+	 */
+	public int capacity() {
+		return pages.length() << PAGE_SHIFT;
+	}
+
+	/**
+	 * @return The index of the first set bit at or after from, or -1 if there's none.
+	 */
+	public int nextSetBit( int from ) {
+		AtomicReferenceArray<AtomicLongArray> directory = pages;
+		int pageIndex = from >>> PAGE_SHIFT;
+		int word = word( from );
+		long mask = -1L << from;
+		for ( ; pageIndex < directory.length(); pageIndex++, word = 0, mask = -1L ) {
+			AtomicLongArray page = directory.get( pageIndex );
+			if ( page == null ) {
+				continue;
+			}
+			for ( ; word < PAGE_WORDS; word++, mask = -1L ) {
+				long bits = page.get( word ) & mask;
+				if ( bits != 0 ) {
+					return ( pageIndex << PAGE_SHIFT ) + ( word << 6 ) + Long.numberOfTrailingZeros( bits );
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Clears every bit.
+	 */
+	public synchronized void clear() {
+		pages = new AtomicReferenceArray<AtomicLongArray>( 1 );
+		cardinality.set( 0 );
+	}
+
+	/**
+	 * Releases the pages without any set bit, and the end of the directory if
+	 * they were the last ones.
+	 * Bits being set by other threads at the same time may be lost, so it's
+	 * only safe when nobody else is writing.
+	 * @return The number of pages released.
+	 */
+	public synchronized int trim() {
+		AtomicReferenceArray<AtomicLongArray> directory = pages;
+		int released = 0;
+		int length = 0;
+		for ( int i = 0; i < directory.length(); i++ ) {
+			AtomicLongArray page = directory.get( i );
+			if ( page == null ) {
+				continue;
+			}
+			boolean empty = true;
+			for ( int word = 0; word < PAGE_WORDS && empty; word++ ) {
+				empty = page.get( word ) == 0;
+			}
+			if ( empty ) {
+				directory.set( i, null );
+				released++;
+			} else {
+				length = i + 1;
+			}
+		}
+		if ( length < directory.length() / 2 ) {
+			AtomicReferenceArray<AtomicLongArray> trimmed = new AtomicReferenceArray<AtomicLongArray>( Math.max( length, 1 ) );
+			for ( int i = 0; i < length; i++ ) {
+				trimmed.set( i, directory.get( i ) );
+			}
+			pages = trimmed;
+		}
+		return released;
+	}
+
+	/**
+	 * @return The number of pages allocated, each holds 4096 bits.
+	 */
+	public int getPageCount() {
+		AtomicReferenceArray<AtomicLongArray> directory = pages;
+		int count = 0;
+		for ( int i = 0; i < directory.length(); i++ ) {
+			if ( directory.get( i ) != null ) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return A stream of the indices of the set bits, in increasing order.
+	 */
+	public IntStream stream() {
+		return StreamSupport.intStream( new BitSpliterator( 0, capacity() ), false );
+	}
+
+	/**
+	 * @return A spliterator over the indices of the set bits. Splits by bit ranges.
+	 */
+	public Spliterator.OfInt spliterator() {
+		return new BitSpliterator( 0, capacity() );
+	}
+
+	private AtomicLongArray page( int index ) {
+		if ( index < 0 ) {
+			throw new IndexOutOfBoundsException( "Negative bit index: " + index );
+		}
+		AtomicReferenceArray<AtomicLongArray> directory = pages;
+		int pageIndex = index >>> PAGE_SHIFT;
+		return pageIndex < directory.length() ? directory.get( pageIndex ) : null;
+	}
+
+	private static int word( int index ) {
+		return ( index >>> 6 ) & ( PAGE_WORDS - 1 );
+	}
+
+	/**
+	 * Allocates the page holding the given bit, growing the directory if needed.
+	 */
+	private synchronized AtomicLongArray createPage( int index ) {
+		int pageIndex = index >>> PAGE_SHIFT;
+		AtomicReferenceArray<AtomicLongArray> directory = pages;
+		if ( pageIndex >= directory.length() ) {
+			int length = Math.max( pageIndex + 1, directory.length() * 2 );
+			AtomicReferenceArray<AtomicLongArray> grown = new AtomicReferenceArray<AtomicLongArray>( length );
+			for ( int i = 0; i < directory.length(); i++ ) {
+				grown.set( i, directory.get( i ) );
+			}
+			directory = grown;
+			pages = grown;
+		}
+		AtomicLongArray page = directory.get( pageIndex );
+		if ( page == null ) {
+			page = new AtomicLongArray( PAGE_WORDS );
+			directory.set( pageIndex, page );
+		}
+		return page;
+	}
+
+	/*
+	 * Walks the set bits of [from, to), splitting the range in halves aligned to words.
+	 */
+	private class BitSpliterator implements Spliterator.OfInt {
+		private int from;
+		private final int to;
+
+		BitSpliterator( int from, int to ) {
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public boolean tryAdvance( IntConsumer action ) {
+			int next = from < to ? nextSetBit( from ) : -1;
+			if ( next < 0 || next >= to ) {
+				from = to;
+				return false;
+			}
+			from = next + 1;
+			action.accept( next );
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining( IntConsumer action ) {
+			for ( int next = nextSetBit( from ); next >= 0 && next < to; next = nextSetBit( next + 1 ) ) {
+				action.accept( next );
+			}
+			from = to;
+		}
+
+		@Override
+		public Spliterator.OfInt trySplit() {
+			int middle = ( ( from + ( to - from ) / 2 ) >>> 6 ) << 6;
+			if ( middle <= from || middle >= to ) {
+				return null;
+			}
+			BitSpliterator prefix = new BitSpliterator( from, middle );
+			from = middle;
+			return prefix;
+		}
+
+		/**
+		 * Set bits can't be counted per range for free, so the estimate assumes
+		 * they're spread evenly.
+		 */
+		@Override
+		public long estimateSize() {
+			int capacity = capacity();
+			return capacity == 0 ? 0 : (long) cardinality() * ( to - from ) / capacity;
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | DISTINCT | SORTED | NONNULL;
+		}
+
+		@Override
+		public java.util.Comparator<? super Integer> getComparator() {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+package jlarv.util;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Reads back what a BitWriter wrote: same values, same order, same sizes.
+ */
+public class BitReader {
+
+	private ByteBuffer in;
+	private long       pending;
+	private int        pendingBits;
+
+	public BitReader( ByteBuffer in ) {
+		this.in = in;
+	}
+
+	/**
+	 * Reads a value written with the given number of bits.
+	 * @param bits From 0 to 64.
+	 * @throws java.nio.BufferUnderflowException If the buffer runs out of bytes.
+	 */
+	public long read( int bits ) {
+		if ( bits > 32 ) {
+			long high = read( bits - 32 );
+			return ( high << 32 ) | read( 32 );
+		}
+		while ( pendingBits < bits ) {
+			pending = ( pending << 8 ) | ( in.get() & 0xFF );
+			pendingBits += 8;
+		}
+		pendingBits -= bits;
+		return ( pending >>> pendingBits ) & ( ( 1L << bits ) - 1 );
+	}
+
+	public boolean readBoolean() {
+		return read( 1 ) != 0;
+	}
+
+	public long readVarLong() {
+		long value = 0;
+		int shift = 0;
+		long group;
+		do {
+			group = read( 8 );
+			value |= ( group & 0x7F ) << shift;
+			shift += 7;
+		} while ( ( group & 0x80 ) != 0 );
+		return value;
+	}
+
+	public long readSignedVarLong() {
+		long value = readVarLong();
+		return ( value >>> 1 ) ^ -( value & 1 );
+	}
+
+	/**
+	 * Keeps reading from the given buffer, forgetting any pending bit.
+	 */
+	public void reset( ByteBuffer in ) {
+		this.in = in;
+		pendingBits = 0;
+	}
+}
@@ -0,0 +1,100 @@
+package jlarv.util;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Writes values using exactly as many bits as they need into a ByteBuffer,
+ * most significant bit first. Bits are gathered in a long and written a byte
+ * at a time, so the buffer's byte order doesn't matter.
+ * Read them back with a BitReader, in the same order and with the same sizes.
+ *
+ * Usage:
+ *   BitWriter out = new BitWriter( buffer );
+ *   out.write( health, 7 );
+ *   out.writeBoolean( alive );
+ *   out.flush();                         // pads the last byte with zeros
+ */
+public class BitWriter {
+
+	private ByteBuffer out;
+	private long       pending;
+	private int        pendingBits;
+	private long       written;
+
+	public BitWriter( ByteBuffer out ) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes the lowest bits of the given value.
+	 * @param bits From 0 to 64.
+	 * @throws java.nio.BufferOverflowException If the buffer is full.
+	 */
+	public void write( long value, int bits ) {
+		if ( bits > 32 ) {
+			write( value >>> 32, bits - 32 );
+			bits = 32;
+		}
+		if ( bits == 0 ) {
+			return;
+		}
+		// At most 7 + 32 bits are pending at once, the ones above are garbage
+		pending = ( pending << bits ) | ( value & ( ( 1L << bits ) - 1 ) );
+		pendingBits += bits;
+		written += bits;
+		while ( pendingBits >= 8 ) {
+			pendingBits -= 8;
+			out.put( (byte) ( pending >>> pendingBits ) );
+		}
+	}
+
+	public void writeBoolean( boolean value ) {
+		write( value ? 1 : 0, 1 );
+	}
+
+	/**
+	 * Writes an unsigned value 7 bits at a time, using 8 bits for values up to
+	 * 127, 16 up to 16383...
+	 */
+	public void writeVarLong( long value ) {
+		while ( ( value & ~0x7FL ) != 0 ) {
+			write( ( value & 0x7F ) | 0x80, 8 );
+			value >>>= 7;
+		}
+		write( value, 8 );
+	}
+
+	/**
+	 * Writes a signed value, small absolute values using few bits (zigzag encoding).
+	 */
+	public void writeSignedVarLong( long value ) {
+		writeVarLong( ( value << 1 ) ^ ( value >> 63 ) );
+	}
+
+	/**
+	 * Writes the bits still pending, padding the last byte with zeros.
+	 */
+	public void flush() {
+		if ( pendingBits > 0 ) {
+			out.put( (byte) ( pending << ( 8 - pendingBits ) ) );
+			written += 8 - pendingBits;
+			pendingBits = 0;
+		}
+	}
+
+	/**
+	 * Keeps writing into the given buffer, forgetting any pending bit.
+	 */
+	public void reset( ByteBuffer out ) {
+		this.out = out;
+		pendingBits = 0;
+		written = 0;
+	}
+
+	/**
+	 * @return The number of bits written since created or reset, padding included.
+	 */
+	public long getBitsWritten() {
+		return written;
+	}
+}
@@ -0,0 +1,120 @@
+package jlarv.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/*
+ * Lock-free histogram of non negative long values (durations, sizes...) with
+ * power of two buckets: bucket 0 counts zeros and bucket b counts values in
+ * [2^(b-1), 2^b). Percentiles are therefore approximate (within a factor of 2),
+ * which is plenty for monitoring.
+ *
+ * Recording is a couple of LongAdder increments, so any number of threads can
+ * record at once without contending, and readers can query it at any time.
+ */
+public class Histogram {
+
+	private static final int BUCKETS = 65;
+
+	private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+		@Override
+		public long applyAsLong( long left, long right ) {
+			return Math.max( left, right );
+		}
+	};
+
+	private final LongAdder[]    buckets;
+	private final LongAdder      count;
+	private final LongAdder      sum;
+	private final LongAccumulator max;
+
+	public Histogram() {
+		buckets = new LongAdder[BUCKETS];
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			buckets[i] = new LongAdder();
+		}
+		count = new LongAdder();
+		sum = new LongAdder();
+		max = new LongAccumulator( MAX, 0 );
+	}
+
+	/**
+	 * Records a value, negative values count as 0.
+	 */
+	public void record( long value ) {
+		if ( value < 0 ) {
+			value = 0;
+		}
+		buckets[64 - Long.numberOfLeadingZeros( value )].increment();
+		count.increment();
+		sum.add( value );
+		max.accumulate( value );
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long recorded = count.sum();
+		return recorded == 0 ? 0 : (double) sum.sum() / recorded;
+	}
+
+	/**
+	 * @param percentile From 0 to 100.
+	 * @return Upper bound of the bucket holding the given percentile (never above
+	 *         the max), 0 if nothing was recorded.
+	 */
+	public long getPercentile( double percentile ) {
+		long recorded = count.sum();
+		if ( recorded == 0 ) {
+			return 0;
+		}
+		long rank = (long) Math.ceil( recorded * percentile / 100.0 );
+		long seen = 0;
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			seen += buckets[i].sum();
+			if ( seen >= rank && seen > 0 ) {
+				return Math.min( upperBound( i ), max.get() );
+			}
+		}
+		return max.get();
+	}
+
+	private static long upperBound( int bucket ) {
+		return bucket == 0 ? 0 : bucket == 64 ? Long.MAX_VALUE : ( 1L << bucket ) - 1;
+	}
+
+	/**
+	 * @return The count of every non empty bucket, keyed by its upper bound ("<= 1023").
+	 */
+	public Map<String, Long> getBuckets() {
+		LinkedHashMap<String, Long> counts = new LinkedHashMap<String, Long>();
+		for ( int i = 0; i < BUCKETS; i++ ) {
+			long inBucket = buckets[i].sum();
+			if ( inBucket > 0 ) {
+				counts.put( "<= " + upperBound( i ), inBucket );
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Forgets everything recorded. Values recorded while resetting may be lost.
+	 */
+	public void reset() {
+		for ( LongAdder bucket : buckets ) {
+			bucket.reset();
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+}
@@ -0,0 +1,658 @@
+package jlarv.util;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/*
+ * Hash map that grows without pauses: when it needs a bigger table, instead of
+ * moving every entry at once (what HashMap does, which for hundreds of
+ * thousands of entries takes a noticeable part of a frame) it keeps both
+ * tables and moves a couple of buckets on every insert or removal, plus
+ * whatever stepResize is asked to move (Redis-style incremental rehashing).
+ * Meanwhile lookups check both tables, and inserts only go to the new one,
+ * so the old one is drained well before the map could need to grow again.
+ * Replacing the value of a key already there doesn't move anything.
+ *
+ * Shrinking works the same way (shrink), as does growing ahead of time
+ * (ensureCapacity); growing asked for during a resize starts once it's done.
+ * relocate copies the entries into fresh nodes, in iteration order, for
+ * locality after lots of removals.
+ *
+ * Iterators and spliterators fail fast like HashMap's. Spliterators split by
+ * bucket ranges across both tables. Not thread safe.
+ */
+public class IncrementalHashMap<K, V> extends AbstractMap<K, V> {
+
+	private static final int   MINIMUM_CAPACITY = 16;
+	// Buckets moved per write, enough to drain the old table before the new one fills
+	private static final int   MOVES_PER_WRITE = 2;
+	// Empty buckets skipped per bucket to move, so a step stays bounded
+	private static final int   EMPTY_VISITS = 10;
+
+	private Node<K, V>[] table;
+	private Node<K, V>[] old;       // null unless resizing
+	private int          rehashIndex;
+	private int          pendingCapacity; // 0 unless a resize waits for the current one
+	private int          size;
+	private int          modCount;
+	private long         resizes;
+
+	public IncrementalHashMap() {
+		this( MINIMUM_CAPACITY );
+	}
+
+	/**
+	 * @param expected Entries the map can hold before growing.
+	 */
+	public IncrementalHashMap( int expected ) {
+		table = newTable( capacityFor( expected ) );
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <K, V> Node<K, V>[] newTable( int capacity ) {
+		return (Node<K, V>[]) new Node<?, ?>[capacity];
+	}
+
+	private static int capacityFor( int expected ) {
+		int capacity = MINIMUM_CAPACITY;
+		while ( capacity * 3L / 4 < expected && capacity < ( 1 << 30 ) ) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private static int hash( Object key ) {
+		int h = key.hashCode();
+		return h ^ ( h >>> 16 );
+	}
+
+	private Node<K, V> find( Object key ) {
+		if ( key == null ) {
+			return null;
+		}
+		int hash = hash( key );
+		if ( old != null ) {
+			int i = hash & ( old.length - 1 );
+			if ( i >= rehashIndex ) {
+				for ( Node<K, V> node = old[i]; node != null; node = node.next ) {
+					if ( node.hash == hash && node.key.equals( key ) ) {
+						return node;
+					}
+				}
+			}
+		}
+		for ( Node<K, V> node = table[hash & ( table.length - 1 )]; node != null; node = node.next ) {
+			if ( node.hash == hash && node.key.equals( key ) ) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public V get( Object key ) {
+		Node<K, V> node = find( key );
+		return node == null ? null : node.value;
+	}
+
+	@Override
+	public boolean containsKey( Object key ) {
+		return find( key ) != null;
+	}
+
+	@Override
+	public V put( K key, V value ) {
+		Objects.requireNonNull( key );
+		Node<K, V> node = find( key );
+		if ( node != null ) {
+			V previous = node.value;
+			node.value = value;
+			return previous;
+		}
+		move( MOVES_PER_WRITE );
+		int hash = hash( key );
+		int i = hash & ( table.length - 1 );
+		table[i] = new Node<K, V>( hash, key, value, table[i] );
+		size++;
+		modCount++;
+		if ( old == null && size > table.length * 3L / 4 ) {
+			startResize( table.length * 2 );
+		}
+		return null;
+	}
+
+	@Override
+	public V remove( Object key ) {
+		if ( key == null ) {
+			return null;
+		}
+		Node<K, V> node = unlink( key );
+		if ( node == null ) {
+			return null;
+		}
+		move( MOVES_PER_WRITE );
+		return node.value;
+	}
+
+	/**
+	 * Removes the node of the given key without moving any bucket.
+	 */
+	private Node<K, V> unlink( Object key ) {
+		int hash = hash( key );
+		if ( old != null && ( hash & ( old.length - 1 ) ) >= rehashIndex ) {
+			Node<K, V> node = unlink( old, key, hash );
+			if ( node != null ) {
+				return node;
+			}
+		}
+		return unlink( table, key, hash );
+	}
+	
+	private Node<K, V> unlink( Node<K, V>[] buckets, Object key, int hash ) {
+		int i = hash & ( buckets.length - 1 );
+		Node<K, V> previous = null;
+		for ( Node<K, V> node = buckets[i]; node != null; previous = node, node = node.next ) {
+			if ( node.hash == hash && node.key.equals( key ) ) {
+				if ( previous == null ) {
+					buckets[i] = node.next;
+				} else {
+					previous.next = node.next;
+				}
+				size--;
+				modCount++;
+				return node;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void clear() {
+		if ( old != null ) {
+			old = null;
+		}
+		for ( int i = 0; i < table.length; i++ ) {
+			table[i] = null;
+		}
+		size = 0;
+		modCount++;
+		startPendingResize();
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/*
+	 * Resizing.
+	 */
+	private void startResize( int capacity ) {
+		if ( old != null ) {
+			// Finishing the current one right away would be the very pause this map avoids
+			pendingCapacity = Math.max( pendingCapacity, capacity );
+			return;
+		}
+		old = table;
+		table = newTable( capacity );
+		rehashIndex = 0;
+		resizes++;
+		modCount++;
+		if ( size == 0 ) {
+			old = null;
+		}
+	}
+
+	/**
+	 * Moves up to the given number of buckets from the old table to the new one.
+	 */
+	private void move( int buckets ) {
+		if ( old == null ) {
+			return;
+		}
+		long emptyVisits = (long) buckets * EMPTY_VISITS;
+		int mask = table.length - 1;
+		while ( buckets > 0 && rehashIndex < old.length ) {
+			Node<K, V> node = old[rehashIndex];
+			if ( node == null ) {
+				rehashIndex++;
+				if ( --emptyVisits == 0 ) {
+					break;
+				}
+				continue;
+			}
+			while ( node != null ) {
+				Node<K, V> next = node.next;
+				int i = node.hash & mask;
+				node.next = table[i];
+				table[i] = node;
+				node = next;
+			}
+			old[rehashIndex++] = null;
+			buckets--;
+		}
+		if ( rehashIndex == old.length ) {
+			old = null;
+			startPendingResize();
+		}
+		modCount++;
+	}
+
+	private void startPendingResize() {
+		int capacity = pendingCapacity;
+		pendingCapacity = 0;
+		if ( capacity > table.length ) {
+			startResize( capacity );
+		}
+	}
+
+	/**
+	 * Advances a resize in progress, for idle moments (the end of a tick...).
+	 * @param buckets Non empty buckets to move at most.
+	 * @return True if a resize is still in progress.
+	 */
+	public boolean stepResize( int buckets ) {
+		move( buckets );
+		return old != null;
+	}
+
+	/**
+	 * Starts growing (incrementally) to hold the given number of entries
+	 * without any further resize. During a resize, it starts once that one is done.
+	 */
+	public void ensureCapacity( int expected ) {
+		int capacity = capacityFor( expected );
+		if ( capacity > Math.max( table.length, pendingCapacity ) ) {
+			startResize( capacity );
+		}
+	}
+
+	/**
+	 * Starts shrinking (incrementally) to the smallest table fitting the
+	 * entries, if it's at most half the current one.
+	 * @return True if a shrink started.
+	 */
+	public boolean shrink() {
+		int capacity = capacityFor( size );
+		if ( capacity > table.length / 2 || old != null ) {
+			return false;
+		}
+		startResize( capacity );
+		return true;
+	}
+
+	/**
+	 * Replaces the nodes of a range of buckets by fresh copies, allocated in
+	 * iteration order and sorted within each bucket, so after relocating the
+	 * whole table the entries of the map are laid out in the heap in the order
+	 * they're iterated. Can't be used while resizing.
+	 * @param from   First bucket to relocate.
+	 * @param order  Order within each bucket, null to keep it.
+	 * @return The bucket following the range, getCapacity() once done.
+	 */
+	public int relocate( int from, int buckets, Comparator<? super K> order ) {
+		if ( old != null ) {
+			throw new IllegalStateException( "Can't relocate while resizing" );
+		}
+		Node<K, V>[] chain = newTable( 8 );
+		int to = (int) Math.min( table.length, (long) from + buckets );
+		for ( int i = from; i < to; i++ ) {
+			int length = 0;
+			for ( Node<K, V> node = table[i]; node != null; node = node.next ) {
+				if ( length == chain.length ) {
+					chain = Arrays.copyOf( chain, length * 2 );
+				}
+				chain[length++] = node;
+			}
+			if ( length == 0 ) {
+				continue;
+			}
+			if ( order != null ) {
+				for ( int j = 1; j < length; j++ ) {
+					Node<K, V> node = chain[j];
+					int k = j - 1;
+					for ( ; k >= 0 && order.compare( chain[k].key, node.key ) > 0; k-- ) {
+						chain[k + 1] = chain[k];
+					}
+					chain[k + 1] = node;
+				}
+			}
+			Node<K, V> head = new Node<K, V>( chain[0].hash, chain[0].key, chain[0].value, null );
+			Node<K, V> tail = head;
+			for ( int j = 1; j < length; j++ ) {
+				tail.next = new Node<K, V>( chain[j].hash, chain[j].key, chain[j].value, null );
+				tail = tail.next;
+			}
+			table[i] = head;
+			Arrays.fill( chain, 0, length, null );
+		}
+		modCount++;
+		return to;
+	}
+
+	public boolean isResizing() {
+		return old != null;
+	}
+
+	/**
+	 * @return Buckets of the table entries go to.
+	 */
+	public int getCapacity() {
+		return table.length;
+	}
+
+	/**
+	 * @return The number of resizes (growing or shrinking) started so far.
+	 */
+	public long getResizeCount() {
+		return resizes;
+	}
+
+	/*
+	 * Views.
+	 */
+	@Override
+	public Set<Map.Entry<K, V>> entrySet() {
+		return new AbstractSet<Map.Entry<K, V>>() {
+			@Override
+			public Iterator<Map.Entry<K, V>> iterator() {
+				return new NodeIterator<Map.Entry<K, V>>( ENTRIES );
+			}
+
+			@Override
+			public Spliterator<Map.Entry<K, V>> spliterator() {
+				return new NodeSpliterator<Map.Entry<K, V>>( ENTRIES );
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public void clear() {
+				IncrementalHashMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public Set<K> keySet() {
+		return new AbstractSet<K>() {
+			@Override
+			public Iterator<K> iterator() {
+				return new NodeIterator<K>( KEYS );
+			}
+
+			@Override
+			public Spliterator<K> spliterator() {
+				return new NodeSpliterator<K>( KEYS );
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public boolean contains( Object key ) {
+				return containsKey( key );
+			}
+
+			@Override
+			public boolean remove( Object key ) {
+				return IncrementalHashMap.this.remove( key ) != null;
+			}
+
+			@Override
+			public void clear() {
+				IncrementalHashMap.this.clear();
+			}
+		};
+	}
+
+	@Override
+	public Collection<V> values() {
+		return new AbstractCollection<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new NodeIterator<V>( VALUES );
+			}
+
+			@Override
+			public Spliterator<V> spliterator() {
+				return new NodeSpliterator<V>( VALUES );
+			}
+
+			@Override
+			public int size() {
+				return size;
+			}
+
+			@Override
+			public void clear() {
+				IncrementalHashMap.this.clear();
+			}
+		};
+	}
+
+	private static final int KEYS = 0;
+	private static final int VALUES = 1;
+	private static final int ENTRIES = 2;
+
+	@SuppressWarnings("unchecked")
+	private static <T> T view( Node<?, ?> node, int kind ) {
+		return (T) ( kind == KEYS ? node.key : kind == VALUES ? node.value : node );
+	}
+
+	/*
+	 * Both tables seen as a single array of buckets: the old buckets not moved
+	 * yet, followed by the new table.
+	 */
+	private abstract class Buckets {
+		final Node<K, V>[] oldTable = old;
+		final Node<K, V>[] newTable = table;
+		final int          oldStart = old == null ? 0 : rehashIndex;
+		final int          oldCount = old == null ? 0 : old.length - rehashIndex;
+		int                expectedModCount = modCount;
+
+		int count() {
+			return oldCount + newTable.length;
+		}
+
+		Node<K, V> bucket( int index ) {
+			return index < oldCount ? oldTable[oldStart + index] : newTable[index - oldCount];
+		}
+
+		void checkModCount() {
+			if ( modCount != expectedModCount ) {
+				throw new ConcurrentModificationException();
+			}
+		}
+	}
+
+	private class NodeIterator<T> extends Buckets implements Iterator<T> {
+		private final int  kind;
+		private int        index;
+		private Node<K, V> next;
+		private Node<K, V> current;
+
+		NodeIterator( int kind ) {
+			this.kind = kind;
+			advance();
+		}
+
+		private void advance() {
+			while ( next == null && index < count() ) {
+				next = bucket( index++ );
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public T next() {
+			checkModCount();
+			if ( next == null ) {
+				throw new NoSuchElementException();
+			}
+			current = next;
+			next = next.next;
+			advance();
+			return view( current, kind );
+		}
+
+		@Override
+		public void remove() {
+			if ( current == null ) {
+				throw new IllegalStateException();
+			}
+			checkModCount();
+			unlink( current.key );
+			current = null;
+			expectedModCount = modCount;
+		}
+	}
+
+	private class NodeSpliterator<T> extends Buckets implements Spliterator<T> {
+		private final int  kind;
+		private int        index;
+		private int        fence;
+		private Node<K, V> current;
+		private final boolean root;
+
+		NodeSpliterator( int kind ) {
+			this.kind = kind;
+			this.fence = count();
+			this.root = true;
+		}
+
+		private NodeSpliterator( NodeSpliterator<T> parent, int index, int fence ) {
+			this.kind = parent.kind;
+			this.index = index;
+			this.fence = fence;
+			this.root = false;
+			this.expectedModCount = parent.expectedModCount;
+		}
+
+		@Override
+		public boolean tryAdvance( Consumer<? super T> action ) {
+			while ( current != null || index < fence ) {
+				if ( current == null ) {
+					current = bucket( index++ );
+					continue;
+				}
+				Node<K, V> node = current;
+				current = current.next;
+				action.accept( IncrementalHashMap.<T>view( node, kind ) );
+				checkModCount();
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public void forEachRemaining( Consumer<? super T> action ) {
+			Node<K, V> node = current;
+			current = null;
+			while ( true ) {
+				for ( ; node != null; node = node.next ) {
+					action.accept( IncrementalHashMap.<T>view( node, kind ) );
+				}
+				if ( index >= fence ) {
+					break;
+				}
+				node = bucket( index++ );
+			}
+			checkModCount();
+		}
+
+		@Override
+		public Spliterator<T> trySplit() {
+			int middle = ( index + fence ) >>> 1;
+			if ( current != null || middle <= index ) {
+				return null;
+			}
+			NodeSpliterator<T> prefix = new NodeSpliterator<T>( this, index, middle );
+			index = middle;
+			return prefix;
+		}
+
+		@Override
+		public long estimateSize() {
+			int buckets = count();
+			return root && index == 0 ? size : buckets == 0 ? 0 : (long) size * ( fence - index ) / buckets;
+		}
+
+		@Override
+		public int characteristics() {
+			int characteristics = kind == VALUES ? 0 : DISTINCT;
+			return root && index == 0 && current == null ? characteristics | SIZED : characteristics;
+		}
+	}
+
+	static final class Node<K, V> implements Map.Entry<K, V> {
+		final int  hash;
+		final K    key;
+		V          value;
+		Node<K, V> next;
+
+		Node( int hash, K key, V value, Node<K, V> next ) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+			this.next = next;
+		}
+
+		@Override
+		public K getKey() {
+			return key;
+		}
+
+		@Override
+		public V getValue() {
+			return value;
+		}
+
+		@Override
+		public V setValue( V value ) {
+			V previous = this.value;
+			this.value = value;
+			return previous;
+		}
+
+		@Override
+		public boolean equals( Object other ) {
+			if ( ! ( other instanceof Map.Entry ) ) {
+				return false;
+			}
+			Map.Entry<?, ?> entry = (Map.Entry<?, ?>) other;
+			return key.equals( entry.getKey() ) && Objects.equals( value, entry.getValue() );
+		}
+
+		@Override
+		public int hashCode() {
+			return key.hashCode() ^ Objects.hashCode( value );
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package jlarv.util;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+/*
+ * Map from long to long without boxing: keys and values live in two parallel
+ * arrays (open addressing, linear probing), so an entry costs 16 bytes plus
+ * the free slots instead of a node and two boxed Longs.
+ * Removal shifts the following entries back instead of leaving tombstones,
+ * so lookups never slow down after many removals.
+ *
+ * Not thread safe.
+ */
+public class LongLongHashMap {
+
+	private static final long FREE = 0;
+
+	private long[]  keys;
+	private long[]  values;
+	private int     mask;
+	private int     size;
+	private int     resizeAt;
+	// The free marker can't be stored in the arrays, so key 0 is kept apart
+	private boolean hasFreeKey;
+	private long    freeKeyValue;
+
+	public LongLongHashMap() {
+		this( 16 );
+	}
+
+	/**
+	 * @param expected Entries the map can hold before growing.
+	 */
+	public LongLongHashMap( int expected ) {
+		allocate( tableSize( expected ) );
+	}
+
+	private static int tableSize( int expected ) {
+		int capacity = 16;
+		while ( capacity * 3L / 4 < expected ) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private void allocate( int capacity ) {
+		keys = new long[capacity];
+		values = new long[capacity];
+		mask = capacity - 1;
+		resizeAt = capacity * 3 / 4;
+	}
+
+	private int slot( long key ) {
+		long hash = key * 0x9E3779B97F4A7C15L;
+		return (int) ( hash ^ ( hash >>> 32 ) ) & mask;
+	}
+
+	/**
+	 * @return The value of the given key, missing if there's none.
+	 */
+	public long get( long key, long missing ) {
+		if ( key == FREE ) {
+			return hasFreeKey ? freeKeyValue : missing;
+		}
+		for ( int i = slot( key ); keys[i] != FREE; i = ( i + 1 ) & mask ) {
+			if ( keys[i] == key ) {
+				return values[i];
+			}
+		}
+		return missing;
+	}
+
+	public boolean containsKey( long key ) {
+		if ( key == FREE ) {
+			return hasFreeKey;
+		}
+		for ( int i = slot( key ); keys[i] != FREE; i = ( i + 1 ) & mask ) {
+			if ( keys[i] == key ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the value of the given key.
+	 */
+	public void put( long key, long value ) {
+		if ( key == FREE ) {
+			if ( ! hasFreeKey ) {
+				hasFreeKey = true;
+				size++;
+			}
+			freeKeyValue = value;
+			return;
+		}
+		int i = slot( key );
+		for ( ; keys[i] != FREE; i = ( i + 1 ) & mask ) {
+			if ( keys[i] == key ) {
+				values[i] = value;
+				return;
+			}
+		}
+		keys[i] = key;
+		values[i] = value;
+		if ( ++size > resizeAt ) {
+			rehash( keys.length * 2 );
+		}
+	}
+
+	/**
+	 * @return True if the key was there.
+	 */
+	public boolean remove( long key ) {
+		if ( key == FREE ) {
+			if ( hasFreeKey ) {
+				hasFreeKey = false;
+				size--;
+				return true;
+			}
+			return false;
+		}
+		int i = slot( key );
+		for ( ; keys[i] != key; i = ( i + 1 ) & mask ) {
+			if ( keys[i] == FREE ) {
+				return false;
+			}
+		}
+		// Moves back the entries of the run that would no longer be reachable
+		int gap = i;
+		for ( int j = ( gap + 1 ) & mask; keys[j] != FREE; j = ( j + 1 ) & mask ) {
+			int home = slot( keys[j] );
+			if ( ( ( j - home ) & mask ) >= ( ( j - gap ) & mask ) ) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		keys[gap] = FREE;
+		size--;
+		return true;
+	}
+
+	private void rehash( int capacity ) {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		allocate( capacity );
+		for ( int i = 0; i < oldKeys.length; i++ ) {
+			long key = oldKeys[i];
+			if ( key != FREE ) {
+				int j = slot( key );
+				while ( keys[j] != FREE ) {
+					j = ( j + 1 ) & mask;
+				}
+				keys[j] = key;
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Calls the consumer with every key. The map must not change meanwhile.
+	 */
+	public void forEachKey( LongConsumer consumer ) {
+		if ( hasFreeKey ) {
+			consumer.accept( FREE );
+		}
+		for ( long key : keys ) {
+			if ( key != FREE ) {
+				consumer.accept( key );
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public void clear() {
+		Arrays.fill( keys, FREE );
+		size = 0;
+		hasFreeKey = false;
+	}
+}
@@ -0,0 +1,111 @@
+package jlarv.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
+
+/*
+ * Unbounded lock-free queue for many producers and a single consumer
+ * (Dmitry Vyukov's intrusive MPSC node queue).
+ *
+ * Any thread can offer: it costs one small node allocation and a single atomic
+ * swap, producers never wait for each other nor for the consumer.
+ * Only one thread at a time may poll or drain.
+ *
+ * Usage:
+ *   MpscQueue<Runnable> queue = new MpscQueue<Runnable>();
+ *   queue.offer( task );                 // from any thread
+ *   queue.drain( runner );               // from the consumer thread
+ */
+public class MpscQueue<E> {
+
+	private static final class Node<E> {
+		volatile Node<E> next;
+		E value;
+
+		Node( E value ) {
+			this.value = value;
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+			AtomicReferenceFieldUpdater.newUpdater( Node.class, Node.class, "next" );
+
+	// Producers swap themselves in at the tail, the consumer walks from the head (a stub node).
+	private final AtomicReference<Node<E>> tail;
+	private Node<E> head;
+
+	public MpscQueue() {
+		Node<E> stub = new Node<E>( null );
+		head = stub;
+		tail = new AtomicReference<Node<E>>( stub );
+	}
+
+	/**
+	 * Adds the given element at the end of the queue. Safe to call from any thread.
+	 */
+	@SuppressWarnings("unchecked")
+	public void offer( E value ) {
+		if ( value == null ) {
+			throw new NullPointerException();
+		}
+		Node<E> node = new Node<E>( value );
+		Node<E> previous = tail.getAndSet( node );
+		NEXT.lazySet( previous, node );
+	}
+
+	/**
+	 * Removes and returns the first element, or null if the queue is empty (or the
+	 * only producer in progress hasn't linked its node yet). Consumer thread only.
+	 */
+	public E poll() {
+		Node<E> next = head.next;
+		if ( next == null ) {
+			return null;
+		}
+		E value = next.value;
+		next.value = null;
+		head = next;
+		return value;
+	}
+
+	/**
+	 * Hands every element offered before this call to the consumer, in order.
+	 * Elements offered while draining (for instance by the consumer itself) are
+	 * left for the next drain, so this always terminates. Consumer thread only.
+	 * @return The number of elements drained.
+	 */
+	public int drain( Consumer<? super E> consumer ) {
+		return drain( consumer, Integer.MAX_VALUE );
+	}
+
+	/**
+	 * Same as drain( consumer ), but stops after limit elements.
+	 */
+	public int drain( Consumer<? super E> consumer, int limit ) {
+		Node<E> end = tail.get();
+		int drained = 0;
+		while ( head != end && drained < limit ) {
+			Node<E> next = head.next;
+			while ( next == null ) {
+				// A producer swapped the tail but didn't link its node yet, it's about to
+				Thread.onSpinWait();
+				next = head.next;
+			}
+			E value = next.value;
+			next.value = null;
+			head = next;
+			drained++;
+			consumer.accept( value );
+		}
+		return drained;
+	}
+
+	/**
+	 * @return True if nothing was offered since the last poll/drain. Consumer thread only.
+	 */
+	public boolean isEmpty() {
+		return head == tail.get();
+	}
+}
@@ -0,0 +1,65 @@
+package jlarv.util;
+
+/*
+ * Maps floats in [min, max] to integers of a given number of bits and back,
+ * so they can be sent with fewer bits than a float and compared exactly.
+ * Values outside the range are clamped, and the error of a round trip is at
+ * most half a step, step being ( max - min ) / ( 2^bits - 1 ).
+ *
+ * Usage:
+ *   Quantizer coordinate = Quantizer.withPrecision( -1024, 1024, 0.01f ); // 18 bits
+ *   long quantized = coordinate.quantize( position.x );
+ *   position.x = coordinate.dequantize( quantized );
+ */
+public class Quantizer {
+
+	private final float min;
+	private final float max;
+	private final int   bits;
+	private final long  steps;
+
+	/**
+	 * @param bits From 1 to 31.
+	 */
+	public Quantizer( float min, float max, int bits ) {
+		if ( ! ( max > min ) || bits < 1 || bits > 31 ) {
+			throw new IllegalArgumentException( "Invalid quantizer range or bits" );
+		}
+		this.min = min;
+		this.max = max;
+		this.bits = bits;
+		this.steps = ( 1L << bits ) - 1;
+	}
+
+	/**
+	 * @return A quantizer using the fewest bits keeping the error under precision / 2.
+	 */
+	public static Quantizer withPrecision( float min, float max, float precision ) {
+		return new Quantizer( min, max, bitsFor( (long) Math.ceil( ( max - min ) / precision ) ) );
+	}
+
+	/**
+	 * @return The bits needed to hold any value from 0 to maxValue.
+	 */
+	public static int bitsFor( long maxValue ) {
+		return Math.max( 1, 64 - Long.numberOfLeadingZeros( maxValue ) );
+	}
+
+	public long quantize( float value ) {
+		if ( ! ( value > min ) ) {
+			return 0;
+		}
+		if ( value >= max ) {
+			return steps;
+		}
+		return Math.round( ( value - min ) / ( max - min ) * steps );
+	}
+
+	public float dequantize( long quantized ) {
+		return (float) ( min + (double) ( max - min ) * quantized / steps );
+	}
+
+	public int getBits() {
+		return bits;
+	}
+}
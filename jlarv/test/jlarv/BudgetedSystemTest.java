@@ -0,0 +1,187 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+/**
+ * Tests that the BudgetedSystem spreads its entities across ticks.
+ */
+public class BudgetedSystemTest {
+
+	Engine engine;
+	EntityManager em;
+	ArrayList<Long> processed;
+
+	class CountingSystem extends BudgetedSystem {
+		CountingSystem(long budgetNanos) {
+			super(0, budgetNanos, PhysicsComponent.class);
+		}
+
+		@Override
+		protected void process(long entity, float elapsed) {
+			processed.add(entity);
+		}
+	}
+
+	private void setup(int entities) {
+		engine = new Engine();
+		em = engine.getEntityManager();
+		processed = new ArrayList<Long>();
+		for (int i = 0; i < entities; i++) {
+			long entity = em.createEntity();
+			em.addComponent(entity, new PhysicsComponent());
+		}
+	}
+
+	@Test
+	public void testNoBudgetProcessesOnePerTick() {
+		setup(4);
+		CountingSystem system = new CountingSystem(0);
+		engine.addSystems(system);
+
+		engine.update(1f);
+		assertEquals(1, system.getLastProcessed());
+		assertEquals(0.25f, system.getLastCoverage(), 0f);
+		assertEquals(3, system.getBacklog());
+		assertEquals(0, system.getSweepsCompleted());
+
+		engine.update(1f);
+		engine.update(1f);
+		engine.update(1f);
+		assertEquals(0, system.getBacklog());
+		assertEquals(1, system.getSweepsCompleted());
+		assertEquals(4, system.getLastSweepTicks());
+		assertEquals(4, processed.size());
+		assertTrue(processed.containsAll(em.getEntitiesHavingComponent(PhysicsComponent.class)));
+
+		// Next sweep starts over, and knows how long the previous one took
+		engine.update(1f);
+		assertEquals(4f, system.getLastSweepTime(), 0f);
+		assertEquals(processed.get(0), processed.get(4));
+	}
+
+	@Test
+	public void testRemovedEntitiesAreSkipped() {
+		setup(3);
+		CountingSystem system = new CountingSystem(0);
+		engine.addSystems(system);
+		engine.update(1f);
+		// Remove one of the entities still waiting in the sweep
+		ArrayList<Long> waiting = em.getEntitiesHavingComponent(PhysicsComponent.class);
+		waiting.remove(processed.get(0));
+		em.removeEntity(waiting.get(0));
+		// Only matches are walked, so the sweep ends a tick earlier
+		engine.update(1f);
+		assertEquals(1, system.getSweepsCompleted());
+		assertEquals(2, processed.size());
+	}
+
+	@Test
+	public void testDisabledEntitiesAreSkipped() {
+		setup(3);
+		CountingSystem system = new CountingSystem(0);
+		engine.addSystems(system);
+		engine.update(1f);
+		// Disable one of the entities still waiting in the sweep
+		ArrayList<Long> waiting = em.getEntitiesHavingComponent(PhysicsComponent.class);
+		waiting.remove(processed.get(0));
+		em.setEnabled(waiting.get(0), false);
+		// Only matches are walked, so the sweep ends a tick earlier
+		engine.update(1f);
+		assertEquals(1, system.getSweepsCompleted());
+		assertEquals(2, processed.size());
+		assertFalse(processed.contains(waiting.get(0)));
+	}
+
+	@Test
+	public void testChangesBetweenTicks() {
+		setup(4);
+		CountingSystem system = new CountingSystem(0);
+		engine.addSystems(system);
+		engine.update(1f);
+		// Neither a component removed ahead of the cursor nor a new entity break the sweep
+		ArrayList<Long> waiting = em.getEntitiesHavingComponent(PhysicsComponent.class);
+		waiting.remove(processed.get(0));
+		long stopped = waiting.get(0);
+		em.removeComponent(stopped, PhysicsComponent.class);
+		long added = em.createEntity();
+		em.addComponent(added, new PhysicsComponent());
+		assertTrue(system.getBacklog() <= 3);
+		while (system.getSweepsCompleted() == 0) {
+			engine.update(1f);
+		}
+		assertFalse(processed.contains(stopped));
+		assertEquals(new HashSet<Long>(processed).size(), processed.size());
+
+		// The next sweep covers every match, the new entity included
+		processed.clear();
+		for (int i = 0; i < 4; i++) {
+			engine.update(1f);
+		}
+		assertEquals(2, system.getSweepsCompleted());
+		assertEquals(new HashSet<Long>(em.getEntitiesHavingComponent(PhysicsComponent.class)), new HashSet<Long>(processed));
+		assertTrue(processed.contains(added));
+	}
+
+	@Test
+	public void testSparseQueryWalksOnlyMatches() {
+		setup(0);
+		for (int i = 0; i < 1000; i++) {
+			em.addComponent(em.createEntity(), new MovementComponent());
+		}
+		long matching = em.createEntity();
+		em.addComponent(matching, new PhysicsComponent());
+		CountingSystem system = new CountingSystem(0);
+		engine.addSystems(system);
+
+		// Every tick processes the only match, however many entities there are
+		for (int i = 1; i <= 3; i++) {
+			engine.update(1f);
+			assertEquals(1, system.getLastProcessed());
+			assertEquals(1f, system.getLastCoverage(), 0f);
+			assertEquals(0, system.getBacklog());
+			assertEquals(i, system.getSweepsCompleted());
+		}
+		assertEquals(Arrays.asList(matching, matching, matching), processed);
+	}
+
+	@Test
+	public void testConcurrentManager() {
+		engine = new Engine();
+		em = new EntityManager(true);
+		engine.setEntityManager(em);
+		processed = new ArrayList<Long>();
+		for (int i = 0; i < 3; i++) {
+			em.addComponent(em.createEntity(), new PhysicsComponent());
+		}
+		CountingSystem system = new CountingSystem(0);
+		engine.addSystems(system);
+		engine.update(1f);
+		assertEquals(2, system.getBacklog());
+		// The copied matches may go stale
+		ArrayList<Long> waiting = em.getEntitiesHavingComponent(PhysicsComponent.class);
+		waiting.remove(processed.get(0));
+		em.removeEntity(waiting.get(0));
+		engine.update(1f);
+		engine.update(1f);
+		assertEquals(1, system.getSweepsCompleted());
+		assertEquals(2, processed.size());
+		assertFalse(processed.contains(waiting.get(0)));
+	}
+
+	@Test
+	public void testLargeBudgetProcessesAll() {
+		setup(1000);
+		CountingSystem system = new CountingSystem(Long.MAX_VALUE);
+		engine.addSystems(system);
+		engine.update(1f);
+		assertEquals(1000, system.getLastProcessed());
+		assertEquals(1f, system.getLastCoverage(), 0f);
+		assertEquals(1, system.getLastSweepTicks());
+	}
+}
@@ -0,0 +1,193 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import jlarv.util.LongLongHashMap;
+
+import org.junit.Test;
+
+/**
+ * Tests hibernating entities into a ColdStorage and waking them.
+ */
+public class ColdStorageTest {
+
+	static class HealthComponent extends Component {
+		int points;
+
+		HealthComponent(int points) {
+			this.points = points;
+		}
+	}
+
+	static final ComponentCodec<HealthComponent> HEALTH_CODEC = new ComponentCodec<HealthComponent>() {
+		@Override
+		public void write(HealthComponent component, ByteBuffer out) {
+			out.putInt(component.points);
+		}
+
+		@Override
+		public HealthComponent read(ByteBuffer in) {
+			return new HealthComponent(in.getInt());
+		}
+	};
+
+	Engine engine = new Engine();
+	EntityManager em = engine.getEntityManager();
+	GroupManager groups = engine.getGroupManager();
+	CodecRegistry codecs = new CodecRegistry();
+
+	{
+		codecs.register(1, HealthComponent.class, HEALTH_CODEC);
+		codecs.registerTag(2, FrozenTag.class);
+	}
+
+	@Test
+	public void testHibernateAndWake() {
+		ColdStorage cold = new ColdStorage(em, groups, codecs, true);
+		long npc = em.createEntity();
+		long player = em.createEntity();
+		em.addComponent(npc, new HealthComponent(42));
+		em.addTag(npc, FrozenTag.class);
+		groups.add(npc, "goblins");
+		em.addComponent(player, new HealthComponent(100));
+
+		cold.hibernate(npc);
+		assertTrue(cold.isHibernating(npc));
+		assertEquals(Arrays.asList(player), em.getEntities());
+		assertEquals(Arrays.asList(player), em.getEntitiesHavingComponent(HealthComponent.class));
+		assertFalse(em.hasTag(npc, FrozenTag.class));
+		assertFalse(groups.isInGroup(npc, "goblins"));
+		// The ID isn't handed out again meanwhile
+		assertTrue(em.createEntity() > npc);
+
+		assertTrue(cold.wake(npc));
+		assertFalse(cold.isHibernating(npc));
+		assertFalse(cold.wake(npc));
+		assertEquals(42, em.getComponent(npc, HealthComponent.class).points);
+		assertTrue(em.hasTag(npc, FrozenTag.class));
+		assertTrue(groups.isInGroup(npc, "goblins"));
+	}
+
+	@Test
+	public void testDisabledStaysDisabled() {
+		ColdStorage cold = new ColdStorage(em, groups, codecs, false);
+		long disabled = em.createEntity();
+		long enabled = em.createEntity();
+		em.addComponent(disabled, new HealthComponent(1));
+		em.addComponent(enabled, new HealthComponent(2));
+		em.setEnabled(disabled, false);
+
+		cold.hibernate(disabled);
+		cold.hibernate(enabled);
+		cold.wakeAll();
+		assertFalse(em.isEnabled(disabled));
+		assertTrue(em.isEnabled(enabled));
+		assertEquals(Arrays.asList(enabled), em.getEntitiesHavingComponent(HealthComponent.class));
+		assertEquals(1, em.getComponent(disabled, HealthComponent.class).points);
+	}
+
+	@Test
+	public void testUnregisteredComponentsRefused() {
+		ColdStorage cold = new ColdStorage(em, groups, codecs, false);
+		long entity = em.createEntity();
+		em.addComponent(entity, new PhysicsComponent());
+		try {
+			cold.hibernate(entity);
+			fail();
+		} catch (IllegalStateException e) {
+			// Nothing changed
+		}
+		assertFalse(cold.isHibernating(entity));
+		assertTrue(em.hasComponent(entity, PhysicsComponent.class));
+	}
+
+	@Test
+	public void testMissingEntitiesRefused() {
+		ColdStorage cold = new ColdStorage(em, groups, codecs, false);
+		long entity = em.createEntity();
+		em.removeEntity(entity);
+		try {
+			cold.hibernate(entity);
+			fail();
+		} catch (IllegalStateException e) {
+			// No phantom record left behind
+		}
+		assertFalse(cold.isHibernating(entity));
+		assertEquals(0, cold.getUsedBytes());
+	}
+
+	@Test
+	public void testOversizedRecordsRefused() {
+		ColdStorage cold = new ColdStorage(em, groups, codecs, false);
+		long entity = em.createEntity();
+		em.addComponent(entity, new HealthComponent(1));
+		char[] name = new char[Short.MAX_VALUE + 1];
+		Arrays.fill(name, 'g');
+		groups.add(entity, new String(name));
+		try {
+			cold.hibernate(entity);
+			fail();
+		} catch (IllegalStateException e) {
+			// Nothing changed
+		}
+		assertFalse(cold.isHibernating(entity));
+		assertTrue(em.hasComponent(entity, HealthComponent.class));
+		assertTrue(groups.isInGroup(entity, new String(name)));
+	}
+
+	@Test
+	public void testChurnCompacts() {
+		ColdStorage cold = new ColdStorage(em, null, codecs, false);
+		ArrayList<Long> entities = new ArrayList<Long>();
+		for (int i = 0; i < 20000; i++) {
+			long entity = em.createEntity();
+			em.addComponent(entity, new HealthComponent(i));
+			entities.add(entity);
+		}
+		Random random = new Random(7);
+		for (int round = 0; round < 5; round++) {
+			for (long entity : entities) {
+				if (random.nextBoolean() != cold.isHibernating(entity)) {
+					if (cold.isHibernating(entity)) {
+						cold.wake(entity);
+					} else {
+						cold.hibernate(entity);
+					}
+				}
+			}
+		}
+		assertTrue(cold.getCompactionCount() > 0);
+		assertEquals(em.getEntityCount() + cold.getHibernatingCount(), entities.size());
+		assertEquals(cold.getHibernatingCount() * 11, cold.getUsedBytes());
+		cold.wakeAll();
+		assertEquals(0, cold.getHibernatingCount());
+		for (int i = 0; i < entities.size(); i++) {
+			assertEquals(i, em.getComponent(entities.get(i), HealthComponent.class).points);
+		}
+	}
+
+	@Test
+	public void testLongLongHashMap() {
+		LongLongHashMap map = new LongLongHashMap();
+		Random random = new Random(3);
+		java.util.HashMap<Long, Long> expected = new java.util.HashMap<Long, Long>();
+		for (int i = 0; i < 100000; i++) {
+			long key = random.nextInt(5000) - 2500;
+			if (random.nextInt(3) == 0) {
+				assertEquals(expected.remove(key) != null, map.remove(key));
+			} else {
+				expected.put(key, (long) i);
+				map.put(key, i);
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		for (long key = -2500; key < 2500; key++) {
+			assertEquals(expected.containsKey(key) ? expected.get(key) : -1L, map.get(key, -1));
+		}
+	}
+}
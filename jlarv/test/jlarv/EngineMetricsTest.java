@@ -0,0 +1,89 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.junit.Test;
+
+/**
+ * Tests the metrics published through JMX.
+ */
+public class EngineMetricsTest {
+
+	@Test
+	public void testMBeans() throws Exception {
+		Engine engine = new Engine();
+		EngineMetrics metrics = engine.enableMetrics("metrics-test");
+		assertSame(metrics, engine.getMetrics());
+		metrics.setSampleIntervalNanos(0);
+		EntityManager em = engine.getEntityManager();
+		for (int i = 0; i < 10; i++) {
+			long entity = em.createEntity();
+			em.addComponent(entity, new PhysicsComponent());
+			if (i % 2 == 0) {
+				em.addTag(entity, FrozenTag.class);
+				engine.getGroupManager().add(entity, "even");
+			}
+		}
+		em.removeEntity(em.getEntities().get(0));
+		em.getEntitiesHavingComponent(PhysicsComponent.class);
+		engine.update(1f);
+		engine.update(1f);
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName engineName = new ObjectName("jlarv:type=Engine,name=\"metrics-test\"");
+		ObjectName managerName = new ObjectName("jlarv:type=EntityManager,name=\"metrics-test\"");
+		ObjectName groupsName = new ObjectName("jlarv:type=GroupManager,name=\"metrics-test\"");
+		assertEquals(2L, server.getAttribute(engineName, "TickCount"));
+		assertEquals(9, server.getAttribute(managerName, "EntityCount"));
+		assertEquals(10L, server.getAttribute(managerName, "CreatedTotal"));
+		assertEquals(1L, server.getAttribute(managerName, "RemovedTotal"));
+		assertEquals(1L, server.getAttribute(managerName, "QueryCount"));
+		assertEquals(9L, server.getAttribute(managerName, "QuerySizeMax"));
+		assertEquals(1, server.getAttribute(managerName, "RecycledIds"));
+
+		TabularData components = (TabularData) server.getAttribute(managerName, "ComponentCounts");
+		CompositeData physics = components.get(new Object[] { PhysicsComponent.class.getName() });
+		assertEquals(9, physics.get("value"));
+		TabularData tags = (TabularData) server.getAttribute(managerName, "TagCounts");
+		assertEquals(4, tags.get(new Object[] { FrozenTag.class.getName() }).get("value"));
+		TabularData groups = (TabularData) server.getAttribute(groupsName, "GroupSizes");
+		assertEquals(1, server.getAttribute(groupsName, "GroupCount"));
+		assertNotNull(groups.get(new Object[] { "even" }));
+
+		engine.disableMetrics();
+		assertNull(engine.getMetrics());
+		assertFalse(server.isRegistered(engineName));
+		assertFalse(server.isRegistered(managerName));
+	}
+
+	@Test
+	public void testNamesMustBeUnique() throws Exception {
+		Engine first = new Engine();
+		first.enableMetrics("duplicate");
+		Engine second = new Engine();
+		try {
+			second.enableMetrics("duplicate");
+			fail();
+		} catch (IllegalStateException expected) {
+		}
+		try {
+			// The beans of the engine holding the name are still there
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			for (String type : new String[] { "Engine", "EntityManager", "GroupManager" }) {
+				assertTrue(server.isRegistered(new ObjectName("jlarv:type=" + type + ",name=\"duplicate\"")));
+			}
+			assertNull(second.getMetrics());
+			first.update(1f);
+			assertEquals(1L, server.getAttribute(new ObjectName("jlarv:type=Engine,name=\"duplicate\""), "TickCount"));
+		} finally {
+			first.disableMetrics();
+		}
+	}
+}
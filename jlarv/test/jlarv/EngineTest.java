@@ -0,0 +1,289 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the way the Engine orders and runs its systems.
+ */
+public class EngineTest {
+
+	Engine engine;
+	List<String> updated;
+
+	private void setup() {
+		engine = new Engine();
+		updated = Collections.synchronizedList(new ArrayList<String>());
+	}
+
+	/**
+	 * System that just records that it was updated.
+	 */
+	class RecordingSystem extends System {
+		String name;
+
+		RecordingSystem(String name, int priority) {
+			super(priority);
+			this.name = name;
+		}
+
+		@SafeVarargs
+		@SuppressWarnings("varargs")
+		final RecordingSystem reading(Class<? extends Component> ... types) {
+			reads(types);
+			return this;
+		}
+
+		@SafeVarargs
+		@SuppressWarnings("varargs")
+		final RecordingSystem writing(Class<? extends Component> ... types) {
+			writes(types);
+			return this;
+		}
+
+		@Override
+		public void update(float delta) {
+			updated.add(name);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	@Test
+	public void testConflicts() {
+		setup();
+		RecordingSystem physics = new RecordingSystem("physics", 0).reading(MovementComponent.class).writing(PhysicsComponent.class);
+		RecordingSystem render = new RecordingSystem("render", 1).reading(PhysicsComponent.class, RenderComponent.class);
+		RecordingSystem movement = new RecordingSystem("movement", 1).writing(MovementComponent.class);
+		RecordingSystem renderOnly = new RecordingSystem("renderOnly", 1).reading(RenderComponent.class);
+		RecordingSystem undeclared = new RecordingSystem("undeclared", 2);
+
+		assertTrue(physics.conflictsWith(render));
+		assertTrue(render.conflictsWith(physics));
+		assertTrue(physics.conflictsWith(movement));
+		assertFalse(render.conflictsWith(movement));
+		assertFalse(render.conflictsWith(renderOnly));
+		assertTrue(undeclared.conflictsWith(renderOnly));
+	}
+
+	@Test
+	public void testStages() {
+		setup();
+		RecordingSystem input = new RecordingSystem("input", 0).writing(MovementComponent.class);
+		RecordingSystem physics = new RecordingSystem("physics", 1).reading(MovementComponent.class).writing(PhysicsComponent.class);
+		RecordingSystem animation = new RecordingSystem("animation", 1).writing(RenderComponent.class);
+		RecordingSystem render = new RecordingSystem("render", 2).reading(PhysicsComponent.class, RenderComponent.class);
+		RecordingSystem cleanup = new RecordingSystem("cleanup", 3);
+		engine.addSystems(cleanup, render, animation, physics, input);
+
+		SystemScheduler scheduler = engine.getScheduler();
+		assertEquals(4, scheduler.getStageCount());
+		assertEquals(Arrays.asList(input, animation), Arrays.asList(scheduler.getStage(0)));
+		assertEquals(Arrays.asList((System) physics), Arrays.asList(scheduler.getStage(1)));
+		assertEquals(Arrays.asList((System) render), Arrays.asList(scheduler.getStage(2)));
+		assertEquals(Arrays.asList((System) cleanup), Arrays.asList(scheduler.getStage(3)));
+
+		// Changing the systems rebuilds the stages
+		engine.removeSystem(cleanup, true);
+		assertEquals(3, engine.getScheduler().getStageCount());
+	}
+
+	@Test
+	public void testParallelUpdate() {
+		setup();
+		RecordingSystem first = new RecordingSystem("first", 0).writing(PhysicsComponent.class);
+		RecordingSystem a = new RecordingSystem("a", 1).reading(PhysicsComponent.class);
+		RecordingSystem b = new RecordingSystem("b", 1).reading(PhysicsComponent.class);
+		RecordingSystem last = new RecordingSystem("last", 2);
+		engine.addSystems(last, b, a, first);
+		engine.setParallel(true);
+
+		for (int tick = 0; tick < 50; tick++) {
+			updated.clear();
+			engine.update(1f);
+			assertEquals(4, updated.size());
+			assertEquals("first", updated.get(0));
+			assertTrue(updated.subList(1, 3).containsAll(Arrays.asList("a", "b")));
+			assertEquals("last", updated.get(3));
+		}
+		engine.setParallel(false);
+		assertFalse(engine.isParallel());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testParallelUpdateRethrows() {
+		setup();
+		RecordingSystem failing = new RecordingSystem("b", 0) {
+			@Override
+			public void update(float delta) {
+				throw new IllegalStateException();
+			}
+		};
+		engine.addSystems(new RecordingSystem("a", 0).reading(PhysicsComponent.class),
+				failing.reading(PhysicsComponent.class));
+		engine.setParallel(true);
+		engine.update(1f);
+	}
+
+	@Test
+	public void testParallelStructuralChanges() {
+		for (boolean concurrent : new boolean[] { false, true }) {
+			setup();
+			engine.setEntityManager(new EntityManager(concurrent));
+			final EntityManager em = engine.getEntityManager();
+			final long entity = em.createEntity();
+			RecordingSystem adding = new RecordingSystem("adding", 0) {
+				@Override
+				public void update(float delta) {
+					entityManager.addComponent(entity, new MovementComponent());
+				}
+			};
+			engine.addSystems(new RecordingSystem("a", 0).reading(PhysicsComponent.class),
+					adding.writing(MovementComponent.class));
+			engine.setParallel(true);
+			try {
+				engine.update(1f);
+				assertTrue(concurrent);
+			} catch (IllegalStateException expected) {
+				// A plain manager can't change structure while systems run in parallel
+				assertFalse(concurrent);
+			}
+			assertEquals(concurrent, em.hasComponent(entity, MovementComponent.class));
+			// Fine again once the stage is over
+			em.addComponent(entity, new PhysicsComponent());
+			engine.setParallel(false);
+			engine.update(1f);
+			assertTrue(em.hasComponent(entity, MovementComponent.class));
+		}
+	}
+
+	@Test
+	public void testProfiling() {
+		setup();
+		RecordingSystem counting = new RecordingSystem("counting", 0) {
+			@Override
+			public void update(float delta) {
+				super.update(delta);
+				countProcessed(10);
+				countProcessed(5);
+			}
+		};
+		RecordingSystem other = new RecordingSystem("other", 1);
+		engine.addSystems(counting, other);
+		engine.update(1f);
+		assertNull(engine.getProfiler());
+
+		engine.setProfiling(true);
+		engine.getProfiler().setTrackAllocations(true);
+		for (int tick = 0; tick < 10; tick++) {
+			engine.update(1f);
+		}
+		SystemProfiler.Stats stats = engine.getProfiler().getStats(counting);
+		assertEquals(10, stats.getTotalSamples());
+		assertEquals(15, stats.getLastProcessed());
+		assertTrue(stats.getMaxNanos() >= stats.getP50Nanos());
+		assertEquals(10, engine.getProfiler().getTickStats().getTotalSamples());
+		assertEquals(2, engine.getProfiler().getAllStats().size());
+
+		// Also measured when updating in parallel
+		engine.setParallel(true);
+		engine.update(1f);
+		assertEquals(11, engine.getProfiler().getStats(other).getTotalSamples());
+
+		engine.setProfiling(false);
+		engine.update(1f);
+		assertNull(engine.getProfiler());
+	}
+
+	@Test
+	public void testUpdateOrder() {
+		setup();
+		RecordingSystem extract = new RecordingSystem("extract", 0);
+		extract.setPhase(Phase.RENDER_EXTRACT);
+		RecordingSystem input = new RecordingSystem("input", 5);
+		input.setPhase(Phase.PRE_UPDATE);
+		engine.addSystems(new RecordingSystem("e", 4), new RecordingSystem("c", 2), extract,
+				new RecordingSystem("d", 3), new RecordingSystem("a", 0), new RecordingSystem("b1", 1),
+				input, new RecordingSystem("b2", 1));
+		engine.update(1f);
+		assertEquals(Arrays.asList("input", "a", "b1", "b2", "c", "d", "e", "extract"), updated);
+		assertEquals(8, engine.getSystems().size());
+		assertEquals(input, engine.getSystems().get(0));
+
+		updated.clear();
+		engine.changeSystemPhase(input, Phase.POST_UPDATE);
+		engine.changeSystemPriority(extract, -1, false);
+		engine.update(1f);
+		assertEquals(Arrays.asList("a", "b1", "b2", "c", "d", "e", "input", "extract"), updated);
+
+		// Phases are barriers for the parallel update as well
+		SystemScheduler scheduler = engine.getScheduler();
+		assertEquals(Arrays.asList((System) extract), Arrays.asList(scheduler.getStage(scheduler.getStageCount() - 1)));
+	}
+
+	@Test
+	public void testUpdateIntervals() {
+		setup();
+		final float[] deltas = new float[2];
+		RecordingSystem everyThird = new RecordingSystem("everyThird", 0) {
+			@Override
+			public void update(float delta) {
+				super.update(delta);
+				deltas[0] = delta;
+			}
+		};
+		everyThird.setTickInterval(3);
+		RecordingSystem halfSecond = new RecordingSystem("halfSecond", 1) {
+			@Override
+			public void update(float delta) {
+				super.update(delta);
+				deltas[1] = delta;
+			}
+		};
+		halfSecond.setTimeInterval(0.5f);
+		engine.addSystems(everyThird, halfSecond);
+
+		for (int tick = 0; tick < 12; tick++) {
+			engine.update(0.125f);
+		}
+		assertEquals(4, Collections.frequency(updated, "everyThird"));
+		assertEquals(3, Collections.frequency(updated, "halfSecond"));
+		assertEquals(0.375f, deltas[0], 0f);
+		assertEquals(0.5f, deltas[1], 0f);
+	}
+
+	@Test
+	public void testIdleSystemsAreSkipped() {
+		setup();
+		RecordingSystem physics = new RecordingSystem("physics", 0) {
+			{
+				registerQuery(PhysicsComponent.class, MovementComponent.class);
+			}
+		};
+		engine.addSystems(physics);
+		EntityManager em = engine.getEntityManager();
+
+		engine.update(1f);
+		long entity = em.createEntity();
+		em.addComponent(entity, new PhysicsComponent());
+		engine.update(1f);
+		assertTrue(updated.isEmpty());
+
+		em.addComponent(entity, new MovementComponent());
+		engine.update(1f);
+		assertEquals(Arrays.asList("physics"), updated);
+
+		em.removeEntity(entity);
+		engine.update(1f);
+		assertEquals(1, updated.size());
+	}
+}
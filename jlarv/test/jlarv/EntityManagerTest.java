@@ -3,6 +3,18 @@ package jlarv;
 import static org.junit.Assert.*;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+
+import jlarv.util.IncrementalHashMap;
 
 import org.junit.Test;
 
@@ -134,6 +146,15 @@ public class EntityManagerTest {
 		assertTrue(em.getEntities().contains(entities.get(0)));
 		em.removeEntity(entities.get(0));
 		assertFalse(em.getEntities().contains(entities.get(0)));
+		assertFalse(em.doesEntityExist(entities.get(0)));
+		assertTrue(em.doesEntityExist(entities.get(1)));
+		assertFalse(em.doesEntityExist(Long.MAX_VALUE));
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testRestoringLiveEntityFails() {
+		setup();
+		em.restoreEntity(em.createEntity());
 	}
 	
 	@Test
@@ -251,4 +272,491 @@ public class EntityManagerTest {
 		
 	}
 
+	@Test
+	public void testTags() {
+		setup();
+		createEntities();
+		add();
+		
+		assertFalse(em.hasComponent(entities.get(0), FrozenTag.class));
+		assertFalse(em.doesComponentExist(FrozenTag.class));
+		
+		em.addTag(entities.get(0), FrozenTag.class);
+		em.addComponent(entities.get(3), new FrozenTag());
+		assertTrue(em.hasTag(entities.get(0), FrozenTag.class));
+		assertTrue(em.hasComponent(entities.get(3), FrozenTag.class));
+		assertFalse(em.hasComponent(entities.get(1), FrozenTag.class));
+		assertNull(em.getComponent(entities.get(0), FrozenTag.class));
+		assertFalse(em.getComponentsByClass().containsKey(FrozenTag.class));
+		
+		// Tags mix with data components in queries
+		ArrayList<Long> set = em.getEntitiesHavingComponent(FrozenTag.class);
+		assertEquals(2, set.size());
+		set = em.getEntitiesHavingComponents(PhysicsComponent.class, FrozenTag.class, RenderComponent.class);
+		assertTrue(set.contains(entities.get(0)));
+		assertFalse(set.contains(entities.get(3)));
+		assertEquals(1, set.size());
+		
+		em.removeComponent(entities.get(0), FrozenTag.class);
+		assertFalse(em.hasComponent(entities.get(0), FrozenTag.class));
+		em.removeEntity(entities.get(3));
+		assertFalse(em.doesComponentExist(FrozenTag.class));
+	}
+
+	@Test
+	public void testParallelForEach() {
+		setup();
+		for (int i = 0; i < 10000; i++) {
+			long entity = em.createEntity();
+			entities.add(entity);
+			em.addComponent(entity, physics_comp);
+			if (i % 3 == 0) {
+				em.addComponent(entity, movement_comp);
+			}
+			if (i % 2 == 0) {
+				em.addTag(entity, FrozenTag.class);
+			}
+		}
+		final Set<Long> visited = ConcurrentHashMap.newKeySet();
+		em.parallelForEach(64, new LongConsumer() {
+			@Override
+			public void accept(long entity) {
+				assertTrue(visited.add(entity));
+			}
+		}, PhysicsComponent.class, MovementComponent.class, FrozenTag.class);
+		
+		ArrayList<Long> expected = em.getEntitiesHavingComponents(PhysicsComponent.class, MovementComponent.class, FrozenTag.class);
+		assertEquals(expected.size(), visited.size());
+		assertTrue(visited.containsAll(expected));
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testStreams() {
+		setup();
+		for (int i = 0; i < 10000; i++) {
+			long entity = em.createEntity();
+			em.addComponent(entity, new PhysicsComponent());
+			if (i % 3 == 0) {
+				em.addComponent(entity, movement_comp);
+			}
+			if (i % 2 == 0) {
+				em.addTag(entity, FrozenTag.class);
+			}
+		}
+		ArrayList<Long> expected = em.getEntitiesHavingComponents(PhysicsComponent.class, MovementComponent.class, FrozenTag.class);
+		Set<Long> streamed = new HashSet<Long>();
+		em.streamEntitiesHavingComponents(PhysicsComponent.class, MovementComponent.class, FrozenTag.class)
+				.forEach(new LongConsumer() {
+					@Override
+					public void accept(long entity) {
+						streamed.add(entity);
+					}
+				});
+		assertEquals(new HashSet<Long>(expected), streamed);
+		assertEquals(expected.size(), em.streamEntitiesHavingComponents(PhysicsComponent.class, MovementComponent.class, FrozenTag.class)
+				.parallel().count());
+		assertEquals(5000, em.streamEntitiesHavingComponents(FrozenTag.class).parallel().distinct().count());
+		assertEquals(10, em.streamEntitiesHavingComponents(PhysicsComponent.class).limit(10).count());
+		assertTrue(em.streamEntitiesHavingComponents(MovementComponent.class, FrozenTag.class).findAny().isPresent());
+		assertEquals(0, em.streamEntitiesHavingComponents(PhysicsComponent.class, RenderComponent.class).count());
+		assertEquals(10000, em.streamEntities().parallel().count());
+
+		assertEquals(10000, em.streamComponentsOfType(PhysicsComponent.class).parallel().distinct().count());
+		assertEquals(0, em.streamComponentsOfType(RenderComponent.class).count());
+		assertEquals(0, em.streamComponentsOfType(FrozenTag.class).count());
+	}
+	
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testEnableDisable() {
+		setup();
+		long a = em.createEntity();
+		long b = em.createEntity();
+		em.addComponent(a, physics_comp);
+		em.addComponent(b, physics_comp);
+		em.addTag(b, FrozenTag.class);
+
+		em.setEnabled(b, false);
+		assertFalse(em.isEnabled(b));
+		assertEquals(1, em.getDisabledCount());
+		assertEquals(1, em.getEntitiesHavingComponent(PhysicsComponent.class).size());
+		assertTrue(em.getEntitiesHavingComponent(FrozenTag.class).isEmpty());
+		assertFalse(em.hasEntitiesHavingComponents(PhysicsComponent.class, FrozenTag.class));
+		assertEquals(1, em.streamEntitiesHavingComponents(PhysicsComponent.class).count());
+		// Still there for direct access
+		assertSame(physics_comp, em.getComponent(b, PhysicsComponent.class));
+		assertEquals(2, em.getEntityCount());
+
+		em.setEnabled(b, true);
+		assertEquals(2, em.getEntitiesHavingComponent(PhysicsComponent.class).size());
+		em.setEnabled(b, false);
+		em.removeEntity(b);
+		assertEquals(0, em.getDisabledCount());
+	}
+
+	@Test
+	public void testCachedQuery() {
+		setup();
+		createEntities();
+		add();
+		@SuppressWarnings("unchecked")
+		CachedQuery query = em.createCachedQuery(PhysicsComponent.class, FrozenTag.class);
+		assertTrue(query.isEmpty());
+
+		for (int i = 0; i < 100; i++) {
+			em.addComponent(entities.get(i), physics_comp);
+			em.addTag(entities.get(i), FrozenTag.class);
+		}
+		em.setEnabled(entities.get(0), false);
+		em.removeComponent(entities.get(1), PhysicsComponent.class);
+		em.removeEntity(entities.get(2));
+		em.setEnabled(entities.get(3), false);
+		em.setEnabled(entities.get(3), true);
+		assertEquals(97, query.size());
+		@SuppressWarnings("unchecked")
+		ArrayList<Long> expected = em.getEntitiesHavingComponents(PhysicsComponent.class, FrozenTag.class);
+		assertEquals(new HashSet<Long>(expected), toSet(query.toArray()));
+		assertFalse(query.contains(entities.get(0)));
+		assertEquals(97, query.stream().parallel().distinct().count());
+
+		em.disposeComponentsOfType(FrozenTag.class);
+		assertTrue(query.isEmpty());
+		assertTrue(em.removeCachedQuery(query));
+		em.addTag(entities.get(10), FrozenTag.class);
+		assertTrue(query.isEmpty());
+	}
+
+	private static Set<Long> toSet(long[] values) {
+		Set<Long> set = new HashSet<Long>();
+		for (long value : values) {
+			set.add(value);
+		}
+		return set;
+	}
+	
+	@Test(expected = IllegalStateException.class)
+	public void testParallelForEachBlocksStructuralChanges() {
+		setup();
+		createEntities();
+		add();
+		em.parallelForEach(1, new LongConsumer() {
+			@Override
+			public void accept(long entity) {
+				em.createEntity();
+			}
+		}, PhysicsComponent.class);
+	}
+
+	
+	@Test
+	public void testConcurrentModeStress() throws Exception {
+		final EntityManager concurrent = new EntityManager(true);
+		final int writers = 8;
+		final int perWriter = 5000;
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[][] created = new long[writers][perWriter];
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		
+		for (int w = 0; w < writers; w++) {
+			final int writer = w;
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < perWriter; i++) {
+							long entity = concurrent.createEntity();
+							created[writer][i] = entity;
+							concurrent.addComponent(entity, new PhysicsComponent());
+							if (i % 2 == 0) {
+								concurrent.addComponent(entity, new MovementComponent());
+								concurrent.addTag(entity, FrozenTag.class);
+							}
+							// Remove every fourth entity again, and the movement of every sixth
+							if (i % 4 == 0) {
+								concurrent.removeEntity(entity);
+							} else if (i % 6 == 2) {
+								concurrent.removeComponent(entity, MovementComponent.class);
+							}
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			});
+		}
+		// Readers query while the writers run, they must never fail nor see torn state
+		for (int r = 0; r < 2; r++) {
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						while (writing.get()) {
+							if (concurrent.doesComponentExist(FrozenTag.class)) {
+								for (long entity : concurrent.getEntitiesHavingComponent(FrozenTag.class)) {
+									concurrent.hasComponent(entity, PhysicsComponent.class);
+								}
+							}
+							concurrent.hasEntitiesHavingComponents(PhysicsComponent.class, MovementComponent.class);
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			});
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		start.countDown();
+		for (int w = 0; w < writers; w++) {
+			threads.get(w).join();
+		}
+		writing.set(false);
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		
+		// No two live entities share an ID, removed ones may have been reused
+		Set<Long> ids = new HashSet<Long>();
+		for (long[] ofWriter : created) {
+			for (int i = 0; i < perWriter; i++) {
+				if (i % 4 != 0) {
+					assertTrue(ids.add(ofWriter[i]));
+				}
+			}
+		}
+		assertTrue(concurrent.getNextId() - Long.MIN_VALUE <= writers * perWriter);
+		int alive = writers * (perWriter - perWriter / 4);
+		int moving = 0;
+		for (int i = 0; i < perWriter; i++) {
+			if (i % 2 == 0 && i % 4 != 0 && i % 6 != 2) {
+				moving++;
+			}
+		}
+		assertEquals(alive, concurrent.getEntities().size());
+		assertEquals(alive, concurrent.getEntitiesHavingComponent(PhysicsComponent.class).size());
+		assertEquals(writers * moving, concurrent.getEntitiesHavingComponent(MovementComponent.class).size());
+		assertEquals(writers * (perWriter / 4), concurrent.getEntitiesHavingComponent(FrozenTag.class).size());
+		for (int w = 0; w < writers; w++) {
+			for (int i = 0; i < perWriter; i++) {
+				if (i % 4 != 0) {
+					assertTrue(concurrent.hasComponent(created[w][i], PhysicsComponent.class));
+				}
+			}
+		}
+		
+		// Overlapping removes of the same entities must recycle each ID once
+		final ArrayList<Long> doomed = new ArrayList<Long>();
+		for (long[] ofWriter : created) {
+			for (int i = 1; i < perWriter; i += 4) {
+				doomed.add(ofWriter[i]);
+			}
+		}
+		ArrayList<Thread> removers = new ArrayList<Thread>();
+		final CountDownLatch go = new CountDownLatch(1);
+		for (int r = 0; r < 4; r++) {
+			final boolean reversed = r % 2 == 1;
+			removers.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						go.await();
+						for (int i = 0, size = doomed.size(); i < size; i++) {
+							concurrent.removeEntity(doomed.get(reversed ? size - 1 - i : i));
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+					}
+				}
+			});
+		}
+		for (Thread thread : removers) {
+			thread.start();
+		}
+		go.countDown();
+		for (Thread thread : removers) {
+			thread.join();
+		}
+		if (failure.get() != null) {
+			throw new AssertionError(failure.get());
+		}
+		assertEquals(alive - doomed.size(), concurrent.getEntities().size());
+		Set<Long> live = new HashSet<Long>(concurrent.getEntities());
+		for (int i = 0; i < 2 * doomed.size(); i++) {
+			assertTrue(live.add(concurrent.createEntity()));
+		}
+	}
+	
+	@Test
+	public void testHasEntitiesHavingComponents() {
+		setup();
+		long a = em.createEntity();
+		long b = em.createEntity();
+		em.addComponent(a, new PhysicsComponent());
+		em.addComponent(b, new PhysicsComponent());
+		em.addComponent(b, new MovementComponent());
+		assertTrue(em.hasEntitiesHavingComponents(PhysicsComponent.class));
+		assertTrue(em.hasEntitiesHavingComponents(PhysicsComponent.class, MovementComponent.class));
+		assertFalse(em.hasEntitiesHavingComponents(FrozenTag.class));
+
+		// Driven by the tag, the smallest store, which no entity shares with movement
+		em.addTag(a, FrozenTag.class);
+		assertTrue(em.hasEntitiesHavingComponents(PhysicsComponent.class, FrozenTag.class));
+		assertFalse(em.hasEntitiesHavingComponents(MovementComponent.class, FrozenTag.class));
+
+		// Disabled entities don't count, even for a single type
+		em.setEnabled(b, false);
+		assertFalse(em.hasEntitiesHavingComponents(MovementComponent.class));
+		assertFalse(em.hasEntitiesHavingComponents(PhysicsComponent.class, MovementComponent.class));
+		assertTrue(em.hasEntitiesHavingComponents(PhysicsComponent.class));
+	}
+	
+	@Test
+	public void testRemovingTwiceRecyclesOnce() {
+		setup();
+		long entity = em.createEntity();
+		em.removeEntity(entity);
+		em.removeEntity(entity);
+		assertFalse(em.doesEntityExist(entity));
+		assertEquals(entity, em.createEntity());
+		assertTrue(em.createEntity() != entity);
+	}
+
+	@Test
+	public void testIdsStayDense() {
+		setup();
+		// Churn far beyond the live count keeps IDs, and the bitsets indexed by them, small
+		ArrayList<Long> live = new ArrayList<Long>();
+		for (int i = 0; i < 100000; i++) {
+			long entity = em.createEntity();
+			em.addTag(entity, FrozenTag.class);
+			em.setEnabled(entity, i % 2 == 0);
+			live.add(entity);
+			if (live.size() > 100) {
+				em.removeEntity(live.remove(0));
+			}
+		}
+		assertTrue(em.getNextId() - Long.MIN_VALUE <= 101);
+		assertTrue(em.getTagsByClass().get(FrozenTag.class).capacity() <= 4096);
+		assertEquals(100, new HashSet<Long>(em.getEntities()).size());
+		// Restored IDs are taken out of the ones to reuse
+		long removed = live.remove(0);
+		int recycled = em.getRecycledIdCount();
+		em.removeEntity(removed);
+		assertEquals(recycled + 1, em.getRecycledIdCount());
+		em.restoreEntity(removed);
+		assertEquals(recycled, em.getRecycledIdCount());
+		for (int i = 0; i <= recycled; i++) {
+			assertNotEquals(removed, em.createEntity());
+		}
+	}
+
+	@Test
+	public void testIncrementalGrowth() {
+		// Same behaviour as a HashMap through resizes, shrinks and removals
+		IncrementalHashMap<Long, Integer> map = new IncrementalHashMap<Long, Integer>();
+		Map<Long, Integer> reference = new HashMap<Long, Integer>();
+		Random random = new Random(11);
+		boolean sawResize = false;
+		for (int i = 0; i < 50000; i++) {
+			long key = random.nextInt(5000);
+			int op = random.nextInt(10);
+			if (op < 6) {
+				assertEquals(reference.put(key, i), map.put(key, i));
+			} else if (op < 9) {
+				assertEquals(reference.remove(key), map.remove(key));
+			} else {
+				assertEquals(reference.get(key), map.get(key));
+				map.shrink();
+			}
+			sawResize |= map.isResizing();
+			assertEquals(reference.size(), map.size());
+		}
+		assertTrue(sawResize);
+		assertEquals(reference, map);
+		assertEquals(reference.keySet(), new HashSet<Long>(map.keySet()));
+		
+		// Iterator removal and split iteration while resizing
+		map.ensureCapacity(100000);
+		assertTrue(map.isResizing());
+		for (java.util.Iterator<Long> it = map.keySet().iterator(); it.hasNext(); ) {
+			if (it.next() % 2 == 0) {
+				it.remove();
+			}
+		}
+		for (long key = 0; key < 5000; key += 2) {
+			reference.remove(key);
+		}
+		assertEquals(reference, map);
+		assertEquals(reference.size(), map.keySet().parallelStream().count());
+		while (map.stepResize(64)) {
+		}
+		assertEquals(reference, map);
+		assertTrue(map.getCapacity() * 3 / 4 >= 100000);
+		
+		// Hinted stores don't resize, unhinted ones are finished by the engine
+		setup();
+		engine.setEntityManager(em);
+		em.setCapacityHint(PhysicsComponent.class, 10000);
+		em.setCapacityHint(10000);
+		for (int i = 0; i < 10000; i++) {
+			long entity = em.createEntity();
+			em.addComponent(entity, new PhysicsComponent());
+			em.addComponent(entity, new MovementComponent());
+		}
+		IncrementalHashMap<?, ?> physics = (IncrementalHashMap<?, ?>) em.getComponentsByClass().get(PhysicsComponent.class);
+		IncrementalHashMap<?, ?> movement = (IncrementalHashMap<?, ?>) em.getComponentsByClass().get(MovementComponent.class);
+		assertEquals(0, physics.getResizeCount());
+		assertTrue(movement.getResizeCount() > 0);
+		for (int i = 0; i < 100 && movement.isResizing(); i++) {
+			engine.update(0);
+		}
+		assertFalse(movement.isResizing());
+		assertEquals(10000, em.getEntitiesHavingComponents(PhysicsComponent.class, MovementComponent.class).size());
+	}
+
+	@Test
+	public void testIncrementalResizeNeverPauses() {
+		IncrementalHashMap<Long, Integer> map = new IncrementalHashMap<Long, Integer>();
+		for (long key = 0; key < 10000; key++) {
+			map.put(key, 0);
+		}
+		while (map.stepResize(1000)) {
+		}
+		long resizes = map.getResizeCount();
+		map.ensureCapacity(20000);
+		assertTrue(map.isResizing());
+		int capacity = map.getCapacity();
+
+		// Replacing values neither moves buckets nor breaks iterations
+		for (Map.Entry<Long, Integer> entry : map.entrySet()) {
+			map.put(entry.getKey(), 1);
+		}
+		assertTrue(map.isResizing());
+		assertEquals(capacity, map.getCapacity());
+
+		// Growing asked for meanwhile waits for the current resize
+		map.ensureCapacity(100000);
+		assertTrue(map.isResizing());
+		assertEquals(capacity, map.getCapacity());
+		int steps = 0;
+		while (map.stepResize(64)) {
+			steps++;
+		}
+		assertTrue(steps > 1);
+		assertTrue(map.getCapacity() * 3 / 4 >= 100000);
+		assertEquals(resizes + 2, map.getResizeCount());
+		for (long key = 0; key < 10000; key++) {
+			assertEquals(Integer.valueOf(1), map.get(key));
+		}
+	}
+
 }
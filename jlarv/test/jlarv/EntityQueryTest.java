@@ -0,0 +1,173 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.LongPredicate;
+
+import org.junit.Test;
+
+/**
+ * Tests planning and running queries with all, any and none clauses.
+ */
+public class EntityQueryTest {
+
+	static class NeverAddedComponent extends Component {
+	}
+
+	EntityManager em = new EntityManager();
+	ArrayList<Long> entities = new ArrayList<Long>();
+
+	/**
+	 * Physics on every entity, movement on one in ten, render on one in four
+	 * and frozen on one in three.
+	 */
+	private void populate() {
+		for (int i = 0; i < 1000; i++) {
+			long entity = em.createEntity();
+			entities.add(entity);
+			em.addComponent(entity, new PhysicsComponent());
+			if (i % 10 == 0) {
+				em.addComponent(entity, new MovementComponent());
+			}
+			if (i % 4 == 0) {
+				em.addComponent(entity, new RenderComponent());
+			}
+			if (i % 3 == 0) {
+				em.addTag(entity, FrozenTag.class);
+			}
+		}
+	}
+
+	private void assertMatches(EntityQuery query, LongPredicate expected) {
+		Set<Long> wanted = new HashSet<Long>();
+		for (long entity : entities) {
+			if (em.isEnabled(entity) && expected.test(entity)) {
+				wanted.add(entity);
+			}
+		}
+		ArrayList<Long> found = query.collect();
+		assertEquals(wanted.size(), found.size());
+		assertEquals(wanted, new HashSet<Long>(found));
+		assertEquals(wanted.size(), query.count());
+		assertEquals(wanted.size(), query.stream().parallel().distinct().count());
+		assertEquals(wanted.isEmpty(), query.isEmpty());
+	}
+
+	@Test
+	public void testClauses() {
+		populate();
+		assertMatches(em.query().all(PhysicsComponent.class, MovementComponent.class), new LongPredicate() {
+			@Override
+			public boolean test(long e) {
+				return em.hasComponent(e, MovementComponent.class);
+			}
+		});
+		assertMatches(em.query().any(MovementComponent.class, RenderComponent.class, FrozenTag.class), new LongPredicate() {
+			@Override
+			public boolean test(long e) {
+				return em.hasComponent(e, MovementComponent.class) || em.hasComponent(e, RenderComponent.class) || em.hasTag(e, FrozenTag.class);
+			}
+		});
+		assertMatches(em.query().all(PhysicsComponent.class).any(MovementComponent.class, FrozenTag.class).none(RenderComponent.class), new LongPredicate() {
+			@Override
+			public boolean test(long e) {
+				return (em.hasComponent(e, MovementComponent.class) || em.hasTag(e, FrozenTag.class)) && !em.hasComponent(e, RenderComponent.class);
+			}
+		});
+		assertMatches(em.query().none(FrozenTag.class, MovementComponent.class), new LongPredicate() {
+			@Override
+			public boolean test(long e) {
+				return !em.hasTag(e, FrozenTag.class) && !em.hasComponent(e, MovementComponent.class);
+			}
+		});
+		assertMatches(em.query().any(RenderComponent.class).any(FrozenTag.class), new LongPredicate() {
+			@Override
+			public boolean test(long e) {
+				return em.hasComponent(e, RenderComponent.class) && em.hasTag(e, FrozenTag.class);
+			}
+		});
+		assertMatches(em.query(), new LongPredicate() {
+			@Override
+			public boolean test(long e) {
+				return true;
+			}
+		});
+		assertMatches(em.query().all(FrozenTag.class).optional(RenderComponent.class), new LongPredicate() {
+			@Override
+			public boolean test(long e) {
+				return em.hasTag(e, FrozenTag.class);
+			}
+		});
+
+		// Disabled entities never match
+		for (int i = 0; i < 1000; i += 7) {
+			em.setEnabled(entities.get(i), false);
+		}
+		assertMatches(em.query().all(MovementComponent.class).none(FrozenTag.class), new LongPredicate() {
+			@Override
+			public boolean test(long e) {
+				return em.hasComponent(e, MovementComponent.class) && !em.hasTag(e, FrozenTag.class);
+			}
+		});
+		assertMatches(em.query().any(MovementComponent.class, RenderComponent.class), new LongPredicate() {
+			@Override
+			public boolean test(long e) {
+				return em.hasComponent(e, MovementComponent.class) || em.hasComponent(e, RenderComponent.class);
+			}
+		});
+	}
+
+	@Test
+	public void testNeverAddedTypes() {
+		populate();
+		assertTrue(em.query().all(PhysicsComponent.class, NeverAddedComponent.class).isEmpty());
+		assertTrue(em.query().any(NeverAddedComponent.class).isEmpty());
+		assertTrue(em.getEntitiesHavingComponents(NeverAddedComponent.class, PhysicsComponent.class).isEmpty());
+		assertFalse(em.hasEntitiesHavingComponents(PhysicsComponent.class, NeverAddedComponent.class));
+		assertMatches(em.query().all(MovementComponent.class).none(NeverAddedComponent.class), new LongPredicate() {
+			@Override
+			public boolean test(long e) {
+				return em.hasComponent(e, MovementComponent.class);
+			}
+		});
+		assertMatches(em.query().any(NeverAddedComponent.class, MovementComponent.class), new LongPredicate() {
+			@Override
+			public boolean test(long e) {
+				return em.hasComponent(e, MovementComponent.class);
+			}
+		});
+		assertTrue(em.query().all(NeverAddedComponent.class).explain().startsWith("empty (all NeverAddedComponent"));
+	}
+
+	@Test
+	public void testPlan() {
+		populate();
+		// The smallest store drives, whatever the order of the types
+		String plan = em.query().all(PhysicsComponent.class, FrozenTag.class, MovementComponent.class).explain();
+		String[] lines = plan.split("\n");
+		assertEquals("scan MovementComponent (100)", lines[0]);
+		assertTrue(lines[1].startsWith("probe all FrozenTag (334"));
+		assertTrue(lines[2].startsWith("probe all PhysicsComponent (1000"));
+		assertEquals(3, lines.length);
+
+		// Most selective probe first: a quarter passes render, two thirds pass not frozen
+		lines = em.query().none(FrozenTag.class).all(PhysicsComponent.class, RenderComponent.class, MovementComponent.class).explain().split("\n");
+		assertEquals("scan MovementComponent (100)", lines[0]);
+		assertTrue(lines[1].startsWith("probe all RenderComponent (250, ~25 left)"));
+		assertTrue(lines[2].startsWith("probe none FrozenTag (334, ~17 left)"));
+		assertTrue(lines[3].startsWith("probe all PhysicsComponent"));
+
+		// A union smaller than any store drives
+		lines = em.query().all(PhysicsComponent.class).any(MovementComponent.class, NeverAddedComponent.class)
+				.none(NeverAddedComponent.class).optional(RenderComponent.class).explain().split("\n");
+		assertEquals("scan union [MovementComponent, NeverAddedComponent] (100)", lines[0]);
+		assertEquals("none NeverAddedComponent: empty store, skipped", lines[2]);
+		assertEquals("optional RenderComponent", lines[3]);
+		assertEquals("scan entities (1000)", em.query().none(FrozenTag.class).explain().split("\n")[0]);
+		assertEquals(100, em.query().all(MovementComponent.class).estimate());
+		assertEquals(25, em.query().all(MovementComponent.class, RenderComponent.class).estimate());
+	}
+}
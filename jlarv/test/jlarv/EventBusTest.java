@@ -0,0 +1,186 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+/**
+ * Tests the EventBus channels and when the engine makes events readable.
+ */
+public class EventBusTest {
+
+	static class HitEvent {
+		long target;
+		int damage;
+	}
+
+	static final Supplier<HitEvent> HITS = new Supplier<HitEvent>() {
+		@Override
+		public HitEvent get() {
+			return new HitEvent();
+		}
+	};
+
+	Engine engine;
+	EventChannel<HitEvent> channel;
+
+	private void setup(EventChannel.Lifetime lifetime, int capacity) {
+		engine = new Engine();
+		channel = engine.getEventBus().createChannel(HitEvent.class, lifetime, capacity, HITS);
+	}
+
+	/**
+	 * Publishes one event per update, with the tick as damage.
+	 */
+	class Publisher extends System {
+		int tick;
+
+		Publisher(Phase phase) {
+			super(0, phase);
+		}
+
+		@Override
+		public void update(float delta) {
+			HitEvent hit = channel.publish();
+			hit.target = 7;
+			hit.damage = tick++;
+		}
+	}
+
+	/**
+	 * Records the damage of every event it sees.
+	 */
+	class Reader extends System {
+		ArrayList<Integer> seen = new ArrayList<Integer>();
+		int updates;
+
+		Reader(Phase phase) {
+			super(0, phase);
+		}
+
+		@Override
+		public void update(float delta) {
+			updates++;
+			for (int i = 0; i < channel.size(); i++) {
+				seen.add(channel.get(i).damage);
+			}
+		}
+	}
+
+	@Test
+	public void testPhaseLifetime() {
+		setup(EventChannel.Lifetime.PHASE, 4);
+		Publisher publisher = new Publisher(Phase.UPDATE);
+		Reader sameTick = new Reader(Phase.POST_UPDATE);
+		Reader tooLate = new Reader(Phase.RENDER_EXTRACT);
+		Reader tooEarly = new Reader(Phase.UPDATE);
+		engine.addSystems(publisher, sameTick, tooLate, tooEarly);
+
+		engine.update(1f);
+		engine.update(1f);
+		assertEquals(Arrays.asList(0, 1), sameTick.seen);
+		assertTrue(tooLate.seen.isEmpty());
+		assertTrue(tooEarly.seen.isEmpty());
+		assertFalse(channel.hasEvents());
+		assertEquals(2, channel.getPublished());
+	}
+
+	@Test
+	public void testTickLifetime() {
+		setup(EventChannel.Lifetime.TICK, 4);
+		Publisher publisher = new Publisher(Phase.POST_UPDATE);
+		Reader early = new Reader(Phase.PRE_UPDATE);
+		Reader late = new Reader(Phase.RENDER_EXTRACT);
+		engine.addSystems(publisher, early, late);
+
+		engine.update(1f);
+		assertTrue(early.seen.isEmpty());
+		assertTrue(late.seen.isEmpty());
+		engine.update(1f);
+		assertEquals(Arrays.asList(0), early.seen);
+		assertEquals(Arrays.asList(0), late.seen);
+	}
+
+	@Test
+	public void testPublishReusesEvents() {
+		setup(EventChannel.Lifetime.PHASE, 2);
+		EventBus bus = engine.getEventBus();
+		bus.beginTick();
+		HitEvent first = channel.publish();
+		channel.publish();
+		bus.endTick();
+		bus.beginTick();
+		bus.endTick();
+		bus.beginTick();
+		assertSame(first, channel.publish());
+		assertEquals(0, channel.getGrowths());
+
+		// Overflowing grows the channel once and keeps every event
+		channel.publish();
+		channel.publish();
+		assertEquals(1, channel.getGrowths());
+		assertEquals(4, channel.getCapacity());
+		bus.enterPhase(Phase.PRE_UPDATE);
+		assertEquals(3, channel.size());
+	}
+
+	@Test
+	public void testSubscribedSystemsSkippedWithoutEvents() {
+		setup(EventChannel.Lifetime.PHASE, 4);
+		Reader reader = new Reader(Phase.PRE_UPDATE) {
+			{
+				subscribe(channel);
+			}
+		};
+		engine.addSystems(reader);
+		engine.update(1f);
+		assertEquals(0, reader.updates);
+
+		// Published outside the engine, readable in the first phase of the next tick
+		channel.publish().damage = 4;
+		engine.update(1f);
+		engine.update(1f);
+		assertEquals(1, reader.updates);
+		assertEquals(Arrays.asList(4), reader.seen);
+	}
+
+	@Test
+	public void testParallelPublishers() {
+		setup(EventChannel.Lifetime.PHASE, 8);
+		ArrayList<System> publishers = new ArrayList<System>();
+		for (int i = 0; i < 8; i++) {
+			System publisher = new System(0) {
+				{
+					reads(PhysicsComponent.class);
+				}
+
+				@Override
+				public void update(float delta) {
+					for (int j = 0; j < 1000; j++) {
+						channel.publish().damage = 1;
+					}
+				}
+			};
+			publishers.add(publisher);
+		}
+		final int[] total = new int[1];
+		System reader = new System(0, Phase.POST_UPDATE) {
+			@Override
+			public void update(float delta) {
+				for (int i = 0; i < channel.size(); i++) {
+					total[0] += channel.get(i).damage;
+				}
+			}
+		};
+		engine.addSystems(publishers.toArray(new System[0]));
+		engine.addSystems(reader);
+		engine.setParallel(true);
+		engine.update(1f);
+		engine.setParallel(false);
+		assertEquals(8000, total[0]);
+	}
+}
@@ -0,0 +1,9 @@
+package jlarv;
+
+
+/*
+ * Placeholder tag used only for testing.
+ */
+public class FrozenTag extends TagComponent {
+
+}
@@ -0,0 +1,69 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests the fixed timestep accumulator of the GameLoop.
+ */
+public class GameLoopTest {
+
+	static final long STEP = 15625000L; // 1/64 s, exact in floating point
+
+	int updates;
+	float lastDelta;
+
+	Updatable counter = new Updatable() {
+		@Override
+		public void update(float delta) {
+			updates++;
+			lastDelta = delta;
+		}
+	};
+
+	@Test
+	public void testFixedSteps() {
+		GameLoop loop = new GameLoop(counter, 1f / 64f);
+		assertEquals(0, loop.advance(STEP / 2));
+		assertEquals(0.5f, loop.getAlpha(), 0.0001f);
+		assertEquals(1, loop.advance(STEP / 2));
+		assertEquals(0f, loop.getAlpha(), 0.0001f);
+		assertEquals(2, loop.advance(STEP * 2 + STEP / 4));
+		assertEquals(0.25f, loop.getAlpha(), 0.0001f);
+		assertEquals(3, updates);
+		assertEquals(1f / 64f, lastDelta, 0f);
+		assertEquals(0, loop.getDroppedNanos());
+	}
+
+	@Test
+	public void testCatchUpIsCapped() {
+		GameLoop loop = new GameLoop(counter, 1f / 64f);
+		loop.setMaxStepsPerFrame(3);
+		assertEquals(3, loop.advance(STEP * 10 + STEP / 2));
+		assertEquals(7 * STEP, loop.getDroppedNanos());
+		assertEquals(0.5f, loop.getAlpha(), 0.0001f);
+		assertEquals(1, loop.advance(STEP / 2));
+		assertEquals(4, loop.getSteps());
+	}
+
+	@Test
+	public void testRunAndStop() throws InterruptedException {
+		final GameLoop loop = new GameLoop(counter, 1f / 1000f);
+		loop.setPacing(GameLoop.Pacing.PARK);
+		loop.setListener(new GameLoop.Listener() {
+			@Override
+			public void frame(float alpha) {
+				assertTrue(alpha >= 0 && alpha < 1);
+				if (loop.getSteps() >= 20) {
+					loop.stop();
+				}
+			}
+		});
+		Thread thread = new Thread(loop);
+		thread.start();
+		thread.join(5000);
+		assertFalse(thread.isAlive());
+		assertTrue(loop.getSteps() >= 20);
+	}
+}
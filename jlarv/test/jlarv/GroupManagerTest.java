@@ -124,6 +124,24 @@ public class GroupManagerTest {
 		assertTrue(!get_set.contains(ent5));		
 	}
 	
+	@Test
+	public void testGetDoesNotChangeGroups() {
+		setup();
+		gm.add(ent1, "a", "b");
+		gm.add(ent2, "a");
+		gm.add(ent3, "a", "b");
+		
+		// Intersecting must not drop entities from the first group
+		assertEquals(2, gm.get("a", "b").size());
+		assertEquals(2, gm.get("a", "b").size());
+		ArrayList<Long> a = gm.get("a");
+		assertEquals(3, a.size());
+		assertTrue(a.contains(ent1));
+		assertTrue(a.contains(ent2));
+		assertTrue(a.contains(ent3));
+		assertTrue(gm.isInGroup(ent2, "a"));
+	}
+	
 	@Test
 	public void testAddMultipleArgs() {
 	    setup();
@@ -249,5 +267,27 @@ public class GroupManagerTest {
 		assertTrue(gm.doesGroupExist(comp_name_5));
 	}
 	
+	@Test
+	public void testRecycledIdStartsWithoutGroups() {
+		Engine engine = new Engine();
+		EntityManager em = engine.getEntityManager();
+		GroupManager groups = engine.getGroupManager();
+		long entity = em.createEntity();
+		groups.add(entity, "enemies");
+		em.removeEntity(entity);
+		assertFalse(groups.isInGroup(entity, "enemies"));
+		
+		long reused = em.createEntity();
+		assertEquals(entity, reused);
+		assertFalse(groups.isInGroup(reused, "enemies"));
+		assertTrue(groups.getGroups(reused).isEmpty());
+		
+		// Replacing the group manager moves the binding along
+		GroupManager replacement = new GroupManager();
+		engine.setGroupManager(replacement);
+		replacement.add(reused, "allies");
+		em.removeEntity(reused);
+		assertFalse(replacement.isInGroup(reused, "allies"));
+	}
 
 }
@@ -0,0 +1,147 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+/**
+ * Tests keeping the relevant entities of observers up to date.
+ */
+public class InterestManagerTest {
+
+	Engine engine = new Engine();
+	EntityManager em = engine.getEntityManager();
+	InterestManager interest = new InterestManager(10);
+	ArrayList<Long> entered = new ArrayList<Long>();
+	ArrayList<Long> left = new ArrayList<Long>();
+
+	{
+		interest.attach(em, engine.getGroupManager());
+		interest.addListener(new InterestListener() {
+			@Override
+			public void entered(InterestManager.Observer observer, long entity) {
+				entered.add(entity);
+			}
+
+			@Override
+			public void left(InterestManager.Observer observer, long entity) {
+				left.add(entity);
+			}
+		});
+	}
+
+	private long entityAt(float x, float y) {
+		long entity = em.createEntity();
+		interest.setPosition(entity, x, y);
+		return entity;
+	}
+
+	@Test
+	public void testEntitiesMoving() {
+		// Watches the cells from -2 to 0 in both axes
+		InterestManager.Observer observer = interest.addObserver(-5, -5, 10);
+		long near = entityAt(-1, -1);
+		long far = entityAt(50, 50);
+		assertEquals(Arrays.asList(near), entered);
+		assertTrue(observer.isRelevant(near));
+		assertFalse(observer.isRelevant(far));
+
+		// Inside the same cell, or between watched cells, nothing happens
+		interest.setPosition(near, -2, -2);
+		interest.setPosition(near, -15, -15);
+		assertEquals(1, entered.size());
+		assertTrue(left.isEmpty());
+
+		interest.setPosition(far, 5, -5);
+		interest.setPosition(near, 15, 15);
+		assertEquals(Arrays.asList(near, far), entered);
+		assertEquals(Arrays.asList(near), left);
+		assertEquals(new HashSet<Long>(Arrays.asList(far)), observer.getRelevant());
+
+		// Removed entities leave
+		em.removeEntity(far);
+		assertEquals(Arrays.asList(near, far), left);
+		assertTrue(observer.getRelevant().isEmpty());
+	}
+
+	@Test
+	public void testObserverMoving() {
+		long a = entityAt(5, 5);
+		long b = entityAt(35, 5);
+		InterestManager.Observer observer = interest.addObserver(5, 5, 5);
+		assertEquals(new HashSet<Long>(Arrays.asList(a)), observer.getRelevant());
+
+		interest.moveObserver(observer, 6, 6);
+		assertEquals(1, entered.size());
+		interest.moveObserver(observer, 35, 5);
+		assertEquals(new HashSet<Long>(Arrays.asList(b)), observer.getRelevant());
+		assertEquals(Arrays.asList(a), left);
+
+		interest.removeObserver(observer);
+		assertEquals(Arrays.asList(a, b), left);
+		assertEquals(0, interest.getObserverCount());
+	}
+
+	@Test
+	public void testGroups() {
+		GroupManager groups = engine.getGroupManager();
+		long ally = entityAt(500, 500);
+		long close = entityAt(0, 0);
+		groups.add(ally, "party");
+		groups.add(close, "party");
+		InterestManager.Observer observer = interest.addObserver(0, 0, 5);
+		interest.watchGroup(observer, "party");
+		assertTrue(observer.isRelevant(ally));
+
+		// Relevant for two reasons, losing one isn't enough to leave
+		interest.setPosition(close, 500, 0);
+		assertTrue(observer.isRelevant(close));
+		groups.remove(close, "party");
+		assertFalse(observer.isRelevant(close));
+
+		long joining = entityAt(-500, 0);
+		groups.add(joining, "party");
+		assertTrue(observer.isRelevant(joining));
+		interest.unwatchGroup(observer, "party");
+		assertTrue(observer.getRelevant().isEmpty());
+	}
+
+	@Test
+	public void testDrivesReplication() {
+		ReplicationSchema schema = new ReplicationSchema();
+		schema.registerTag(FrozenTag.class);
+		ReplicationEncoder encoder = new ReplicationEncoder(em, schema);
+		EntityManager client = new EntityManager();
+		ReplicationDecoder decoder = new ReplicationDecoder(client, schema);
+		InterestManager.Observer player = interest.addObserver(0, 0, 10);
+		ReplicationEncoder.Observer connection = encoder.addObserver();
+		connection.setRelevant(player.getRelevant());
+
+		long near = entityAt(1, 1);
+		long far = entityAt(100, 100);
+		em.addTag(near, FrozenTag.class);
+		em.addTag(far, FrozenTag.class);
+		ByteBuffer buffer = ByteBuffer.allocate(256);
+		encoder.capture();
+		encoder.encode(connection, buffer);
+		buffer.flip();
+		assertTrue(decoder.decode(buffer));
+		connection.acknowledge(decoder.getLastTick());
+		assertEquals(1, client.getEntityCount());
+		assertTrue(client.hasTag(near, FrozenTag.class));
+
+		interest.moveObserver(player, 100, 100);
+		buffer.clear();
+		encoder.capture();
+		encoder.encode(connection, buffer);
+		buffer.flip();
+		assertTrue(decoder.decode(buffer));
+		assertEquals(1, client.getEntityCount());
+		assertTrue(client.hasTag(far, FrozenTag.class));
+	}
+}
@@ -0,0 +1,232 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests that jobs run off thread and are applied at the engine's sync point.
+ */
+public class JobSchedulerTest {
+
+	Engine engine;
+	EntityManager em;
+	JobScheduler jobs;
+
+	private void setup(int maxInFlight) {
+		engine = new Engine();
+		em = engine.getEntityManager();
+		jobs = engine.getJobScheduler();
+		jobs.setMaxInFlight(maxInFlight);
+	}
+
+	/**
+	 * Job that waits for the latch and then adds a PhysicsComponent to the given entity.
+	 */
+	class AddPhysicsJob extends Job<Component> {
+		final CountDownLatch latch;
+		final long entity;
+		boolean wasCancelled;
+
+		AddPhysicsJob(long entity, CountDownLatch latch) {
+			this.entity = entity;
+			this.latch = latch;
+		}
+
+		@Override
+		protected Component compute() throws Exception {
+			latch.await();
+			return new PhysicsComponent();
+		}
+
+		@Override
+		protected void apply(EntityManager entityManager, Component result) {
+			entityManager.addComponent(entity, result);
+		}
+
+		@Override
+		protected void cancelled() {
+			wasCancelled = true;
+		}
+	}
+
+	/**
+	 * Updates the engine until the job finishes, failing after a while.
+	 */
+	private void updateUntilFinished(Job<?> job) throws InterruptedException {
+		long deadline = java.lang.System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!job.isFinished()) {
+			assertTrue(java.lang.System.nanoTime() < deadline);
+			Thread.sleep(1);
+			engine.update(0f);
+		}
+	}
+
+	@Test
+	public void testResultAppliedAtSyncPoint() throws InterruptedException {
+		setup(4);
+		long entity = em.createEntity();
+		CountDownLatch latch = new CountDownLatch(1);
+		AddPhysicsJob job = jobs.submit(entity, new AddPhysicsJob(entity, latch));
+		assertEquals(Job.State.RUNNING, job.getState());
+		engine.update(0f);
+		assertFalse(em.hasComponent(entity, PhysicsComponent.class));
+
+		latch.countDown();
+		updateUntilFinished(job);
+		assertEquals(Job.State.DONE, job.getState());
+		assertTrue(em.hasComponent(entity, PhysicsComponent.class));
+		assertEquals(0, jobs.getInFlight());
+	}
+
+	@Test
+	public void testInFlightLimit() throws InterruptedException {
+		setup(2);
+		CountDownLatch latch = new CountDownLatch(1);
+		AddPhysicsJob[] submitted = new AddPhysicsJob[5];
+		for (int i = 0; i < submitted.length; i++) {
+			long entity = em.createEntity();
+			submitted[i] = jobs.submit(entity, new AddPhysicsJob(entity, latch));
+		}
+		assertEquals(2, jobs.getInFlight());
+		assertEquals(3, jobs.getPending());
+		assertEquals(Job.State.PENDING, submitted[4].getState());
+
+		latch.countDown();
+		for (AddPhysicsJob job : submitted) {
+			updateUntilFinished(job);
+			assertTrue(jobs.getInFlight() <= 2);
+		}
+		assertEquals(5, em.getEntitiesHavingComponent(PhysicsComponent.class).size());
+	}
+
+	@Test
+	public void testRemovingOwnerCancels() throws InterruptedException {
+		setup(1);
+		long running = em.createEntity();
+		long waiting = em.createEntity();
+		CountDownLatch latch = new CountDownLatch(1);
+		AddPhysicsJob first = jobs.submit(running, new AddPhysicsJob(running, latch));
+		AddPhysicsJob second = jobs.submit(waiting, new AddPhysicsJob(waiting, latch));
+
+		em.removeEntity(waiting);
+		assertEquals(Job.State.CANCELLED, second.getState());
+		assertEquals(0, jobs.getPending());
+		// Called back on the simulation thread, not from removeEntity
+		assertFalse(second.wasCancelled);
+		engine.update(0f);
+		assertTrue(second.wasCancelled);
+
+		em.removeEntity(running);
+		assertEquals(Job.State.CANCELLED, first.getState());
+		// An interrupted worker frees its slot once it returns
+		long deadline = java.lang.System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (jobs.getInFlight() > 0) {
+			assertTrue(java.lang.System.nanoTime() < deadline);
+			Thread.sleep(1);
+			engine.update(0f);
+		}
+		engine.update(0f);
+		assertTrue(first.wasCancelled);
+
+		latch.countDown();
+		engine.update(0f);
+		assertFalse(em.doesComponentExist(PhysicsComponent.class));
+	}
+
+	@Test
+	public void testCancelledJobKeepsSlotUntilItReturns() throws InterruptedException {
+		setup(1);
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Job<Object> stubborn = jobs.submit(Job.NO_OWNER, new Job<Object>() {
+			@Override
+			protected Object compute() throws Exception {
+				entered.countDown();
+				// Ignores interrupts
+				while (release.getCount() > 0) {
+					Thread.onSpinWait();
+				}
+				return null;
+			}
+
+			@Override
+			protected void apply(EntityManager entityManager, Object result) {
+			}
+		});
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+		assertTrue(jobs.cancel(stubborn));
+		long entity = em.createEntity();
+		AddPhysicsJob next = jobs.submit(entity, new AddPhysicsJob(entity, new CountDownLatch(0)));
+		for (int i = 0; i < 5; i++) {
+			engine.update(0f);
+			assertEquals(1, jobs.getInFlight());
+			assertEquals(Job.State.PENDING, next.getState());
+		}
+
+		release.countDown();
+		updateUntilFinished(next);
+		assertEquals(Job.State.DONE, next.getState());
+		assertEquals(Job.State.CANCELLED, stubborn.getState());
+		assertEquals(0, jobs.getInFlight());
+	}
+
+	@Test
+	public void testConcurrentSubmissions() throws InterruptedException {
+		setup(3);
+		final int threads = 8;
+		final int perThread = 200;
+		final long[] owners = new long[threads * perThread];
+		for (int i = 0; i < owners.length; i++) {
+			owners[i] = em.createEntity();
+		}
+		final CountDownLatch latch = new CountDownLatch(1);
+		final AddPhysicsJob[] submitted = new AddPhysicsJob[owners.length];
+		Thread[] submitters = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int first = t * perThread;
+			submitters[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = first; i < first + perThread; i++) {
+						submitted[i] = jobs.submit(owners[i], new AddPhysicsJob(owners[i], latch));
+					}
+				}
+			});
+			submitters[t].start();
+		}
+		for (Thread submitter : submitters) {
+			submitter.join();
+		}
+		assertEquals(3, jobs.getInFlight());
+		assertEquals(owners.length - 3, jobs.getPending());
+
+		latch.countDown();
+		for (AddPhysicsJob job : submitted) {
+			updateUntilFinished(job);
+			assertEquals(Job.State.DONE, job.getState());
+		}
+		assertEquals(0, jobs.getInFlight());
+		assertEquals(0, jobs.getPending());
+		assertEquals(owners.length, em.getEntitiesHavingComponent(PhysicsComponent.class).size());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testFailureRethrownOnUpdate() throws InterruptedException {
+		setup(1);
+		Job<Object> job = jobs.submit(Job.NO_OWNER, new Job<Object>() {
+			@Override
+			protected Object compute() throws Exception {
+				throw new Exception("failed on purpose");
+			}
+
+			@Override
+			protected void apply(EntityManager entityManager, Object result) {
+			}
+		});
+		updateUntilFinished(job);
+	}
+}
@@ -0,0 +1,197 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+/**
+ * Tests recording changes into a Journal and replaying them.
+ */
+public class JournalTest {
+
+	static class HealthComponent extends Component {
+		int points;
+
+		HealthComponent(int points) {
+			this.points = points;
+		}
+	}
+
+	static final ComponentCodec<HealthComponent> HEALTH_CODEC = new ComponentCodec<HealthComponent>() {
+		@Override
+		public void write(HealthComponent component, ByteBuffer out) {
+			out.putInt(component.points);
+		}
+
+		@Override
+		public HealthComponent read(ByteBuffer in) {
+			return new HealthComponent(in.getInt());
+		}
+	};
+
+	private CodecRegistry codecs() {
+		CodecRegistry codecs = new CodecRegistry();
+		codecs.register(1, HealthComponent.class, HEALTH_CODEC);
+		codecs.registerTag(2, FrozenTag.class);
+		return codecs;
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		Path path = Files.createTempFile("jlarv", ".journal");
+		try {
+			Journal journal = Journal.open(path, codecs(), 64);
+			Engine engine = new Engine();
+			engine.setJournal(journal);
+			EntityManager em = engine.getEntityManager();
+
+			long hero = em.createEntity();
+			long goblin = em.createEntity();
+			long rock = em.createEntity();
+			em.addComponent(hero, new HealthComponent(100));
+			em.addComponent(goblin, new HealthComponent(30));
+			em.addTag(rock, FrozenTag.class);
+			engine.getGroupManager().add(hero, "players");
+			engine.update(1f);
+			assertEquals(1, journal.getSequence());
+
+			em.removeEntity(goblin);
+			em.addComponent(hero, new HealthComponent(90));
+			em.removeTag(rock, FrozenTag.class);
+			engine.update(1f);
+			// A tick that never commits, as if the process died in the middle of it
+			em.removeEntity(hero);
+			engine.setJournal(null);
+
+			Journal recovered = Journal.open(path, codecs());
+			Engine restored = new Engine();
+			assertEquals(2, recovered.replay(restored.getEntityManager(), restored.getGroupManager()));
+			EntityManager rem = restored.getEntityManager();
+			assertEquals(2, rem.getEntities().size());
+			assertTrue(rem.getEntities().contains(hero));
+			assertFalse(rem.getEntities().contains(goblin));
+			assertEquals(90, rem.getComponent(hero, HealthComponent.class).points);
+			assertFalse(rem.hasComponent(rock, FrozenTag.class));
+			assertTrue(restored.getGroupManager().isInGroup(hero, "players"));
+			// New entities don't reuse the IDs of live entities
+			ArrayList<Long> live = new ArrayList<Long>(rem.getEntities());
+			assertFalse(live.contains(rem.createEntity()));
+
+			recovered.truncate();
+			recovered.close();
+			Journal empty = Journal.open(path, codecs());
+			assertEquals(0, empty.replay(new EntityManager(), new GroupManager()));
+			empty.close();
+			journal.close();
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void testReplayAfterSnapshot() throws Exception {
+		Path path = Files.createTempFile("jlarv", ".journal");
+		try {
+			Journal journal = Journal.open(path, codecs());
+			Engine engine = new Engine();
+			engine.setJournal(journal);
+			EntityManager em = engine.getEntityManager();
+			long first = em.createEntity();
+			long second = em.createEntity();
+			engine.update(1f);
+			// Snapshot taken here, but the process dies before truncating
+			long saved = journal.getSequence() - 1;
+			long third = em.createEntity();
+			em.addComponent(third, new HealthComponent(7));
+			em.removeEntity(first);
+			engine.update(1f);
+			engine.setJournal(null);
+
+			Journal recovered = Journal.open(path, codecs());
+			EntityManager snapshot = new EntityManager();
+			snapshot.restoreEntity(first);
+			snapshot.restoreEntity(second);
+			try {
+				// The first batch is in the snapshot already
+				recovered.replay(snapshot, new GroupManager());
+				fail();
+			} catch (IllegalStateException expected) {
+			}
+
+			snapshot = new EntityManager();
+			snapshot.restoreEntity(first);
+			snapshot.restoreEntity(second);
+			assertEquals(1, recovered.replay(snapshot, new GroupManager(), saved));
+			assertFalse(snapshot.doesEntityExist(first));
+			assertTrue(snapshot.doesEntityExist(second));
+			assertEquals(7, snapshot.getComponent(third, HealthComponent.class).points);
+
+			// Numbering carries on after truncating and reopening
+			long next = recovered.getSequence();
+			recovered.truncate();
+			recovered.close();
+			Journal reopened = Journal.open(path, codecs());
+			assertEquals(next, reopened.getSequence());
+			reopened.close();
+			journal.close();
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test
+	public void testCorruptBatchIsIgnored() throws Exception {
+		Path path = Files.createTempFile("jlarv", ".journal");
+		try {
+			Journal journal = Journal.open(path, codecs());
+			EntityManager em = new EntityManager();
+			GroupManager gm = new GroupManager();
+			journal.attach(em, gm);
+			em.createEntity();
+			journal.commit();
+			int firstBatchEnd = journal.getSize();
+			em.addComponent(em.createEntity(), new HealthComponent(5));
+			journal.commit();
+			journal.close();
+
+			// Flip a byte of the second batch
+			RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+			file.seek(firstBatchEnd + 14);
+			int value = file.read();
+			file.seek(firstBatchEnd + 14);
+			file.write(value ^ 0xFF);
+			file.close();
+
+			Journal recovered = Journal.open(path, codecs());
+			EntityManager restored = new EntityManager();
+			assertEquals(1, recovered.replay(restored, new GroupManager()));
+			assertEquals(1, restored.getEntities().size());
+			recovered.close();
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnregisteredComponentsFail() throws Exception {
+		Path path = Files.createTempFile("jlarv", ".journal");
+		try {
+			Journal journal = Journal.open(path, codecs());
+			EntityManager em = new EntityManager();
+			journal.attach(em, new GroupManager());
+			try {
+				em.addComponent(em.createEntity(), new PhysicsComponent());
+			} finally {
+				journal.close();
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+}
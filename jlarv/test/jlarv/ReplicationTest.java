@@ -0,0 +1,264 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongPredicate;
+
+import jlarv.util.BitReader;
+import jlarv.util.BitWriter;
+import jlarv.util.Quantizer;
+
+import org.junit.Test;
+
+/**
+ * Tests replicating an EntityManager to another one through a loopback transport.
+ */
+public class ReplicationTest {
+
+	static class PositionComponent extends Component {
+		float x, y;
+
+		PositionComponent(float x, float y) {
+			this.x = x;
+			this.y = y;
+		}
+	}
+
+	static class HealthComponent extends Component {
+		int points;
+	}
+
+	static final Quantizer COORDINATE = Quantizer.withPrecision(-1000, 1000, 0.01f);
+
+	static final FieldCodec<PositionComponent> POSITION_CODEC = new FieldCodec<PositionComponent>() {
+		@Override
+		public int[] getFieldBits() {
+			return new int[] {COORDINATE.getBits(), COORDINATE.getBits()};
+		}
+
+		@Override
+		public void quantize(PositionComponent position, long[] fields) {
+			fields[0] = COORDINATE.quantize(position.x);
+			fields[1] = COORDINATE.quantize(position.y);
+		}
+
+		@Override
+		public PositionComponent dequantize(long[] fields, PositionComponent position) {
+			if (position == null) {
+				position = new PositionComponent(0, 0);
+			}
+			position.x = COORDINATE.dequantize(fields[0]);
+			position.y = COORDINATE.dequantize(fields[1]);
+			return position;
+		}
+	};
+
+	static final FieldCodec<HealthComponent> HEALTH_CODEC = new FieldCodec<HealthComponent>() {
+		@Override
+		public int[] getFieldBits() {
+			return new int[] {7};
+		}
+
+		@Override
+		public void quantize(HealthComponent health, long[] fields) {
+			fields[0] = health.points;
+		}
+
+		@Override
+		public HealthComponent dequantize(long[] fields, HealthComponent health) {
+			if (health == null) {
+				health = new HealthComponent();
+			}
+			health.points = (int) fields[0];
+			return health;
+		}
+	};
+
+	EntityManager server = new EntityManager();
+	EntityManager client = new EntityManager();
+	ReplicationSchema schema = new ReplicationSchema();
+	ReplicationEncoder encoder;
+	ReplicationDecoder decoder;
+	ReplicationEncoder.Observer observer;
+	LoopbackTransport transport = new LoopbackTransport();
+	ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+	private void setup() {
+		schema.register(PositionComponent.class, POSITION_CODEC);
+		schema.register(HealthComponent.class, HEALTH_CODEC);
+		schema.registerTag(FrozenTag.class);
+		encoder = new ReplicationEncoder(server, schema);
+		decoder = new ReplicationDecoder(client, schema);
+		observer = encoder.addObserver();
+	}
+
+	/**
+	 * Captures, sends, decodes and acknowledges a tick.
+	 * @return The size of the packet.
+	 */
+	private int tick() {
+		encoder.capture();
+		buffer.clear();
+		encoder.encode(observer, buffer);
+		buffer.flip();
+		int size = buffer.remaining();
+		transport.send(buffer);
+		ByteBuffer packet;
+		while ((packet = transport.receive()) != null) {
+			if (decoder.decode(packet)) {
+				transport.acknowledge(decoder.getLastTick());
+			}
+		}
+		int acknowledged;
+		while ((acknowledged = transport.pollAcknowledgement()) >= 0) {
+			observer.acknowledge(acknowledged);
+		}
+		return size;
+	}
+
+	private void assertReplicated() {
+		int replicated = 0;
+		for (long entity : server.getEntities()) {
+			PositionComponent position = server.hasComponent(entity, PositionComponent.class)
+					? server.getComponent(entity, PositionComponent.class) : null;
+			HealthComponent health = server.hasComponent(entity, HealthComponent.class)
+					? server.getComponent(entity, HealthComponent.class) : null;
+			boolean frozen = server.hasTag(entity, FrozenTag.class);
+			if (position == null && health == null && !frozen) {
+				continue;
+			}
+			replicated++;
+			assertEquals(position != null, client.hasComponent(entity, PositionComponent.class));
+			if (position != null) {
+				assertEquals(position.x, client.getComponent(entity, PositionComponent.class).x, 0.01f);
+				assertEquals(position.y, client.getComponent(entity, PositionComponent.class).y, 0.01f);
+			}
+			assertEquals(health != null, client.hasComponent(entity, HealthComponent.class));
+			if (health != null) {
+				assertEquals(health.points, client.getComponent(entity, HealthComponent.class).points);
+			}
+			assertEquals(frozen, client.hasTag(entity, FrozenTag.class));
+		}
+		assertEquals(replicated, client.getEntityCount());
+	}
+
+	@Test
+	public void testBitPacking() {
+		ByteBuffer bytes = ByteBuffer.allocate(64);
+		BitWriter out = new BitWriter(bytes);
+		out.write(5, 3);
+		out.writeBoolean(true);
+		out.write(-1L, 64);
+		out.writeVarLong(300);
+		out.writeSignedVarLong(-2);
+		out.write(0x2AAAAAAAAL, 34);
+		out.flush();
+		assertEquals(4 + 64 + 16 + 8 + 34 + 2, out.getBitsWritten());
+		bytes.flip();
+		BitReader in = new BitReader(bytes);
+		assertEquals(5, in.read(3));
+		assertTrue(in.readBoolean());
+		assertEquals(-1L, in.read(64));
+		assertEquals(300, in.readVarLong());
+		assertEquals(-2, in.readSignedVarLong());
+		assertEquals(0x2AAAAAAAAL, in.read(34));
+
+		assertEquals(18, COORDINATE.getBits());
+		assertEquals(123.45f, COORDINATE.dequantize(COORDINATE.quantize(123.45f)), 0.005f);
+		assertEquals(1000f, COORDINATE.dequantize(COORDINATE.quantize(5000f)), 0f);
+	}
+
+	@Test
+	public void testDeltas() {
+		setup();
+		long[] entities = new long[100];
+		for (int i = 0; i < entities.length; i++) {
+			entities[i] = server.createEntity();
+			server.addComponent(entities[i], new PositionComponent(i, -i));
+			HealthComponent health = new HealthComponent();
+			health.points = 100;
+			server.addComponent(entities[i], health);
+		}
+		server.createEntity(); // Nothing replicated, never sent
+		int full = tick();
+		assertReplicated();
+
+		// Nothing changed, only the header and the end mark
+		assertTrue(tick() <= 4);
+
+		// One field of one entity, way less than the full state
+		server.getComponent(entities[3], PositionComponent.class).x = 42.5f;
+		int delta = tick();
+		assertTrue(delta < full / 50);
+		assertReplicated();
+
+		PositionComponent kept = client.getComponent(entities[4], PositionComponent.class);
+		server.getComponent(entities[4], PositionComponent.class).y = 7f;
+		server.removeComponent(entities[5], HealthComponent.class);
+		server.addTag(entities[6], FrozenTag.class);
+		server.removeEntity(entities[7]);
+		long spawned = server.createEntity();
+		server.addComponent(spawned, new PositionComponent(1, 2));
+		tick();
+		assertReplicated();
+		assertSame(kept, client.getComponent(entities[4], PositionComponent.class));
+		assertEquals(7f, kept.y, 0.01f);
+	}
+
+	@Test
+	public void testPacketLoss() {
+		setup();
+		for (int i = 0; i < 50; i++) {
+			long entity = server.createEntity();
+			server.addComponent(entity, new PositionComponent(0, 0));
+		}
+		transport.setLossRate(0.5f, 1234);
+		for (int i = 0; i < 200; i++) {
+			for (long entity : server.getEntities()) {
+				if ((entity + i) % 7 == 0) {
+					server.getComponent(entity, PositionComponent.class).x += 1;
+				}
+			}
+			if (i % 20 == 0) {
+				server.removeEntity(server.getEntities().get(0));
+				server.addComponent(server.createEntity(), new PositionComponent(i, i));
+			}
+			tick();
+		}
+		assertTrue(transport.getPacketsLost() > 0);
+		transport.setLossRate(0, 0);
+		tick();
+		assertReplicated();
+	}
+
+	@Test
+	public void testFilter() {
+		setup();
+		final long near = server.createEntity();
+		long far = server.createEntity();
+		server.addComponent(near, new PositionComponent(1, 1));
+		server.addComponent(far, new PositionComponent(900, 900));
+		observer.setFilter(new LongPredicate() {
+			@Override
+			public boolean test(long entity) {
+				return entity == near;
+			}
+		});
+		tick();
+		assertEquals(1, client.getEntityCount());
+		assertTrue(client.hasComponent(near, PositionComponent.class));
+
+		observer.setFilter(null);
+		tick();
+		assertEquals(2, client.getEntityCount());
+		observer.setFilter(new LongPredicate() {
+			@Override
+			public boolean test(long entity) {
+				return false;
+			}
+		});
+		tick();
+		assertEquals(0, client.getEntityCount());
+	}
+}
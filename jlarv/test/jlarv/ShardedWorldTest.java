@@ -0,0 +1,220 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests migrating and ghosting entities between the shards of a ShardedWorld.
+ */
+public class ShardedWorldTest {
+
+	static class PositionComponent extends Component {
+		float x, y, dx;
+
+		PositionComponent(float x, float y, float dx) {
+			this.x = x;
+			this.y = y;
+			this.dx = dx;
+		}
+	}
+
+	/** Not registered in the codecs, so never ghosted. */
+	static class BrainComponent extends Component {
+	}
+
+	static final ComponentCodec<PositionComponent> POSITION_CODEC = new ComponentCodec<PositionComponent>() {
+		@Override
+		public void write(PositionComponent component, ByteBuffer out) {
+			out.putFloat(component.x).putFloat(component.y).putFloat(component.dx);
+		}
+
+		@Override
+		public PositionComponent read(ByteBuffer in) {
+			return new PositionComponent(in.getFloat(), in.getFloat(), in.getFloat());
+		}
+	};
+
+	static final GridPartitioner.Locator LOCATOR = new GridPartitioner.Locator() {
+		@Override
+		public boolean locate(EntityManager entityManager, long entity, float[] position) {
+			PositionComponent p = entityManager.getComponent(entity, PositionComponent.class);
+			if (p == null) {
+				return false;
+			}
+			position[0] = p.x;
+			position[1] = p.y;
+			return true;
+		}
+	};
+
+	/** Moves every entity it owns along x. */
+	static class MovementSystem extends System {
+		MovementSystem() {
+			super(0);
+		}
+
+		@Override
+		public void update(float delta) {
+			if (!entityManager.doesComponentExist(PositionComponent.class)) {
+				return;
+			}
+			for (long entity : entityManager.getEntitiesHavingComponent(PositionComponent.class)) {
+				if (!entityManager.hasTag(entity, GhostTag.class)) {
+					PositionComponent p = entityManager.getComponent(entity, PositionComponent.class);
+					p.x += p.dx * delta;
+				}
+			}
+		}
+	}
+
+	ShardedWorld world;
+
+	private ShardedWorld world(int columns) {
+		CodecRegistry codecs = new CodecRegistry();
+		codecs.register(1, PositionComponent.class, POSITION_CODEC);
+		GridPartitioner grid = new GridPartitioner(0, 0, 100, 100, columns, 1, 10, LOCATOR);
+		world = new ShardedWorld(grid.getShardCount(), grid, codecs, new ShardedWorld.ShardSetup() {
+			@Override
+			public void setup(Engine shard, int index) {
+				shard.addSystems(new MovementSystem());
+			}
+		});
+		return world;
+	}
+
+	@After
+	public void tearDown() {
+		if (world != null) {
+			world.dispose();
+		}
+	}
+
+	@Test
+	public void testGridPartitioner() {
+		GridPartitioner grid = new GridPartitioner(0, 0, 100, 100, 2, 2, 10, LOCATOR);
+		EntityManager em = new EntityManager();
+		long corner = em.createEntity();
+		em.addComponent(corner, new PositionComponent(95, 105, 0));
+		long outside = em.createEntity();
+		em.addComponent(outside, new PositionComponent(-50, 500, 0));
+		long nowhere = em.createEntity();
+
+		assertEquals(2, grid.ownerOf(em, corner));
+		int[] shards = new int[3];
+		assertEquals(3, grid.ghostsOf(em, corner, 2, shards));
+		Arrays.sort(shards);
+		assertArrayEquals(new int[] {0, 1, 3}, shards);
+		assertEquals(2, grid.ownerOf(em, outside));
+		assertEquals(0, grid.ghostsOf(em, outside, 2, shards));
+		assertEquals(-1, grid.ownerOf(em, nowhere));
+	}
+
+	@Test
+	public void testMigrationAndGhosts() {
+		world(2);
+		EntityManager left = world.getShard(0).getEntityManager();
+		EntityManager right = world.getShard(1).getEntityManager();
+		long unit = left.createEntity();
+		PositionComponent position = new PositionComponent(85, 50, 10);
+		BrainComponent brain = new BrainComponent();
+		left.addComponents(unit, position, brain);
+		left.addTag(unit, FrozenTag.class);
+		world.getShard(0).getGroupManager().add(unit, "units");
+
+		// Near the border, mirrored on the right
+		world.update(1f);
+		assertEquals(1, world.getGhostCount(1));
+		assertTrue(right.hasTag(unit, GhostTag.class));
+		assertTrue(right.hasTag(unit, FrozenTag.class));
+		assertEquals(95f, right.getComponent(unit, PositionComponent.class).x, 0f);
+		assertNotSame(position, right.getComponent(unit, PositionComponent.class));
+		assertFalse(right.hasComponent(unit, BrainComponent.class));
+
+		// Ghosts are read-only, removing one would recycle a live entity's ID
+		try {
+			right.removeEntity(unit);
+			fail();
+		} catch (IllegalStateException expected) {
+		}
+		assertTrue(right.doesEntityExist(unit));
+		long other = right.createEntity();
+		assertTrue(other != unit);
+		right.removeEntity(other);
+
+		// Across the border, moved to the right and mirrored on the left
+		left.removeTag(unit, FrozenTag.class);
+		world.update(1f);
+		assertEquals(1, world.getMigrationCount());
+		assertFalse(right.hasTag(unit, GhostTag.class));
+		assertSame(position, right.getComponent(unit, PositionComponent.class));
+		assertSame(brain, right.getComponent(unit, BrainComponent.class));
+		assertFalse(right.hasTag(unit, FrozenTag.class));
+		assertTrue(world.getShard(1).getGroupManager().isInGroup(unit, "units"));
+		assertFalse(world.getShard(0).getGroupManager().isInGroup(unit, "units"));
+		assertEquals(0, world.getGhostCount(1));
+		assertEquals(1, world.getGhostCount(0));
+		assertTrue(left.hasTag(unit, GhostTag.class));
+
+		// Far from the border, no ghost left
+		world.update(1f);
+		assertEquals(0, world.getGhostCount(0));
+		assertEquals(0, left.getEntityCount());
+		assertEquals(1, right.getEntityCount());
+
+		// IDs stay unique across shards
+		assertTrue(left.createEntity() > unit);
+	}
+
+	@Test
+	public void testMigrationKeepsDisabled() {
+		world(2);
+		EntityManager left = world.getShard(0).getEntityManager();
+		EntityManager right = world.getShard(1).getEntityManager();
+		long unit = left.createEntity();
+		PositionComponent position = new PositionComponent(50, 50, 0);
+		left.addComponent(unit, position);
+		left.setEnabled(unit, false);
+		world.update(1f);
+		assertEquals(0, world.getMigrationCount());
+
+		// Moved across the border by hand, systems don't see it
+		position.x = 150;
+		world.update(1f);
+		assertEquals(1, world.getMigrationCount());
+		assertSame(position, right.getComponent(unit, PositionComponent.class));
+		assertFalse(right.isEnabled(unit));
+		assertFalse(right.hasEntitiesHavingComponents(PositionComponent.class));
+		assertEquals(150f, position.x, 0f);
+	}
+
+	@Test
+	public void testParallelShards() {
+		world(4);
+		for (int i = 0; i < 400; i++) {
+			EntityManager em = world.getShard(i % 4).getEntityManager();
+			long entity = em.createEntity();
+			em.addComponent(entity, new PositionComponent(i, 50, i % 2 == 0 ? 7 : -7));
+		}
+		for (int tick = 0; tick < 20; tick++) {
+			world.update(1f);
+		}
+		int owned = 0;
+		for (int shard = 0; shard < 4; shard++) {
+			EntityManager em = world.getShard(shard).getEntityManager();
+			for (long entity : em.getEntities()) {
+				if (em.hasTag(entity, GhostTag.class)) {
+					continue;
+				}
+				owned++;
+				assertEquals(shard, world.getPartitioner().ownerOf(em, entity));
+			}
+		}
+		assertEquals(400, owned);
+		assertTrue(world.getMigrationCount() > 0);
+	}
+}
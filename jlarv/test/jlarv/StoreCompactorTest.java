@@ -0,0 +1,157 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import jlarv.util.IncrementalHashMap;
+
+import org.junit.Test;
+
+/**
+ * Tests compacting the stores of an EntityManager after mass removals.
+ */
+public class StoreCompactorTest {
+
+	Engine engine = new Engine();
+	EntityManager em = engine.getEntityManager();
+
+	/**
+	 * Creates entities with physics, movement on half of them and a tag, then
+	 * removes all but one in twenty of the first half.
+	 * @return The physics component of every survivor.
+	 */
+	private Map<Long, Component> despawn(int count) {
+		Map<Long, Component> survivors = new HashMap<Long, Component>();
+		long[] created = new long[count];
+		for (int i = 0; i < count; i++) {
+			long entity = em.createEntity();
+			created[i] = entity;
+			Component physics = new PhysicsComponent();
+			em.addComponent(entity, physics);
+			if (i % 2 == 0) {
+				em.addComponent(entity, new MovementComponent());
+			}
+			em.addTag(entity, FrozenTag.class);
+			if (i % 20 == 0 && i < count / 2) {
+				survivors.put(entity, physics);
+			}
+		}
+		for (int i = 0; i < count; i++) {
+			if (!survivors.containsKey(created[i])) {
+				em.removeEntity(created[i]);
+			}
+		}
+		return survivors;
+	}
+
+	private void assertSurvivors(Map<Long, Component> survivors) {
+		assertEquals(survivors.size(), em.getEntityCount());
+		for (Map.Entry<Long, Component> entry : survivors.entrySet()) {
+			assertSame(entry.getValue(), em.getComponent(entry.getKey(), PhysicsComponent.class));
+			assertTrue(em.hasComponent(entry.getKey(), MovementComponent.class));
+			assertTrue(em.hasTag(entry.getKey(), FrozenTag.class));
+		}
+		assertEquals(survivors.size(), em.getEntitiesHavingComponents(PhysicsComponent.class, MovementComponent.class).size());
+	}
+
+	@Test
+	public void testCompact() {
+		Map<Long, Component> survivors = despawn(40000);
+		StoreCompactor compactor = new StoreCompactor(em);
+		StoreCompactor.Fragmentation before = compactor.measure();
+		assertEquals(2, before.getStoreCount());
+		assertEquals(survivors.size() * 2, before.getComponentCount());
+		assertTrue(before.getLoad() < 0.1);
+		assertTrue(before.getTagDensity() < 0.1);
+
+		StoreCompactor.Pass pass = compactor.compact();
+		assertEquals(2, pass.getStoreCount());
+		assertEquals(before.getLoad(), pass.getBefore().getLoad(), 1e-9);
+		assertTrue(pass.getAfter().getLoad() > 0.3);
+		assertTrue(pass.getReleasedPageCount() > 0);
+		assertEquals(before.getTagDensity(), pass.getBefore().getTagDensity(), 1e-9);
+		assertEquals(pass.getBefore().getTagPageCount() - pass.getReleasedPageCount(), pass.getAfter().getTagPageCount());
+		assertTrue(pass.getAfter().getTagDensity() > pass.getBefore().getTagDensity());
+		StoreCompactor.Fragmentation after = compactor.measure();
+		assertEquals(pass.getAfter().getBucketCount(), after.getBucketCount());
+		assertTrue(after.getTagDensity() > before.getTagDensity());
+		assertFalse(compactor.isPassInProgress());
+		assertSurvivors(survivors);
+
+		// Still fully usable
+		long entity = em.createEntity();
+		em.addComponent(entity, new PhysicsComponent());
+		em.addTag(entity, FrozenTag.class);
+		assertTrue(em.hasTag(entity, FrozenTag.class));
+		assertEquals(survivors.size() + 1, em.getEntitiesHavingComponent(PhysicsComponent.class).size());
+	}
+
+	@Test
+	public void testBudgetedDuringUpdates() {
+		engine.setCompactionBudget(512);
+		StoreCompactor compactor = engine.getCompactor();
+		engine.update(0);
+		// Freshly filled stores aren't worth compacting
+		Map<Long, Component> survivors = new HashMap<Long, Component>();
+		for (int i = 0; i < 100; i++) {
+			long entity = em.createEntity();
+			Component physics = new PhysicsComponent();
+			em.addComponent(entity, physics);
+			em.addComponent(entity, new MovementComponent());
+			em.addTag(entity, FrozenTag.class);
+			survivors.put(entity, physics);
+		}
+		engine.update(0);
+		assertNull(compactor.getLastPass());
+
+		survivors.putAll(despawn(20000));
+		int updates = 0;
+		while (compactor.getLastPass() == null) {
+			engine.update(0);
+			updates++;
+			// Changes in between steps are fine
+			long entity = em.createEntity();
+			em.addComponent(entity, new PhysicsComponent());
+			em.removeEntity(entity);
+		}
+		assertTrue(updates > 1);
+		assertEquals(1, compactor.getPassCount());
+		StoreCompactor.Pass pass = compactor.getLastPass();
+		assertTrue(pass.getAfter().getLoad() > pass.getBefore().getLoad());
+		assertTrue(pass.getAfter().getTagDensity() > pass.getBefore().getTagDensity());
+		assertSurvivors(survivors);
+
+		// Nothing left to do until the next despawn
+		engine.update(0);
+		assertFalse(compactor.isPassInProgress());
+		assertEquals(1, compactor.getPassCount());
+		engine.setCompactionBudget(0);
+		assertNull(engine.getCompactor());
+	}
+
+	@Test
+	public void testRelocate() {
+		IncrementalHashMap<Long, Integer> map = new IncrementalHashMap<Long, Integer>(4);
+		for (long key = 0; key < 1000; key++) {
+			map.put(key * 64, (int) key);
+		}
+		while (map.stepResize(1000)) {
+		}
+		Map<Long, Integer> reference = new HashMap<Long, Integer>(map);
+		int capacity = map.getCapacity();
+		int cursor = 0;
+		while (cursor < capacity) {
+			cursor = map.relocate(cursor, 100, null);
+			assertEquals(reference, map);
+		}
+		assertEquals(capacity, cursor);
+		map.ensureCapacity(100000);
+		try {
+			map.relocate(0, 1, null);
+			fail();
+		} catch (IllegalStateException expected) {
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package jlarv;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import jlarv.util.Callable;
+
+import org.junit.Test;
+
+/**
+ * Tests the World engine stack and its background engines.
+ */
+public class WorldTest {
+
+	/**
+	 * System that counts its updates.
+	 */
+	class CountingSystem extends System {
+		AtomicInteger updates = new AtomicInteger();
+
+		CountingSystem() {
+			super(0);
+		}
+
+		@Override
+		public void update(float delta) {
+			updates.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void testBackgroundEngines() throws InterruptedException {
+		World world = new World();
+		Engine background = new Engine();
+		Engine foreground = new Engine();
+		CountingSystem backgroundSystem = new CountingSystem();
+		CountingSystem foregroundSystem = new CountingSystem();
+		background.addSystems(backgroundSystem);
+		foreground.addSystems(foregroundSystem);
+		world.push(background);
+		world.push(foreground);
+
+		GameLoop loop = world.runInBackground(background, 0.001f);
+		assertTrue(world.isRunningInBackground(background));
+		for (int i = 0; i < 10; i++) {
+			world.update(1f);
+		}
+		long deadline = java.lang.System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (backgroundSystem.updates.get() < 10) {
+			assertTrue(java.lang.System.nanoTime() < deadline);
+			Thread.sleep(1);
+		}
+		assertEquals(10, foregroundSystem.updates.get());
+
+		// The top engine isn't updated twice while in the background
+		world.pop();
+		assertTrue(world.stopBackground(background));
+		assertFalse(loop.isRunning());
+		int stopped = backgroundSystem.updates.get();
+		world.update(1f);
+		assertEquals(stopped + 1, backgroundSystem.updates.get());
+
+		// A slow background engine on top of the stack isn't ticked by update either
+		int before = backgroundSystem.updates.get();
+		world.runInBackground(background, 1000f);
+		world.update(1f);
+		assertEquals(before, backgroundSystem.updates.get());
+		world.stopBackground(background);
+		assertFalse(world.stopBackground(background));
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	public void testPostUpdateFunctions() throws InterruptedException {
+		final World world = new World();
+		world.push(new Engine());
+		final ArrayList<Integer> calls = new ArrayList<Integer>();
+
+		world.addPostUpdateFunction(new Consumer<Integer>() {
+			@Override
+			public void accept(Integer value) {
+				calls.add(value);
+				// Added while draining, runs on the next update
+				world.addPostUpdateTask(new Runnable() {
+					@Override
+					public void run() {
+						calls.add(3);
+					}
+				});
+			}
+		}, 1);
+		ArrayList<Object> args = new ArrayList<Object>();
+		args.add(2);
+		world.addPostUpdateFunction(new Callable() {
+			@Override
+			public Object call(ArrayList<Object> args) {
+				calls.add((Integer) args.get(0));
+				return null;
+			}
+		}, args);
+
+		world.update(1f);
+		assertEquals(2, calls.size());
+		assertEquals(Integer.valueOf(1), calls.get(0));
+		assertEquals(Integer.valueOf(2), calls.get(1));
+		world.update(1f);
+		assertEquals(Integer.valueOf(3), calls.get(2));
+		world.update(1f);
+		assertEquals(3, calls.size());
+	}
+
+	@Test
+	public void testPostUpdateFunctionsFromManyThreads() throws InterruptedException {
+		World world = new World();
+		world.push(new Engine());
+		final AtomicInteger calls = new AtomicInteger();
+		final Runnable increment = new Runnable() {
+			@Override
+			public void run() {
+				calls.incrementAndGet();
+			}
+		};
+		final int threads = 4, perThread = 10000;
+		final World target = world;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < perThread; i++) {
+						target.addPostUpdateTask(increment);
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		while (done.getCount() > 0) {
+			world.update(0f);
+		}
+		world.update(0f);
+		assertEquals(threads * perThread, calls.get());
+	}
+}